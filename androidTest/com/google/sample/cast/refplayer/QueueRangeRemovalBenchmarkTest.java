@@ -0,0 +1,158 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.cast.refplayer;
+
+import android.util.Log;
+
+import com.google.android.gms.cast.framework.media.MediaQueue;
+import com.google.android.gms.cast.framework.media.RemoteMediaClient;
+import com.google.sample.cast.refplayer.queue.QueueDataProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.MockSettings;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * To test that removing the items of a queue of 10k items from a position sends a single request
+ * with the IDs of the queue from that position, without reading any item, and to log how long it
+ * takes next to reading the IDs one item at a time
+ */
+@RunWith(AndroidJUnit4ClassRunner.class)
+public class QueueRangeRemovalBenchmarkTest {
+    private static final String TAG = "QueueRangeRemovalBenchmark";
+    private static final int QUEUE_LENGTH = 10000;
+    private static final int REMOVE_FROM = 1;
+    private static final int WARM_UP_ROUNDS = 10;
+    private static final int MEASURED_ROUNDS = 100;
+
+    /**
+     * Truncate the queue after its first item, then assert that a single request removes all the
+     * other items, and that no item was read from the queue
+     */
+    @Test
+    public void testRemoveItemsFromSendsOneRequestWithoutReadingItems() {
+        int[] itemIds = buildItemIds();
+        RemoteMediaClient remoteMediaClient = mockRemoteMediaClient(itemIds, false);
+        MediaQueue queue = remoteMediaClient.getMediaQueue();
+
+        QueueDataProvider.removeItemsFrom(remoteMediaClient, REMOVE_FROM);
+
+        ArgumentCaptor<int[]> removedItemIds = ArgumentCaptor.forClass(int[].class);
+        verify(remoteMediaClient, times(1)).queueRemoveItems(removedItemIds.capture(), any());
+        assertArrayEquals(Arrays.copyOfRange(itemIds, REMOVE_FROM, QUEUE_LENGTH),
+                removedItemIds.getValue());
+        verify(queue, never()).getItemAtIndex(anyInt());
+        verify(queue, never()).getItemAtIndex(anyInt(), anyBoolean());
+    }
+
+    /**
+     * Remove from the end of the queue, and from an invalid position, then assert that no request
+     * was sent
+     */
+    @Test
+    public void testRemoveItemsFromPastTheEndSendsNothing() {
+        RemoteMediaClient remoteMediaClient = mockRemoteMediaClient(buildItemIds(), false);
+
+        QueueDataProvider.removeItemsFrom(remoteMediaClient, QUEUE_LENGTH);
+        QueueDataProvider.removeItemsFrom(remoteMediaClient, -1);
+
+        verify(remoteMediaClient, never()).queueRemoveItems(any(int[].class), any());
+    }
+
+    /**
+     * Time the removal next to reading the IDs through the item at each position, as it used to
+     * be done, and log the averages. Reading an item through the mocked queue costs far less than
+     * the fetch it may trigger on a real one, so this only bounds the difference from below.
+     */
+    @Test
+    public void testRemoveItemsFromTiming() {
+        int[] itemIds = buildItemIds();
+        // Stub only, so that the calls are not recorded for verification.
+        RemoteMediaClient remoteMediaClient = mockRemoteMediaClient(itemIds, true);
+        MediaQueue queue = remoteMediaClient.getMediaQueue();
+        long byIndexNanos = 0;
+        long slicedNanos = 0;
+        for (int round = 0; round < WARM_UP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long start = System.nanoTime();
+            int[] byIndex = new int[QUEUE_LENGTH - REMOVE_FROM];
+            for (int i = 0; i < byIndex.length; i++) {
+                queue.getItemAtIndex(i + REMOVE_FROM);
+                byIndex[i] = itemIds[i + REMOVE_FROM];
+            }
+            long byIndexEnd = System.nanoTime();
+            QueueDataProvider.removeItemsFrom(remoteMediaClient, REMOVE_FROM);
+            long slicedEnd = System.nanoTime();
+            if (round >= WARM_UP_ROUNDS) {
+                byIndexNanos += byIndexEnd - start;
+                slicedNanos += slicedEnd - byIndexEnd;
+            }
+        }
+        Log.i(TAG, String.format(Locale.ROOT, "%d items: by index %dus, sliced %dus", QUEUE_LENGTH,
+                byIndexNanos / MEASURED_ROUNDS / 1000, slicedNanos / MEASURED_ROUNDS / 1000));
+    }
+
+    private static int[] buildItemIds() {
+        int[] itemIds = new int[QUEUE_LENGTH];
+        for (int i = 0; i < QUEUE_LENGTH; i++) {
+            itemIds[i] = i + 1;
+        }
+        return itemIds;
+    }
+
+    /**
+     * Returns a client whose queue holds {@code itemIds}, and copies them on every read, as
+     * MediaQueue#getItemIds() does. Stub only mocks do not record their calls.
+     */
+    private static RemoteMediaClient mockRemoteMediaClient(final int[] itemIds,
+            boolean stubOnly) {
+        MediaQueue queue = mock(MediaQueue.class, newSettings(stubOnly));
+        when(queue.getItemCount()).thenReturn(itemIds.length);
+        when(queue.getItemIds()).thenAnswer(new Answer<int[]>() {
+            @Override
+            public int[] answer(InvocationOnMock invocation) {
+                return itemIds.clone();
+            }
+        });
+        RemoteMediaClient remoteMediaClient =
+                mock(RemoteMediaClient.class, newSettings(stubOnly));
+        when(remoteMediaClient.getMediaQueue()).thenReturn(queue);
+        return remoteMediaClient;
+    }
+
+    private static MockSettings newSettings(boolean stubOnly) {
+        return stubOnly ? withSettings().stubOnly() : withSettings();
+    }
+}
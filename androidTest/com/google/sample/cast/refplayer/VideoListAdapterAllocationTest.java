@@ -0,0 +1,242 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.cast.refplayer;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Debug;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.ImageLoader;
+import com.android.volley.toolbox.NetworkImageView;
+import com.google.android.gms.cast.MediaInfo;
+import com.google.android.gms.cast.MediaMetadata;
+import com.google.android.gms.common.images.WebImage;
+import com.google.sample.cast.refplayer.browser.VideoListAdapter;
+import com.google.sample.cast.refplayer.utils.CustomVolleyRequest;
+import com.google.sample.cast.refplayer.utils.ImageFailureCache;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.appcompat.view.ContextThemeWrapper;
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * To test that rebinding the rows of the video list does not allocate
+ */
+@RunWith(AndroidJUnit4ClassRunner.class)
+public class VideoListAdapterAllocationTest {
+    private static final int ROW_COUNT = 3;
+    private static final int WARM_UP_BINDS = 10;
+    private static final int MEASURED_BINDS = 100;
+    // Reports to the failure cache like the listener of a row, for all the reference loads.
+    private static final ImageLoader.ImageListener REFERENCE_LISTENER =
+            new ImageLoader.ImageListener() {
+                @Override
+                public void onResponse(ImageLoader.ImageContainer response, boolean isImmediate) {
+                    ImageFailureCache.getInstance()
+                            .onResponse(response.getRequestUrl(), response, isImmediate);
+                }
+
+                @Override
+                public void onErrorResponse(VolleyError error) {
+                }
+            };
+
+    private Context mContext;
+    private VideoListAdapter mAdapter;
+    private final List<VideoListAdapter.ViewHolder> mHolders = new ArrayList<>();
+    private final List<NetworkImageView> mReferenceViews = new ArrayList<>();
+    private final ImageLoader.ImageContainer[] mReferenceContainers =
+            new ImageLoader.ImageContainer[ROW_COUNT];
+
+    /**
+     * Bind rows to their videos until every lazy initialization has run, then assert that
+     * rebinding them in place allocates nothing on the main thread
+     */
+    @Test
+    public void testRebindDoesNotAllocate() {
+        setUpAdapter(buildVideos(true));
+
+        final long[] allocations = new long[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            @SuppressWarnings("deprecation")
+            public void run() {
+                for (int round = 0; round < WARM_UP_BINDS; round++) {
+                    bindAll(mAdapter, mHolders, 0);
+                }
+
+                // Responses are delivered on the main thread, so none can run while measuring.
+                Debug.resetThreadAllocCount();
+                Debug.startAllocCounting();
+                for (int round = 0; round < MEASURED_BINDS; round++) {
+                    bindAll(mAdapter, mHolders, 0);
+                }
+                Debug.stopAllocCounting();
+                allocations[0] = Debug.getThreadAllocCount();
+            }
+        });
+        assertEquals(0, allocations[0]);
+    }
+
+    /**
+     * Rebind rows to another thumbnail on every round, then assert that it allocates no more than
+     * the Volley calls that a thumbnail change needs, made with a single listener. Volley has to
+     * allocate its request and container, but the row should add nothing of its own, such as a
+     * listener per bind
+     */
+    @Test
+    public void testRebindToAnotherThumbnailOnlyAllocatesVolleyRequests() {
+        // The same texts on every row, so that only the thumbnail changes.
+        final List<MediaInfo> videos = buildVideos(false);
+        setUpAdapter(videos);
+
+        final long[] allocations = new long[2];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            @SuppressWarnings("deprecation")
+            public void run() {
+                ImageLoader imageLoader =
+                        CustomVolleyRequest.getInstance(mContext).getImageLoader();
+                FrameLayout parent = new FrameLayout(mContext);
+                for (int i = 0; i < ROW_COUNT; i++) {
+                    mReferenceViews.add((NetworkImageView) mAdapter.onCreateViewHolder(parent, 0)
+                            .itemView.findViewById(R.id.imageView1));
+                }
+                for (int round = 0; round < WARM_UP_BINDS + MEASURED_BINDS; round++) {
+                    boolean measured = round >= WARM_UP_BINDS;
+                    // Both rotate through the same thumbnails, the reference first, so that each
+                    // finds the other's requests in flight the same way.
+                    Debug.resetThreadAllocCount();
+                    Debug.startAllocCounting();
+                    loadAllLikeVolleyOnly(imageLoader, videos, round);
+                    Debug.stopAllocCounting();
+                    if (measured) {
+                        allocations[0] += Debug.getThreadAllocCount();
+                    }
+
+                    Debug.resetThreadAllocCount();
+                    Debug.startAllocCounting();
+                    bindAll(mAdapter, mHolders, round);
+                    Debug.stopAllocCounting();
+                    if (measured) {
+                        allocations[1] += Debug.getThreadAllocCount();
+                    }
+                }
+            }
+        });
+        assertTrue("Rebinding to another thumbnail allocated " + allocations[1]
+                + " objects, the Volley calls alone " + allocations[0],
+                allocations[1] <= allocations[0]);
+    }
+
+    /**
+     * Creates the adapter and its rows, and hands it {@code videos}, which an empty adapter shows
+     * right away.
+     */
+    private void setUpAdapter(final List<MediaInfo> videos) {
+        mContext = new ContextThemeWrapper(
+                InstrumentationRegistry.getInstrumentation().getTargetContext(),
+                R.style.Theme_CastVideosTheme);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdapter = new VideoListAdapter(
+                        new VideoListAdapter.ItemClickListener() {
+                            @Override
+                            public void itemClicked(View view, MediaInfo item, int position) {
+                            }
+                        }, mContext);
+                mAdapter.setData(videos);
+                assertEquals(videos.size(), mAdapter.getItemCount());
+                FrameLayout parent = new FrameLayout(mContext);
+                for (int i = 0; i < ROW_COUNT; i++) {
+                    mHolders.add(mAdapter.onCreateViewHolder(parent, 0));
+                }
+            }
+        });
+    }
+
+    /**
+     * Binds each row to the video {@code shift} positions after its own, so that every row shows
+     * another thumbnail than on the previous shift.
+     */
+    private static void bindAll(VideoListAdapter adapter,
+            List<VideoListAdapter.ViewHolder> holders, int shift) {
+        for (int i = 0; i < holders.size(); i++) {
+            adapter.onBindViewHolder(holders.get(i), (i + shift) % holders.size());
+        }
+    }
+
+    /**
+     * Makes the calls that showing another thumbnail needs, as {@link #bindAll} does, with a single
+     * listener.
+     */
+    private void loadAllLikeVolleyOnly(ImageLoader imageLoader, List<MediaInfo> videos,
+            int shift) {
+        ImageFailureCache failureCache = ImageFailureCache.getInstance();
+        for (int i = 0; i < mReferenceViews.size(); i++) {
+            NetworkImageView imageView = mReferenceViews.get(i);
+            String url = videos.get((i + shift) % videos.size()).getMetadata().getImages().get(0)
+                    .getUrl().toString();
+            if (mReferenceContainers[i] != null) {
+                mReferenceContainers[i].cancelRequest();
+                mReferenceContainers[i] = null;
+            }
+            if (!failureCache.shouldAttempt(url)) {
+                imageView.setImageUrl(null, imageLoader);
+                continue;
+            }
+            ViewGroup.LayoutParams params = mHolders.get(i).itemView
+                    .findViewById(R.id.imageView1).getLayoutParams();
+            mReferenceContainers[i] = imageLoader.get(url, REFERENCE_LISTENER,
+                    Math.max(params.width, 0), Math.max(params.height, 0),
+                    imageView.getScaleType());
+            imageView.setImageUrl(url, imageLoader);
+        }
+    }
+
+    private static List<MediaInfo> buildVideos(boolean distinctTexts) {
+        List<MediaInfo> videos = new ArrayList<>();
+        for (int i = 0; i < ROW_COUNT; i++) {
+            String suffix = distinctTexts ? " " + i : "";
+            MediaMetadata metadata = new MediaMetadata(MediaMetadata.MEDIA_TYPE_MOVIE);
+            metadata.putString(MediaMetadata.KEY_TITLE, "Video" + suffix);
+            metadata.putString(MediaMetadata.KEY_SUBTITLE, "Studio" + suffix);
+            metadata.addImage(new WebImage(Uri.parse("https://example.com/thumbnail" + i + ".jpg")));
+            metadata.addImage(new WebImage(Uri.parse("https://example.com/poster" + i + ".jpg")));
+            videos.add(new MediaInfo.Builder("https://example.com/video" + i + ".mp4")
+                    .setStreamType(MediaInfo.STREAM_TYPE_BUFFERED)
+                    .setContentType("video/mp4")
+                    .setMetadata(metadata)
+                    .build());
+        }
+        return videos;
+    }
+}
@@ -28,6 +28,7 @@ import com.google.android.gms.cast.framework.media.MediaIntentReceiver;
 import com.google.android.gms.cast.framework.media.NotificationOptions;
 import com.google.android.gms.common.images.WebImage;
 import com.google.sample.cast.refplayer.expandedcontrols.ExpandedControlsActivity;
+import com.google.sample.cast.refplayer.utils.ImageQualityPolicy;
 
 import android.content.Context;
 
@@ -48,7 +49,7 @@ public class CastOptionsProvider implements OptionsProvider {
                 .setTargetActivityClassName(ExpandedControlsActivity.class.getName())
                 .build();
         CastMediaOptions mediaOptions = new CastMediaOptions.Builder()
-                .setImagePicker(new ImagePickerImpl())
+                .setImagePicker(new ImagePickerImpl(context.getApplicationContext()))
                 .setNotificationOptions(notificationOptions)
                 .setExpandedControllerActivityClassName(ExpandedControlsActivity.class.getName())
                 .build();
@@ -69,24 +70,81 @@ public class CastOptionsProvider implements OptionsProvider {
         return null;
     }
 
+    /**
+     * An {@link ImagePicker} that picks the smallest image that still covers the size requested by
+     * the {@link ImageHints}, so that the Cast UI does not download more pixels than it shows. On a
+     * slow or metered link, the requested size is scaled down by the {@link ImageQualityPolicy}.
+     */
     private static class ImagePickerImpl extends ImagePicker {
 
+        private final Context mAppContext;
+
+        private ImagePickerImpl(Context appContext) {
+            mAppContext = appContext;
+        }
+
         @Override
         public WebImage onPickImage(MediaMetadata mediaMetadata, ImageHints hints) {
-            int type = hints.getType();
             if ((mediaMetadata == null) || !mediaMetadata.hasImages()) {
                 return null;
             }
             List<WebImage> images = mediaMetadata.getImages();
             if (images.size() == 1) {
                 return images.get(0);
-            } else {
-                if (type == ImagePicker.IMAGE_TYPE_MEDIA_ROUTE_CONTROLLER_DIALOG_BACKGROUND) {
-                    return images.get(0);
-                } else {
-                    return images.get(1);
+            }
+            int width = hints.getWidthInPixels();
+            int height = hints.getHeightInPixels();
+            if (width <= 0 && height <= 0) {
+                return pickImageByType(images, hints.getType());
+            }
+            ImageQualityPolicy policy = ImageQualityPolicy.getInstance(mAppContext);
+            float scale = policy.getSizeScale();
+            WebImage image = pickImageBySize(images, (int) (width * scale), (int) (height * scale),
+                    hints.getType());
+            if (scale < 1) {
+                WebImage fullSizeImage = pickImageBySize(images, width, height, hints.getType());
+                if (fullSizeImage != image) {
+                    policy.onImageDownsized(fullSizeImage, image);
                 }
             }
+            return image;
+        }
+
+        private static WebImage pickImageBySize(List<WebImage> images, int width, int height,
+                int type) {
+            WebImage smallestFit = null;
+            WebImage largest = null;
+            for (WebImage image : images) {
+                if (image.getWidth() <= 0 || image.getHeight() <= 0) {
+                    // The size of this image is unknown, so it can't be compared.
+                    continue;
+                }
+                if (largest == null || getArea(image) > getArea(largest)) {
+                    largest = image;
+                }
+                if (image.getWidth() >= width && image.getHeight() >= height
+                        && (smallestFit == null || getArea(image) < getArea(smallestFit))) {
+                    smallestFit = image;
+                }
+            }
+            if (smallestFit != null) {
+                return smallestFit;
+            }
+            // No image is large enough, so the largest one is the closest match.
+            return largest != null ? largest : pickImageByType(images, type);
+        }
+
+        /** Picks an image for the hints that don't carry a size. */
+        private static WebImage pickImageByType(List<WebImage> images, int type) {
+            if (type == ImagePicker.IMAGE_TYPE_EXPANDED_CONTROLLER_BACKGROUND
+                    || type == ImagePicker.IMAGE_TYPE_LOCK_SCREEN_BACKGROUND) {
+                return images.get(1);
+            }
+            return images.get(0);
+        }
+
+        private static long getArea(WebImage image) {
+            return (long) image.getWidth() * image.getHeight();
         }
     }
 }
@@ -27,14 +27,17 @@ import com.google.android.gms.cast.framework.IntroductoryOverlay;
 import com.google.android.gms.cast.framework.SessionManagerListener;
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.Task;
+import com.google.sample.cast.refplayer.browser.VideoBrowserFragment;
 import com.google.sample.cast.refplayer.queue.ui.QueueListViewActivity;
 import com.google.sample.cast.refplayer.settings.CastPreference;
+import com.google.sample.cast.refplayer.utils.Utils;
 
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 
@@ -43,6 +46,8 @@ import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -203,8 +208,9 @@ public class VideoBrowserActivity extends AppCompatActivity {
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
-        menu.findItem(R.id.action_show_queue).setVisible(
-                (mCastSession != null) && mCastSession.isConnected());
+        boolean isConnected = (mCastSession != null) && mCastSession.isConnected();
+        menu.findItem(R.id.action_show_queue).setVisible(isConnected);
+        menu.findItem(R.id.action_add_all_to_queue).setVisible(isConnected);
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -217,6 +223,12 @@ public class VideoBrowserActivity extends AppCompatActivity {
         } else if (item.getItemId() == R.id.action_show_queue) {
             intent = new Intent(VideoBrowserActivity.this, QueueListViewActivity.class);
             startActivity(intent);
+        } else if (item.getItemId() == R.id.action_add_all_to_queue) {
+            VideoBrowserFragment fragment = (VideoBrowserFragment) getSupportFragmentManager()
+                    .findFragmentById(R.id.browse);
+            if (fragment != null) {
+                fragment.addAllToQueue();
+            }
         }
         return true;
     }
@@ -244,6 +256,17 @@ public class VideoBrowserActivity extends AppCompatActivity {
         super.onPause();
     }
 
+    /**
+     * Appends the frame timings and the state of the caches to
+     * {@code adb shell dumpsys activity}.
+     */
+    @Override
+    public void dump(@NonNull String prefix, @Nullable FileDescriptor fd,
+            @NonNull PrintWriter writer, @Nullable String[] args) {
+        super.dump(prefix, fd, writer, args);
+        Utils.dumpDiagnostics(this, prefix, writer, args);
+    }
+
     private void showIntroductoryOverlay() {
         if (mIntroductoryOverlay != null) {
             mIntroductoryOverlay.remove();
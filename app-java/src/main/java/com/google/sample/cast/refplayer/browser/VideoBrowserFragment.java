@@ -19,27 +19,37 @@ package com.google.sample.cast.refplayer.browser;
 import com.google.android.gms.cast.MediaInfo;
 import com.google.android.gms.cast.framework.CastContext;
 import com.google.android.gms.cast.framework.CastSession;
+import com.google.android.gms.cast.framework.SessionManager;
 import com.google.android.gms.cast.framework.SessionManagerListener;
+import com.google.android.gms.cast.framework.media.RemoteMediaClient;
 import com.google.sample.cast.refplayer.R;
 import com.google.sample.cast.refplayer.mediaplayer.LocalPlayerActivity;
+import com.google.sample.cast.refplayer.queue.QueueBulkEnqueuer;
+import com.google.sample.cast.refplayer.utils.FrameTimingMonitor;
+import com.google.sample.cast.refplayer.utils.MemoryGovernor;
 import com.google.sample.cast.refplayer.utils.Utils;
 
+import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import androidx.annotation.Nullable;
+import androidx.appcompat.app.ActionBar;
+import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.app.ActivityOptionsCompat;
 import androidx.fragment.app.Fragment;
 import androidx.loader.app.LoaderManager;
 import androidx.loader.content.Loader;
 import androidx.core.util.Pair;
-import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageButton;
+import android.widget.Toast;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
@@ -53,10 +63,18 @@ public class VideoBrowserFragment extends Fragment implements VideoListAdapter.I
     private static final String TAG = "VideoBrowserFragment";
     private static final String CATALOG_URL =
             "https://commondatastorage.googleapis.com/gtv-videos-bucket/CastVideos/f.json";
+    // The rows of tiles kept for reuse: the one scrolling out, the one scrolling in and a spare.
+    private static final int RECYCLED_ROWS = 3;
+    // The videos played locally after the one clicked, which travel in the intent of the player.
+    private static final int LOCAL_QUEUE_LENGTH = 10;
     private RecyclerView mRecyclerView;
     private VideoListAdapter mAdapter;
     private View mEmptyView;
     private View mLoadingView;
+    @Nullable
+    private List<MediaInfo> mVideos;
+    @Nullable
+    private QueueBulkEnqueuer mBulkEnqueuer;
     private final SessionManagerListener<CastSession> mSessionManagerListener =
             new MySessionManagerListener();
     private Executor localExecutor = Executors.newSingleThreadExecutor();
@@ -76,11 +94,13 @@ public class VideoBrowserFragment extends Fragment implements VideoListAdapter.I
         mRecyclerView = (RecyclerView) getView().findViewById(R.id.list);
         mEmptyView = getView().findViewById(R.id.empty_view);
         mLoadingView = getView().findViewById(R.id.progress_indicator);
-        LinearLayoutManager layoutManager = new LinearLayoutManager(getActivity());
-        layoutManager.setOrientation(LinearLayoutManager.VERTICAL);
-        mRecyclerView.setLayoutManager(layoutManager);
+        mRecyclerView.setLayoutManager(new MyGridLayoutManager(getActivity()));
+        mRecyclerView.setHasFixedSize(true);
         mAdapter = new VideoListAdapter(this, getContext());
+        // The catalog that the adapter shows is parsed once and kept for the whole process.
+        MemoryGovernor.getInstance(getContext()).register(VideoProvider.getCatalogTrimmable());
         mRecyclerView.setAdapter(mAdapter);
+        FrameTimingMonitor.getInstance().track(mRecyclerView, "browse");
         LoaderManager.getInstance(this).initLoader(0, null, this);
     }
 
@@ -100,10 +120,79 @@ public class VideoBrowserFragment extends Fragment implements VideoListAdapter.I
             Intent intent = new Intent(getActivity(), LocalPlayerActivity.class);
             intent.putExtra("media", item);
             intent.putExtra("shouldStart", false);
+            // Played locally, the videos that follow in the list play after this one.
+            if (mVideos != null && position + 1 < mVideos.size()) {
+                int end = Math.min(position + 1 + LOCAL_QUEUE_LENGTH, mVideos.size());
+                intent.putParcelableArrayListExtra("queue",
+                        new ArrayList<>(mVideos.subList(position + 1, end)));
+            }
             ActivityCompat.startActivity(getActivity(), intent, options.toBundle());
         }
     }
 
+    /**
+     * Adds every video of the catalog to the queue of the receiver, showing the progress in the
+     * action bar. Does nothing while a previous call is still adding videos.
+     */
+    public void addAllToQueue() {
+        if (mVideos == null || mVideos.isEmpty()
+                || (mBulkEnqueuer != null && !mBulkEnqueuer.isDone())) {
+            return;
+        }
+        CastSession castSession = CastContext.getSharedInstance(getContext(), localExecutor)
+                .getResult()
+                .getSessionManager()
+                .getCurrentCastSession();
+        RemoteMediaClient remoteMediaClient = castSession != null && castSession.isConnected()
+                ? castSession.getRemoteMediaClient()
+                : null;
+        if (remoteMediaClient == null) {
+            return;
+        }
+        mBulkEnqueuer = new QueueBulkEnqueuer(getContext(), remoteMediaClient, mVideos,
+                new QueueBulkEnqueuer.Listener() {
+                    @Override
+                    public void onProgress(int enqueuedCount, int totalCount) {
+                        if (enqueuedCount < totalCount) {
+                            setProgressSubtitle(getString(R.string.queue_bulk_progress,
+                                    enqueuedCount, totalCount));
+                            return;
+                        }
+                        setProgressSubtitle(null);
+                        Toast.makeText(getContext(),
+                                getString(R.string.queue_bulk_added, totalCount),
+                                Toast.LENGTH_SHORT).show();
+                    }
+
+                    @Override
+                    public void onFailed(int enqueuedCount, int totalCount) {
+                        setProgressSubtitle(null);
+                        Toast.makeText(getContext(),
+                                getString(R.string.queue_bulk_failed, enqueuedCount, totalCount),
+                                Toast.LENGTH_SHORT).show();
+                    }
+                });
+        setProgressSubtitle(getString(R.string.queue_bulk_progress, 0, mVideos.size()));
+        mBulkEnqueuer.start();
+    }
+
+    private void setProgressSubtitle(@Nullable CharSequence subtitle) {
+        ActionBar actionBar = ((AppCompatActivity) getActivity()).getSupportActionBar();
+        if (actionBar != null) {
+            actionBar.setSubtitle(subtitle);
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        if (mBulkEnqueuer != null) {
+            // The chunks already sent are still added, the others are dropped with the screen.
+            mBulkEnqueuer.cancel();
+            mBulkEnqueuer = null;
+        }
+        super.onDestroyView();
+    }
+
     @Override
     public Loader<List<MediaInfo>> onCreateLoader(int id, Bundle args) {
         return new VideoItemLoader(getActivity(), CATALOG_URL);
@@ -111,6 +200,7 @@ public class VideoBrowserFragment extends Fragment implements VideoListAdapter.I
 
     @Override
     public void onLoadFinished(Loader<List<MediaInfo>> loader, List<MediaInfo> data) {
+        mVideos = data;
         mAdapter.setData(data);
         mLoadingView.setVisibility(View.GONE);
         mEmptyView.setVisibility(null == data || data.isEmpty() ? View.VISIBLE : View.GONE);
@@ -118,15 +208,19 @@ public class VideoBrowserFragment extends Fragment implements VideoListAdapter.I
 
     @Override
     public void onLoaderReset(Loader<List<MediaInfo>> loader) {
+        mVideos = null;
         mAdapter.setData(null);
     }
 
     @Override
     public void onStart() {
-        CastContext.getSharedInstance(getContext(),localExecutor)
+        SessionManager sessionManager = CastContext.getSharedInstance(getContext(),localExecutor)
                 .getResult()
-                .getSessionManager()
-                .addSessionManagerListener(mSessionManagerListener, CastSession.class);
+                .getSessionManager();
+        sessionManager.addSessionManagerListener(mSessionManagerListener, CastSession.class);
+        // The listener only reports the changes from now on, so read the current state once.
+        CastSession castSession = sessionManager.getCurrentCastSession();
+        mAdapter.setCastConnected(castSession != null && castSession.isConnected());
         super.onStart();
     }
 
@@ -139,21 +233,62 @@ public class VideoBrowserFragment extends Fragment implements VideoListAdapter.I
         super.onStop();
     }
 
+    /**
+     * Lays out as many columns as fit in the width that the list is measured with, inside its
+     * padding, so that the margins around the list are never counted as room for a column.
+     */
+    private class MyGridLayoutManager extends GridLayoutManager {
+        private final int mColumnMinWidth;
+        private int mListWidth;
+
+        MyGridLayoutManager(Context context) {
+            super(context, 1);
+            mColumnMinWidth = context.getResources()
+                    .getDimensionPixelSize(R.dimen.browse_column_min_width);
+        }
+
+        @Override
+        public void onLayoutChildren(RecyclerView.Recycler recycler, RecyclerView.State state) {
+            int listWidth = getWidth() - getPaddingLeft() - getPaddingRight();
+            if (listWidth > 0 && listWidth != mListWidth) {
+                boolean rowsBound = mListWidth > 0;
+                mListWidth = listWidth;
+                int spanCount = Math.max(1, listWidth / mColumnMinWidth);
+                setSpanCount(spanCount);
+                // A grid recycles a whole row of tiles at once, more than the default five views.
+                mRecyclerView.getRecycledViewPool()
+                        .setMaxRecycledViews(0, spanCount * RECYCLED_ROWS);
+                // A single column keeps the thumbnails of the row layout, as on a phone.
+                mAdapter.setColumnWidth(spanCount > 1 ? listWidth / spanCount : 0);
+                if (rowsBound) {
+                    // The adapter can't be notified in the middle of a layout.
+                    mRecyclerView.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mAdapter.notifyItemRangeChanged(0, mAdapter.getItemCount());
+                        }
+                    });
+                }
+            }
+            super.onLayoutChildren(recycler, state);
+        }
+    }
+
     private class MySessionManagerListener implements SessionManagerListener<CastSession> {
 
         @Override
         public void onSessionEnded(CastSession session, int error) {
-            mAdapter.notifyDataSetChanged();
+            mAdapter.setCastConnected(false);
         }
 
         @Override
         public void onSessionResumed(CastSession session, boolean wasSuspended) {
-            mAdapter.notifyDataSetChanged();
+            mAdapter.setCastConnected(true);
         }
 
         @Override
         public void onSessionStarted(CastSession session, String sessionId) {
-            mAdapter.notifyDataSetChanged();
+            mAdapter.setCastConnected(true);
         }
 
         @Override
@@ -17,6 +17,13 @@
 package com.google.sample.cast.refplayer.browser;
 
 import android.content.Context;
+import android.graphics.drawable.GradientDrawable;
+import android.text.TextUtils;
+import androidx.annotation.ColorInt;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -25,18 +32,18 @@ import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.android.volley.VolleyError;
 import com.android.volley.toolbox.ImageLoader;
 import com.android.volley.toolbox.NetworkImageView;
 import com.google.android.gms.cast.MediaInfo;
 import com.google.android.gms.cast.MediaMetadata;
-import com.google.android.gms.cast.framework.CastContext;
-import com.google.android.gms.cast.framework.CastSession;
 import com.google.sample.cast.refplayer.utils.CustomVolleyRequest;
+import com.google.sample.cast.refplayer.utils.FrameTimingMonitor;
+import com.google.sample.cast.refplayer.utils.ImageFailureCache;
+import com.google.sample.cast.refplayer.utils.PlaceholderColors;
 import com.google.sample.cast.refplayer.R;
 
 import java.util.List;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 
 /**
  * An {@link ArrayAdapter} to populate the list of videos.
@@ -44,61 +51,120 @@ import java.util.concurrent.Executors;
 public class VideoListAdapter extends RecyclerView.Adapter<VideoListAdapter.ViewHolder> {
 
     private static final float ASPECT_RATIO = 9f / 16f;
+    // The share of the width of a column that the thumbnail of a tile takes.
+    private static final float THUMBNAIL_WIDTH_FRACTION = 0.4f;
+    // The payload of a rebind that only toggles the overflow menu of the rows.
+    private static final Object PAYLOAD_CAST_CONNECTION = new Object();
     private final ItemClickListener mClickListener;
     private final Context mAppContext;
-    private List<MediaInfo> videos;
-    private Executor localExecutor = Executors.newSingleThreadExecutor();
+    // Diffs the submitted lists on a background thread and dispatches precise updates.
+    private final AsyncListDiffer<MediaInfo> mDiffer =
+            new AsyncListDiffer<>(this, new MediaInfoItemCallback());
+    private boolean mCastConnected;
+    private int mThumbnailWidth = ViewGroup.LayoutParams.WRAP_CONTENT;
+    private int mThumbnailHeight = ViewGroup.LayoutParams.WRAP_CONTENT;
 
     public VideoListAdapter(ItemClickListener clickListener, Context context) {
         mClickListener = clickListener;
         mAppContext = context.getApplicationContext();
+        setHasStableIds(true);
     }
 
     @Override
     public ViewHolder onCreateViewHolder(ViewGroup viewGroup, int viewType) {
         Context context = viewGroup.getContext();
         View parent = LayoutInflater.from(context).inflate(R.layout.browse_row, viewGroup, false);
-        return ViewHolder.newInstance(parent);
+        final ViewHolder viewHolder = ViewHolder.newInstance(parent);
+        // A single listener per row, which looks the video up when clicked rather than when bound.
+        View.OnClickListener clickListener = new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                int position = viewHolder.getBindingAdapterPosition();
+                if (position == RecyclerView.NO_POSITION) {
+                    return;
+                }
+                mClickListener.itemClicked(view, mDiffer.getCurrentList().get(position),
+                        viewHolder.getLayoutPosition());
+            }
+        };
+        viewHolder.mMenu.setOnClickListener(clickListener);
+        viewHolder.mImgView.setOnClickListener(clickListener);
+        viewHolder.mTextContainer.setOnClickListener(clickListener);
+        return viewHolder;
     }
 
+    /**
+     * Binds a row without allocating as long as it shows the same thumbnail as before, which is the
+     * common case of a row that is rebound in place.
+     */
     @Override
-    public void onBindViewHolder(ViewHolder viewHolder, final int position) {
-        final MediaInfo item = videos.get(position);
+    public void onBindViewHolder(ViewHolder viewHolder, int position) {
+        FrameTimingMonitor frameTimingMonitor = FrameTimingMonitor.getInstance();
+        frameTimingMonitor.beginPhase(FrameTimingMonitor.PHASE_BIND);
+        bind(viewHolder, position);
+        frameTimingMonitor.endPhase(FrameTimingMonitor.PHASE_BIND);
+    }
+
+    private void bind(ViewHolder viewHolder, int position) {
+        MediaInfo item = mDiffer.getCurrentList().get(position);
         MediaMetadata mm = item.getMetadata();
         viewHolder.setTitle(mm.getString(MediaMetadata.KEY_TITLE));
         viewHolder.setDescription(mm.getString(MediaMetadata.KEY_SUBTITLE));
-        viewHolder.setImage(mm.getImages().get(0).getUrl().toString(), mAppContext);
+        viewHolder.setImage(mm.getImages().get(0).getUrl().toString(),
+                PlaceholderColors.getInstance(mAppContext).getColor(item), mThumbnailWidth,
+                mThumbnailHeight, mAppContext);
+        viewHolder.setMenuVisible(mCastConnected);
+    }
 
-        viewHolder.mMenu.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View view) {
-                mClickListener.itemClicked(view, item, position);
-            }
-        });
-        viewHolder.mImgView.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View view) {
-                mClickListener.itemClicked(view, item, position);
-            }
-        });
+    @Override
+    public void onBindViewHolder(ViewHolder viewHolder, int position, List<Object> payloads) {
+        if (payloads.isEmpty() || !isCastConnectionOnly(payloads)) {
+            onBindViewHolder(viewHolder, position);
+            return;
+        }
+        viewHolder.setMenuVisible(mCastConnected);
+    }
 
-        viewHolder.mTextContainer.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View view) {
-                mClickListener.itemClicked(view, item, position);
+    private static boolean isCastConnectionOnly(List<Object> payloads) {
+        for (int i = 0; i < payloads.size(); i++) {
+            if (payloads.get(i) != PAYLOAD_CAST_CONNECTION) {
+                return false;
             }
-        });
-        CastSession castSession = CastContext.getSharedInstance(mAppContext,localExecutor)
-                .getResult()
-                .getSessionManager()
-                .getCurrentCastSession();
-        viewHolder.mMenu.setVisibility(
-                (castSession != null && castSession.isConnected()) ? View.VISIBLE : View.GONE);
+        }
+        return true;
+    }
+
+    /**
+     * Sizes the thumbnails for a column of {@code columnWidth} pixels, so that they are decoded
+     * at the size of their tile rather than at the size of the image. A width of 0 keeps the size
+     * of the row layout. Only the rows bound afterwards are sized, so the adapter has to be
+     * notified if some rows are bound already.
+     */
+    public void setColumnWidth(int columnWidth) {
+        if (columnWidth <= 0) {
+            mThumbnailWidth = ViewGroup.LayoutParams.WRAP_CONTENT;
+            mThumbnailHeight = ViewGroup.LayoutParams.WRAP_CONTENT;
+            return;
+        }
+        mThumbnailWidth = (int) (columnWidth * THUMBNAIL_WIDTH_FRACTION);
+        mThumbnailHeight = (int) (mThumbnailWidth * ASPECT_RATIO);
+    }
+
+    /**
+     * Shows or hides the overflow menu of the rows, which is only useful while a cast session is
+     * connected. The visible rows only have their menu rebound, their text and images are kept.
+     */
+    public void setCastConnected(boolean castConnected) {
+        if (mCastConnected == castConnected) {
+            return;
+        }
+        mCastConnected = castConnected;
+        notifyItemRangeChanged(0, getItemCount(), PAYLOAD_CAST_CONNECTION);
     }
 
     @Override
     public int getItemCount() {
-        return videos == null ? 0 : videos.size();
+        return mDiffer.getCurrentList().size();
     }
 
     /**
@@ -114,6 +180,28 @@ public class VideoListAdapter extends RecyclerView.Adapter<VideoListAdapter.View
         private TextView mDescriptionView;
         private NetworkImageView mImgView;
         private ImageLoader mImageLoader;
+        private final GradientDrawable mPlaceholder;
+        // The thumbnail whose outcome is recorded in the ImageFailureCache, and its request.
+        @Nullable private String mTrackedUrl;
+        @Nullable private ImageLoader.ImageContainer mTrackedContainer;
+        // Only ever hears about mTrackedUrl, since the previous request is cancelled on a change.
+        private final ImageLoader.ImageListener mFailureListener =
+                new ImageLoader.ImageListener() {
+                    @Override
+                    public void onResponse(ImageLoader.ImageContainer response,
+                            boolean isImmediate) {
+                        ImageFailureCache.getInstance()
+                                .onResponse(mTrackedUrl, response, isImmediate);
+                    }
+
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        ImageFailureCache.getInstance().onFailure(mTrackedUrl);
+                        // Check the backoff of the thumbnail again on the next bind.
+                        mTrackedUrl = null;
+                        mTrackedContainer = null;
+                    }
+                };
 
         public static ViewHolder newInstance(View parent) {
             NetworkImageView imgView = (NetworkImageView) parent.findViewById(R.id.imageView1);
@@ -128,6 +216,7 @@ public class VideoListAdapter extends RecyclerView.Adapter<VideoListAdapter.View
                 TextView descriptionView, View menu) {
             super(parent);
             mParent = parent;
+            mPlaceholder = PlaceholderColors.newPlaceholderDrawable(parent.getContext());
             mImgView = imgView;
             mTextContainer = textContainer;
             mMenu = menu;
@@ -136,21 +225,68 @@ public class VideoListAdapter extends RecyclerView.Adapter<VideoListAdapter.View
         }
 
         public void setTitle(String title) {
-            mTitleView.setText(title);
+            // Setting the same text again would still lay the view out anew.
+            if (!TextUtils.equals(mTitleView.getText(), title)) {
+                mTitleView.setText(title);
+            }
         }
 
         public void setDescription(String description) {
-            mDescriptionView.setText(description);
+            if (!TextUtils.equals(mDescriptionView.getText(), description)) {
+                mDescriptionView.setText(description);
+            }
         }
 
-        public void setImage(String imgUrl, Context context) {
+        public void setImage(String imgUrl, @ColorInt int placeholderColor, int width,
+                int height, Context context) {
+            FrameTimingMonitor frameTimingMonitor = FrameTimingMonitor.getInstance();
+            frameTimingMonitor.beginPhase(FrameTimingMonitor.PHASE_IMAGE);
+            loadImage(imgUrl, placeholderColor, width, height, context);
+            frameTimingMonitor.endPhase(FrameTimingMonitor.PHASE_IMAGE);
+        }
+
+        private void loadImage(String imgUrl, @ColorInt int placeholderColor, int width,
+                int height, Context context) {
             mImageLoader = CustomVolleyRequest.getInstance(context)
                     .getImageLoader();
+            // Paint the placeholder right away, the thumbnail replaces it once loaded.
+            mPlaceholder.setColor(placeholderColor);
+            mImgView.setDefaultImageDrawable(mPlaceholder);
+            ViewGroup.LayoutParams params = mImgView.getLayoutParams();
+            if (params.width != width || params.height != height) {
+                params.width = width;
+                params.height = height;
+                mImgView.setLayoutParams(params);
+                mTrackedUrl = null;
+            }
+            if (imgUrl.equals(mTrackedUrl)) {
+                // Same thumbnail as before, the view already holds its bitmap or its request.
+                return;
+            }
 
-            mImageLoader.get(imgUrl, ImageLoader.getImageListener(mImgView, 0, 0));
+            if (mTrackedContainer != null) {
+                mTrackedContainer.cancelRequest();
+                mTrackedContainer = null;
+            }
+            mTrackedUrl = null;
+            ImageFailureCache failureCache = ImageFailureCache.getInstance();
+            if (!failureCache.shouldAttempt(imgUrl)) {
+                // The image failed recently, so leave the placeholder without retrying it.
+                mImgView.setImageUrl(null, mImageLoader);
+                return;
+            }
+            mTrackedUrl = imgUrl;
+            // Requested at the size NetworkImageView lays the view out at, so that Volley shares a
+            // single request and decode between both.
+            mTrackedContainer = mImageLoader.get(imgUrl, mFailureListener, Math.max(width, 0),
+                    Math.max(height, 0), mImgView.getScaleType());
             mImgView.setImageUrl(imgUrl, mImageLoader);
         }
 
+        public void setMenuVisible(boolean visible) {
+            mMenu.setVisibility(visible ? View.VISIBLE : View.GONE);
+        }
+
         public void setOnClickListener(View.OnClickListener listener) {
             mParent.setOnClickListener(listener);
         }
@@ -160,9 +296,12 @@ public class VideoListAdapter extends RecyclerView.Adapter<VideoListAdapter.View
         }
     }
 
+    /**
+     * Replaces the list of videos. The new list is diffed against the current one off the main
+     * thread, so that the rows of the videos that are still there keep their views and images.
+     */
     public void setData(List<MediaInfo> data) {
-        videos = data;
-        notifyDataSetChanged();
+        mDiffer.submitList(data);
     }
 
     /**
@@ -175,6 +314,38 @@ public class VideoListAdapter extends RecyclerView.Adapter<VideoListAdapter.View
 
     @Override
     public long getItemId(int position) {
-        return super.getItemId(position);
+        return getStableId(mDiffer.getCurrentList().get(position));
+    }
+
+    /** Returns a 64-bit FNV-1a hash of the content ID of {@code media}. */
+    static long getStableId(MediaInfo media) {
+        String contentId = media.getContentId();
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < contentId.length(); i++) {
+            hash ^= contentId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /** Compares videos by content ID, and then by the fields that a row shows. */
+    private static class MediaInfoItemCallback extends DiffUtil.ItemCallback<MediaInfo> {
+
+        @Override
+        public boolean areItemsTheSame(@NonNull MediaInfo oldItem, @NonNull MediaInfo newItem) {
+            return TextUtils.equals(oldItem.getContentId(), newItem.getContentId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull MediaInfo oldItem, @NonNull MediaInfo newItem) {
+            MediaMetadata oldMetadata = oldItem.getMetadata();
+            MediaMetadata newMetadata = newItem.getMetadata();
+            return TextUtils.equals(oldMetadata.getString(MediaMetadata.KEY_TITLE),
+                    newMetadata.getString(MediaMetadata.KEY_TITLE))
+                    && TextUtils.equals(oldMetadata.getString(MediaMetadata.KEY_SUBTITLE),
+                    newMetadata.getString(MediaMetadata.KEY_SUBTITLE))
+                    && oldMetadata.getImages().get(0).getUrl()
+                    .equals(newMetadata.getImages().get(0).getUrl());
+        }
     }
 }
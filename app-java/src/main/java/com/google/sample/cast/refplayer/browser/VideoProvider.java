@@ -19,11 +19,13 @@ import com.google.android.gms.cast.MediaInfo;
 import com.google.android.gms.cast.MediaMetadata;
 import com.google.android.gms.cast.MediaTrack;
 import com.google.android.gms.common.images.WebImage;
+import com.google.sample.cast.refplayer.utils.MemoryGovernor;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.graphics.Color;
 import android.net.Uri;
 import android.util.Log;
 
@@ -34,9 +36,14 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Provider of the list of videos.
@@ -68,12 +75,43 @@ public class VideoProvider {
     private static final String TAG_TRACK_LANGUAGE = "language";
     private static final String TAG_THUMB = "image-480x270"; // "thumb";
     private static final String TAG_IMG_780_1200 = "image-780x1200";
+    private static final Pattern TAG_IMAGE_SIZE = Pattern.compile("image-(\\d+)x(\\d+)");
     private static final String TAG_TITLE = "title";
+    private static final String TAG_PREVIEW_COLOR = "previewColor";
 
     public static final String KEY_DESCRIPTION = "description";
+    /** The metadata key of the color painted while the thumbnail loads, if the catalog has one. */
+    public static final String KEY_PREVIEW_COLOR = "previewColor";
 
     private static final String TARGET_FORMAT = TAG_HLS;
-    private static List<MediaInfo> mediaList;
+    private static volatile List<MediaInfo> mediaList;
+    private static final MemoryGovernor.Trimmable CATALOG_TRIMMABLE =
+            new MemoryGovernor.Trimmable() {
+                @Override
+                public String getName() {
+                    return "Catalog";
+                }
+
+                @Override
+                public void trimToFraction(float fraction) {
+                    // The catalog is all or nothing and reloading it means downloading it again,
+                    // so it is only dropped when the caches are emptied.
+                    if (fraction == 0) {
+                        mediaList = null;
+                    }
+                }
+
+                @Override
+                public int getEntryCount() {
+                    List<MediaInfo> list = mediaList;
+                    return list != null ? list.size() : 0;
+                }
+
+                @Override
+                public long getSizeInBytes() {
+                    return -1;
+                }
+            };
 
     protected JSONObject parseUrl(String urlString) {
         InputStream is = null;
@@ -105,13 +143,24 @@ public class VideoProvider {
         }
     }
 
+    /**
+     * Returns the {@link MemoryGovernor.Trimmable} that lets the memory governor drop the parsed
+     * catalog.
+     */
+    public static MemoryGovernor.Trimmable getCatalogTrimmable() {
+        return CATALOG_TRIMMABLE;
+    }
+
     public static List<MediaInfo> buildMedia(String url) throws JSONException {
 
-        if (null != mediaList) {
-            return mediaList;
+        List<MediaInfo> cachedMediaList = mediaList;
+        if (null != cachedMediaList) {
+            return cachedMediaList;
         }
         Map<String, String> urlPrefixMap = new HashMap<>();
-        mediaList = new ArrayList<>();
+        // Fill a local list and publish it once complete, since the memory governor may drop the
+        // catalog at any time.
+        List<MediaInfo> mediaList = new ArrayList<>();
         JSONObject jsonObj = new VideoProvider().parseUrl(url);
         JSONArray categories = jsonObj.getJSONArray(TAG_CATEGORIES);
         if (null != categories) {
@@ -145,12 +194,11 @@ public class VideoProvider {
                         if (videoUrl == null) {
                             continue;
                         }
-                        String imageUrl = urlPrefixMap.get(TAG_IMAGES) + video.getString(TAG_THUMB);
-                        String bigImageUrl = urlPrefixMap.get(TAG_IMAGES) + video
-                                .getString(TAG_IMG_780_1200);
+                        List<WebImage> images = buildImages(video, urlPrefixMap.get(TAG_IMAGES));
                         String title = video.getString(TAG_TITLE);
                         String studio = video.getString(TAG_STUDIO);
                         int duration = video.getInt(TAG_DURATION);
+                        Integer previewColor = parsePreviewColor(video);
                         List<MediaTrack> tracks = null;
                         if (video.has(TAG_TRACKS)) {
                             JSONArray tracksArray = video.getJSONArray(TAG_TRACKS);
@@ -170,23 +218,85 @@ public class VideoProvider {
                             }
                         }
                         mediaList.add(buildMediaInfo(title, studio, subTitle, duration, videoUrl,
-                                mimeType, imageUrl, bigImageUrl, tracks));
+                                mimeType, images, previewColor, tracks));
                     }
                 }
             }
         }
+        VideoProvider.mediaList = mediaList;
         return mediaList;
     }
 
+    /**
+     * Builds the images of a video with their sizes. The list thumbnail always comes first and the
+     * poster second, followed by any other size that the catalog provides, from the smallest to the
+     * largest.
+     */
+    private static List<WebImage> buildImages(JSONObject video, String urlPrefix)
+            throws JSONException {
+        List<WebImage> images = new ArrayList<>();
+        images.add(buildImage(urlPrefix, video.getString(TAG_THUMB), TAG_THUMB));
+        images.add(buildImage(urlPrefix, video.getString(TAG_IMG_780_1200), TAG_IMG_780_1200));
+        List<WebImage> extraImages = new ArrayList<>();
+        Iterator<String> keys = video.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (!key.equals(TAG_THUMB) && !key.equals(TAG_IMG_780_1200)
+                    && TAG_IMAGE_SIZE.matcher(key).matches()) {
+                extraImages.add(buildImage(urlPrefix, video.getString(key), key));
+            }
+        }
+        Collections.sort(extraImages, new Comparator<WebImage>() {
+            @Override
+            public int compare(WebImage first, WebImage second) {
+                return Long.compare((long) first.getWidth() * first.getHeight(),
+                        (long) second.getWidth() * second.getHeight());
+            }
+        });
+        images.addAll(extraImages);
+        return images;
+    }
+
+    private static WebImage buildImage(String urlPrefix, String path, String sizeTag) {
+        Uri url = Uri.parse(urlPrefix + path);
+        Matcher matcher = TAG_IMAGE_SIZE.matcher(sizeTag);
+        if (!matcher.matches()) {
+            return new WebImage(url);
+        }
+        return new WebImage(url, Integer.parseInt(matcher.group(1)),
+                Integer.parseInt(matcher.group(2)));
+    }
+
+    /**
+     * Returns the optional preview color of a video, given as "#RRGGBB" in the catalog, or
+     * {@code null} if the video has none.
+     */
+    private static Integer parsePreviewColor(JSONObject video) {
+        String previewColor = video.optString(TAG_PREVIEW_COLOR, null);
+        if (previewColor == null) {
+            return null;
+        }
+        try {
+            return Color.parseColor(previewColor);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Ignoring the invalid preview color " + previewColor);
+            return null;
+        }
+    }
+
     private static MediaInfo buildMediaInfo(String title, String studio, String subTitle,
-            int duration, String url, String mimeType, String imgUrl, String bigImageUrl,
-            List<MediaTrack> tracks) {
+            int duration, String url, String mimeType, List<WebImage> images,
+            Integer previewColor, List<MediaTrack> tracks) {
         MediaMetadata movieMetadata = new MediaMetadata(MediaMetadata.MEDIA_TYPE_MOVIE);
 
         movieMetadata.putString(MediaMetadata.KEY_SUBTITLE, studio);
         movieMetadata.putString(MediaMetadata.KEY_TITLE, title);
-        movieMetadata.addImage(new WebImage(Uri.parse(imgUrl)));
-        movieMetadata.addImage(new WebImage(Uri.parse(bigImageUrl)));
+        for (WebImage image : images) {
+            movieMetadata.addImage(image);
+        }
+        if (previewColor != null) {
+            movieMetadata.putInt(KEY_PREVIEW_COLOR, previewColor);
+        }
         JSONObject jsonObj = null;
         try {
             jsonObj = new JSONObject();
@@ -24,9 +24,17 @@ import androidx.annotation.Nullable;
 import com.google.android.gms.cast.MediaInfo;
 import com.google.android.gms.cast.framework.CastSession;
 import com.google.sample.cast.refplayer.mediaplayer.PlaybackAdapter.PlaybackLocation;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
-/** An interface for the local media player. */
+/**
+ * An interface for the local media player.
+ *
+ * <p>The player plays the media it is given, then each media of its queue in turn. The queue is
+ * given along with the first media, and is replaced by the next call to {@link #play(String,
+ * Bundle)}.
+ */
 public abstract class LocalMediaPlayer {
   protected static final String TAG = "LocalMediaPlayer";
 
@@ -46,11 +54,14 @@ public abstract class LocalMediaPlayer {
       "com.google.sample.cast.refplayer.mediaplayer.MEDIA_INFO";
   public static final String KEY_START_POSITION =
       "com.google.sample.cast.refplayer.mediaplayer.START_POSITION";
+  public static final String KEY_QUEUE = "com.google.sample.cast.refplayer.mediaplayer.QUEUE";
 
   private final String messagePrefix;
   protected Callback callback;
   @Nullable protected MediaInfo mediaInfo;
   protected long startPosition;
+  // The media to play after mediaInfo, in order.
+  private final List<MediaInfo> queue = new ArrayList<>();
   protected @PlaybackStateCompat.State int playbackState;
   private final RemotePlaybackHelper remotePlaybackHelper;
 
@@ -75,6 +86,9 @@ public abstract class LocalMediaPlayer {
 
   protected abstract boolean onStop();
 
+  /** Plays {@link #mediaInfo} from the start, once it became the current media of the queue. */
+  protected abstract boolean onPlayNext();
+
   protected abstract boolean onDestroy();
 
   public abstract long getDuration();
@@ -88,6 +102,11 @@ public abstract class LocalMediaPlayer {
     }
     remotePlaybackHelper.setMedia(mediaInfo);
     startPosition = bundle.getLong(KEY_START_POSITION);
+    queue.clear();
+    List<MediaInfo> queuedMedia = bundle.getParcelableArrayList(KEY_QUEUE);
+    if (queuedMedia != null) {
+      queue.addAll(queuedMedia);
+    }
 
     if (onPlay(mediaId, bundle)) {
       logDebug("play media from position " + startPosition + " when isActive = " + isActive());
@@ -125,6 +144,28 @@ public abstract class LocalMediaPlayer {
     }
   }
 
+  /** Called when the current media ended, to go on with the queue or to stop. */
+  protected void onCompletion() {
+    if (queue.isEmpty()) {
+      stop();
+      return;
+    }
+    mediaInfo = queue.remove(0);
+    remotePlaybackHelper.setMedia(mediaInfo);
+    startPosition = 0;
+    if (onPlayNext()) {
+      logDebug("play the next media of the queue, %d left", queue.size());
+    } else {
+      stop();
+    }
+  }
+
+  /** Returns the media to play after the current one, or {@code null} if there is none. */
+  @Nullable
+  protected MediaInfo getNextMediaInfo() {
+    return queue.isEmpty() ? null : queue.get(0);
+  }
+
   public void destroy() {
     if (onDestroy()) {
       if (remotePlaybackHelper != null) {
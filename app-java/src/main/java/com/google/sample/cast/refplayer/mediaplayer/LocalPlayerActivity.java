@@ -44,12 +44,18 @@ import com.google.android.gms.cast.MediaInfo;
 import com.google.android.gms.cast.MediaMetadata;
 import com.google.android.gms.cast.framework.CastButtonFactory;
 import com.google.android.gms.cast.framework.media.MediaUtils;
+import com.google.android.gms.common.images.WebImage;
 import com.google.sample.cast.refplayer.R;
 import com.google.sample.cast.refplayer.browser.VideoProvider;
 import com.google.sample.cast.refplayer.queue.ui.QueueListViewActivity;
 import com.google.sample.cast.refplayer.settings.CastPreference;
 import com.google.sample.cast.refplayer.utils.AsyncBitmap;
+import com.google.sample.cast.refplayer.utils.CustomVolleyRequest;
+import com.google.sample.cast.refplayer.utils.ImageQualityPolicy;
+import com.google.sample.cast.refplayer.utils.ImageScheduler;
 import com.google.sample.cast.refplayer.utils.Utils;
+import java.util.ArrayList;
+import java.util.List;
 import org.json.JSONObject;
 
 /**
@@ -58,13 +64,32 @@ import org.json.JSONObject;
 public class LocalPlayerActivity extends AppCompatActivity {
     private static final String TAG = "LocalPlayerActivity";
 
+    private static final float ASPECT_RATIO_TOLERANCE = 0.05f;
+
     private String coverArtUrl;
+    @Nullable private AsyncBitmap coverArtAsyncBitmap;
+    @Nullable private WebImage coverArtThumbnail;
+    // The larger cover art that was not loaded because of the image quality policy.
+    @Nullable private WebImage skippedCoverArtUpgrade;
+    private final ImageQualityPolicy.OnTierChangedListener tierChangedListener =
+        new ImageQualityPolicy.OnTierChangedListener() {
+            @Override
+            public void onTierChanged(ImageQualityPolicy.Tier tier) {
+                if (tier != ImageQualityPolicy.Tier.LOW && skippedCoverArtUpgrade != null) {
+                    Log.d(TAG, "upgrade the cover art now that the link allows it");
+                    loadCoverArt(skippedCoverArtUpgrade.getUrl(), coverArt.getDrawable() != null);
+                    skippedCoverArtUpgrade = null;
+                }
+            }
+        };
 
     private TextView titleView;
     private TextView descriptionView;
     private View container;
     private ImageView coverArt;
     private MediaInfo selectedMedia;
+    // The media to play after selectedMedia, in order.
+    private ArrayList<MediaInfo> queue = new ArrayList<>();
     private TextView authorView;
     private ImageButton playCircle;
     private long startPosition;
@@ -106,6 +131,9 @@ public class LocalPlayerActivity extends AppCompatActivity {
             }
             // Obtain the media info and other information from extra bundle.
             selectedMedia = mediaInfo;
+            ArrayList<MediaInfo> queuedMedia = intent.getParcelableArrayListExtra("queue");
+            queue = (queuedMedia != null) ? queuedMedia : new ArrayList<MediaInfo>();
+            playbackAdapter.setQueue(queue);
             loadViews();
             setupActionBar();
             startPosition = bundle.getLong("startPosition", 0);
@@ -126,6 +154,7 @@ public class LocalPlayerActivity extends AppCompatActivity {
     @Override
     protected void onPause() {
         Log.d(TAG, "onPause() was called");
+        ImageQualityPolicy.getInstance(this).removeOnTierChangedListener(tierChangedListener);
         super.onPause();
     }
 
@@ -144,6 +173,7 @@ public class LocalPlayerActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         Log.d(TAG, "onDestroy() is called");
+        recordSkippedCoverArtUpgrade();
         playbackAdapter.destroy();
         super.onDestroy();
     }
@@ -158,6 +188,7 @@ public class LocalPlayerActivity extends AppCompatActivity {
     protected void onResume() {
         super.onResume();
         Log.d(TAG, "onResume() was called");
+        ImageQualityPolicy.getInstance(this).addOnTierChangedListener(tierChangedListener);
         playbackAdapter.updatePlaybackState();
 
         if (playbackAdapter.isPlaybackLocal() && shouldStart) {
@@ -300,19 +331,30 @@ public class LocalPlayerActivity extends AppCompatActivity {
 
         String url = MediaUtils.getImageUrl(selectedMedia, 0);
         if (url != null && !TextUtils.equals(coverArtUrl, url)) {
-            // Set the coverArt to null before fetching in case the fetching failed and we never update
-            // the image.
-            coverArt.setImageBitmap(null);
-            AsyncBitmap coverArtAsyncBitmap = new AsyncBitmap();
-            coverArtAsyncBitmap.setCallback(
-                new AsyncBitmap.Callback() {
-                    @Override
-                    public void onBitmapLoaded(Bitmap bitmap) {
-                        coverArt.setImageBitmap(bitmap);
-                    }
-                });
-            coverArtAsyncBitmap.loadBitmap(Uri.parse(url));
+            recordSkippedCoverArtUpgrade();
+            if (coverArtAsyncBitmap != null) {
+                // Discard the cover art of the previous media if it is still loading.
+                coverArtAsyncBitmap.clear();
+                coverArtAsyncBitmap = null;
+            }
+            // The browse list has just shown this image, so paint it from the shared memory cache
+            // to let the shared element transition start with the cover art in place. It is null
+            // if the image is not cached, in which case the cover art stays empty until it loads.
+            Bitmap cachedCoverArt = CustomVolleyRequest.getInstance(this).getCachedBitmap(url);
+            coverArt.setImageBitmap(cachedCoverArt);
             coverArtUrl = url;
+            coverArtThumbnail = selectedMedia.getMetadata().getImages().get(0);
+            WebImage upgrade = getCoverArtUpgrade();
+            if (upgrade != null && ImageQualityPolicy.getInstance(this).allowsOptionalDownloads()) {
+                loadCoverArt(upgrade.getUrl(), cachedCoverArt != null);
+            } else {
+                // On a slow or metered link, keep the thumbnail and upgrade it in place if the
+                // link gets better while the screen is shown.
+                skippedCoverArtUpgrade = upgrade;
+                if (cachedCoverArt == null) {
+                    loadCoverArt(Uri.parse(url), false);
+                }
+            }
         }
 
         ViewCompat.setTransitionName(coverArt, getString(R.string.transition_image));
@@ -331,6 +373,93 @@ public class LocalPlayerActivity extends AppCompatActivity {
             });
     }
 
+    /**
+     * Loads the cover art from {@code url}, decoded at the size of the cover art frame: as wide as
+     * the screen, with the aspect ratio of the thumbnail. If a placeholder is already shown, the
+     * load is not urgent and the placeholder is kept if it fails.
+     */
+    private void loadCoverArt(Uri url, final boolean hasPlaceholder) {
+        if (coverArtAsyncBitmap != null) {
+            coverArtAsyncBitmap.clear();
+        }
+        int frameWidth = Utils.getDisplaySize(this).x;
+        int frameHeight = 0;
+        if (coverArtThumbnail != null && coverArtThumbnail.getWidth() > 0) {
+            frameHeight = frameWidth * coverArtThumbnail.getHeight() / coverArtThumbnail.getWidth();
+        }
+        coverArtAsyncBitmap = new AsyncBitmap(frameWidth, frameHeight);
+        if (hasPlaceholder) {
+            coverArtAsyncBitmap.setPriority(ImageScheduler.Priority.PREFETCH);
+        }
+        coverArtAsyncBitmap.setCallback(
+            new AsyncBitmap.Callback() {
+                @Override
+                public void onBitmapLoaded(Bitmap bitmap) {
+                    if (bitmap != null || !hasPlaceholder) {
+                        coverArt.setImageBitmap(bitmap);
+                    }
+                }
+            });
+        coverArtAsyncBitmap.loadBitmap(url);
+    }
+
+    /** Records the bytes saved by a cover art upgrade that was skipped for good. */
+    private void recordSkippedCoverArtUpgrade() {
+        if (skippedCoverArtUpgrade != null) {
+            ImageQualityPolicy.getInstance(this)
+                    .onImageDownsized(skippedCoverArtUpgrade, coverArtThumbnail);
+            skippedCoverArtUpgrade = null;
+        }
+    }
+
+    /**
+     * Returns a larger image with the aspect ratio of the list thumbnail, the smallest one that
+     * covers the width of the screen if there is one, or {@code null} if the catalog has no such
+     * image.
+     */
+    @Nullable
+    private WebImage getCoverArtUpgrade() {
+        MediaMetadata metadata = selectedMedia.getMetadata();
+        if (metadata == null || metadata.getImages().size() < 2) {
+            return null;
+        }
+        List<WebImage> images = metadata.getImages();
+        WebImage thumbnail = images.get(0);
+        int targetWidth = Utils.getDisplaySize(this).x;
+        if (thumbnail.getWidth() <= 0 || thumbnail.getHeight() <= 0
+                || thumbnail.getWidth() >= targetWidth) {
+            return null;
+        }
+        WebImage upgrade = null;
+        for (int i = 1; i < images.size(); i++) {
+            WebImage image = images.get(i);
+            if (image.getWidth() <= thumbnail.getWidth() || !hasSameAspectRatio(image, thumbnail)) {
+                continue;
+            }
+            boolean isBetter;
+            if (upgrade == null) {
+                isBetter = true;
+            } else if (upgrade.getWidth() < targetWidth) {
+                isBetter = image.getWidth() > upgrade.getWidth();
+            } else {
+                isBetter = image.getWidth() >= targetWidth && image.getWidth() < upgrade.getWidth();
+            }
+            if (isBetter) {
+                upgrade = image;
+            }
+        }
+        return upgrade;
+    }
+
+    private static boolean hasSameAspectRatio(WebImage first, WebImage second) {
+        if (first.getHeight() <= 0 || second.getHeight() <= 0) {
+            return false;
+        }
+        float firstRatio = (float) first.getWidth() / first.getHeight();
+        float secondRatio = (float) second.getWidth() / second.getHeight();
+        return Math.abs(firstRatio - secondRatio) <= ASPECT_RATIO_TOLERANCE * secondRatio;
+    }
+
     /**
      * A class to transfer the playback state of {@link PlaybackAdapter} to {@link
      * LocalPlayerActivity} and update the UI of {@link LocalPlayerActivity}.
@@ -359,9 +488,18 @@ public class LocalPlayerActivity extends AppCompatActivity {
 
             String playingMediaTitle = playingMetadata.getString(MediaMetadata.KEY_TITLE);
             String selectedMediaTitle = selectedMetadata.getString(MediaMetadata.KEY_TITLE);
+            int queueIndex = getQueueIndex(playingMediaTitle);
             if (TextUtils.equals(selectedMediaTitle, playingMediaTitle)) {
                 Log.d(TAG, "update the seekbar for the playing media");
                 playbackAdapter.setupSeekbar();
+            } else if (queueIndex >= 0) {
+                Log.d(TAG, "show the next media of the queue");
+                queue.subList(0, queueIndex + 1).clear();
+                playbackAdapter.setQueue(queue);
+                selectedMedia = playingMedia;
+                loadViews();
+                updateMetadata(true);
+                playbackAdapter.setupSeekbar();
             } else {
                 Log.d(TAG, "stop the playing media playback");
                 playbackAdapter.stop();
@@ -373,6 +511,17 @@ public class LocalPlayerActivity extends AppCompatActivity {
             updatePlayButton();
         }
 
+        private int getQueueIndex(@Nullable String title) {
+            for (int i = 0; i < queue.size(); i++) {
+                MediaMetadata metadata = queue.get(i).getMetadata();
+                if (metadata != null
+                        && TextUtils.equals(metadata.getString(MediaMetadata.KEY_TITLE), title)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
         @Override
         public void onPlaybackLocationChanged() {
             updatePlayButton();
@@ -38,6 +38,8 @@ import com.google.android.gms.cast.MediaInfo;
 import com.google.sample.cast.refplayer.R;
 import com.google.sample.cast.refplayer.notification.MediaSessionProxy;
 import com.google.sample.cast.refplayer.utils.Utils;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -77,6 +79,8 @@ public abstract class PlaybackAdapter {
   protected final MediaControllerCompat.Callback mediaControllerCallback;
 
   protected MediaInfo mediaInfo;
+  // The media to play after mediaInfo, in order.
+  protected ArrayList<MediaInfo> queue = new ArrayList<>();
   protected @PlaybackStateCompat.State int playbackState;
   protected PlaybackLocation playbackLocation;
   private View playerContainer;
@@ -136,6 +140,11 @@ public abstract class PlaybackAdapter {
     }
   }
 
+  /** Sets the media to play in order after the one given to {@link #play(MediaInfo, long)}. */
+  public void setQueue(List<MediaInfo> queue) {
+    this.queue = new ArrayList<>(queue);
+  }
+
   /** Stops the player. The player can be restart if needed. */
   public void stop() {
     if (onStop()) {
@@ -23,21 +23,40 @@ import android.media.MediaPlayer.OnErrorListener;
 import android.media.MediaPlayer.OnPreparedListener;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.MotionEvent;
+import android.view.SurfaceHolder;
 import android.view.View;
 import android.view.View.OnTouchListener;
 import android.widget.VideoView;
+import androidx.annotation.Nullable;
 import com.google.android.gms.cast.MediaInfo;
 import com.google.sample.cast.refplayer.R;
 import com.google.sample.cast.refplayer.utils.Utils;
+import java.io.IOException;
 
-/** A player to host the video local playback. */
+/**
+ * A player to host the video local playback.
+ *
+ * <p>The video view plays the media it is given. When the current media gets within {@link
+ * #PRELOAD_AHEAD_MS} of its end, the next media of the queue is prepared on a {@link MediaPlayer}
+ * of its own, which buffers it in the background. Once the current media ends, that player takes
+ * over the surface of the video view and starts right away, so that the queue plays on without
+ * waiting for the next media to load. If the next media is not prepared by then, or its video has
+ * another aspect ratio than the one the video view measures itself with, the video view loads it
+ * instead. If the surface goes away while that player plays, the video view is given its media to
+ * resume once the surface is back.
+ */
 public class VideoMediaPlayer extends LocalMediaPlayer {
 
   private static final String TAG = "VideoMediaPlayer";
+  // Like the preload time of the queue items on a receiver.
+  private static final long PRELOAD_AHEAD_MS = 20_000;
+  private static final long PRELOAD_CHECK_INTERVAL_MS = 1_000;
 
   /** Callback to provide state update from {@link VideoMediaPlayer}. */
   public interface Callback {
@@ -52,7 +71,26 @@ public class VideoMediaPlayer extends LocalMediaPlayer {
   }
 
   private final Activity activity;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final Runnable preloadCheck =
+      new Runnable() {
+        @Override
+        public void run() {
+          preloadNextIfDue();
+          handler.postDelayed(this, PRELOAD_CHECK_INTERVAL_MS);
+        }
+      };
   private VideoView videoView;
+  private OnCompletionListener completionListener;
+  private OnErrorListener errorListener;
+  // Prepares the next media of the queue, while the current one plays.
+  @Nullable private MediaPlayer nextPlayer;
+  private boolean nextPlayerPrepared;
+  // Plays a media of the queue on the surface of the video view, in place of the video view.
+  @Nullable private MediaPlayer queuePlayer;
+  // The size of the last video prepared by the video view, which it keeps measuring itself with.
+  private int videoViewWidth;
+  private int videoViewHeight;
 
   public VideoMediaPlayer(Activity activity) {
     super(activity, "video");
@@ -62,54 +100,193 @@ public class VideoMediaPlayer extends LocalMediaPlayer {
 
   @Override
   public boolean onPlay(String mediaId, Bundle bundle) {
-    MediaInfo mediaInfo = this.mediaInfo;
-    if (TextUtils.isEmpty(mediaInfo.getContentId()) && !TextUtils.isEmpty(mediaInfo.getEntity())) {
-      videoView.setVideoPath(mediaInfo.getEntity());
-    } else {
-      videoView.setVideoURI(Uri.parse(mediaInfo.getContentId()));
-    }
-
+    releaseQueuePlayers();
+    setVideoSource(this.mediaInfo);
     return true;
   }
 
   @Override
   protected boolean onPlay() {
-    videoView.requestFocus();
-    videoView.start();
+    if (queuePlayer != null) {
+      queuePlayer.start();
+    } else {
+      videoView.requestFocus();
+      videoView.start();
+    }
+    handler.removeCallbacks(preloadCheck);
+    handler.post(preloadCheck);
     return true;
   }
 
   @Override
   protected boolean onPause() {
-    videoView.pause();
+    handler.removeCallbacks(preloadCheck);
+    if (queuePlayer != null) {
+      queuePlayer.pause();
+    } else {
+      videoView.pause();
+    }
     return true;
   }
 
   @Override
   protected boolean onSeekTo(int position) {
-    videoView.seekTo(position);
+    if (queuePlayer != null) {
+      queuePlayer.seekTo(position);
+    } else {
+      videoView.seekTo(position);
+    }
     return true;
   }
 
   @Override
   protected boolean onStop() {
+    releaseQueuePlayers();
+    videoView.stopPlayback();
+    return true;
+  }
+
+  @Override
+  protected boolean onPlayNext() {
+    MediaPlayer player = nextPlayer;
+    if (player == null || !nextPlayerPrepared) {
+      logDebug("the next media is not prepared yet, so the video view loads it");
+      releaseQueuePlayers();
+      setVideoSource(mediaInfo);
+      return true;
+    }
+    if (!hasVideoViewAspectRatio(player)) {
+      logDebug("the next media has another aspect ratio, so the video view loads it");
+      releaseQueuePlayers();
+      setVideoSource(mediaInfo);
+      return true;
+    }
+    nextPlayer = null;
+    if (queuePlayer != null) {
+      queuePlayer.release();
+    }
+    // Frees the surface, which a single player can draw on at a time.
     videoView.stopPlayback();
+    queuePlayer = player;
+    player.setDisplay(videoView.getHolder());
+    player.setOnCompletionListener(completionListener);
+    player.setOnErrorListener(errorListener);
+    callback.onMediaLoaded();
+    play();
     return true;
   }
 
   @Override
   public boolean onDestroy() {
+    releaseQueuePlayers();
     return true;
   }
 
   @Override
   public long getDuration() {
-    return isActive() ? videoView.getDuration() : 0L;
+    if (!isActive()) {
+      return 0L;
+    }
+    return queuePlayer != null ? queuePlayer.getDuration() : videoView.getDuration();
   }
 
   @Override
   protected long getCurrentPosition() {
-    return isActive() ? videoView.getCurrentPosition() : 0L;
+    if (!isActive()) {
+      return 0L;
+    }
+    return queuePlayer != null ? queuePlayer.getCurrentPosition() : videoView.getCurrentPosition();
+  }
+
+  private void setVideoSource(MediaInfo mediaInfo) {
+    if (TextUtils.isEmpty(mediaInfo.getContentId()) && !TextUtils.isEmpty(mediaInfo.getEntity())) {
+      videoView.setVideoPath(mediaInfo.getEntity());
+    } else {
+      videoView.setVideoURI(Uri.parse(mediaInfo.getContentId()));
+    }
+  }
+
+  /**
+   * Returns whether the video of {@code player} has, within 1%, the aspect ratio of the last video
+   * prepared by the video view, so that it is not stretched on the surface of the video view.
+   */
+  private boolean hasVideoViewAspectRatio(MediaPlayer player) {
+    long width = player.getVideoWidth();
+    long height = player.getVideoHeight();
+    if (width <= 0 || height <= 0 || videoViewWidth <= 0 || videoViewHeight <= 0) {
+      return false;
+    }
+    long difference = Math.abs(width * videoViewHeight - videoViewWidth * height);
+    return difference * 100 <= width * videoViewHeight;
+  }
+
+  /** Starts preparing the next media of the queue if the current one is about to end. */
+  private void preloadNextIfDue() {
+    MediaInfo nextMediaInfo = getNextMediaInfo();
+    long duration = getDuration();
+    if (nextPlayer != null
+        || nextMediaInfo == null
+        || duration <= 0
+        || duration - getCurrentPosition() > PRELOAD_AHEAD_MS) {
+      return;
+    }
+    boolean hasEntity =
+        TextUtils.isEmpty(nextMediaInfo.getContentId())
+            && !TextUtils.isEmpty(nextMediaInfo.getEntity());
+    String contentUrl = hasEntity ? nextMediaInfo.getEntity() : nextMediaInfo.getContentId();
+    if (contentUrl == null) {
+      return;
+    }
+    logDebug("prepare the next media of the queue");
+    final MediaPlayer player = new MediaPlayer();
+    nextPlayer = player;
+    nextPlayerPrepared = false;
+    player.setOnPreparedListener(
+        new OnPreparedListener() {
+          @Override
+          public void onPrepared(MediaPlayer mediaPlayer) {
+            if (mediaPlayer == nextPlayer) {
+              logDebug("the next media is prepared");
+              nextPlayerPrepared = true;
+            }
+          }
+        });
+    player.setOnErrorListener(
+        new OnErrorListener() {
+          @Override
+          public boolean onError(MediaPlayer mediaPlayer, int what, int extra) {
+            // The video view loads the next media instead, and reports the error if it fails too.
+            Log.w(TAG, "Failed to prepare the next media, what: " + what + ", extra: " + extra);
+            if (mediaPlayer == nextPlayer) {
+              releaseNextPlayer();
+            }
+            return true;
+          }
+        });
+    try {
+      player.setDataSource(activity, Uri.parse(contentUrl));
+      player.prepareAsync();
+    } catch (IOException | IllegalStateException e) {
+      Log.w(TAG, "Failed to prepare the next media", e);
+      releaseNextPlayer();
+    }
+  }
+
+  private void releaseNextPlayer() {
+    if (nextPlayer != null) {
+      nextPlayer.release();
+      nextPlayer = null;
+    }
+    nextPlayerPrepared = false;
+  }
+
+  private void releaseQueuePlayers() {
+    handler.removeCallbacks(preloadCheck);
+    releaseNextPlayer();
+    if (queuePlayer != null) {
+      queuePlayer.release();
+      queuePlayer = null;
+    }
   }
 
   private void initializeVideoView() {
@@ -120,20 +297,23 @@ public class VideoMediaPlayer extends LocalMediaPlayer {
           @Override
           public void onPrepared(MediaPlayer mediaPlayer) {
             logDebug("onPrepared");
+            videoViewWidth = mediaPlayer.getVideoWidth();
+            videoViewHeight = mediaPlayer.getVideoHeight();
             callback.onMediaLoaded();
             videoView.seekTo((int) startPosition);
             play();
           }
         });
 
-    videoView.setOnCompletionListener(
+    completionListener =
         new OnCompletionListener() {
           @Override
           public void onCompletion(MediaPlayer mediaPlayer) {
             logDebug("onCompletion is reached");
-            stop();
+            VideoMediaPlayer.this.onCompletion();
           }
-        });
+        };
+    videoView.setOnCompletionListener(completionListener);
 
     videoView.setOnTouchListener(
         new OnTouchListener() {
@@ -144,7 +324,7 @@ public class VideoMediaPlayer extends LocalMediaPlayer {
           }
         });
 
-    videoView.setOnErrorListener(
+    errorListener =
         new OnErrorListener() {
           @Override
           public boolean onError(MediaPlayer mediaPlayer, int what, int extra) {
@@ -167,6 +347,34 @@ public class VideoMediaPlayer extends LocalMediaPlayer {
             stop();
             return true;
           }
-        });
+        };
+    videoView.setOnErrorListener(errorListener);
+
+    // The video view releases its own player along with its surface, and so does the queue. The
+    // video view opens its media again once the surface is back, so it is given the media of the
+    // queue player, to resume from where that player was.
+    videoView
+        .getHolder()
+        .addCallback(
+            new SurfaceHolder.Callback() {
+              @Override
+              public void surfaceCreated(SurfaceHolder holder) {}
+
+              @Override
+              public void surfaceChanged(
+                  SurfaceHolder holder, int format, int width, int height) {}
+
+              @Override
+              public void surfaceDestroyed(SurfaceHolder holder) {
+                MediaPlayer player = queuePlayer;
+                if (player != null && mediaInfo != null) {
+                  startPosition = player.getCurrentPosition();
+                  releaseQueuePlayers();
+                  setVideoSource(mediaInfo);
+                } else {
+                  releaseQueuePlayers();
+                }
+              }
+            });
   }
 }
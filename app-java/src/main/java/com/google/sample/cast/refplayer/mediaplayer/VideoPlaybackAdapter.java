@@ -72,6 +72,7 @@ public class VideoPlaybackAdapter extends PlaybackAdapter {
     Bundle bundle = new Bundle();
     bundle.putParcelable(LocalMediaPlayer.KEY_MEDIA_INFO, mediaInfo);
     bundle.putLong(LocalMediaPlayer.KEY_START_POSITION, position);
+    bundle.putParcelableArrayList(LocalMediaPlayer.KEY_QUEUE, queue);
     mediaController.getTransportControls().playFromMediaId(contentUrl, bundle);
 
     return true;
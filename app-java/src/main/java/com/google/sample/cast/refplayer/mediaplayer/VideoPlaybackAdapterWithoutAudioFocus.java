@@ -148,7 +148,16 @@ public class VideoPlaybackAdapterWithoutAudioFocus extends PlaybackAdapter {
           @Override
           public void onCompletion(MediaPlayer mediaPlayer) {
             logDebug("onCompletion is reached");
-            stop();
+            if (queue.isEmpty()) {
+              stop();
+              return;
+            }
+            // Without a media session, the next media of the queue is loaded once the current one
+            // ends, and the activity is told about it directly.
+            MediaInfo nextMediaInfo = queue.remove(0);
+            logDebug("play the next media of the queue, %d left", queue.size());
+            onPlay(nextMediaInfo, 0);
+            playbackAdapterCallback.onMediaInfoUpdated(nextMediaInfo);
           }
         });
 
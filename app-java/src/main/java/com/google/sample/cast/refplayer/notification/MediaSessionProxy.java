@@ -33,6 +33,7 @@ import android.support.v4.media.session.PlaybackStateCompat.CustomAction;
 import android.text.TextUtils;
 import android.util.Log;
 import androidx.annotation.Nullable;
+import androidx.collection.LruCache;
 import androidx.media.utils.MediaConstants;
 import com.google.android.gms.cast.MediaInfo;
 import com.google.android.gms.cast.MediaMetadata;
@@ -41,6 +42,8 @@ import com.google.sample.cast.refplayer.R;
 import com.google.sample.cast.refplayer.mediaplayer.LocalMediaPlayer;
 import com.google.sample.cast.refplayer.mediaplayer.PlaybackAdapter.PlaybackLocation;
 import com.google.sample.cast.refplayer.utils.AsyncBitmap;
+import com.google.sample.cast.refplayer.utils.ImageScheduler;
+import com.google.sample.cast.refplayer.utils.MemoryGovernor;
 
 /** A proxy of Media Session. */
 public class MediaSessionProxy {
@@ -67,6 +70,8 @@ public class MediaSessionProxy {
   private static final String ACTION_STOP =
       "com.google.sample.cast.refplayer.notification.MediaSessionProxy.actionStop";
 
+  private static final int MAX_CACHED_ARTWORKS = 4;
+
   private final Context context;
   private final LocalNotificationProxy localNotificationProxy;
   @Nullable private final AudioManager audioManager;
@@ -77,14 +82,44 @@ public class MediaSessionProxy {
   private PlaybackStateCompat.Builder playbackStateBuilder;
   @Nullable private CustomAction stopCustomAction;
   @Nullable private Boolean stopMediaNotificationAfterPaused;
+  // The artworks that are already scaled for the system, keyed by the image URL of the media.
+  private final LruCache<Uri, Bitmap> artworkCache = new LruCache<>(MAX_CACHED_ARTWORKS);
+  // The image URL of the media whose artwork the metadata shows, or is waiting for.
+  @Nullable private Uri artworkUrl;
+  private final int artworkMaxSize;
+  private final MemoryGovernor.Trimmable artworkTrimmable =
+      new MemoryGovernor.Trimmable() {
+        @Override
+        public String getName() {
+          return "Media session artworks";
+        }
+
+        @Override
+        public void trimToFraction(float fraction) {
+          MemoryGovernor.trimLruCache(artworkCache, fraction);
+        }
+
+        @Override
+        public int getEntryCount() {
+          return artworkCache.size();
+        }
+
+        @Override
+        public long getSizeInBytes() {
+          return MemoryGovernor.getSizeInBytes(artworkCache.snapshot().values());
+        }
+      };
 
   public MediaSessionProxy(Context context, LocalMediaPlayer localMediaPlayer) {
     this.context = context;
+    artworkMaxSize =
+        context.getResources().getDimensionPixelSize(R.dimen.media_session_artwork_max_size);
     localNotificationProxy = new LocalNotificationProxy(context);
     audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
     audioFocusHelper = new AudioFocusHelper();
     this.localMediaPlayer = localMediaPlayer;
     localMediaPlayer.addCallback(new LocalMediaPlayerCallback());
+    MemoryGovernor.getInstance(context).register(artworkTrimmable);
 
     // Create a MediaSessionCompat for the local media playback.
     MediaSessionCompat mediaSessionCompat = new MediaSessionCompat(context, "CastVideoSample");
@@ -126,6 +161,8 @@ public class MediaSessionProxy {
       mediaSessionCompat.release();
       mediaSessionCompat = null;
     }
+    MemoryGovernor.getInstance(context).unregister(artworkTrimmable);
+    artworkCache.evictAll();
   }
 
   private void notifyPlaybackLocation() {
@@ -330,17 +367,26 @@ public class MediaSessionProxy {
 
       WebImage webImage = metadata.hasImages() ? metadata.getImages().get(0) : null;
       Uri imageUrl = (webImage != null) ? webImage.getUrl() : null;
-      if (imageUrl != null
-          && thumbnailImage != null
-          && imageUrl.equals(thumbnailImage.imageUrl)
-          && thumbnailImage.getBitmap() != null) {
-        Log.d(TAG, "reuse the existing bitmap");
-        metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, thumbnailImage.getBitmap());
-      } else if (imageUrl != null) {
+      if (imageUrl == null || !imageUrl.equals(artworkUrl)) {
+        // The builder would otherwise show the artwork of the previous media, and keep it in
+        // memory after the cache lets it go.
+        metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, null);
+        artworkUrl = imageUrl;
+      }
+      Bitmap artwork = (imageUrl != null) ? artworkCache.get(imageUrl) : null;
+      if (artwork != null) {
+        Log.d(TAG, "reuse the scaled artwork");
+        metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, artwork);
+      } else if (imageUrl != null
+          && (thumbnailImage == null || !thumbnailImage.isLoading(imageUrl))) {
         thumbnailImage = new ThumbnailImage(imageUrl);
       }
       if (mediaSessionCompat != null) {
         mediaSessionCompat.setMetadata(metadataBuilder.build());
+        // The media changes on its own when the player moves on to the next media of its queue.
+        Bundle bundle = new Bundle();
+        bundle.putParcelable(EVENT_KEY_MEDIA_INFO, mediaInfo);
+        mediaSessionCompat.sendSessionEvent(EVENT_ON_UPDATE_MEDIA_INFO, bundle);
       }
     }
 
@@ -423,25 +469,53 @@ public class MediaSessionProxy {
     }
   }
 
+  /**
+   * Scales {@code bitmap} down so that it fits in the largest artwork size that the system shows.
+   * The metadata is parceled to the system on every update, so a smaller bitmap makes every update
+   * cheaper.
+   */
+  @Nullable
+  private Bitmap scaleArtwork(@Nullable Bitmap bitmap) {
+    if (bitmap == null) {
+      return null;
+    }
+    int width = bitmap.getWidth();
+    int height = bitmap.getHeight();
+    int longestSide = Math.max(width, height);
+    if (longestSide <= artworkMaxSize) {
+      return bitmap;
+    }
+    float scale = (float) artworkMaxSize / longestSide;
+    return Bitmap.createScaledBitmap(
+        bitmap, Math.round(width * scale), Math.round(height * scale), /* filter= */ true);
+  }
+
+  /** Loads the artwork of a media item and hands it, scaled, to the media session. */
   private class ThumbnailImage {
     public final Uri imageUrl;
     private final AsyncBitmap asyncBitmap;
-    private Bitmap bitmap;
+    private boolean loading = true;
 
-    public Bitmap getBitmap() {
-      return bitmap;
-    }
-
-    public ThumbnailImage(Uri imageUrl) {
+    public ThumbnailImage(final Uri imageUrl) {
       this.imageUrl = imageUrl;
-      asyncBitmap = new AsyncBitmap();
+      // Subsample while decoding so that the full size image is never held in memory.
+      asyncBitmap = new AsyncBitmap(artworkMaxSize, artworkMaxSize);
+      asyncBitmap.setPriority(ImageScheduler.Priority.NOTIFICATION);
       asyncBitmap.setCallback(
           new AsyncBitmap.Callback() {
             @Override
             public void onBitmapLoaded(Bitmap bitmap) {
               Log.d(TAG, "bitmap is loaded");
-              ThumbnailImage.this.bitmap = bitmap;
-              metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, bitmap);
+              loading = false;
+              Bitmap artwork = scaleArtwork(bitmap);
+              if (artwork != null) {
+                artworkCache.put(imageUrl, artwork);
+              }
+              if (!imageUrl.equals(artworkUrl)) {
+                // The media changed while its artwork was loading.
+                return;
+              }
+              metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, artwork);
               if (mediaSessionCompat != null) {
                 mediaSessionCompat.setMetadata(metadataBuilder.build());
               }
@@ -449,5 +523,10 @@ public class MediaSessionProxy {
           });
       asyncBitmap.loadBitmap(imageUrl);
     }
+
+    /** Returns whether the artwork of {@code url} is still loading. */
+    public boolean isLoading(Uri url) {
+      return loading && imageUrl.equals(url);
+    }
   }
 }
@@ -0,0 +1,755 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.cast.refplayer.queue;
+
+import com.google.android.gms.cast.MediaQueueItem;
+import com.google.android.gms.cast.framework.media.MediaQueue;
+import com.google.android.gms.cast.framework.media.RemoteMediaClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
+
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.ListUpdateCallback;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The queue as shown to the user: the items of the {@link MediaQueue}, with the edits sent to the
+ * receiver already applied on top of them, so that the queue screen does not wait for the
+ * receiver to answer.
+ *
+ * <p>Each edit is kept, in order, with the {@link PendingResult} of its request. An edit that
+ * fails is dropped, which rolls the shown queue back. An edit that succeeds is dropped once the
+ * {@link MediaQueue} reflects it, which it does after the receiver sends its new status. Items
+ * inserted by an edit have no item ID until then, so they are shown under temporary negative IDs.
+ * Every change of the shown queue is reported to the {@link Callback}. While no edit is pending,
+ * the shown queue is the {@link MediaQueue} itself and its changes are reported as they come. All
+ * the methods must be called on the main thread.
+ */
+public class OptimisticQueue extends MediaQueue.Callback {
+
+    private static final String TAG = "OptimisticQueue";
+    private static final int EDIT_REMOVE = 0;
+    private static final int EDIT_MOVE = 1;
+    private static final int EDIT_INSERT = 2;
+    // Reorders of longer windows are reported as a changed range rather than move by move.
+    private static final int MAX_MOVES_WINDOW = 100;
+
+    /**
+     * A listener called when the shown queue changes.
+     */
+    public interface Callback extends ListUpdateCallback {
+
+        /** Called when the shown queue changed too much to be described as a single update. */
+        void onReloaded();
+    }
+
+    /**
+     * An edit of the queue that the {@link MediaQueue} does not reflect yet.
+     */
+    private static final class Edit {
+
+        private final int mType;
+        // The removed or moved items, or the temporary IDs of the inserted items.
+        private final int[] mItemIds;
+        // The item that the moved or inserted items go before, or INVALID_ITEM_ID for the end.
+        private int mBeforeItemId;
+        // The position the moved item was shown at when its drag started.
+        private int mStartPosition;
+        private boolean mSent;
+        private boolean mSucceeded;
+        private int mSentVersion;
+        private int mSentReloadCount;
+
+        Edit(int type, int[] itemIds, int beforeItemId) {
+            mType = type;
+            mItemIds = itemIds;
+            mBeforeItemId = beforeItemId;
+        }
+    }
+
+    private final QueuePositionIndex mBase = new QueuePositionIndex();
+    private final List<Edit> mEdits = new ArrayList<>();
+    // The items inserted by the edits, under their temporary IDs.
+    private final SparseArray<MediaQueueItem> mInsertedItems = new SparseArray<>();
+    @Nullable
+    private MediaQueue mQueue;
+    @Nullable
+    private Callback mCallback;
+    // The item ID at each position of the shown queue, only built while edits are pending.
+    @Nullable
+    private int[] mItemIds;
+    private int mCount;
+    // How far the pending edits can shift an item that they do not move from its position in the
+    // MediaQueue.
+    private int mMaxShift;
+    private int mNextTemporaryId = -1;
+    // Counts the changes of the MediaQueue, to tell whether one happened since an edit was sent.
+    private int mVersion;
+    private int mReloadCount;
+    private int mRolledBackCount;
+    // The single-slot moves made by the drags, and the requests sent to the receiver for them.
+    private int mDragMoveCount;
+    private int mMoveRequestCount;
+
+    /**
+     * Shows the items of {@code queue}, and drops the edits made to the previous queue.
+     */
+    public void attach(@Nullable MediaQueue queue) {
+        if (queue == mQueue) {
+            return;
+        }
+        if (mQueue != null) {
+            mQueue.unregisterCallback(this);
+        }
+        mQueue = queue;
+        if (mQueue != null) {
+            mQueue.registerCallback(this);
+        }
+        mBase.attach(queue);
+        mEdits.clear();
+        mInsertedItems.clear();
+        mItemIds = null;
+        if (mCallback != null) {
+            mCallback.onReloaded();
+        }
+    }
+
+    public void setCallback(@Nullable Callback callback) {
+        mCallback = callback;
+    }
+
+    public int getCount() {
+        return mItemIds != null ? mCount : mBase.getCount();
+    }
+
+    /**
+     * Returns the item shown at {@code position}, or {@code null} if its data is not fetched from
+     * the receiver yet, in which case it is fetched.
+     */
+    @Nullable
+    public MediaQueueItem getItem(int position) {
+        int itemId = getShownItemId(position);
+        if (itemId < 0) {
+            return mInsertedItems.get(itemId);
+        }
+        int basePosition = toBasePosition(position);
+        return mQueue == null || basePosition < 0 ? null : mQueue.getItemAtIndex(basePosition, true);
+    }
+
+    /**
+     * Fetches the data of the items shown from {@code startPosition} to {@code endPosition}, both
+     * included, that are not cached yet. The items are asked for in a single pass, which
+     * {@link MediaQueue} batches into as few requests to the receiver as it can.
+     */
+    public void prefetch(int startPosition, int endPosition) {
+        if (mQueue == null) {
+            return;
+        }
+        for (int position = Math.max(startPosition, 0);
+                position <= Math.min(endPosition, getCount() - 1); position++) {
+            int basePosition = toBasePosition(position);
+            if (basePosition >= 0) {
+                mQueue.getItemAtIndex(basePosition, true);
+            }
+        }
+    }
+
+    /**
+     * Returns the ID of the item shown at {@code position}, or
+     * {@link MediaQueueItem#INVALID_ITEM_ID} if it is not inserted on the receiver yet.
+     */
+    public int getItemId(int position) {
+        int itemId = getShownItemId(position);
+        return itemId < 0 ? MediaQueueItem.INVALID_ITEM_ID : itemId;
+    }
+
+    /**
+     * Returns the position at which the item {@code itemId} is shown, or {@code -1}.
+     */
+    public int getPosition(int itemId) {
+        int basePosition = mBase.getPosition(itemId, -1);
+        if (mItemIds == null || basePosition < 0) {
+            return basePosition;
+        }
+        if (isMoved(itemId)) {
+            return indexOf(mItemIds, 0, mCount, itemId);
+        }
+        // Only looks around the position in the MediaQueue, as far as the edits can shift it.
+        return indexOf(mItemIds, Math.max(basePosition - mMaxShift, 0),
+                Math.min(basePosition + mMaxShift + 1, mCount), itemId);
+    }
+
+    /**
+     * Returns the position of the item {@code itemId} in the {@link MediaQueue}, without the
+     * edits, or {@code -1}.
+     */
+    public int getBasePosition(int itemId) {
+        return mBase.getPosition(itemId, -1);
+    }
+
+    /**
+     * Returns the ID of the first item shown at or after {@code position} that is on the receiver,
+     * which items inserted at {@code position} have to go before. Returns
+     * {@link MediaQueueItem#INVALID_ITEM_ID} if there is none, to insert at the end.
+     */
+    public int getInsertBeforeItemId(int position) {
+        for (int i = position; i < getCount(); i++) {
+            int itemId = getShownItemId(i);
+            if (itemId > 0) {
+                return itemId;
+            }
+        }
+        return MediaQueueItem.INVALID_ITEM_ID;
+    }
+
+    /**
+     * Removes the item shown at {@code position}.
+     *
+     * @return {@code false} if the item cannot be removed yet, because it is not inserted on the
+     * receiver yet.
+     */
+    public boolean remove(RemoteMediaClient client, int position) {
+        int itemId = getShownItemId(position);
+        if (itemId < 0) {
+            return false;
+        }
+        Edit edit = new Edit(EDIT_REMOVE, new int[] {itemId}, MediaQueueItem.INVALID_ITEM_ID);
+        mEdits.add(edit);
+        refresh();
+        send(edit, client.queueRemoveItem(itemId, null));
+        return true;
+    }
+
+    /**
+     * Inserts {@code items} before the item {@code beforeItemId}, or at the end of the queue if it
+     * is {@link MediaQueueItem#INVALID_ITEM_ID}. If {@code play} is {@code true}, the single item
+     * of {@code items} also starts playing. {@code callback}, if any, is told the result of the
+     * request once it is reconciled.
+     */
+    public void insert(RemoteMediaClient client, MediaQueueItem[] items, int beforeItemId,
+            boolean play,
+            @Nullable ResultCallback<RemoteMediaClient.MediaChannelResult> callback) {
+        int[] temporaryIds = new int[items.length];
+        for (int i = 0; i < items.length; i++) {
+            temporaryIds[i] = mNextTemporaryId--;
+            mInsertedItems.put(temporaryIds[i], items[i]);
+        }
+        Edit edit = new Edit(EDIT_INSERT, temporaryIds, beforeItemId);
+        mEdits.add(edit);
+        refresh();
+        send(edit, play
+                ? client.queueInsertAndPlayItem(items[0], beforeItemId, null)
+                : client.queueInsertItems(items, beforeItemId, null), callback);
+    }
+
+    /**
+     * Moves the item shown at {@code fromPosition} to {@code toPosition}, without telling the
+     * receiver. Called for every slot that a dragged item moves over, until {@link #commitMove}
+     * sends the whole drag.
+     */
+    public void moveLocally(int fromPosition, int toPosition) {
+        Edit edit = getDragEdit();
+        int itemId = getShownItemId(fromPosition);
+        if (edit == null || edit.mItemIds[0] != itemId) {
+            edit = new Edit(EDIT_MOVE, new int[] {itemId}, MediaQueueItem.INVALID_ITEM_ID);
+            edit.mStartPosition = fromPosition;
+            mEdits.add(edit);
+        }
+        // The item that ends up right after the moved one, read before the move shifts the others.
+        int beforePosition = toPosition < fromPosition ? toPosition : toPosition + 1;
+        edit.mBeforeItemId = beforePosition < getCount()
+                ? getShownItemId(beforePosition)
+                : MediaQueueItem.INVALID_ITEM_ID;
+        mDragMoveCount++;
+        refresh();
+    }
+
+    /**
+     * Sends the move made by the {@link #moveLocally} calls of a drag to the receiver, as a single
+     * request.
+     */
+    public void commitMove(RemoteMediaClient client) {
+        Edit edit = getDragEdit();
+        if (edit == null) {
+            return;
+        }
+        int itemId = edit.mItemIds[0];
+        if (indexOf(mItemIds, 0, mCount, itemId) == edit.mStartPosition) {
+            // Dropped where it started.
+            mEdits.remove(edit);
+            refresh();
+            return;
+        }
+        if (edit.mBeforeItemId < 0) {
+            // Items not inserted on the receiver yet cannot be referred to, so the moved item goes
+            // before the next item that is.
+            int beforePosition = indexOf(mItemIds, 0, mCount, edit.mBeforeItemId);
+            edit.mBeforeItemId = beforePosition >= 0
+                    ? getInsertBeforeItemId(beforePosition)
+                    : MediaQueueItem.INVALID_ITEM_ID;
+            refresh();
+        }
+        mMoveRequestCount++;
+        send(edit, client.queueReorderItems(new int[] {itemId}, edit.mBeforeItemId, null));
+    }
+
+    /**
+     * Returns a human readable summary of the edits waiting for the receiver, the edits rolled
+     * back, and the requests saved by sending each drag as a single move.
+     */
+    public String dump() {
+        return String.format(Locale.ROOT,
+                "pending edits=%d, rolled back=%d\n"
+                        + "drag moves=%d, requests=%d, saved=%d\n",
+                mEdits.size(), mRolledBackCount, mDragMoveCount, mMoveRequestCount,
+                mDragMoveCount - mMoveRequestCount);
+    }
+
+    @Override
+    public void itemsReloaded() {
+        mBase.itemsReloaded();
+        mReloadCount++;
+        if (mEdits.isEmpty()) {
+            mVersion++;
+            if (mCallback != null) {
+                mCallback.onReloaded();
+            }
+            return;
+        }
+        onBaseChanged(true);
+    }
+
+    @Override
+    public void itemsInsertedInRange(int insertIndex, int insertCount) {
+        mBase.itemsInsertedInRange(insertIndex, insertCount);
+        if (mEdits.isEmpty()) {
+            mVersion++;
+            if (mCallback != null) {
+                mCallback.onInserted(insertIndex, insertCount);
+            }
+            return;
+        }
+        reconcileInserts(insertIndex, insertCount);
+        onBaseChanged(false);
+    }
+
+    @Override
+    public void itemsRemovedAtIndexes(@NonNull int[] indexes) {
+        mBase.itemsRemovedAtIndexes(indexes);
+        if (mEdits.isEmpty()) {
+            mVersion++;
+            dispatchRemovals(indexes);
+            return;
+        }
+        onBaseChanged(false);
+    }
+
+    @Override
+    public void itemsReorderedAtIndexes(@NonNull List<Integer> indexes, int insertBeforeIndex) {
+        if (mEdits.isEmpty()) {
+            int[] oldItemIds = copyBaseItemIds();
+            mBase.itemsReorderedAtIndexes(indexes, insertBeforeIndex);
+            mVersion++;
+            dispatchChanges(oldItemIds, oldItemIds.length, copyBaseItemIds(), mBase.getCount());
+            return;
+        }
+        mBase.itemsReorderedAtIndexes(indexes, insertBeforeIndex);
+        onBaseChanged(false);
+    }
+
+    @Override
+    public void itemsUpdatedAtIndexes(@NonNull int[] indexes) {
+        if (mCallback == null) {
+            return;
+        }
+        for (int index : indexes) {
+            int position = mItemIds == null ? index : getPosition(mBase.getItemId(index));
+            if (position >= 0) {
+                mCallback.onChanged(position, 1, null);
+            }
+        }
+    }
+
+    /**
+     * Returns the move of the drag in progress, which is not sent yet.
+     */
+    @Nullable
+    private Edit getDragEdit() {
+        for (int i = mEdits.size() - 1; i >= 0; i--) {
+            Edit edit = mEdits.get(i);
+            if (edit.mType == EDIT_MOVE && !edit.mSent) {
+                return edit;
+            }
+        }
+        return null;
+    }
+
+    private void send(final Edit edit,
+            PendingResult<RemoteMediaClient.MediaChannelResult> result) {
+        send(edit, result, null);
+    }
+
+    private void send(final Edit edit, PendingResult<RemoteMediaClient.MediaChannelResult> result,
+            @Nullable final ResultCallback<RemoteMediaClient.MediaChannelResult> callback) {
+        edit.mSent = true;
+        edit.mSentVersion = mVersion;
+        edit.mSentReloadCount = mReloadCount;
+        result.setResultCallback(new ResultCallback<RemoteMediaClient.MediaChannelResult>() {
+            @Override
+            public void onResult(@NonNull RemoteMediaClient.MediaChannelResult result) {
+                onEditResult(edit, result);
+                if (callback != null) {
+                    callback.onResult(result);
+                }
+            }
+        });
+    }
+
+    private void onEditResult(Edit edit, RemoteMediaClient.MediaChannelResult result) {
+        if (!mEdits.contains(edit)) {
+            // Dropped along with the queue it was made to.
+            return;
+        }
+        if (!result.getStatus().isSuccess()) {
+            Log.w(TAG, "Rolling back a queue edit that failed: " + result.getStatus());
+            mRolledBackCount++;
+            dropEdit(edit);
+            refresh();
+        } else if (edit.mType == EDIT_INSERT) {
+            if (edit.mSentReloadCount != mReloadCount) {
+                // The MediaQueue was reloaded since, so its new items cannot be told apart.
+                dropEdit(edit);
+                refresh();
+            } else {
+                // Kept until the MediaQueue inserts the items, see reconcileInserts.
+                edit.mSucceeded = true;
+            }
+        } else if (mVersion != edit.mSentVersion || isReflected(edit)) {
+            // The MediaQueue changed since the edit was sent, most likely to apply it.
+            dropEdit(edit);
+            refresh();
+        } else {
+            edit.mSucceeded = true;
+        }
+    }
+
+    private void onBaseChanged(boolean reloaded) {
+        mVersion++;
+        for (int i = mEdits.size() - 1; i >= 0; i--) {
+            Edit edit = mEdits.get(i);
+            if (edit.mType == EDIT_INSERT
+                    ? reloaded && edit.mSucceeded
+                    : edit.mSucceeded || (edit.mSent && isReflected(edit))) {
+                dropEdit(edit);
+            }
+        }
+        refresh();
+    }
+
+    /**
+     * Drops the insert edits whose items are among the {@code insertCount} items that the
+     * {@link MediaQueue} inserted at {@code insertIndex}. The receiver applies the requests in the
+     * order they are sent, so the range is matched with the oldest sent edits that insert before
+     * the item that follows it, each taking the next items of the range. The content IDs of those
+     * items have to be the ones of the edit where their data is fetched already, which it seldom
+     * is for items just inserted.
+     */
+    private void reconcileInserts(int insertIndex, int insertCount) {
+        int end = insertIndex + insertCount;
+        int beforeItemId = end < mBase.getCount()
+                ? mBase.getItemId(end)
+                : MediaQueueItem.INVALID_ITEM_ID;
+        int start = insertIndex;
+        for (int i = 0; i < mEdits.size() && start < end; ) {
+            Edit edit = mEdits.get(i);
+            if (edit.mType == EDIT_INSERT && edit.mSent && edit.mBeforeItemId == beforeItemId
+                    && edit.mItemIds.length <= end - start && hasContentIds(edit, start)) {
+                start += edit.mItemIds.length;
+                dropEdit(edit);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the items of the {@link MediaQueue} from {@code basePosition} on can be the
+     * items inserted by {@code edit}: none of those whose data is fetched has another content ID.
+     */
+    private boolean hasContentIds(Edit edit, int basePosition) {
+        if (mQueue == null) {
+            return false;
+        }
+        for (int i = 0; i < edit.mItemIds.length; i++) {
+            MediaQueueItem item = mQueue.getItemAtIndex(basePosition + i, false);
+            MediaQueueItem inserted = mInsertedItems.get(edit.mItemIds[i]);
+            if (item != null && item.getMedia() != null && inserted.getMedia() != null
+                    && !TextUtils.equals(item.getMedia().getContentId(),
+                            inserted.getMedia().getContentId())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isReflected(Edit edit) {
+        switch (edit.mType) {
+            case EDIT_REMOVE:
+                for (int itemId : edit.mItemIds) {
+                    if (mBase.getPosition(itemId, -1) >= 0) {
+                        return false;
+                    }
+                }
+                return true;
+            case EDIT_MOVE:
+                int position = mBase.getPosition(edit.mItemIds[0], -1);
+                if (position < 0) {
+                    return false;
+                }
+                return edit.mBeforeItemId == MediaQueueItem.INVALID_ITEM_ID
+                        ? position == mBase.getCount() - 1
+                        : mBase.getPosition(edit.mBeforeItemId, -1) == position + 1;
+            default:
+                // Inserts are matched as the MediaQueue inserts their items, see reconcileInserts.
+                return false;
+        }
+    }
+
+    private void dropEdit(Edit edit) {
+        mEdits.remove(edit);
+        if (edit.mType == EDIT_INSERT) {
+            for (int itemId : edit.mItemIds) {
+                mInsertedItems.remove(itemId);
+            }
+        }
+    }
+
+    /**
+     * Returns whether {@code itemId} is moved by a pending edit.
+     */
+    private boolean isMoved(int itemId) {
+        for (int i = 0; i < mEdits.size(); i++) {
+            Edit edit = mEdits.get(i);
+            if (edit.mType == EDIT_MOVE && edit.mItemIds[0] == itemId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int getShownItemId(int position) {
+        return mItemIds != null ? mItemIds[position] : mBase.getItemId(position);
+    }
+
+    /**
+     * Returns the position in the {@link MediaQueue} of the item shown at {@code position}, or
+     * {@code -1} if it is not inserted on the receiver yet.
+     */
+    private int toBasePosition(int position) {
+        return mItemIds != null ? mBase.getPosition(mItemIds[position], -1) : position;
+    }
+
+    private int[] copyBaseItemIds() {
+        int[] itemIds = new int[mBase.getCount()];
+        for (int i = 0; i < itemIds.length; i++) {
+            itemIds[i] = mBase.getItemId(i);
+        }
+        return itemIds;
+    }
+
+    /**
+     * Applies the edits to the items of the {@link MediaQueue}, and reports how the shown queue
+     * changed. Once no edit is pending, the shown queue goes back to being the MediaQueue.
+     */
+    private void refresh() {
+        if (mItemIds == null && mEdits.isEmpty()) {
+            return;
+        }
+        int[] oldItemIds = mItemIds != null ? mItemIds : copyBaseItemIds();
+        int oldCount = mItemIds != null ? mCount : oldItemIds.length;
+        int count = mBase.getCount();
+        int[] itemIds = copyBaseItemIds();
+        int maxShift = 0;
+        for (int i = 0; i < mEdits.size(); i++) {
+            Edit edit = mEdits.get(i);
+            maxShift += edit.mItemIds.length;
+            if (edit.mType == EDIT_REMOVE) {
+                for (int itemId : edit.mItemIds) {
+                    int index = indexOf(itemIds, 0, count, itemId);
+                    if (index >= 0) {
+                        System.arraycopy(itemIds, index + 1, itemIds, index, count - index - 1);
+                        count--;
+                    }
+                }
+            } else if (edit.mType == EDIT_MOVE) {
+                int index = indexOf(itemIds, 0, count, edit.mItemIds[0]);
+                if (index < 0) {
+                    // Removed on the receiver in the meantime.
+                    continue;
+                }
+                System.arraycopy(itemIds, index + 1, itemIds, index, count - index - 1);
+                count--;
+                itemIds = insertBefore(itemIds, count, edit.mItemIds, edit.mBeforeItemId);
+                count++;
+            } else {
+                itemIds = insertBefore(itemIds, count, edit.mItemIds, edit.mBeforeItemId);
+                count += edit.mItemIds.length;
+            }
+        }
+        mItemIds = mEdits.isEmpty() ? null : itemIds;
+        mCount = count;
+        mMaxShift = maxShift;
+        dispatchChanges(oldItemIds, oldCount, itemIds, count);
+    }
+
+    /**
+     * Reports the removal of the items at {@code indexes} of the shown queue, one range of
+     * contiguous items at a time from the last, so that the positions of the others still hold.
+     */
+    private void dispatchRemovals(int[] indexes) {
+        if (mCallback == null || indexes.length == 0) {
+            return;
+        }
+        int[] removed = indexes.clone();
+        Arrays.sort(removed);
+        int end = removed.length;
+        for (int i = removed.length - 1; i >= 0; i--) {
+            if (i == 0 || removed[i - 1] != removed[i] - 1) {
+                mCallback.onRemoved(removed[i], end - i);
+                end = i;
+            }
+        }
+    }
+
+    /**
+     * Reports the difference between two versions of the shown queue, as a single insertion,
+     * removal or move when it is one. Reorders of several items become a sequence of moves.
+     */
+    private void dispatchChanges(int[] oldItemIds, int oldCount, int[] itemIds, int count) {
+        if (mCallback == null) {
+            return;
+        }
+        int prefix = 0;
+        while (prefix < oldCount && prefix < count && oldItemIds[prefix] == itemIds[prefix]) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < oldCount - prefix && suffix < count - prefix
+                && oldItemIds[oldCount - 1 - suffix] == itemIds[count - 1 - suffix]) {
+            suffix++;
+        }
+        int oldChanged = oldCount - prefix - suffix;
+        int changed = count - prefix - suffix;
+        if (oldChanged == 0 && changed == 0) {
+            return;
+        }
+        if (oldChanged == 0) {
+            mCallback.onInserted(prefix, changed);
+        } else if (changed == 0) {
+            mCallback.onRemoved(prefix, oldChanged);
+        } else if (oldChanged != changed) {
+            mCallback.onReloaded();
+        } else if (isMovedDown(oldItemIds, itemIds, prefix, changed)) {
+            mCallback.onMoved(prefix, prefix + changed - 1);
+        } else if (isMovedDown(itemIds, oldItemIds, prefix, changed)) {
+            mCallback.onMoved(prefix + changed - 1, prefix);
+        } else if (changed <= MAX_MOVES_WINDOW) {
+            dispatchMoves(oldItemIds, itemIds, prefix, changed);
+        } else {
+            mCallback.onChanged(prefix, changed, null);
+        }
+    }
+
+    /**
+     * Reports the window of {@code length} items at {@code start} as moves that turn
+     * {@code oldItemIds} into {@code itemIds}, one slot at a time from the top. The items that are
+     * not found in the old window are reported as changed.
+     */
+    private void dispatchMoves(int[] oldItemIds, int[] itemIds, int start, int length) {
+        int end = start + length;
+        int[] window = Arrays.copyOfRange(oldItemIds, start, end);
+        for (int i = start; i < end; i++) {
+            int itemId = itemIds[i];
+            if (window[i - start] == itemId) {
+                continue;
+            }
+            int from = -1;
+            for (int j = i + 1; j < end; j++) {
+                if (window[j - start] == itemId) {
+                    from = j;
+                    break;
+                }
+            }
+            if (from < 0) {
+                window[i - start] = itemId;
+                mCallback.onChanged(i, 1, null);
+            } else {
+                System.arraycopy(window, i - start, window, i - start + 1, from - i);
+                window[i - start] = itemId;
+                mCallback.onMoved(from, i);
+            }
+        }
+    }
+
+    /**
+     * Returns whether {@code to} is {@code from} with its item at {@code start} moved
+     * {@code length - 1} slots down.
+     */
+    private static boolean isMovedDown(int[] from, int[] to, int start, int length) {
+        if (from[start] != to[start + length - 1]) {
+            return false;
+        }
+        for (int i = start + 1; i < start + length; i++) {
+            if (from[i] != to[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] insertBefore(int[] itemIds, int count, int[] inserted, int beforeItemId) {
+        int index = beforeItemId == MediaQueueItem.INVALID_ITEM_ID
+                ? -1
+                : indexOf(itemIds, 0, count, beforeItemId);
+        if (index < 0) {
+            index = count;
+        }
+        if (count + inserted.length > itemIds.length) {
+            itemIds = Arrays.copyOf(itemIds, count + inserted.length);
+        }
+        System.arraycopy(itemIds, index, itemIds, index + inserted.length, count - index);
+        System.arraycopy(inserted, 0, itemIds, index, inserted.length);
+        return itemIds;
+    }
+
+    private static int indexOf(int[] itemIds, int start, int end, int itemId) {
+        for (int i = start; i < end; i++) {
+            if (itemIds[i] == itemId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
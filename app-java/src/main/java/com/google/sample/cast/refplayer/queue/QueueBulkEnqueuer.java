@@ -0,0 +1,193 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.cast.refplayer.queue;
+
+import com.google.android.gms.cast.MediaInfo;
+import com.google.android.gms.cast.MediaQueueItem;
+import com.google.android.gms.cast.MediaStatus;
+import com.google.android.gms.cast.framework.media.RemoteMediaClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.sample.cast.refplayer.utils.Utils;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Adds a whole list of videos to the queue of the receiver, in as few requests as the size of a
+ * Cast message allows.
+ *
+ * <p>The items are sent in chunks whose JSON fits in {@link #CHUNK_BUDGET_BYTES}. Each chunk is
+ * built right before it is sent, so that a long list is not serialized all at once. An empty queue
+ * is loaded with the first chunk, and the other chunks are appended once it exists, each once the
+ * receiver took the previous one, so that a chunk it refuses never leaves a gap before a later
+ * one. The listener hears about every chunk that the receiver took, and about the first one it
+ * refused, after which nothing more is sent. All the methods must be called on the main thread.
+ */
+public class QueueBulkEnqueuer {
+
+    private static final String TAG = "QueueBulkEnqueuer";
+    // A Cast message holds at most 64 KB, part of which goes to the envelope of the request.
+    private static final int CHUNK_BUDGET_BYTES = 60 * 1024;
+
+    /**
+     * A listener called as the chunks are taken by the receiver.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the receiver took a chunk, which brings the videos added to
+         * {@code enqueuedCount} out of {@code totalCount}.
+         */
+        void onProgress(int enqueuedCount, int totalCount);
+
+        /**
+         * Called when a chunk could not be added, after which the others are not sent.
+         */
+        void onFailed(int enqueuedCount, int totalCount);
+    }
+
+    private final QueueDataProvider mProvider;
+    private final RemoteMediaClient mRemoteMediaClient;
+    private final List<MediaInfo> mVideos;
+    private final Listener mListener;
+    private int mNextIndex;
+    // The item of the video at mNextIndex, built by the chunk that it did not fit in, and its size.
+    @Nullable private MediaQueueItem mNextItem;
+    private int mNextItemBytes;
+    private int mInFlightCount;
+    private int mEnqueuedCount;
+    private boolean mStopped;
+
+    public QueueBulkEnqueuer(Context context, RemoteMediaClient remoteMediaClient,
+            List<MediaInfo> videos, Listener listener) {
+        mProvider = QueueDataProvider.getInstance(context);
+        mRemoteMediaClient = remoteMediaClient;
+        mVideos = new ArrayList<>(videos);
+        mListener = listener;
+    }
+
+    /**
+     * Starts sending the chunks.
+     */
+    public void start() {
+        if (mVideos.isEmpty()) {
+            mListener.onProgress(0, 0);
+            return;
+        }
+        if (mProvider.getCount() == 0) {
+            // The first chunk creates the queue, and the others are appended to it once it exists.
+            MediaQueueItem[] chunk = nextChunk();
+            mInFlightCount++;
+            mRemoteMediaClient.queueLoad(chunk, 0, MediaStatus.REPEAT_MODE_REPEAT_OFF, null)
+                    .setResultCallback(newChunkCallback(chunk.length));
+        } else {
+            sendChunks();
+        }
+    }
+
+    /**
+     * Stops sending the chunks. The one already sent is still added, without being reported.
+     */
+    public void cancel() {
+        mStopped = true;
+    }
+
+    /**
+     * Returns whether every chunk was sent and answered, or the enqueuing stopped.
+     */
+    public boolean isDone() {
+        return mStopped || (mNextIndex == mVideos.size() && mInFlightCount == 0);
+    }
+
+    private void sendChunks() {
+        if (mStopped || mInFlightCount > 0 || mNextIndex == mVideos.size()) {
+            return;
+        }
+        MediaQueueItem[] chunk = nextChunk();
+        mInFlightCount++;
+        if (!mProvider.insertItems(chunk, MediaQueueItem.INVALID_ITEM_ID,
+                newChunkCallback(chunk.length))) {
+            mInFlightCount--;
+            fail();
+        }
+    }
+
+    /**
+     * Returns the items from {@link #mNextIndex} on whose JSON fits in the budget, or the next item
+     * alone if it does not fit by itself.
+     */
+    private MediaQueueItem[] nextChunk() {
+        List<MediaQueueItem> chunk = new ArrayList<>();
+        int bytes = 0;
+        while (mNextIndex < mVideos.size()) {
+            if (mNextItem == null) {
+                mNextItem = Utils.buildQueueItem(mVideos.get(mNextIndex));
+                // One more byte for the comma between the items of the array.
+                mNextItemBytes =
+                        mNextItem.toJson().toString().getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+            if (!chunk.isEmpty() && bytes + mNextItemBytes > CHUNK_BUDGET_BYTES) {
+                // Kept for the next chunk, rather than built and serialized again.
+                break;
+            }
+            chunk.add(mNextItem);
+            bytes += mNextItemBytes;
+            mNextItem = null;
+            mNextIndex++;
+        }
+        return chunk.toArray(new MediaQueueItem[0]);
+    }
+
+    private ResultCallback<RemoteMediaClient.MediaChannelResult> newChunkCallback(
+            final int itemCount) {
+        return new ResultCallback<RemoteMediaClient.MediaChannelResult>() {
+            @Override
+            public void onResult(@NonNull RemoteMediaClient.MediaChannelResult result) {
+                onChunkResult(itemCount, result);
+            }
+        };
+    }
+
+    private void onChunkResult(int itemCount, RemoteMediaClient.MediaChannelResult result) {
+        mInFlightCount--;
+        boolean success = result.getStatus().isSuccess();
+        if (success) {
+            mEnqueuedCount += itemCount;
+        }
+        if (mStopped) {
+            return;
+        }
+        if (!success) {
+            Log.w(TAG, "Failed to add " + itemCount + " items: " + result.getStatus());
+            fail();
+            return;
+        }
+        mListener.onProgress(mEnqueuedCount, mVideos.size());
+        sendChunks();
+    }
+
+    private void fail() {
+        mStopped = true;
+        mListener.onFailed(mEnqueuedCount, mVideos.size());
+    }
+}
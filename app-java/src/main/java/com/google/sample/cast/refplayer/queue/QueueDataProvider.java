@@ -18,15 +18,27 @@ package com.google.sample.cast.refplayer.queue;
 
 import android.content.Context;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 
 import com.google.android.gms.cast.MediaQueueItem;
+import com.google.android.gms.cast.MediaStatus;
 import com.google.android.gms.cast.framework.CastContext;
 import com.google.android.gms.cast.framework.CastSession;
 import com.google.android.gms.cast.framework.SessionManagerListener;
 import com.google.android.gms.cast.framework.media.MediaQueue;
 import com.google.android.gms.cast.framework.media.RemoteMediaClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.sample.cast.refplayer.utils.MemoryGovernor;
+import com.google.sample.cast.refplayer.utils.PreloadPolicy;
+import com.google.sample.cast.refplayer.utils.Utils;
 
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -43,6 +55,8 @@ public class QueueDataProvider {
 
     private static final String TAG = "QueueDataProvider";
     public static final int INVALID = -1;
+    // The capacity of the item cache until the queue is shown, and the least it is sized to.
+    private static final int DEFAULT_QUEUE_CACHE_CAPACITY = 30;
     private final Context mAppContext;
     private static QueueDataProvider mInstance;
     // Locks modification to the remove queue.
@@ -53,22 +67,41 @@ public class QueueDataProvider {
             new MyRemoteMediaClientCallback();
     private MediaQueueItem mCurrentItem;
     private MediaQueueItem mUpcomingItem;
+    private int mPlayerState = MediaStatus.PLAYER_STATE_UNKNOWN;
     private OnQueueDataChangedListener mListener;
+    // What the listener was last told, which the next changes are found against.
+    private int mNotifiedCurrentItemId = MediaQueueItem.INVALID_ITEM_ID;
+    private int mNotifiedUpcomingItemId = MediaQueueItem.INVALID_ITEM_ID;
+    private int mNotifiedPlayerState = MediaStatus.PLAYER_STATE_UNKNOWN;
+    private boolean mChangesScheduled;
+    private long mStatusUpdateCount;
+    private long mChangeEventCount;
+    private final Choreographer.FrameCallback mDispatchChangesCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    mChangesScheduled = false;
+                    dispatchChanges();
+                }
+            };
     private boolean mDetachedQueue = true;
     private Executor localExecutor = Executors.newSingleThreadExecutor();
+    private final MemoryGovernor.Trimmable mQueueCacheTrimmable = new MyQueueCacheTrimmable();
+    private final OptimisticQueue mOptimisticQueue = new OptimisticQueue();
+    private int mCacheCapacity = DEFAULT_QUEUE_CACHE_CAPACITY;
+    private long mPrefetchCount;
+    private final QueueSnapshotStore mSnapshotStore;
 
     private QueueDataProvider(Context context) {
         mAppContext = context.getApplicationContext();
         mCurrentItem = null;
+        mSnapshotStore = new QueueSnapshotStore(mAppContext);
         CastContext.getSharedInstance(mAppContext,localExecutor)
                 .getResult()
                 .getSessionManager()
                 .addSessionManagerListener(mSessionManagerListener, CastSession.class);
-        MediaQueue queue = getMediaQueue();
-        if (queue != null) {
-            queue.setCacheCapacity(30);
-        }
         registerQueueCallbackAndUpdateQueue();
+        MemoryGovernor.getInstance(mAppContext).register(mQueueCacheTrimmable);
     }
 
     public void onUpcomingStopClicked(View view, MediaQueueItem upcomingItem) {
@@ -79,12 +112,7 @@ public class QueueDataProvider {
         // need to truncate the queue on the remote device so that we can complete the playback of
         // the current item but not go any further. Alternatively, one could just stop the playback
         // here, if that was acceptable.
-        int position = getPositionByItemId(upcomingItem.getItemId());
-        int[] itemIds = new int[getCount() - position];
-        for (int i = 0; i < itemIds.length; i++) {
-            itemIds[i] = getMediaQueue().getItemAtIndex(i + position).getItemId();
-        }
-        remoteMediaClient.queueRemoveItems(itemIds, null);
+        removeItemsFrom(getPositionByItemId(upcomingItem.getItemId()));
     }
 
     public void onUpcomingPlayClicked(View view, MediaQueueItem upcomingItem) {
@@ -106,17 +134,55 @@ public class QueueDataProvider {
         return queue;
     }
 
+    /**
+     * Returns the position of the item {@code itemId} in the {@link MediaQueue}, which does not
+     * reflect the edits still waiting for the receiver.
+     */
     public int getPositionByItemId(int itemId) {
-        if (getMediaQueue() == null || getMediaQueue().getItemIds() == null) {
+        MediaQueue queue = getMediaQueue();
+        if (queue == null) {
             return INVALID;
         }
-        int[] ids = getMediaQueue().getItemIds();
-        for (int i = 0 ; i < ids.length; i++) {
-            if (ids[i] == itemId) {
-                return i;
-            }
+        // The session may have changed the queue without the provider being told.
+        mOptimisticQueue.attach(queue);
+        return mOptimisticQueue.getBasePosition(itemId);
+    }
+
+    /**
+     * Removes the items of the {@link MediaQueue} from {@code position} to its end, with a single
+     * request. The items are told by their IDs, so the ones not fetched yet are not fetched.
+     */
+    public void removeItemsFrom(int position) {
+        RemoteMediaClient remoteMediaClient = getRemoteMediaClient();
+        if (remoteMediaClient != null) {
+            removeItemsFrom(remoteMediaClient, position);
+        }
+    }
+
+    /**
+     * Removes the items of the queue of {@code remoteMediaClient} from {@code position} to its
+     * end, as {@link #removeItemsFrom(int)} does for the current session.
+     */
+    @VisibleForTesting
+    public static void removeItemsFrom(RemoteMediaClient remoteMediaClient, int position) {
+        if (position < 0) {
+            return;
+        }
+        int[] itemIds = getItemIdsFrom(remoteMediaClient.getMediaQueue().getItemIds(), position);
+        if (itemIds.length > 0) {
+            remoteMediaClient.queueRemoveItems(itemIds, null);
         }
-        return INVALID;
+    }
+
+    /**
+     * Returns the IDs of {@code itemIds} from {@code position} to the end, which are none if
+     * {@code position} is past the end.
+     */
+    private static int[] getItemIdsFrom(@Nullable int[] itemIds, int position) {
+        if (itemIds == null || position >= itemIds.length) {
+            return new int[0];
+        }
+        return Arrays.copyOfRange(itemIds, position, itemIds.length);
     }
 
     public static synchronized QueueDataProvider getInstance(Context context) {
@@ -126,17 +192,67 @@ public class QueueDataProvider {
         return mInstance;
     }
 
-    public void removeFromQueue(int position) {
+    /**
+     * Removes the item shown at {@code position}, which disappears right away.
+     *
+     * @return {@code false} if the item could not be removed.
+     */
+    public boolean removeFromQueue(int position) {
         synchronized (mLock) {
-            MediaQueue queue = getMediaQueue();
-            if (queue == null) {
-                return;
-            }
-            MediaQueueItem item = queue.getItemAtIndex(position);
             RemoteMediaClient remoteMediaClient = getRemoteMediaClient();
-            if (item != null && remoteMediaClient != null) {
-                getRemoteMediaClient().queueRemoveItem(item.getItemId(), null);
+            if (remoteMediaClient == null) {
+                return false;
             }
+            return mOptimisticQueue.remove(remoteMediaClient, position);
+        }
+    }
+
+    /**
+     * Inserts {@code items} before the item {@code beforeItemId}, or at the end of the queue if it
+     * is {@link MediaQueueItem#INVALID_ITEM_ID}. The items are shown right away.
+     */
+    public void insertItems(MediaQueueItem[] items, int beforeItemId) {
+        insertItems(items, beforeItemId, null);
+    }
+
+    /**
+     * Inserts {@code items} like {@link #insertItems(MediaQueueItem[], int)}, and tells
+     * {@code callback} the result of the request.
+     *
+     * @return {@code false} if no receiver is connected, in which case nothing is sent.
+     */
+    public boolean insertItems(MediaQueueItem[] items, int beforeItemId,
+            @Nullable ResultCallback<RemoteMediaClient.MediaChannelResult> callback) {
+        RemoteMediaClient remoteMediaClient = getRemoteMediaClient();
+        if (remoteMediaClient == null) {
+            return false;
+        }
+        mOptimisticQueue.insert(remoteMediaClient, items, beforeItemId, false, callback);
+        return true;
+    }
+
+    /**
+     * Inserts {@code items} right after the item {@code itemId}.
+     *
+     * @return {@code false} if the item {@code itemId} is not in the queue.
+     */
+    public boolean insertItemsAfter(MediaQueueItem[] items, int itemId) {
+        int position = mOptimisticQueue.getPosition(itemId);
+        if (position < 0) {
+            return false;
+        }
+        insertItems(items, mOptimisticQueue.getInsertBeforeItemId(position + 1));
+        return true;
+    }
+
+    /**
+     * Inserts {@code item} before the item {@code beforeItemId} and plays it.
+     */
+    public void insertAndPlayItem(MediaQueueItem item, int beforeItemId) {
+        RemoteMediaClient remoteMediaClient = getRemoteMediaClient();
+        if (remoteMediaClient != null) {
+            mOptimisticQueue.insert(remoteMediaClient, new MediaQueueItem[] {item}, beforeItemId,
+                    true, null);
         }
     }
 
@@ -157,43 +273,152 @@ public class QueueDataProvider {
         }
     }
 
+    /**
+     * Moves the item shown at {@code fromPosition} to {@code toPosition} while it is dragged. The
+     * receiver is only sent the whole move by {@link #commitMove()}, once the item is dropped.
+     */
     public void moveItem(int fromPosition, int toPosition) {
-        if (fromPosition == toPosition) {
-            return;
+        if (fromPosition != toPosition) {
+            mOptimisticQueue.moveLocally(fromPosition, toPosition);
         }
+    }
+
+    /**
+     * Sends the move of the item that was just dropped to the receiver, in a single request
+     * however many slots it was dragged over.
+     */
+    public void commitMove() {
         RemoteMediaClient remoteMediaClient = getRemoteMediaClient();
-        if (remoteMediaClient == null) {
+        if (remoteMediaClient != null) {
+            mOptimisticQueue.commitMove(remoteMediaClient);
+        }
+    }
+
+    /**
+     * Returns a human readable summary of the edits waiting for the receiver, of the requests that
+     * dragging the queue items sent, and of the status updates that reached the listener.
+     */
+    public String dump() {
+        return mOptimisticQueue.dump() + String.format(Locale.ROOT,
+                "status updates=%d, change events=%d\ncache capacity=%d, prefetches=%d\n",
+                mStatusUpdateCount, mChangeEventCount, mCacheCapacity, mPrefetchCount)
+                + mSnapshotStore.dump();
+    }
+
+    /**
+     * Returns whether a queue played before can be loaded again with {@link #restoreQueue()}.
+     */
+    public boolean hasSnapshot() {
+        return !mSnapshotStore.getItems().isEmpty();
+    }
+
+    /**
+     * Loads the queue played before on the receiver of the current session, in a single request,
+     * and resumes it where it stopped. The items of that queue whose data was never fetched are
+     * left out.
+     *
+     * @return {@code false} if there is no session or nothing to restore
+     */
+    public boolean restoreQueue() {
+        RemoteMediaClient remoteMediaClient = getRemoteMediaClient();
+        List<MediaQueueItem> items = mSnapshotStore.getItems();
+        if (remoteMediaClient == null || items.isEmpty()) {
+            return false;
+        }
+        int startIndex = 0;
+        long playPosition = 0;
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).getItemId() == mSnapshotStore.getCurrentItemId()) {
+                startIndex = i;
+                playPosition = mSnapshotStore.getStreamPosition();
+                break;
+            }
+        }
+        remoteMediaClient.queueLoad(Utils.rebuildQueue(items), startIndex,
+                MediaStatus.REPEAT_MODE_REPEAT_OFF, playPosition, null);
+        return true;
+    }
+
+    /**
+     * Sets the number of items whose data the {@link MediaQueue} keeps, which should cover the
+     * rows shown and the ones prefetched around them.
+     */
+    public void setCacheCapacity(int cacheCapacity) {
+        cacheCapacity = Math.max(cacheCapacity, DEFAULT_QUEUE_CACHE_CAPACITY);
+        if (mCacheCapacity == cacheCapacity) {
             return;
         }
+        mCacheCapacity = cacheCapacity;
         MediaQueue queue = getMediaQueue();
-        if (queue == null) {
-            return;
+        if (queue != null) {
+            queue.setCacheCapacity(mCacheCapacity);
         }
-        int itemId = queue.itemIdAtIndex(fromPosition);
-        remoteMediaClient.queueMoveItemToNewIndex(itemId, toPosition, null);
     }
 
+    /**
+     * Fetches the data of the items shown from {@code startPosition} to {@code endPosition}, both
+     * included, ahead of their binding.
+     */
+    public void prefetch(int startPosition, int endPosition) {
+        mPrefetchCount++;
+        mOptimisticQueue.prefetch(startPosition, endPosition);
+    }
+
+    /**
+     * Returns the number of items shown, including the edits still waiting for the receiver.
+     */
     public int getCount() {
-        MediaQueue queue = getMediaQueue();
-        if (queue == null) {
-            return 0;
-        }
-        return queue.getItemCount();
+        return mOptimisticQueue.getCount();
     }
 
+    /**
+     * Returns the item shown at {@code position}, or {@code null} if it is not fetched from the
+     * receiver yet.
+     */
+    @Nullable
     public MediaQueueItem getItem(int position) {
-        MediaQueue queue = getMediaQueue();
-        if (queue == null) {
-            return null;
+        MediaQueueItem item = mOptimisticQueue.getItem(position);
+        if (item == null) {
+            // Until the receiver sends the item, as when the screen is shown again, the copy
+            // saved on disk is shown, as long as it was saved in the same media session.
+            item = mSnapshotStore.getItem(mOptimisticQueue.getItemId(position));
         }
-        return queue.getItemAtIndex(position,true);
+        return item;
+    }
+
+    /**
+     * Returns the position at which the item {@code itemId} is shown, or {@code -1}.
+     */
+    public int getShownPosition(int itemId) {
+        return mOptimisticQueue.getPosition(itemId);
+    }
+
+    /**
+     * Sets the callback told about every change of the items shown.
+     */
+    public void setQueueCallback(@Nullable OptimisticQueue.Callback callback) {
+        mOptimisticQueue.setCallback(callback);
+        mOptimisticQueue.attach(getMediaQueue());
     }
 
     public void destroyQueue() {
+        // The snapshot keeps the queue that the session played.
+        stopSnapshot();
         removeAll();
+        mOptimisticQueue.attach(null);
         mDetachedQueue = true;
         mCurrentItem = null;
         mUpcomingItem = null;
+        mPlayerState = MediaStatus.PLAYER_STATE_UNKNOWN;
+        PreloadPolicy.getInstance().onStatusUpdated(null, null, mPlayerState);
+        // The listener is told that the whole queue changed instead.
+        mNotifiedCurrentItemId = MediaQueueItem.INVALID_ITEM_ID;
+        mNotifiedUpcomingItemId = MediaQueueItem.INVALID_ITEM_ID;
+        mNotifiedPlayerState = MediaStatus.PLAYER_STATE_UNKNOWN;
+        if (mChangesScheduled) {
+            Choreographer.getInstance().removeFrameCallback(mDispatchChangesCallback);
+            mChangesScheduled = false;
+        }
     }
 
     public boolean isCurrentItem(MediaQueueItem item) {
@@ -232,20 +457,42 @@ public class QueueDataProvider {
 
     /**
      * Listener notifies the data of the queue has changed.
+     *
+     * <p>The changes of the current item, of the upcoming item and of the player state are
+     * coalesced, so that each of them is reported at most once per frame however many status
+     * updates the receiver sends. The items are given by ID, and are
+     * {@link MediaQueueItem#INVALID_ITEM_ID} when there is none.
      */
     public interface OnQueueDataChangedListener {
 
+        /**
+         * Called when the whole queue may have changed, for example when the session ended.
+         */
         void onQueueDataChanged();
+
+        void onCurrentItemChanged(int previousItemId, int itemId);
+
+        void onUpcomingItemChanged(int previousItemId, int itemId);
+
+        void onPlayerStateChanged(int currentItemId);
     }
 
     private void registerQueueCallbackAndUpdateQueue() {
         RemoteMediaClient remoteMediaClient = getRemoteMediaClient();
         if (remoteMediaClient != null) {
             remoteMediaClient.registerCallback(mRemoteMediaClientCallback);
+            remoteMediaClient.getMediaQueue().setCacheCapacity(mCacheCapacity);
+            mOptimisticQueue.attach(remoteMediaClient.getMediaQueue());
+            mSnapshotStore.attach(remoteMediaClient.getMediaQueue());
             updateMediaQueue();
         }
     }
 
+    private void stopSnapshot() {
+        mSnapshotStore.flush();
+        mSnapshotStore.attach(null);
+    }
+
     private void updateMediaQueue() {
         Log.d(TAG, "updateMediaQueue ");
         RemoteMediaClient remoteMediaClient = getRemoteMediaClient();
@@ -253,10 +500,65 @@ public class QueueDataProvider {
         if (remoteMediaClient != null) {
             mCurrentItem = remoteMediaClient.getCurrentItem();
             mUpcomingItem = remoteMediaClient.getPreloadedItem();
+            mPlayerState = remoteMediaClient.getPlayerState();
             mDetachedQueue = false;
-            Log.d(TAG, "updateMediaQueue() with mCurrentItem=" + mCurrentItem);
-            Log.d(TAG, "updateMediaQueue() with mUpcomingItem=" + mUpcomingItem);
+            MediaStatus mediaStatus = remoteMediaClient.getMediaStatus();
+            if (mediaStatus != null) {
+                mSnapshotStore.setMediaSessionId(mediaStatus.getMediaSessionId());
+            }
+            mSnapshotStore.setCurrentItem(getItemId(mCurrentItem),
+                    remoteMediaClient.getApproximateStreamPosition());
+            PreloadPolicy.getInstance().onStatusUpdated(mCurrentItem, mUpcomingItem, mPlayerState);
         }
+        scheduleChanges();
+    }
+
+    /**
+     * Tells the listener on the next frame about the changes since it was last told, unless
+     * nothing changed or the changes are already waiting for that frame.
+     */
+    private void scheduleChanges() {
+        mStatusUpdateCount++;
+        if (mChangesScheduled || (getItemId(mCurrentItem) == mNotifiedCurrentItemId
+                && getItemId(mUpcomingItem) == mNotifiedUpcomingItemId
+                && mPlayerState == mNotifiedPlayerState)) {
+            return;
+        }
+        mChangesScheduled = true;
+        Choreographer.getInstance().postFrameCallback(mDispatchChangesCallback);
+    }
+
+    private void dispatchChanges() {
+        int currentItemId = getItemId(mCurrentItem);
+        int upcomingItemId = getItemId(mUpcomingItem);
+        int previousCurrentItemId = mNotifiedCurrentItemId;
+        int previousUpcomingItemId = mNotifiedUpcomingItemId;
+        boolean playerStateChanged = mPlayerState != mNotifiedPlayerState;
+        mNotifiedCurrentItemId = currentItemId;
+        mNotifiedUpcomingItemId = upcomingItemId;
+        mNotifiedPlayerState = mPlayerState;
+        if (mListener == null) {
+            return;
+        }
+        Log.d(TAG, "dispatchChanges() with current item=" + currentItemId
+                + ", upcoming item=" + upcomingItemId + ", player state=" + mPlayerState);
+        if (currentItemId != previousCurrentItemId) {
+            mChangeEventCount++;
+            mListener.onCurrentItemChanged(previousCurrentItemId, currentItemId);
+        } else if (playerStateChanged) {
+            // A new current item is rebound as a whole, so its player state is only reported
+            // when the item stays the same.
+            mChangeEventCount++;
+            mListener.onPlayerStateChanged(currentItemId);
+        }
+        if (upcomingItemId != previousUpcomingItemId) {
+            mChangeEventCount++;
+            mListener.onUpcomingItemChanged(previousUpcomingItemId, upcomingItemId);
+        }
+    }
+
+    private static int getItemId(@Nullable MediaQueueItem item) {
+        return item != null ? item.getItemId() : MediaQueueItem.INVALID_ITEM_ID;
     }
 
     private RemoteMediaClient getRemoteMediaClient() {
@@ -301,6 +603,8 @@ public class QueueDataProvider {
 
         @Override
         public void onSessionEnding(CastSession session) {
+            // The receiver empties its queue as the session ends, which the snapshot ignores.
+            stopSnapshot();
         }
 
         @Override
@@ -313,6 +617,48 @@ public class QueueDataProvider {
 
         @Override
         public void onSessionSuspended(CastSession session, int reason) {
+            stopSnapshot();
+        }
+    }
+
+    /**
+     * Trims the item cache of the {@link MediaQueue}. Shrinking the capacity evicts the least
+     * recently used items, and restoring it lets the cache grow back as items are requested again.
+     */
+    private class MyQueueCacheTrimmable implements MemoryGovernor.Trimmable {
+
+        @Override
+        public String getName() {
+            return "Media queue items";
+        }
+
+        @Override
+        public void trimToFraction(float fraction) {
+            MediaQueue queue = getMediaQueue();
+            if (queue == null) {
+                return;
+            }
+            // MediaQueue needs a capacity of at least one.
+            queue.setCacheCapacity(Math.max(1, (int) (getEntryCount() * fraction)));
+            queue.setCacheCapacity(mCacheCapacity);
+        }
+
+        /**
+         * Returns the most items the cache can hold, rather than counting the cached ones, which
+         * means going through the whole queue.
+         */
+        @Override
+        public int getEntryCount() {
+            MediaQueue queue = getMediaQueue();
+            if (queue == null) {
+                return 0;
+            }
+            return Math.min(mCacheCapacity, queue.getItemCount());
+        }
+
+        @Override
+        public long getSizeInBytes() {
+            return -1;
         }
     }
 
@@ -321,27 +667,18 @@ public class QueueDataProvider {
         @Override
         public void onPreloadStatusUpdated() {
             updateMediaQueue();
-            if (mListener != null) {
-                mListener.onQueueDataChanged();
-            }
             Log.d(TAG, "onPreloadStatusUpdated Queue was updated");
         }
 
         @Override
         public void onQueueStatusUpdated() {
             updateMediaQueue();
-            if (mListener != null) {
-                mListener.onQueueDataChanged();
-            }
             Log.d(TAG, "onQueueStatusUpdated Queue was updated");
         }
 
         @Override
         public void onStatusUpdated() {
             updateMediaQueue();
-            if (mListener != null) {
-                mListener.onQueueDataChanged();
-            }
             Log.d(TAG, "onStatusUpdated Queue was updated");
         }
     }
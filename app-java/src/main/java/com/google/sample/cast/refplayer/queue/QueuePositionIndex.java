@@ -0,0 +1,132 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.cast.refplayer.queue;
+
+import com.google.android.gms.cast.framework.media.MediaQueue;
+
+import android.util.SparseIntArray;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps the item IDs of a {@link MediaQueue} to their positions, so that a position is found
+ * without copying and scanning {@link MediaQueue#getItemIds()}.
+ *
+ * <p>The index follows the changes of the queue through its {@link MediaQueue.Callback} events,
+ * which its owner forwards to it: inserted and removed items only shift the positions that follow
+ * them. Reorders and reloads, which can move every item, read the item IDs again. All the methods
+ * must be called on the main thread, where the events are delivered.
+ */
+class QueuePositionIndex extends MediaQueue.Callback {
+
+    @Nullable
+    private MediaQueue mQueue;
+    // The item ID at each position of the queue.
+    private int[] mItemIds = new int[0];
+    private int mCount;
+    private final SparseIntArray mPositions = new SparseIntArray();
+
+    /**
+     * Indexes the items of {@code queue}, whose events are then forwarded to this index.
+     */
+    void attach(@Nullable MediaQueue queue) {
+        mQueue = queue;
+        rebuild();
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    int getItemId(int position) {
+        return mItemIds[position];
+    }
+
+    /**
+     * Returns the position of the item {@code itemId}, or {@code defaultValue} if it is not in the
+     * queue.
+     */
+    int getPosition(int itemId, int defaultValue) {
+        return mPositions.get(itemId, defaultValue);
+    }
+
+    @Override
+    public void itemsReloaded() {
+        rebuild();
+    }
+
+    @Override
+    public void itemsInsertedInRange(int insertIndex, int insertCount) {
+        if (mQueue == null) {
+            return;
+        }
+        if (mCount + insertCount > mItemIds.length) {
+            mItemIds = Arrays.copyOf(mItemIds, Math.max(mCount + insertCount, mItemIds.length * 2));
+        }
+        System.arraycopy(mItemIds, insertIndex, mItemIds, insertIndex + insertCount,
+                mCount - insertIndex);
+        mCount += insertCount;
+        for (int i = insertIndex; i < insertIndex + insertCount; i++) {
+            mItemIds[i] = mQueue.itemIdAtIndex(i);
+        }
+        reindexFrom(insertIndex);
+    }
+
+    @Override
+    public void itemsRemovedAtIndexes(@NonNull int[] indexes) {
+        if (indexes.length == 0) {
+            return;
+        }
+        // The other callbacks of the queue read the same array, so it is sorted as a copy.
+        int[] removed = indexes.clone();
+        Arrays.sort(removed);
+        int kept = removed[0];
+        int next = 0;
+        for (int i = removed[0]; i < mCount; i++) {
+            if (next < removed.length && removed[next] == i) {
+                mPositions.delete(mItemIds[i]);
+                next++;
+            } else {
+                mItemIds[kept++] = mItemIds[i];
+            }
+        }
+        mCount = kept;
+        reindexFrom(removed[0]);
+    }
+
+    @Override
+    public void itemsReorderedAtIndexes(@NonNull List<Integer> indexes, int insertBeforeIndex) {
+        rebuild();
+    }
+
+    private void rebuild() {
+        mPositions.clear();
+        int[] itemIds = mQueue != null ? mQueue.getItemIds() : null;
+        mItemIds = itemIds != null ? itemIds : new int[0];
+        mCount = mItemIds.length;
+        reindexFrom(0);
+    }
+
+    private void reindexFrom(int start) {
+        for (int i = start; i < mCount; i++) {
+            mPositions.put(mItemIds[i], i);
+        }
+    }
+}
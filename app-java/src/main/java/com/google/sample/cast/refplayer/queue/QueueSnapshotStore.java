@@ -0,0 +1,446 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.cast.refplayer.queue;
+
+import com.google.android.gms.cast.MediaQueueItem;
+import com.google.android.gms.cast.framework.media.MediaQueue;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseArray;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a copy of the queue of the receiver on disk: the IDs of its items, the data of the items
+ * that were fetched, and the current item with its position.
+ *
+ * <p>Item IDs are only unique within the media session of the receiver, and a new session or a
+ * queue loaded anew reuses them for other media. So the snapshot records its media session, and
+ * starts over once the queue it follows has items of another one. Until then, an empty queue
+ * leaves the snapshot alone, so that the queue played last can still be restored.
+ *
+ * <p>The snapshot follows the {@link MediaQueue} through its callbacks, and each change schedules
+ * a write {@link #WRITE_DELAY_MS} later, so that the bursts of changes made while a queue loads
+ * or while its items are fetched end up in a single write. The position of the current item
+ * changes on every status update, so it does not schedule a write of its own but is saved with the
+ * next one, or by {@link #flush()} if it is the only change. The file is read and written on a
+ * background thread. All the other methods must be called on the main thread.
+ */
+class QueueSnapshotStore extends MediaQueue.Callback {
+
+    private static final String TAG = "QueueSnapshotStore";
+    private static final String FILE_NAME = "queue_snapshot.json";
+    private static final String KEY_ITEM_IDS = "itemIds";
+    private static final String KEY_ITEMS = "items";
+    private static final String KEY_CURRENT_ITEM_ID = "currentItemId";
+    private static final String KEY_STREAM_POSITION = "streamPosition";
+    private static final String KEY_MEDIA_SESSION_ID = "mediaSessionId";
+    private static final long UNKNOWN_MEDIA_SESSION_ID = -1;
+    private static final long WRITE_DELAY_MS = 2_000;
+    private static final Executor IO_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final AtomicFile mFile;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+    @Nullable
+    private MediaQueue mQueue;
+    private int[] mItemIds = new int[0];
+    // The data of the items of mItemIds that were fetched.
+    private final SparseArray<MediaQueueItem> mItems = new SparseArray<>();
+    private int mCurrentItemId = MediaQueueItem.INVALID_ITEM_ID;
+    private long mStreamPositionMs;
+    private long mMediaSessionId = UNKNOWN_MEDIA_SESSION_ID;
+    // The media session of the queue followed, which the snapshot takes once the queue has items.
+    private long mQueueMediaSessionId = UNKNOWN_MEDIA_SESSION_ID;
+    // Set once the snapshot holds something newer than the file, which the read then leaves alone.
+    private boolean mChanged;
+    private boolean mWriteScheduled;
+    // Set once the position changed since the last write, which no write may be scheduled for.
+    private boolean mPositionChanged;
+    private long mWriteCount;
+
+    QueueSnapshotStore(Context context) {
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+        read();
+    }
+
+    /**
+     * Follows the items of {@code queue} once {@link #setMediaSessionId} tells its media session,
+     * or stops following any queue if it is {@code null}. The snapshot keeps the last items it saw
+     * until a queue of another media session has items.
+     */
+    void attach(@Nullable MediaQueue queue) {
+        if (queue == mQueue) {
+            return;
+        }
+        if (mQueue != null) {
+            mQueue.unregisterCallback(this);
+        }
+        mQueue = queue;
+        mQueueMediaSessionId = UNKNOWN_MEDIA_SESSION_ID;
+        if (mQueue != null) {
+            mQueue.registerCallback(this);
+        }
+    }
+
+    /**
+     * Records the media session that the queue followed belongs to.
+     */
+    void setMediaSessionId(long mediaSessionId) {
+        if (mQueue == null || mediaSessionId == mQueueMediaSessionId) {
+            return;
+        }
+        mQueueMediaSessionId = mediaSessionId;
+        if (!updateMediaSession() && isFollowingQueue() && mQueue.getItemCount() > 0) {
+            // A resumed session, whose queue is already known.
+            updateItems();
+        }
+    }
+
+    /**
+     * Records the item that plays, and how far it played.
+     */
+    void setCurrentItem(int itemId, long streamPositionMs) {
+        if (!isFollowingQueue() || itemId == MediaQueueItem.INVALID_ITEM_ID) {
+            return;
+        }
+        if (streamPositionMs != mStreamPositionMs) {
+            mStreamPositionMs = streamPositionMs;
+            mPositionChanged = true;
+            mChanged = true;
+        }
+        if (itemId != mCurrentItemId) {
+            mCurrentItemId = itemId;
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * Returns the data of the item {@code itemId} of the queue followed as last seen, or
+     * {@code null} if it never was or if the snapshot holds the items of another media session.
+     */
+    @Nullable
+    MediaQueueItem getItem(int itemId) {
+        return isFollowingQueue() ? mItems.get(itemId) : null;
+    }
+
+    /**
+     * Returns the items whose data is known, in the order of the queue.
+     */
+    List<MediaQueueItem> getItems() {
+        List<MediaQueueItem> items = new ArrayList<>(mItems.size());
+        for (int itemId : mItemIds) {
+            MediaQueueItem item = mItems.get(itemId);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    int getCurrentItemId() {
+        return mCurrentItemId;
+    }
+
+    long getStreamPosition() {
+        return mStreamPositionMs;
+    }
+
+    /**
+     * Writes the snapshot now if it has changes that are not written yet.
+     */
+    void flush() {
+        if (mWriteScheduled || mPositionChanged) {
+            mHandler.removeCallbacks(mWriteRunnable);
+            write();
+        }
+    }
+
+    /**
+     * Returns a human readable summary of the snapshot.
+     */
+    String dump() {
+        return String.format(Locale.ROOT, "snapshot items=%d, with data=%d, writes=%d\n",
+                mItemIds.length, mItems.size(), mWriteCount);
+    }
+
+    @Override
+    public void itemsReloaded() {
+        if (!updateMediaSession()) {
+            updateItemIds();
+        }
+    }
+
+    @Override
+    public void itemsInsertedInRange(int insertIndex, int insertCount) {
+        if (updateMediaSession() || !isFollowingQueue()) {
+            return;
+        }
+        if (mItemIds.length + insertCount != mQueue.getItemCount()) {
+            // Still the IDs read from the file, not the ones of this queue.
+            updateItemIds();
+            return;
+        }
+        // The items were just inserted, so their data is not fetched yet.
+        int[] itemIds = new int[mItemIds.length + insertCount];
+        System.arraycopy(mItemIds, 0, itemIds, 0, insertIndex);
+        for (int i = insertIndex; i < insertIndex + insertCount; i++) {
+            itemIds[i] = mQueue.itemIdAtIndex(i);
+        }
+        System.arraycopy(mItemIds, insertIndex, itemIds, insertIndex + insertCount,
+                mItemIds.length - insertIndex);
+        mItemIds = itemIds;
+        scheduleWrite();
+    }
+
+    @Override
+    public void itemsRemovedAtIndexes(@NonNull int[] indexes) {
+        if (!isFollowingQueue()) {
+            return;
+        }
+        if (mItemIds.length - indexes.length != mQueue.getItemCount()) {
+            updateItemIds();
+            return;
+        }
+        // The other callbacks of the queue read the same array, so it is sorted as a copy.
+        int[] removed = indexes.clone();
+        Arrays.sort(removed);
+        int[] itemIds = new int[mItemIds.length - removed.length];
+        int kept = 0;
+        int next = 0;
+        for (int i = 0; i < mItemIds.length; i++) {
+            if (next < removed.length && removed[next] == i) {
+                mItems.remove(mItemIds[i]);
+                next++;
+            } else {
+                itemIds[kept++] = mItemIds[i];
+            }
+        }
+        mItemIds = itemIds;
+        scheduleWrite();
+    }
+
+    @Override
+    public void itemsReorderedAtIndexes(@NonNull List<Integer> indexes, int insertBeforeIndex) {
+        updateItemIds();
+    }
+
+    @Override
+    public void itemsUpdatedAtIndexes(@NonNull int[] indexes) {
+        if (!isFollowingQueue()) {
+            return;
+        }
+        for (int index : indexes) {
+            MediaQueueItem item = mQueue.getItemAtIndex(index, false);
+            if (item != null) {
+                mItems.put(item.getItemId(), item);
+            }
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * Returns whether the snapshot follows the queue, which it only does once it has taken the
+     * media session of the queue.
+     */
+    private boolean isFollowingQueue() {
+        return mQueue != null && mQueueMediaSessionId == mMediaSessionId;
+    }
+
+    /**
+     * Takes the media session of the queue followed if the snapshot is of another one and the
+     * queue has items, and then starts over from the items of the queue.
+     *
+     * @return whether the snapshot started over
+     */
+    private boolean updateMediaSession() {
+        if (mQueue == null || mQueueMediaSessionId == UNKNOWN_MEDIA_SESSION_ID
+                || mQueueMediaSessionId == mMediaSessionId || mQueue.getItemCount() == 0) {
+            return false;
+        }
+        mMediaSessionId = mQueueMediaSessionId;
+        mItems.clear();
+        mCurrentItemId = MediaQueueItem.INVALID_ITEM_ID;
+        mStreamPositionMs = 0;
+        updateItems();
+        return true;
+    }
+
+    /**
+     * Reads the item IDs of the queue again, and drops the data of the items that left it. The
+     * data of the other items is kept, and the new items get theirs as they are fetched.
+     */
+    private void updateItemIds() {
+        if (!isFollowingQueue()) {
+            return;
+        }
+        int[] itemIds = mQueue.getItemIds();
+        mItemIds = itemIds != null ? itemIds : new int[0];
+        int[] sortedItemIds = mItemIds.clone();
+        Arrays.sort(sortedItemIds);
+        for (int i = mItems.size() - 1; i >= 0; i--) {
+            if (Arrays.binarySearch(sortedItemIds, mItems.keyAt(i)) < 0) {
+                mItems.removeAt(i);
+            }
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * Reads the item IDs of the queue again, with the data of all of its items that are cached,
+     * which only a queue that was already loaded before it is attached has.
+     */
+    private void updateItems() {
+        if (!isFollowingQueue()) {
+            return;
+        }
+        updateItemIds();
+        for (int i = 0; i < mItemIds.length; i++) {
+            MediaQueueItem item = mQueue.getItemAtIndex(i, false);
+            if (item != null) {
+                mItems.put(mItemIds[i], item);
+            }
+        }
+    }
+
+    private void scheduleWrite() {
+        mChanged = true;
+        if (mWriteScheduled) {
+            return;
+        }
+        mWriteScheduled = true;
+        mHandler.postDelayed(mWriteRunnable, WRITE_DELAY_MS);
+    }
+
+    private void write() {
+        mWriteScheduled = false;
+        mPositionChanged = false;
+        mWriteCount++;
+        // The items are copied here and serialized on the background thread.
+        final int[] itemIds = mItemIds.clone();
+        final List<MediaQueueItem> items = getItems();
+        final int currentItemId = mCurrentItemId;
+        final long streamPositionMs = mStreamPositionMs;
+        final long mediaSessionId = mMediaSessionId;
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileOutputStream stream = null;
+                try {
+                    JSONObject snapshot = new JSONObject();
+                    JSONArray itemIdsJson = new JSONArray();
+                    for (int itemId : itemIds) {
+                        itemIdsJson.put(itemId);
+                    }
+                    JSONArray itemsJson = new JSONArray();
+                    for (MediaQueueItem item : items) {
+                        itemsJson.put(item.toJson());
+                    }
+                    snapshot.put(KEY_ITEM_IDS, itemIdsJson);
+                    snapshot.put(KEY_ITEMS, itemsJson);
+                    snapshot.put(KEY_CURRENT_ITEM_ID, currentItemId);
+                    snapshot.put(KEY_STREAM_POSITION, streamPositionMs);
+                    snapshot.put(KEY_MEDIA_SESSION_ID, mediaSessionId);
+                    stream = mFile.startWrite();
+                    stream.write(snapshot.toString().getBytes(StandardCharsets.UTF_8));
+                    mFile.finishWrite(stream);
+                } catch (IOException | JSONException e) {
+                    Log.w(TAG, "Failed to write the queue snapshot", e);
+                    if (stream != null) {
+                        mFile.failWrite(stream);
+                    }
+                }
+            }
+        });
+    }
+
+    private void read() {
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mFile.getBaseFile().exists()) {
+                    return;
+                }
+                final JSONObject snapshot;
+                try {
+                    snapshot = new JSONObject(
+                            new String(mFile.readFully(), StandardCharsets.UTF_8));
+                } catch (IOException | JSONException e) {
+                    Log.w(TAG, "Failed to read the queue snapshot", e);
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onRead(snapshot);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onRead(JSONObject snapshot) {
+        if (mChanged) {
+            // The queue changed while the file was read, so it is more recent than the file.
+            return;
+        }
+        try {
+            JSONArray itemIdsJson = snapshot.getJSONArray(KEY_ITEM_IDS);
+            mItemIds = new int[itemIdsJson.length()];
+            for (int i = 0; i < mItemIds.length; i++) {
+                mItemIds[i] = itemIdsJson.getInt(i);
+            }
+            JSONArray itemsJson = snapshot.getJSONArray(KEY_ITEMS);
+            for (int i = 0; i < itemsJson.length(); i++) {
+                MediaQueueItem item =
+                        new MediaQueueItem.Builder(itemsJson.getJSONObject(i)).build();
+                mItems.put(item.getItemId(), item);
+            }
+            mCurrentItemId = snapshot.getInt(KEY_CURRENT_ITEM_ID);
+            mStreamPositionMs = snapshot.getLong(KEY_STREAM_POSITION);
+            mMediaSessionId = snapshot.getLong(KEY_MEDIA_SESSION_ID);
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to parse the queue snapshot", e);
+            mItemIds = new int[0];
+            mItems.clear();
+        }
+    }
+}
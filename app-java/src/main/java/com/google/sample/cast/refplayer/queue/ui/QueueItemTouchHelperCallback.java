@@ -100,6 +100,7 @@ public class QueueItemTouchHelperCallback extends ItemTouchHelper.Callback {
                     = (QueueListAdapter.ItemTouchHelperViewHolder) viewHolder;
             itemViewHolder.onItemClear();
         }
+        mAdapter.onItemMoveFinished();
     }
 
     /**
@@ -117,6 +118,11 @@ public class QueueItemTouchHelperCallback extends ItemTouchHelper.Callback {
          */
         boolean onItemMove(int fromPosition, int toPosition);
 
+        /**
+         * Called when the item being dragged has been dropped, after all the {@link #onItemMove}
+         * calls of its drag. Also called when a swipe ends, without any move.
+         */
+        void onItemMoveFinished();
 
         /**
          * Called when an item has been dismissed by a swipe.
@@ -17,6 +17,7 @@
 package com.google.sample.cast.refplayer.queue.ui;
 
 import android.content.Context;
+import android.graphics.drawable.GradientDrawable;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
@@ -29,6 +30,7 @@ import android.widget.TextView;
 
 import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.core.view.MotionEventCompat;
 import androidx.recyclerview.widget.ItemTouchHelper;
 import androidx.recyclerview.widget.RecyclerView;
@@ -42,13 +44,15 @@ import com.google.android.gms.cast.MediaQueueItem;
 import com.google.android.gms.cast.MediaStatus;
 import com.google.android.gms.cast.framework.CastContext;
 import com.google.android.gms.cast.framework.CastSession;
-import com.google.android.gms.cast.framework.media.MediaQueue;
-import com.google.android.gms.cast.framework.media.MediaQueueRecyclerViewAdapter;
 import com.google.android.gms.cast.framework.media.RemoteMediaClient;
 import com.google.android.gms.common.images.WebImage;
 import com.google.sample.cast.refplayer.R;
+import com.google.sample.cast.refplayer.queue.OptimisticQueue;
 import com.google.sample.cast.refplayer.queue.QueueDataProvider;
 import com.google.sample.cast.refplayer.utils.CustomVolleyRequest;
+import com.google.sample.cast.refplayer.utils.FrameTimingMonitor;
+import com.google.sample.cast.refplayer.utils.ImageFailureCache;
+import com.google.sample.cast.refplayer.utils.PlaceholderColors;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -59,7 +63,7 @@ import java.util.concurrent.Executors;
 /**
  * An adapter to show the list of queue items.
  */
-public class QueueListAdapter extends MediaQueueRecyclerViewAdapter<QueueListAdapter.QueueItemViewHolder> implements QueueItemTouchHelperCallback.ItemTouchHelperAdapter {
+public class QueueListAdapter extends RecyclerView.Adapter<QueueListAdapter.QueueItemViewHolder> implements QueueItemTouchHelperCallback.ItemTouchHelperAdapter {
     private static final String TAG = "QueueListAdapter";
     private static final int PLAY_RESOURCE = R.drawable.ic_play_arrow_grey600_48dp;
     private static final int PAUSE_RESOURCE = R.drawable.ic_pause_grey600_48dp;
@@ -71,11 +75,10 @@ public class QueueListAdapter extends MediaQueueRecyclerViewAdapter<QueueListAda
     private View.OnClickListener mItemViewOnClickListener;
     private QueueListAdapter.EventListener mEventListener;
     private ImageLoader mImageLoader;
-    private final ListAdapterMediaQueueCallback myMediaQueueCallback = new ListAdapterMediaQueueCallback();
+    private final ListAdapterQueueCallback myQueueCallback = new ListAdapterQueueCallback();
     private Executor localExecutor = Executors.newSingleThreadExecutor();
 
-    public QueueListAdapter(@NonNull MediaQueue mediaQueue, @NonNull Context context, QueueListAdapter.OnStartDragListener dragStartListener) {
-        super(mediaQueue);
+    public QueueListAdapter(@NonNull Context context, QueueListAdapter.OnStartDragListener dragStartListener) {
         mAppContext = context.getApplicationContext();
         mProvider = QueueDataProvider.getInstance(context);
         mDragStartListener = dragStartListener;
@@ -89,10 +92,24 @@ public class QueueListAdapter extends MediaQueueRecyclerViewAdapter<QueueListAda
                 onItemViewClick(view);
             }
         };
-        getMediaQueue().registerCallback(myMediaQueueCallback);
         setHasStableIds(false);
     }
 
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        mProvider.setQueueCallback(myQueueCallback);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        mProvider.setQueueCallback(null);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mProvider.getCount();
+    }
+
     private void onItemViewClick(View view) {
         if (mEventListener != null) {
             mEventListener.onItemViewClicked(view);
@@ -104,14 +121,34 @@ public class QueueListAdapter extends MediaQueueRecyclerViewAdapter<QueueListAda
     public QueueItemViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
         final LayoutInflater inflater = LayoutInflater.from(parent.getContext());
         final View view = inflater.inflate(R.layout.queue_row, parent, false);
-        return new QueueListAdapter.QueueItemViewHolder(view);
+        final QueueItemViewHolder holder = new QueueListAdapter.QueueItemViewHolder(view);
+        // The listeners are set once per row, the item they act on is read from the tags.
+        holder.mContainer.setOnClickListener(mItemViewOnClickListener);
+        holder.mPlayPause.setOnClickListener(mItemViewOnClickListener);
+        holder.mPlayUpcoming.setOnClickListener(mItemViewOnClickListener);
+        holder.mStopUpcoming.setOnClickListener(mItemViewOnClickListener);
+        holder.mDragHandle.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View view, MotionEvent event) {
+                if (MotionEventCompat.getActionMasked(event) == MotionEvent.ACTION_DOWN) {
+                    mDragStartListener.onStartDrag(holder);
+                } else if (MotionEventCompat.getActionMasked(event) == MotionEvent.ACTION_BUTTON_RELEASE) {
+                    view.clearFocus();
+                    view.clearAnimation();
+                    return true;
+                }
+                return false;
+            }
+        });
+        return holder;
     }
 
     @Override
     public void onBindViewHolder(@NonNull QueueItemViewHolder holder, int position) {
         Log.d(TAG, "[upcoming] onBindViewHolder() for position: " + position);
-        holder.setIsRecyclable(false);
-        MediaQueueItem item = this.getItem(position);
+        FrameTimingMonitor frameTimingMonitor = FrameTimingMonitor.getInstance();
+        frameTimingMonitor.beginPhase(FrameTimingMonitor.PHASE_BIND);
+        MediaQueueItem item = mProvider.getItem(position);
         if (item == null) {
             holder.updateControlsStatus(QueueListAdapter.QueueItemViewHolder.NONE);
         } else if (mProvider.isCurrentItem(item)) {
@@ -128,12 +165,6 @@ public class QueueListAdapter extends MediaQueueRecyclerViewAdapter<QueueListAda
         holder.mPlayUpcoming.setTag(R.string.queue_tag_item, item);
         holder.mStopUpcoming.setTag(R.string.queue_tag_item, item);
 
-        // Set listeners
-        holder.mContainer.setOnClickListener(mItemViewOnClickListener);
-        holder.mPlayPause.setOnClickListener(mItemViewOnClickListener);
-        holder.mPlayUpcoming.setOnClickListener(mItemViewOnClickListener);
-        holder.mStopUpcoming.setOnClickListener(mItemViewOnClickListener);
-
         MediaInfo info = item != null ? item.getMedia() : null;
         String imageUrl = null;
         if (info != null && info.getMetadata() != null) {
@@ -149,44 +180,22 @@ public class QueueListAdapter extends MediaQueueRecyclerViewAdapter<QueueListAda
             holder.mDescriptionView.setText(null);
         }
 
-        if (imageUrl != null) {
-            mImageLoader = CustomVolleyRequest.getInstance(mAppContext).getImageLoader();
-            ImageLoader.ImageListener imageListener = new ImageLoader.ImageListener() {
-                @Override
-                public void onErrorResponse(VolleyError error) {
-                    holder.mProgressLoading.setVisibility(View.GONE);
-                    holder.mImageView.setErrorImageResId(R.drawable.ic_action_alerts_and_states_warning);
-                }
-                @Override
-                public void onResponse(ImageLoader.ImageContainer response, boolean isImmediate) {
-                    if (response.getBitmap() != null) {
-                        holder.mProgressLoading.setVisibility(View.GONE);
-                        holder.mImageView.setImageBitmap(response.getBitmap());
-                    }
-                }
-            };
-            holder.mImageView.setImageUrl(mImageLoader.get(imageUrl, imageListener).getRequestUrl(), mImageLoader);
-        }
-
-        holder.mDragHandle.setOnTouchListener(new View.OnTouchListener() {
-            @Override
-            public boolean onTouch(View view, MotionEvent event) {
-                if (MotionEventCompat.getActionMasked(event) == MotionEvent.ACTION_DOWN) {
-                    mDragStartListener.onStartDrag(holder);
-                } else if (MotionEventCompat.getActionMasked(event) == MotionEvent.ACTION_BUTTON_RELEASE) {
-                    view.clearFocus();
-                    view.clearAnimation();
-                    holder.setIsRecyclable(false);
-                    return true;
-                }
-                return false;
-            }
-        });
+        frameTimingMonitor.beginPhase(FrameTimingMonitor.PHASE_IMAGE);
+        // Paint the placeholder right away, the thumbnail replaces it once loaded.
+        holder.mPlaceholder.setColor(PlaceholderColors.getInstance(mAppContext).getColor(info));
+        holder.mImageView.setDefaultImageDrawable(holder.mPlaceholder);
+        mImageLoader = CustomVolleyRequest.getInstance(mAppContext).getImageLoader();
+        holder.setImage(imageUrl, mImageLoader);
+        frameTimingMonitor.endPhase(FrameTimingMonitor.PHASE_IMAGE);
+        frameTimingMonitor.endPhase(FrameTimingMonitor.PHASE_BIND);
     }
 
     @Override
     public void onItemDismiss(int position) {
-        mProvider.removeFromQueue(position);
+        if (!mProvider.removeFromQueue(position)) {
+            // Brings the swiped row back.
+            notifyItemChanged(position);
+        }
     }
 
     @Override
@@ -195,17 +204,24 @@ public class QueueListAdapter extends MediaQueueRecyclerViewAdapter<QueueListAda
             return false;
         }
         mProvider.moveItem(fromPosition, toPosition);
-        notifyItemMoved(fromPosition, toPosition);
         return true;
     }
 
     @Override
-    public void dispose() {
-        super.dispose();
-        //unregister callback
-        MediaQueue queue = getMediaQueue();
-        if (queue != null) {
-            queue.unregisterCallback(myMediaQueueCallback);
+    public void onItemMoveFinished() {
+        mProvider.commitMove();
+    }
+
+    /**
+     * Rebinds the row of the item {@code itemId}, if it is shown.
+     */
+    public void notifyItemIdChanged(int itemId) {
+        if (itemId == MediaQueueItem.INVALID_ITEM_ID) {
+            return;
+        }
+        int position = mProvider.getShownPosition(itemId);
+        if (position >= 0) {
+            notifyItemChanged(position);
         }
     }
 
@@ -239,40 +255,31 @@ public class QueueListAdapter extends MediaQueueRecyclerViewAdapter<QueueListAda
     }
 
     /**
-     * Handles ListAdapter notification upon MediaQueue data changes.
+     * Handles ListAdapter notification upon changes of the queue shown.
      * */
-    class ListAdapterMediaQueueCallback extends MediaQueue.Callback{
-        @Override
-        public void itemsInsertedInRange(int start, int end) {
-            notifyItemRangeInserted(start, end);
-        }
-
+    class ListAdapterQueueCallback implements OptimisticQueue.Callback {
         @Override
-        public void itemsReloaded() {
-            notifyDataSetChanged();
+        public void onInserted(int position, int count) {
+            notifyItemRangeInserted(position, count);
         }
 
         @Override
-        public void itemsRemovedAtIndexes(@NonNull int[] ints) {
-            for (int i : ints) {
-                notifyItemRemoved(i);
-            }
+        public void onRemoved(int position, int count) {
+            notifyItemRangeRemoved(position, count);
         }
 
         @Override
-        public void itemsReorderedAtIndexes(@NonNull List<Integer> list, int i) {
-            notifyDataSetChanged();
+        public void onMoved(int fromPosition, int toPosition) {
+            notifyItemMoved(fromPosition, toPosition);
         }
 
         @Override
-        public void itemsUpdatedAtIndexes(@NonNull int[] ints) {
-            for (int i : ints) {
-                notifyItemChanged(i);
-            }
+        public void onChanged(int position, int count, @Nullable Object payload) {
+            notifyItemRangeChanged(position, count, payload);
         }
 
         @Override
-        public void mediaQueueChanged() {
+        public void onReloaded() {
             notifyDataSetChanged();
         }
     }
@@ -292,6 +299,31 @@ public class QueueListAdapter extends MediaQueueRecyclerViewAdapter<QueueListAda
         public TextView mTitleView;
         public TextView mDescriptionView;
         public ProgressBar mProgressLoading;
+        public final GradientDrawable mPlaceholder;
+        // The thumbnail the row shows or loads, and its request.
+        @Nullable private String mTrackedUrl;
+        @Nullable private ImageLoader.ImageContainer mTrackedContainer;
+        // Only ever hears about mTrackedUrl, since the previous request is cancelled on a change.
+        private final ImageLoader.ImageListener mImageListener = new ImageLoader.ImageListener() {
+            @Override
+            public void onResponse(ImageLoader.ImageContainer response, boolean isImmediate) {
+                ImageFailureCache.getInstance().onResponse(mTrackedUrl, response, isImmediate);
+                if (response.getBitmap() != null) {
+                    mProgressLoading.setVisibility(View.GONE);
+                    mImageView.setImageBitmap(response.getBitmap());
+                }
+            }
+
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                ImageFailureCache.getInstance().onFailure(mTrackedUrl);
+                mProgressLoading.setVisibility(View.GONE);
+                mImageView.setErrorImageResId(R.drawable.ic_action_alerts_and_states_warning);
+                // Check the backoff of the thumbnail again on the next bind.
+                mTrackedUrl = null;
+                mTrackedContainer = null;
+            }
+        };
 
         @Override
         public void onItemSelected() {
@@ -315,6 +347,7 @@ public class QueueListAdapter extends MediaQueueRecyclerViewAdapter<QueueListAda
         public QueueItemViewHolder(View itemView) {
             super(itemView);
             mContext = itemView.getContext();
+            mPlaceholder = PlaceholderColors.newPlaceholderDrawable(mContext);
             mContainer = (ViewGroup) itemView.findViewById(R.id.container);
             mDragHandle = (ImageView) itemView.findViewById(R.id.drag_handle);
             mTitleView = (TextView) itemView.findViewById(R.id.textView1);
@@ -328,6 +361,37 @@ public class QueueListAdapter extends MediaQueueRecyclerViewAdapter<QueueListAda
             mProgressLoading = (ProgressBar)itemView.findViewById(R.id.item_progress);
         }
 
+        /**
+         * Shows the thumbnail at {@code imageUrl}, keeping the current one when the row is rebound
+         * to the same thumbnail, and cancelling the request of the previous one otherwise.
+         */
+        private void setImage(@Nullable String imageUrl, ImageLoader imageLoader) {
+            if (imageUrl != null && imageUrl.equals(mTrackedUrl)) {
+                return;
+            }
+            if (mTrackedContainer != null) {
+                mTrackedContainer.cancelRequest();
+                mTrackedContainer = null;
+            }
+            mTrackedUrl = null;
+            if (imageUrl == null) {
+                mImageView.setImageUrl(null, imageLoader);
+                mProgressLoading.setVisibility(View.GONE);
+                return;
+            }
+            if (!ImageFailureCache.getInstance().shouldAttempt(imageUrl)) {
+                // The image failed recently, so show the error state without retrying it.
+                mImageView.setImageUrl(null, imageLoader);
+                mProgressLoading.setVisibility(View.GONE);
+                mImageView.setImageResource(R.drawable.ic_action_alerts_and_states_warning);
+                return;
+            }
+            mTrackedUrl = imageUrl;
+            mProgressLoading.setVisibility(View.VISIBLE);
+            mTrackedContainer = imageLoader.get(imageUrl, mImageListener);
+            mImageView.setImageUrl(imageUrl, imageLoader);
+        }
+
         private void updateControlsStatus(@QueueListAdapter.QueueItemViewHolder.ControlStatus int status) {
             int bgResId = R.drawable.bg_item_normal_state;
             mTitleView.setTextAppearance(mContext, R.style.CastSubhead);
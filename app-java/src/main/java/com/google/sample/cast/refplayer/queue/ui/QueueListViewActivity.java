@@ -26,10 +26,12 @@ import com.google.android.gms.cast.framework.media.RemoteMediaClient;
 import com.google.sample.cast.refplayer.R;
 import com.google.sample.cast.refplayer.queue.QueueDataProvider;
 import com.google.sample.cast.refplayer.settings.CastPreference;
+import com.google.sample.cast.refplayer.utils.Utils;
 
 import android.content.Intent;
 import android.os.Bundle;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import android.util.Log;
@@ -38,6 +40,8 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
@@ -181,6 +185,16 @@ public class QueueListViewActivity extends AppCompatActivity {
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        // The last queue can be played again on a receiver whose queue is empty.
+        QueueDataProvider provider = QueueDataProvider.getInstance(getApplicationContext());
+        menu.findItem(R.id.action_restore_queue).setVisible(
+                !provider.isQueueDetached() && provider.getCount() == 0
+                        && provider.hasSnapshot());
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         int id = item.getItemId();
@@ -188,6 +202,8 @@ public class QueueListViewActivity extends AppCompatActivity {
             startActivity(new Intent(QueueListViewActivity.this, CastPreference.class));
         } else if (id == R.id.action_clear_queue) {
             QueueDataProvider.getInstance(getApplicationContext()).removeAll();
+        } else if (id == R.id.action_restore_queue) {
+            QueueDataProvider.getInstance(getApplicationContext()).restoreQueue();
         } else if (id == android.R.id.home) {
             finish();
         }
@@ -219,6 +235,17 @@ public class QueueListViewActivity extends AppCompatActivity {
         super.onResume();
     }
 
+    /**
+     * Appends the frame timings and the state of the caches to
+     * {@code adb shell dumpsys activity}.
+     */
+    @Override
+    public void dump(@NonNull String prefix, @Nullable FileDescriptor fd,
+            @NonNull PrintWriter writer, @Nullable String[] args) {
+        super.dump(prefix, fd, writer, args);
+        Utils.dumpDiagnostics(this, prefix, writer, args);
+    }
+
     private RemoteMediaClient getRemoteMediaClient() {
         CastSession castSession = mCastContext.getSessionManager().getCurrentCastSession();
         return (castSession != null && castSession.isConnected())
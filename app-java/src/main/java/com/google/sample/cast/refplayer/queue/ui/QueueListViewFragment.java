@@ -23,6 +23,7 @@ import com.google.android.gms.cast.framework.media.RemoteMediaClient;
 import com.google.sample.cast.refplayer.R;
 import com.google.sample.cast.refplayer.expandedcontrols.ExpandedControlsActivity;
 import com.google.sample.cast.refplayer.queue.QueueDataProvider;
+import com.google.sample.cast.refplayer.utils.FrameTimingMonitor;
 
 import android.content.Intent;
 import android.os.Bundle;
@@ -71,10 +72,13 @@ public class QueueListViewFragment extends Fragment
         RecyclerView recyclerView = (RecyclerView) getView().findViewById(R.id.recycler_view);
         mProvider = QueueDataProvider.getInstance(getContext());
 
-        QueueListAdapter adapter = new QueueListAdapter(mProvider.getMediaQueue(),getActivity(), this);
+        QueueListAdapter adapter = new QueueListAdapter(getActivity(), this);
         recyclerView.setHasFixedSize(true);
         recyclerView.setAdapter(adapter);
-        recyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
+        LinearLayoutManager layoutManager = new LinearLayoutManager(getActivity());
+        recyclerView.setLayoutManager(layoutManager);
+        FrameTimingMonitor.getInstance().track(recyclerView, "queue");
+        new QueuePrefetcher(mProvider, layoutManager).attach(recyclerView);
 
         ItemTouchHelper.Callback callback = new QueueItemTouchHelperCallback(adapter);
         mItemTouchHelper = new ItemTouchHelper(callback);
@@ -107,6 +111,23 @@ public class QueueListViewFragment extends Fragment
             public void onQueueDataChanged() {
                 adapter.notifyDataSetChanged();
             }
+
+            @Override
+            public void onCurrentItemChanged(int previousItemId, int itemId) {
+                adapter.notifyItemIdChanged(previousItemId);
+                adapter.notifyItemIdChanged(itemId);
+            }
+
+            @Override
+            public void onUpcomingItemChanged(int previousItemId, int itemId) {
+                adapter.notifyItemIdChanged(previousItemId);
+                adapter.notifyItemIdChanged(itemId);
+            }
+
+            @Override
+            public void onPlayerStateChanged(int currentItemId) {
+                adapter.notifyItemIdChanged(currentItemId);
+            }
         });
     }
 
@@ -123,6 +144,10 @@ public class QueueListViewFragment extends Fragment
             return;
         }
         MediaQueueItem item = (MediaQueueItem) view.getTag(R.string.queue_tag_item);
+        if (item == null || item.getItemId() == MediaQueueItem.INVALID_ITEM_ID) {
+            // Not fetched or not inserted on the receiver yet.
+            return;
+        }
         int currentItemId = mProvider.getCurrentItemId();
         if (currentItemId == item.getItemId()) {
             // We selected the one that is currently playing so we take the user to the
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.cast.refplayer.queue.ui;
+
+import com.google.sample.cast.refplayer.queue.QueueDataProvider;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * Fetches the data of the queue items ahead of the scroll of the queue list, so that the rows are
+ * bound with their items rather than with placeholders that each fetch their own item.
+ *
+ * <p>The prefetched window spans {@link #SCREENS_AHEAD} screens of rows in the direction of the
+ * scroll and one screen behind it, and is fetched anew once the visible rows come within a screen
+ * of its end. The item cache of the queue is sized to hold the window as the screen fits it.
+ */
+class QueuePrefetcher extends RecyclerView.OnScrollListener {
+
+    private static final int SCREENS_AHEAD = 2;
+    private static final int SCREENS_BEHIND = 1;
+    // The cache also keeps the previous window while the next one is fetched.
+    private static final int CACHED_SCREENS = 2 * (SCREENS_AHEAD + SCREENS_BEHIND + 1);
+
+    private final QueueDataProvider mProvider;
+    private final LinearLayoutManager mLayoutManager;
+    private boolean mScrollingDown = true;
+    private int mWindowStart = RecyclerView.NO_POSITION;
+    private int mWindowEnd = RecyclerView.NO_POSITION;
+
+    QueuePrefetcher(QueueDataProvider provider, LinearLayoutManager layoutManager) {
+        mProvider = provider;
+        mLayoutManager = layoutManager;
+    }
+
+    /**
+     * Prefetches around the rows of {@code recyclerView} as it scrolls and as its items change.
+     */
+    void attach(RecyclerView recyclerView) {
+        recyclerView.addOnScrollListener(this);
+        recyclerView.getAdapter().registerAdapterDataObserver(
+                new RecyclerView.AdapterDataObserver() {
+                    @Override
+                    public void onChanged() {
+                        invalidate();
+                    }
+
+                    @Override
+                    public void onItemRangeInserted(int positionStart, int itemCount) {
+                        invalidate();
+                    }
+
+                    @Override
+                    public void onItemRangeRemoved(int positionStart, int itemCount) {
+                        invalidate();
+                    }
+
+                    @Override
+                    public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+                        invalidate();
+                    }
+                });
+    }
+
+    /**
+     * Forgets the window, whose positions no longer match the items after a structural change.
+     * The next layout of the list fetches a new one.
+     */
+    private void invalidate() {
+        mWindowStart = RecyclerView.NO_POSITION;
+        mWindowEnd = RecyclerView.NO_POSITION;
+    }
+
+    @Override
+    public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+        int first = mLayoutManager.findFirstVisibleItemPosition();
+        int last = mLayoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) {
+            return;
+        }
+        if (dy != 0) {
+            mScrollingDown = dy > 0;
+        }
+        int visible = last - first + 1;
+        int lastPosition = mLayoutManager.getItemCount() - 1;
+        boolean isCovered = mWindowStart != RecyclerView.NO_POSITION
+                && first >= mWindowStart && last <= mWindowEnd
+                && (mScrollingDown
+                        ? Math.min(last + visible, lastPosition) <= mWindowEnd
+                        : Math.max(first - visible, 0) >= mWindowStart);
+        if (isCovered) {
+            return;
+        }
+        mProvider.setCacheCapacity(visible * CACHED_SCREENS);
+        if (mScrollingDown) {
+            mWindowStart = Math.max(first - visible * SCREENS_BEHIND, 0);
+            mWindowEnd = Math.min(last + visible * SCREENS_AHEAD, lastPosition);
+        } else {
+            mWindowStart = Math.max(first - visible * SCREENS_AHEAD, 0);
+            mWindowEnd = Math.min(last + visible * SCREENS_BEHIND, lastPosition);
+        }
+        mProvider.prefetch(mWindowStart, mWindowEnd);
+    }
+}
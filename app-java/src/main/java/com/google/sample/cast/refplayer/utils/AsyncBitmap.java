@@ -41,6 +41,7 @@ public class AsyncBitmap {
   @Nullable private Uri url;
   @Nullable private Bitmap bitmap;
   @Nullable private Callback callback;
+  private ImageScheduler.Priority priority = ImageScheduler.Priority.VISIBLE;
 
   /** The callback interface for notifying the loaded {@link android.graphics.Bitmap}. */
   public interface Callback {
@@ -74,6 +75,14 @@ public class AsyncBitmap {
     this.callback = callback;
   }
 
+  /**
+   * Sets the {@link ImageScheduler.Priority} lane that the following loads are scheduled in. The
+   * default is {@link ImageScheduler.Priority#VISIBLE}.
+   */
+  public void setPriority(ImageScheduler.Priority priority) {
+    this.priority = priority;
+  }
+
   /**
    * Loads image pointed by {@code url} asynchronously. The image will be delivered as an {@link
    * android.graphics.Bitmap} via {@link Callback}. If this method is called again with the same
@@ -99,7 +108,7 @@ public class AsyncBitmap {
     // Calling loadBitmap with a different URL should reset the previously loaded bitmap.
     reset();
     this.url = url;
-    FetchBitmapTask task = new FetchBitmapTask(preferredWidth, preferredHeight);
+    FetchBitmapTask task = new FetchBitmapTask(preferredWidth, preferredHeight, priority);
     task.executeTask(url);
   }
 
@@ -132,6 +141,7 @@ public class AsyncBitmap {
 
     private final int preferredWidth;
     private final int preferredHeight;
+    private final ImageScheduler.Priority priority;
 
     /**
      * Constructs a new FetchBitmapTask that applies subsampling before downloading the image, and
@@ -139,14 +149,17 @@ public class AsyncBitmap {
      *
      * @param preferredWidth The preferred image width after subsampling and scaling.
      * @param preferredHeight The preferred image height after subsampling and scaling.
+     * @param priority The {@link ImageScheduler} lane to run the task in.
      */
-    public FetchBitmapTask(int preferredWidth, int preferredHeight) {
+    public FetchBitmapTask(
+        int preferredWidth, int preferredHeight, ImageScheduler.Priority priority) {
       this.preferredWidth = preferredWidth;
       this.preferredHeight = preferredHeight;
+      this.priority = priority;
     }
 
     public AsyncTask<Uri, Void, Bitmap> executeTask(Uri uri) {
-      return executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, uri);
+      return executeOnExecutor(ImageScheduler.getInstance().getExecutor(priority), uri);
     }
 
     @Override
@@ -169,6 +182,11 @@ public class AsyncBitmap {
         Log.w(TAG, "Malformed URL.", e);
         return null;
       }
+      ImageFailureCache failureCache = ImageFailureCache.getInstance();
+      if (!failureCache.shouldAttempt(url.toString())) {
+        // The URL or its host failed recently, so deliver the failure without a request.
+        return null;
+      }
       BitmapFactory.Options options = new BitmapFactory.Options();
       options.inJustDecodeBounds = false;
       options.inSampleSize = 1;
@@ -196,6 +214,11 @@ public class AsyncBitmap {
           urlConnection.disconnect();
         }
       }
+      if (bitmap != null) {
+        failureCache.onSuccess(url.toString());
+      } else {
+        failureCache.onFailure(url.toString());
+      }
       return bitmap;
     }
 
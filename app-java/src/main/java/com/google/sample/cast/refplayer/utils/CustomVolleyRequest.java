@@ -17,16 +17,21 @@ package com.google.sample.cast.refplayer.utils;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import androidx.annotation.Nullable;
 import androidx.collection.LruCache;
 
 import com.android.volley.Cache;
 import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
 import com.android.volley.RequestQueue;
+import com.android.volley.VolleyError;
 import com.android.volley.toolbox.BasicNetwork;
 import com.android.volley.toolbox.DiskBasedCache;
 import com.android.volley.toolbox.HurlStack;
 import com.android.volley.toolbox.ImageLoader;
 
+import java.util.Map;
 
 public class CustomVolleyRequest {
 
@@ -34,6 +39,7 @@ public class CustomVolleyRequest {
     private static Context context;
     private RequestQueue requestQueue;
     private ImageLoader imageLoader;
+    private final LruCache<String, Bitmap> memoryCache = new LruCache<String, Bitmap>(20);
 
 
     private CustomVolleyRequest(Context context) {
@@ -42,19 +48,39 @@ public class CustomVolleyRequest {
 
         imageLoader = new ImageLoader(requestQueue,
                 new ImageLoader.ImageCache() {
-                    private final LruCache<String, Bitmap>
-                            cache = new LruCache<String, Bitmap>(20);
-
                     @Override
                     public Bitmap getBitmap(String url) {
-                        return cache.get(url);
+                        return memoryCache.get(url);
                     }
 
                     @Override
                     public void putBitmap(String url, Bitmap bitmap) {
-                        cache.put(url, bitmap);
+                        memoryCache.put(url, bitmap);
+                        PlaceholderColors.getInstance(context)
+                                .onImageLoaded(getUrlFromCacheKey(url), bitmap);
                     }
                 });
+        MemoryGovernor.getInstance(context).register(new MemoryGovernor.Trimmable() {
+            @Override
+            public String getName() {
+                return "Volley images";
+            }
+
+            @Override
+            public void trimToFraction(float fraction) {
+                MemoryGovernor.trimLruCache(memoryCache, fraction);
+            }
+
+            @Override
+            public int getEntryCount() {
+                return memoryCache.size();
+            }
+
+            @Override
+            public long getSizeInBytes() {
+                return MemoryGovernor.getSizeInBytes(memoryCache.snapshot().values());
+            }
+        });
     }
 
     public static synchronized CustomVolleyRequest getInstance(Context context) {
@@ -67,7 +93,19 @@ public class CustomVolleyRequest {
     private RequestQueue getRequestQueue() {
         if (requestQueue == null) {
             Cache cache = new DiskBasedCache(context.getCacheDir(), 10 * 1024 * 1024);
-            Network network = new BasicNetwork(new HurlStack());
+            final ImageQualityPolicy qualityPolicy = ImageQualityPolicy.getInstance(context);
+            Network network = new BasicNetwork(new HurlStack()) {
+                @Override
+                public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                    NetworkResponse response = super.performRequest(request);
+                    // Feed the image quality policy with the measured throughput.
+                    if (!response.notModified && response.data != null) {
+                        qualityPolicy.onBytesTransferred(response.data.length,
+                                response.networkTimeMs);
+                    }
+                    return response;
+                }
+            };
             requestQueue = new RequestQueue(cache, network);
             requestQueue.start();
         }
@@ -78,4 +116,37 @@ public class CustomVolleyRequest {
         return imageLoader;
     }
 
+    /**
+     * Returns the largest bitmap of {@code url} in the memory cache, whatever size it was
+     * requested at, or {@code null} if the image is not in the memory cache.
+     */
+    @Nullable
+    public Bitmap getCachedBitmap(String url) {
+        Bitmap cachedBitmap = null;
+        for (Map.Entry<String, Bitmap> entry : memoryCache.snapshot().entrySet()) {
+            Bitmap bitmap = entry.getValue();
+            if (url.equals(getUrlFromCacheKey(entry.getKey()))
+                    && (cachedBitmap == null || bitmap.getWidth() > cachedBitmap.getWidth())) {
+                cachedBitmap = bitmap;
+            }
+        }
+        return cachedBitmap;
+    }
+
+    /**
+     * Returns the URL of an {@link ImageLoader} cache key, which has the format
+     * "#W[width]#H[height]#S[scale type][url]".
+     */
+    private static String getUrlFromCacheKey(String cacheKey) {
+        int index = cacheKey.indexOf("#S");
+        if (index < 0) {
+            return cacheKey;
+        }
+        index += 2;
+        while (index < cacheKey.length() && Character.isDigit(cacheKey.charAt(index))) {
+            index++;
+        }
+        return cacheKey.substring(index);
+    }
+
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.cast.refplayer.utils;
+
+import android.view.Choreographer;
+import android.view.Display;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.RecyclerView;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Times the frames drawn while the lists scroll, and attributes the slow ones to the screen and to
+ * the adapter phases that ran during them.
+ *
+ * <p>Frames are timed by {@link Choreographer} callbacks. They run on the main thread like the
+ * adapters, so the time spent in each phase of a frame adds up without any synchronization.
+ * Callbacks are only posted while a tracked list scrolls, so that an idle screen is not woken up
+ * on every vsync. The durations of the frames of each screen go to a histogram of 1 ms buckets,
+ * which the percentiles are read from. All the methods must be called on the main thread.
+ */
+public final class FrameTimingMonitor {
+
+  /** The binding of a row, including the setting of its image. */
+  public static final int PHASE_BIND = 0;
+  /** The setting of the image of a row. */
+  public static final int PHASE_IMAGE = 1;
+
+  private static final String[] PHASE_NAMES = {"bind", "image"};
+  private static final int[] PERCENTILES = {50, 90, 95, 99};
+  // Frames longer than that all go to the last bucket of the histogram.
+  private static final int HISTOGRAM_MAX_MS = 250;
+  // A frame is slow when it takes longer than that many vsync intervals.
+  private static final float SLOW_FRAME_INTERVALS = 1.5f;
+  private static final long DEFAULT_FRAME_INTERVAL_NANOS = 16_666_667;
+  private static final long NANOS_PER_MS = 1_000_000;
+
+  private static FrameTimingMonitor instance;
+
+  private final Map<String, ScreenStats> screens = new LinkedHashMap<>();
+  private final long[] phaseStartNanos = new long[PHASE_NAMES.length];
+  // The time spent in each phase since the last frame.
+  private final long[] framePhaseNanos = new long[PHASE_NAMES.length];
+  @Nullable private ScreenStats activeScreen;
+  private long frameIntervalNanos = DEFAULT_FRAME_INTERVAL_NANOS;
+  private long lastFrameTimeNanos;
+  private final Choreographer.FrameCallback frameCallback =
+      new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+          if (activeScreen == null) {
+            return;
+          }
+          if (lastFrameTimeNanos != 0) {
+            activeScreen.record(frameTimeNanos - lastFrameTimeNanos, frameIntervalNanos,
+                framePhaseNanos);
+          }
+          lastFrameTimeNanos = frameTimeNanos;
+          Arrays.fill(framePhaseNanos, 0);
+          Choreographer.getInstance().postFrameCallback(this);
+        }
+      };
+
+  private FrameTimingMonitor() {}
+
+  public static synchronized FrameTimingMonitor getInstance() {
+    if (instance == null) {
+      instance = new FrameTimingMonitor();
+    }
+    return instance;
+  }
+
+  /** Times the frames of {@code recyclerView} while it scrolls, under the name {@code screen}. */
+  public void track(RecyclerView recyclerView, final String screen) {
+    recyclerView.addOnScrollListener(
+        new RecyclerView.OnScrollListener() {
+          @Override
+          public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+            if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+              stop();
+            } else {
+              start(screen, recyclerView.getDisplay());
+            }
+          }
+        });
+  }
+
+  /** Marks the start of {@code phase}, one of the {@code PHASE_} constants. */
+  public void beginPhase(int phase) {
+    phaseStartNanos[phase] = System.nanoTime();
+  }
+
+  /** Marks the end of {@code phase}, which adds its duration to the current frame. */
+  public void endPhase(int phase) {
+    framePhaseNanos[phase] += System.nanoTime() - phaseStartNanos[phase];
+  }
+
+  /** Forgets the frames timed so far, for {@code dumpsys activity ... --reset}. */
+  public void reset() {
+    stop();
+    screens.clear();
+  }
+
+  /**
+   * Returns a human readable summary of the frames of each screen: their percentiles, the share of
+   * slow frames, and the share of the slow frames spent in each phase.
+   */
+  public String dump() {
+    StringBuilder builder = new StringBuilder();
+    for (ScreenStats stats : screens.values()) {
+      stats.dump(builder);
+    }
+    return builder.toString();
+  }
+
+  private void start(String screen, @Nullable Display display) {
+    ScreenStats stats = screens.get(screen);
+    if (stats == null) {
+      stats = new ScreenStats(screen);
+      screens.put(screen, stats);
+    }
+    if (activeScreen == stats) {
+      // The list went from dragging to settling, which is still the same scroll.
+      return;
+    }
+    stop();
+    activeScreen = stats;
+    frameIntervalNanos =
+        display != null && display.getRefreshRate() > 0
+            ? (long) (1_000_000_000L / display.getRefreshRate())
+            : DEFAULT_FRAME_INTERVAL_NANOS;
+    lastFrameTimeNanos = 0;
+    Arrays.fill(framePhaseNanos, 0);
+    Choreographer.getInstance().postFrameCallback(frameCallback);
+  }
+
+  private void stop() {
+    if (activeScreen == null) {
+      return;
+    }
+    activeScreen = null;
+    Choreographer.getInstance().removeFrameCallback(frameCallback);
+  }
+
+  /** The frames timed on a single screen. */
+  private static final class ScreenStats {
+    private final String name;
+    private final int[] histogram = new int[HISTOGRAM_MAX_MS + 1];
+    private final long[] slowFramePhaseNanos = new long[PHASE_NAMES.length];
+    private long frameCount;
+    private long slowFrameCount;
+    private long slowFrameNanos;
+    private long droppedFrameCount;
+
+    ScreenStats(String name) {
+      this.name = name;
+    }
+
+    void record(long durationNanos, long intervalNanos, long[] phaseNanos) {
+      frameCount++;
+      histogram[(int) Math.min(durationNanos / NANOS_PER_MS, HISTOGRAM_MAX_MS)]++;
+      droppedFrameCount += Math.max(0, Math.round((double) durationNanos / intervalNanos) - 1);
+      if (durationNanos <= intervalNanos * SLOW_FRAME_INTERVALS) {
+        return;
+      }
+      slowFrameCount++;
+      slowFrameNanos += durationNanos;
+      for (int i = 0; i < phaseNanos.length; i++) {
+        slowFramePhaseNanos[i] += phaseNanos[i];
+      }
+    }
+
+    int getPercentileMillis(int percentile) {
+      long rank = (frameCount * percentile + 99) / 100;
+      long count = 0;
+      for (int millis = 0; millis < histogram.length; millis++) {
+        count += histogram[millis];
+        if (count >= rank) {
+          return millis;
+        }
+      }
+      return HISTOGRAM_MAX_MS;
+    }
+
+    void dump(StringBuilder builder) {
+      builder.append(
+          String.format(
+              Locale.ROOT,
+              "%s: frames=%d, slow=%d (%.1f%%), dropped=%d",
+              name,
+              frameCount,
+              slowFrameCount,
+              getShare(slowFrameCount, frameCount),
+              droppedFrameCount));
+      for (int percentile : PERCENTILES) {
+        builder.append(
+            String.format(Locale.ROOT, ", p%d=%dms", percentile, getPercentileMillis(percentile)));
+      }
+      builder.append('\n');
+      for (int i = 0; i < PHASE_NAMES.length; i++) {
+        builder.append(
+            String.format(
+                Locale.ROOT,
+                "  %s: %dms of the slow frames (%.1f%%)\n",
+                PHASE_NAMES[i],
+                slowFramePhaseNanos[i] / NANOS_PER_MS,
+                getShare(slowFramePhaseNanos[i], slowFrameNanos)));
+      }
+    }
+
+    private static float getShare(long part, long total) {
+      return total > 0 ? 100f * part / total : 0;
+    }
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.cast.refplayer.utils;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.ImageLoader;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Remembers the image URLs that failed to load so that they are not retried on every bind.
+ *
+ * <p>A failed URL is skipped for a delay that doubles with each consecutive failure. Failures are
+ * also counted per host: once a host fails {@link #CIRCUIT_FAILURE_THRESHOLD} times in a row, its
+ * circuit opens and every URL of the host is skipped for a delay that also doubles each time the
+ * circuit opens again. When the delay expires, a single request is let through to probe the host,
+ * and its outcome closes or reopens the circuit.
+ */
+public final class ImageFailureCache {
+  private static final String TAG = "ImageFailureCache";
+
+  private static final int MAX_FAILED_URLS = 200;
+  private static final long URL_INITIAL_BACKOFF_MS = 2_000;
+  private static final long URL_MAX_BACKOFF_MS = 5 * 60_000;
+  private static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+  private static final long CIRCUIT_INITIAL_OPEN_MS = 10_000;
+  private static final long CIRCUIT_MAX_OPEN_MS = 5 * 60_000;
+  // A probe that has not reported back by then, for example because its request was cancelled,
+  // is abandoned and another one is let through.
+  private static final long PROBE_TIMEOUT_MS = 30_000;
+  private static final long NO_PROBE = Long.MIN_VALUE / 2;
+
+  private static ImageFailureCache instance;
+
+  // Guarded by this.
+  private final Map<String, Backoff> failedUrls =
+      new LinkedHashMap<String, Backoff>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Backoff> eldest) {
+          return size() > MAX_FAILED_URLS;
+        }
+      };
+  // Guarded by this.
+  private final Map<String, HostCircuit> hostCircuits = new HashMap<>();
+  // Guarded by this.
+  private long skippedCount;
+
+  private ImageFailureCache() {}
+
+  public static synchronized ImageFailureCache getInstance() {
+    if (instance == null) {
+      instance = new ImageFailureCache();
+    }
+    return instance;
+  }
+
+  /**
+   * Returns whether {@code url} should be requested now. Returns {@code false} while the URL or its
+   * host is backing off, in which case the caller should show its error state right away.
+   */
+  public synchronized boolean shouldAttempt(String url) {
+    long now = SystemClock.elapsedRealtime();
+    Backoff backoff = failedUrls.get(url);
+    if (backoff != null && now < backoff.retryAtMillis) {
+      skippedCount++;
+      return false;
+    }
+    HostCircuit circuit = hostCircuits.get(getHost(url));
+    if (circuit != null && circuit.isOpen) {
+      boolean isProbing = now < circuit.probeStartMillis + PROBE_TIMEOUT_MS;
+      if (now < circuit.retryAtMillis || isProbing) {
+        skippedCount++;
+        return false;
+      }
+      // Let a single request through to find out whether the host has recovered.
+      circuit.probeStartMillis = now;
+    }
+    return true;
+  }
+
+  /** Records that {@code url} loaded, which also closes the circuit of its host. */
+  public synchronized void onSuccess(String url) {
+    failedUrls.remove(url);
+    HostCircuit circuit = hostCircuits.remove(getHost(url));
+    if (circuit != null && circuit.isOpen) {
+      Log.d(TAG, "Circuit closed for " + getHost(url));
+    }
+  }
+
+  /** Releases the probe of the host of {@code url}, which was served without a request. */
+  private synchronized void onCacheHit(String url) {
+    HostCircuit circuit = hostCircuits.get(getHost(url));
+    if (circuit != null) {
+      circuit.probeStartMillis = NO_PROBE;
+    }
+  }
+
+  /**
+   * Records a response to the Volley request of {@code url}. Responses served from the memory
+   * cache say nothing about the host, so they only release a pending probe.
+   */
+  public void onResponse(String url, ImageLoader.ImageContainer response, boolean isImmediate) {
+    if (response.getBitmap() == null) {
+      return;
+    }
+    if (isImmediate) {
+      onCacheHit(url);
+    } else {
+      onSuccess(url);
+    }
+  }
+
+  /** Records that {@code url} failed to load. */
+  public synchronized void onFailure(String url) {
+    long now = SystemClock.elapsedRealtime();
+    Backoff backoff = failedUrls.get(url);
+    if (backoff == null) {
+      backoff = new Backoff();
+      failedUrls.put(url, backoff);
+    }
+    backoff.delayMillis =
+        backoff.delayMillis == 0
+            ? URL_INITIAL_BACKOFF_MS
+            : Math.min(backoff.delayMillis * 2, URL_MAX_BACKOFF_MS);
+    backoff.retryAtMillis = now + backoff.delayMillis;
+
+    String host = getHost(url);
+    HostCircuit circuit = hostCircuits.get(host);
+    if (circuit == null) {
+      circuit = new HostCircuit();
+      hostCircuits.put(host, circuit);
+    }
+    circuit.consecutiveFailures++;
+    if (circuit.isOpen || circuit.consecutiveFailures >= CIRCUIT_FAILURE_THRESHOLD) {
+      circuit.openDelayMillis =
+          circuit.openDelayMillis == 0
+              ? CIRCUIT_INITIAL_OPEN_MS
+              : Math.min(circuit.openDelayMillis * 2, CIRCUIT_MAX_OPEN_MS);
+      circuit.retryAtMillis = now + circuit.openDelayMillis;
+      circuit.isOpen = true;
+      circuit.probeStartMillis = NO_PROBE;
+      Log.d(TAG, "Circuit open for " + host + " during " + circuit.openDelayMillis + "ms");
+    }
+  }
+
+  /** Returns the number of requests that were skipped because of a backoff. */
+  public synchronized long getSkippedCount() {
+    return skippedCount;
+  }
+
+  /** Returns a human readable summary of the failing URLs and hosts. */
+  public synchronized String dump() {
+    StringBuilder builder = new StringBuilder();
+    builder.append(
+        String.format(
+            Locale.ROOT, "failedUrls=%d, skipped=%d\n", failedUrls.size(), skippedCount));
+    for (Map.Entry<String, HostCircuit> entry : hostCircuits.entrySet()) {
+      HostCircuit circuit = entry.getValue();
+      builder.append(
+          String.format(
+              Locale.ROOT,
+              "%s: failures=%d, open=%b, openDelay=%dms\n",
+              entry.getKey(),
+              circuit.consecutiveFailures,
+              circuit.isOpen,
+              circuit.openDelayMillis));
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Wraps {@code listener} so that the outcome of the Volley request of {@code url} is recorded.
+   */
+  public ImageLoader.ImageListener wrap(
+      final String url, final ImageLoader.ImageListener listener) {
+    return new ImageLoader.ImageListener() {
+      @Override
+      public void onResponse(ImageLoader.ImageContainer response, boolean isImmediate) {
+        ImageFailureCache.this.onResponse(url, response, isImmediate);
+        listener.onResponse(response, isImmediate);
+      }
+
+      @Override
+      public void onErrorResponse(VolleyError error) {
+        onFailure(url);
+        listener.onErrorResponse(error);
+      }
+    };
+  }
+
+  private static String getHost(String url) {
+    @Nullable String host = Uri.parse(url).getHost();
+    return host != null ? host : "";
+  }
+
+  /** The retry schedule of a single URL. */
+  private static final class Backoff {
+    private long delayMillis;
+    private long retryAtMillis;
+  }
+
+  /** The circuit breaker of a single host. */
+  private static final class HostCircuit {
+    private int consecutiveFailures;
+    private boolean isOpen;
+    private long openDelayMillis;
+    private long retryAtMillis;
+    private long probeStartMillis = NO_PROBE;
+  }
+}
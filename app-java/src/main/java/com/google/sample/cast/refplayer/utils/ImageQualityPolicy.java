@@ -0,0 +1,221 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.cast.refplayer.utils;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.collection.LruCache;
+import com.google.android.gms.common.images.WebImage;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Picks the quality of the images to load from the measured image throughput and whether the
+ * network is metered.
+ *
+ * <p>On a {@link Tier#LOW} link, images are picked for half of the requested size and optional
+ * upgrades and prefetches are skipped. Listeners are told when the tier changes, so that a screen
+ * can upgrade its images in place once the bandwidth allows it. The bytes that the policy avoided
+ * downloading are estimated from the pixels of the images that were not loaded.
+ */
+public final class ImageQualityPolicy {
+  private static final String TAG = "ImageQualityPolicy";
+
+  /** The quality tiers, from the cheapest to the richest. */
+  public enum Tier {
+    /** A slow or metered link: smaller images and no optional downloads. */
+    LOW,
+    /** The default when nothing is known about the link. */
+    STANDARD,
+    /** A fast unmetered link. */
+    HIGH
+  }
+
+  /** Notified on the main thread when the {@link Tier} changes. */
+  public interface OnTierChangedListener {
+    void onTierChanged(Tier tier);
+  }
+
+  private static final long LOW_THRESHOLD_KBPS = 1_500;
+  private static final long HIGH_THRESHOLD_KBPS = 8_000;
+  // Smaller responses are dominated by latency and say little about the bandwidth.
+  private static final long MIN_SAMPLE_BYTES = 8 * 1024;
+  // The weight of a new sample in the moving average of the throughput.
+  private static final float SAMPLE_WEIGHT = 0.3f;
+  private static final long METERED_STATE_MAX_AGE_MS = 5_000;
+  private static final float LOW_TIER_SIZE_SCALE = 0.5f;
+  // A rough size of a compressed image per pixel, to estimate the bytes of an image not loaded.
+  private static final float ESTIMATED_BYTES_PER_PIXEL = 0.25f;
+  private static final int MAX_RECORDED_DOWNSIZES = 256;
+
+  private static ImageQualityPolicy instance;
+
+  @Nullable private final ConnectivityManager connectivityManager;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final List<OnTierChangedListener> listeners = new CopyOnWriteArrayList<>();
+  // Guarded by this.
+  private long throughputKbps;
+  // Guarded by this.
+  private boolean isMetered;
+  // Guarded by this.
+  private long meteredStateTimeMillis = Long.MIN_VALUE / 2;
+  // Guarded by this.
+  private Tier tier = Tier.STANDARD;
+  // Guarded by this.
+  private long bytesTransferred;
+  // Guarded by this.
+  private long bytesSaved;
+  // The downsizes already counted in bytesSaved, keyed by the URLs of their two images. Guarded by
+  // this.
+  private final LruCache<String, Boolean> recordedDownsizes =
+      new LruCache<>(MAX_RECORDED_DOWNSIZES);
+
+  private ImageQualityPolicy(Context context) {
+    connectivityManager =
+        (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+  }
+
+  public static synchronized ImageQualityPolicy getInstance(Context context) {
+    if (instance == null) {
+      instance = new ImageQualityPolicy(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  public void addOnTierChangedListener(OnTierChangedListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeOnTierChangedListener(OnTierChangedListener listener) {
+    listeners.remove(listener);
+  }
+
+  /** Returns the current quality tier. */
+  public synchronized Tier getTier() {
+    updateTier();
+    return tier;
+  }
+
+  /** Returns whether optional downloads, such as upgrades and prefetches, should run. */
+  public boolean allowsOptionalDownloads() {
+    return getTier() != Tier.LOW;
+  }
+
+  /** Returns the factor that the requested size of an image is scaled by before picking it. */
+  public float getSizeScale() {
+    return getTier() == Tier.LOW ? LOW_TIER_SIZE_SCALE : 1f;
+  }
+
+  /** Records an image download of {@code bytes} that took {@code durationMillis}. */
+  public void onBytesTransferred(long bytes, long durationMillis) {
+    synchronized (this) {
+      bytesTransferred += bytes;
+      if (bytes < MIN_SAMPLE_BYTES || durationMillis <= 0) {
+        return;
+      }
+      long sampleKbps = bytes * 8 / durationMillis;
+      throughputKbps =
+          throughputKbps == 0
+              ? sampleKbps
+              : (long) (SAMPLE_WEIGHT * sampleKbps + (1 - SAMPLE_WEIGHT) * throughputKbps);
+    }
+    getTier();
+  }
+
+  /**
+   * Records that {@code used} was loaded instead of the larger {@code skipped}. The same images are
+   * picked again and again, for every view that shows them, so each pair is only counted once.
+   */
+  public void onImageDownsized(WebImage skipped, @Nullable WebImage used) {
+    long savedPixels = getPixelCount(skipped) - (used != null ? getPixelCount(used) : 0);
+    if (savedPixels <= 0) {
+      return;
+    }
+    String key = skipped.getUrl() + " " + (used != null ? used.getUrl() : null);
+    synchronized (this) {
+      if (recordedDownsizes.put(key, Boolean.TRUE) == null) {
+        bytesSaved += (long) (savedPixels * ESTIMATED_BYTES_PER_PIXEL);
+      }
+    }
+  }
+
+  /** Returns the number of image bytes downloaded so far. */
+  public synchronized long getBytesTransferred() {
+    return bytesTransferred;
+  }
+
+  /** Returns an estimate of the image bytes that the policy avoided downloading. */
+  public synchronized long getBytesSaved() {
+    return bytesSaved;
+  }
+
+  /** Returns a human readable summary of the state of the policy. */
+  public synchronized String dump() {
+    updateTier();
+    return String.format(
+        Locale.ROOT,
+        "tier=%s, throughput=%dkbps, metered=%b, transferred=%d, saved=%d\n",
+        tier,
+        throughputKbps,
+        isMetered,
+        bytesTransferred,
+        bytesSaved);
+  }
+
+  // Guarded by this.
+  private void updateTier() {
+    long now = SystemClock.elapsedRealtime();
+    if (now - meteredStateTimeMillis > METERED_STATE_MAX_AGE_MS) {
+      // Querying the connectivity service is a binder call, so the state is reused for a while.
+      isMetered = connectivityManager != null && connectivityManager.isActiveNetworkMetered();
+      meteredStateTimeMillis = now;
+    }
+    Tier newTier;
+    if (isMetered || (throughputKbps > 0 && throughputKbps < LOW_THRESHOLD_KBPS)) {
+      newTier = Tier.LOW;
+    } else if (throughputKbps > HIGH_THRESHOLD_KBPS) {
+      newTier = Tier.HIGH;
+    } else {
+      newTier = Tier.STANDARD;
+    }
+    if (newTier == tier) {
+      return;
+    }
+    Log.d(TAG, "Image quality tier changed from " + tier + " to " + newTier);
+    tier = newTier;
+    final Tier notifiedTier = newTier;
+    mainHandler.post(
+        new Runnable() {
+          @Override
+          public void run() {
+            for (OnTierChangedListener listener : listeners) {
+              listener.onTierChanged(notifiedTier);
+            }
+          }
+        });
+  }
+
+  private static long getPixelCount(WebImage image) {
+    return (long) Math.max(0, image.getWidth()) * Math.max(0, image.getHeight());
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.cast.refplayer.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A dedicated scheduler for image loading work.
+ *
+ * <p>Work is queued in priority lanes, see {@link Priority}, and runs on a small pool of threads
+ * owned by this class instead of the process-wide {@link android.os.AsyncTask#THREAD_POOL_EXECUTOR}.
+ * Visible and notification work is served in FIFO order. Prefetch work is served in LIFO order and
+ * its lane is bounded, so that the oldest requests, which usually belong to rows that have already
+ * been scrolled away, are dropped first.
+ */
+public final class ImageScheduler {
+  private static final String TAG = "ImageScheduler";
+
+  private static final int THREAD_COUNT = 2;
+  private static final long KEEP_ALIVE_SECONDS = 30;
+  private static final int MAX_QUEUED_PREFETCH_TASKS = 16;
+  private static final long SLOW_WAIT_THRESHOLD_MS = 250;
+
+  /** The priority lanes of the scheduler, from the most to the least urgent. */
+  public enum Priority {
+    /** An image that is visible on the screen, such as the cover art of the player. */
+    VISIBLE,
+    /** An image for the media notification and the lock screen. */
+    NOTIFICATION,
+    /** An image that is loaded ahead of time and may never be shown. */
+    PREFETCH
+  }
+
+  private static ImageScheduler instance;
+
+  private final ThreadPoolExecutor threadPoolExecutor;
+  private final Executor[] laneExecutors = new Executor[Priority.values().length];
+  private final LaneStats[] laneStats = new LaneStats[Priority.values().length];
+  private final AtomicLong sequence = new AtomicLong();
+  // The queued prefetch tasks, from the oldest to the newest. Guarded by itself.
+  private final Deque<ScheduledTask> queuedPrefetchTasks = new ArrayDeque<>();
+
+  private ImageScheduler() {
+    threadPoolExecutor =
+        new ThreadPoolExecutor(
+            THREAD_COUNT,
+            THREAD_COUNT,
+            KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(),
+            new ImageThreadFactory());
+    threadPoolExecutor.allowCoreThreadTimeOut(true);
+    for (final Priority priority : Priority.values()) {
+      laneStats[priority.ordinal()] = new LaneStats();
+      laneExecutors[priority.ordinal()] =
+          new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+              schedule(runnable, priority);
+            }
+          };
+    }
+  }
+
+  public static synchronized ImageScheduler getInstance() {
+    if (instance == null) {
+      instance = new ImageScheduler();
+    }
+    return instance;
+  }
+
+  /** Returns an {@link Executor} that schedules its work in the given lane. */
+  public Executor getExecutor(Priority priority) {
+    return laneExecutors[priority.ordinal()];
+  }
+
+  /** Schedules {@code runnable} in the lane of the given {@code priority}. */
+  public void schedule(Runnable runnable, Priority priority) {
+    ScheduledTask task =
+        new ScheduledTask(
+            runnable, priority, sequence.incrementAndGet(), SystemClock.elapsedRealtime());
+    if (priority == Priority.PREFETCH) {
+      ScheduledTask droppedTask = null;
+      synchronized (queuedPrefetchTasks) {
+        queuedPrefetchTasks.addLast(task);
+        if (queuedPrefetchTasks.size() > MAX_QUEUED_PREFETCH_TASKS) {
+          droppedTask = queuedPrefetchTasks.pollFirst();
+        }
+      }
+      if (droppedTask != null && threadPoolExecutor.remove(droppedTask)) {
+        laneStats[Priority.PREFETCH.ordinal()].onDropped();
+        droppedTask.cancel();
+      }
+    }
+    threadPoolExecutor.execute(task);
+  }
+
+  /** Returns the average time, in milliseconds, that the tasks of a lane waited in the queue. */
+  public long getAverageWaitMillis(Priority priority) {
+    return laneStats[priority.ordinal()].getAverageWaitMillis();
+  }
+
+  /** Returns the longest time, in milliseconds, that a task of a lane waited in the queue. */
+  public long getMaxWaitMillis(Priority priority) {
+    return laneStats[priority.ordinal()].getMaxWaitMillis();
+  }
+
+  /** Returns the number of tasks of a lane that were dropped before they started. */
+  public long getDroppedCount(Priority priority) {
+    return laneStats[priority.ordinal()].getDroppedCount();
+  }
+
+  /** Returns a human readable summary of the queue wait time of every lane. */
+  public String dump() {
+    StringBuilder builder = new StringBuilder();
+    for (Priority priority : Priority.values()) {
+      LaneStats stats = laneStats[priority.ordinal()];
+      builder.append(
+          String.format(
+              Locale.ROOT,
+              "%s: started=%d, avgWait=%dms, maxWait=%dms, dropped=%d\n",
+              priority,
+              stats.getStartedCount(),
+              stats.getAverageWaitMillis(),
+              stats.getMaxWaitMillis(),
+              stats.getDroppedCount()));
+    }
+    return builder.toString();
+  }
+
+  private void onTaskStarted(ScheduledTask task) {
+    if (task.priority == Priority.PREFETCH) {
+      synchronized (queuedPrefetchTasks) {
+        queuedPrefetchTasks.remove(task);
+      }
+    }
+    long waitMillis = SystemClock.elapsedRealtime() - task.enqueueTimeMillis;
+    laneStats[task.priority.ordinal()].onStarted(waitMillis);
+    if (waitMillis >= SLOW_WAIT_THRESHOLD_MS) {
+      Log.d(TAG, "A " + task.priority + " task waited " + waitMillis + "ms in the queue");
+    }
+  }
+
+  /** A queued unit of work that is ordered by its lane and then by its arrival. */
+  private final class ScheduledTask implements Runnable, Comparable<ScheduledTask> {
+    private final Runnable runnable;
+    private final Priority priority;
+    private final long sequence;
+    private final long enqueueTimeMillis;
+
+    private ScheduledTask(
+        Runnable runnable, Priority priority, long sequence, long enqueueTimeMillis) {
+      this.runnable = runnable;
+      this.priority = priority;
+      this.sequence = sequence;
+      this.enqueueTimeMillis = enqueueTimeMillis;
+    }
+
+    @Override
+    public void run() {
+      onTaskStarted(this);
+      runnable.run();
+    }
+
+    /**
+     * Completes the work of a task that is dropped before it starts. An {@link
+     * android.os.AsyncTask} hands its {@link Future} to the executor, and cancelling it delivers a
+     * {@code null} result, so that the caller is not left waiting.
+     */
+    private void cancel() {
+      if (runnable instanceof Future) {
+        ((Future<?>) runnable).cancel(false);
+      }
+    }
+
+    @Override
+    public int compareTo(@NonNull ScheduledTask other) {
+      if (priority != other.priority) {
+        return priority.compareTo(other.priority);
+      }
+      // Prefetch work is served newest first, everything else in the order it arrived.
+      return priority == Priority.PREFETCH
+          ? Long.compare(other.sequence, sequence)
+          : Long.compare(sequence, other.sequence);
+    }
+  }
+
+  /** The queue wait time metrics of a single lane. */
+  private static final class LaneStats {
+    private long startedCount;
+    private long totalWaitMillis;
+    private long maxWaitMillis;
+    private long droppedCount;
+
+    private synchronized void onStarted(long waitMillis) {
+      startedCount++;
+      totalWaitMillis += waitMillis;
+      maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+    }
+
+    private synchronized void onDropped() {
+      droppedCount++;
+    }
+
+    private synchronized long getStartedCount() {
+      return startedCount;
+    }
+
+    private synchronized long getAverageWaitMillis() {
+      return startedCount == 0 ? 0 : totalWaitMillis / startedCount;
+    }
+
+    private synchronized long getMaxWaitMillis() {
+      return maxWaitMillis;
+    }
+
+    private synchronized long getDroppedCount() {
+      return droppedCount;
+    }
+  }
+
+  private static final class ImageThreadFactory implements ThreadFactory {
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    @Override
+    public Thread newThread(@NonNull Runnable runnable) {
+      return new Thread(runnable, "ImageScheduler #" + threadCount.incrementAndGet());
+    }
+  }
+}
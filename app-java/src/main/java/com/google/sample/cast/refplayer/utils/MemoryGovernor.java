@@ -0,0 +1,170 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.cast.refplayer.utils;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.collection.LruCache;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Trims the in-memory caches of the app when the system runs low on memory.
+ *
+ * <p>Caches register a {@link Trimmable} and are asked to keep a fraction of their entries that
+ * shrinks as the trim level rises, see {@link #getRetainedFraction(int)}. Keeping the footprint
+ * small while the app is in the background, typically during a cast session, makes it less likely
+ * that the process is killed.
+ */
+public final class MemoryGovernor implements ComponentCallbacks2 {
+  private static final String TAG = "MemoryGovernor";
+
+  /** A cache that can release part of its memory. */
+  public interface Trimmable {
+    /** Returns the name of the cache, for logging. */
+    String getName();
+
+    /**
+     * Trims the cache to the given fraction of its current entries, from 0, which empties it, to
+     * 1, which keeps everything.
+     */
+    void trimToFraction(float fraction);
+
+    /** Returns the number of entries in the cache. */
+    int getEntryCount();
+
+    /** Returns the approximate size of the entries in bytes, or -1 if it is not known. */
+    long getSizeInBytes();
+  }
+
+  private static MemoryGovernor instance;
+
+  private final List<Trimmable> trimmables = new CopyOnWriteArrayList<>();
+
+  private MemoryGovernor() {}
+
+  public static synchronized MemoryGovernor getInstance(Context context) {
+    if (instance == null) {
+      instance = new MemoryGovernor();
+      context.getApplicationContext().registerComponentCallbacks(instance);
+    }
+    return instance;
+  }
+
+  /** Registers {@code trimmable}, if it is not registered already. */
+  public void register(Trimmable trimmable) {
+    if (!trimmables.contains(trimmable)) {
+      trimmables.add(trimmable);
+    }
+  }
+
+  public void unregister(Trimmable trimmable) {
+    trimmables.remove(trimmable);
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    trimToFraction(getRetainedFraction(level));
+  }
+
+  @Override
+  public void onLowMemory() {
+    trimToFraction(0);
+  }
+
+  @Override
+  public void onConfigurationChanged(@NonNull Configuration newConfig) {
+  }
+
+  /** Trims every registered cache to the given fraction of its entries. */
+  public void trimToFraction(float fraction) {
+    boolean debug = Log.isLoggable(TAG, Log.DEBUG);
+    long sizeBefore = debug ? getTotalSizeInBytes() : 0;
+    for (Trimmable trimmable : trimmables) {
+      trimmable.trimToFraction(fraction);
+    }
+    if (debug) {
+      Log.d(TAG, String.format(Locale.ROOT, "Trimmed caches to %.2f, %d -> %d bytes",
+          fraction, sizeBefore, getTotalSizeInBytes()));
+    }
+  }
+
+  /** Returns the total size of the registered caches in bytes, leaving out unknown sizes. */
+  public long getTotalSizeInBytes() {
+    long total = 0;
+    for (Trimmable trimmable : trimmables) {
+      total += Math.max(0, trimmable.getSizeInBytes());
+    }
+    return total;
+  }
+
+  /** Returns a human readable summary of the footprint of every registered cache. */
+  public String dump() {
+    StringBuilder builder = new StringBuilder();
+    for (Trimmable trimmable : trimmables) {
+      builder.append(
+          String.format(
+              Locale.ROOT,
+              "%s: entries=%d, bytes=%d\n",
+              trimmable.getName(),
+              trimmable.getEntryCount(),
+              trimmable.getSizeInBytes()));
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Returns the fraction of their entries that caches keep at a trim level. Caches are emptied
+   * once the process is in the background LRU list and at risk of being killed.
+   */
+  static float getRetainedFraction(int level) {
+    if (level >= TRIM_MEMORY_MODERATE) {
+      return 0f;
+    } else if (level >= TRIM_MEMORY_BACKGROUND) {
+      return 0.25f;
+    } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+      return 0.5f;
+    } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+      return 0.25f;
+    } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      return 0.5f;
+    } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+      return 0.75f;
+    }
+    return 1f;
+  }
+
+  /** Evicts the least recently used entries of {@code cache} down to a fraction of its size. */
+  public static void trimLruCache(LruCache<?, ?> cache, float fraction) {
+    cache.trimToSize((int) (cache.size() * fraction));
+  }
+
+  /** Returns the number of bytes that {@code bitmaps} use. */
+  public static long getSizeInBytes(Collection<Bitmap> bitmaps) {
+    long size = 0;
+    for (Bitmap bitmap : bitmaps) {
+      size += bitmap.getAllocationByteCount();
+    }
+    return size;
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.cast.refplayer.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.drawable.GradientDrawable;
+import androidx.annotation.ColorInt;
+import androidx.annotation.Nullable;
+import androidx.core.content.ContextCompat;
+import com.google.android.gms.cast.MediaInfo;
+import com.google.android.gms.cast.MediaMetadata;
+import com.google.android.gms.cast.framework.media.MediaUtils;
+import com.google.sample.cast.refplayer.R;
+import com.google.sample.cast.refplayer.browser.VideoProvider;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Provides the color that a thumbnail is painted with while it loads.
+ *
+ * <p>The color comes from the {@link VideoProvider#KEY_PREVIEW_COLOR} of the catalog when the
+ * catalog has one. Otherwise it is the average color of the thumbnail, learned the first time the
+ * thumbnail is decoded and persisted so that the next launches can paint it with no network.
+ *
+ * <p>The persisted colors are read and written on a background thread, since the first rows are
+ * bound before they are read. The least recently used colors are forgotten past a limit.
+ */
+public final class PlaceholderColors {
+  private static final String PREFERENCES_NAME = "placeholder_colors";
+  private static final int MAX_LEARNED_COLORS = 500;
+  // The number of pixels sampled along each side of a thumbnail.
+  private static final int SAMPLE_GRID_SIZE = 4;
+  private static final Executor IO_EXECUTOR = Executors.newSingleThreadExecutor();
+
+  private static PlaceholderColors instance;
+
+  private final SharedPreferences preferences;
+  // The learned colors, from the least to the most recently used.
+  private Map<String, Integer> learnedColors = newColorMap();
+  @ColorInt private final int defaultColor;
+
+  private PlaceholderColors(Context context) {
+    preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    defaultColor = ContextCompat.getColor(context, R.color.thumbnail_placeholder);
+    // Until the persisted colors are read, the thumbnails get the default color.
+    IO_EXECUTOR.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            load();
+          }
+        });
+  }
+
+  public static synchronized PlaceholderColors getInstance(Context context) {
+    if (instance == null) {
+      instance = new PlaceholderColors(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  /**
+   * Returns a drawable to paint placeholder colors with. It has the size of a list thumbnail, so
+   * that it lays its row out like the thumbnail in views that wrap their content.
+   */
+  public static GradientDrawable newPlaceholderDrawable(Context context) {
+    int width = context.getResources().getDimensionPixelSize(R.dimen.list_item_image_max_width);
+    GradientDrawable drawable = new GradientDrawable();
+    drawable.setSize(width, width * 9 / 16);
+    return drawable;
+  }
+
+  /** Returns the placeholder color of the thumbnail of {@code media}. */
+  @ColorInt
+  public synchronized int getColor(@Nullable MediaInfo media) {
+    MediaMetadata metadata = media != null ? media.getMetadata() : null;
+    if (metadata == null) {
+      return defaultColor;
+    }
+    if (metadata.containsKey(VideoProvider.KEY_PREVIEW_COLOR)) {
+      return metadata.getInt(VideoProvider.KEY_PREVIEW_COLOR);
+    }
+    Integer learnedColor = learnedColors.get(MediaUtils.getImageUrl(media, 0));
+    return learnedColor != null ? learnedColor : defaultColor;
+  }
+
+  /** Learns the placeholder color of the image of {@code url}, unless it is already known. */
+  public synchronized void onImageLoaded(final String url, Bitmap bitmap) {
+    if (learnedColors.containsKey(url)) {
+      return;
+    }
+    final int color = getAverageColor(bitmap);
+    learnedColors.put(url, color);
+    final List<String> evictedUrls = evict();
+    IO_EXECUTOR.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            SharedPreferences.Editor editor = preferences.edit().putInt(url, color);
+            for (String evictedUrl : evictedUrls) {
+              editor.remove(evictedUrl);
+            }
+            editor.apply();
+          }
+        });
+  }
+
+  /** Reads the persisted colors, on {@link #IO_EXECUTOR}. */
+  private void load() {
+    Map<String, ?> storedColors = preferences.getAll();
+    List<String> evictedUrls;
+    synchronized (this) {
+      Map<String, Integer> colors = newColorMap();
+      for (Map.Entry<String, ?> entry : storedColors.entrySet()) {
+        if (entry.getValue() instanceof Integer) {
+          colors.put(entry.getKey(), (Integer) entry.getValue());
+        }
+      }
+      // The colors learned while reading are the most recently used ones.
+      colors.putAll(learnedColors);
+      learnedColors = colors;
+      evictedUrls = evict();
+    }
+    if (!evictedUrls.isEmpty()) {
+      SharedPreferences.Editor editor = preferences.edit();
+      for (String evictedUrl : evictedUrls) {
+        editor.remove(evictedUrl);
+      }
+      editor.apply();
+    }
+  }
+
+  /** Forgets the least recently used colors past the limit, and returns their URLs. */
+  private List<String> evict() {
+    List<String> evictedUrls = new ArrayList<>();
+    Iterator<String> iterator = learnedColors.keySet().iterator();
+    while (learnedColors.size() > MAX_LEARNED_COLORS) {
+      evictedUrls.add(iterator.next());
+      iterator.remove();
+    }
+    return evictedUrls;
+  }
+
+  private static Map<String, Integer> newColorMap() {
+    return new LinkedHashMap<>(16, 0.75f, /* accessOrder= */ true);
+  }
+
+  /** Returns the average color of a grid of pixels, which is much cheaper than scaling. */
+  @ColorInt
+  private static int getAverageColor(Bitmap bitmap) {
+    int width = bitmap.getWidth();
+    int height = bitmap.getHeight();
+    long red = 0;
+    long green = 0;
+    long blue = 0;
+    for (int i = 0; i < SAMPLE_GRID_SIZE; i++) {
+      for (int j = 0; j < SAMPLE_GRID_SIZE; j++) {
+        int pixel =
+            bitmap.getPixel(
+                (2 * i + 1) * width / (2 * SAMPLE_GRID_SIZE),
+                (2 * j + 1) * height / (2 * SAMPLE_GRID_SIZE));
+        red += Color.red(pixel);
+        green += Color.green(pixel);
+        blue += Color.blue(pixel);
+      }
+    }
+    int count = SAMPLE_GRID_SIZE * SAMPLE_GRID_SIZE;
+    return Color.rgb((int) (red / count), (int) (green / count), (int) (blue / count));
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.cast.refplayer.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.android.gms.cast.MediaInfo;
+import com.google.android.gms.cast.MediaQueueItem;
+import com.google.android.gms.cast.MediaStatus;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Picks the preload time of the queue items from how long the receiver took to start the items
+ * that played before.
+ *
+ * <p>The startup of an item is timed from the status update where it becomes the current item to
+ * the one where it plays. An item that was not preloaded starts cold, so its startup tells how
+ * long the receiver needs to load an item of the same content type, and the preload time is that
+ * estimate with some headroom. An item that was preloaded should start right away: if it stalls,
+ * the preload time was too short and grows by the stall, and each smooth start shrinks that extra
+ * time again, so that the receiver does not load the next item earlier than it needs to. Until an
+ * item of a content type has started cold, the estimate of all the content types is used, and
+ * {@link #DEFAULT_PRELOAD_TIME_S} before any. All the methods must be called on the main thread.
+ */
+public final class PreloadPolicy {
+  private static final String TAG = "PreloadPolicy";
+
+  private static final int DEFAULT_PRELOAD_TIME_S = 20;
+  private static final int MIN_PRELOAD_TIME_S = 5;
+  private static final int MAX_PRELOAD_TIME_S = 60;
+  // The preload time is the estimated startup times this, to absorb its variations.
+  private static final float STARTUP_HEADROOM = 3f;
+  // The weight of a new sample in the moving average of the startup time.
+  private static final float SAMPLE_WEIGHT = 0.3f;
+  // A preloaded item that takes longer than that to play has stalled.
+  private static final long STALL_THRESHOLD_MS = 500;
+  // The share of the extra time for stalls that each smooth start keeps.
+  private static final float STALL_EXTRA_DECAY = 0.5f;
+  private static final long MAX_STALL_EXTRA_MS = 30_000;
+  private static final String ALL_CONTENT_TYPES = "all";
+
+  private static PreloadPolicy instance;
+
+  private final Map<String, Estimate> estimates = new HashMap<>();
+  private final Estimate overallEstimate = new Estimate();
+  private int currentItemId = MediaQueueItem.INVALID_ITEM_ID;
+  private int upcomingItemId = MediaQueueItem.INVALID_ITEM_ID;
+  private String currentContentType = "";
+  private boolean currentItemPreloaded;
+  // Set from the change of the current item until it plays or fails.
+  private boolean timingStartup;
+  private long startupStartMillis;
+
+  private PreloadPolicy() {}
+
+  public static synchronized PreloadPolicy getInstance() {
+    if (instance == null) {
+      instance = new PreloadPolicy();
+    }
+    return instance;
+  }
+
+  /**
+   * Times the startup of the items from the status of the receiver, given on every status update.
+   */
+  public void onStatusUpdated(
+      @Nullable MediaQueueItem currentItem,
+      @Nullable MediaQueueItem upcomingItem,
+      int playerState) {
+    int itemId = (currentItem != null) ? currentItem.getItemId() : MediaQueueItem.INVALID_ITEM_ID;
+    if (itemId != currentItemId) {
+      // An item that already plays when it is first seen was started before the session was
+      // joined, so its startup is unknown.
+      boolean joined =
+          currentItemId == MediaQueueItem.INVALID_ITEM_ID
+              && playerState == MediaStatus.PLAYER_STATE_PLAYING;
+      currentItemId = itemId;
+      currentItemPreloaded = itemId != MediaQueueItem.INVALID_ITEM_ID && itemId == upcomingItemId;
+      currentContentType = getContentType((currentItem != null) ? currentItem.getMedia() : null);
+      timingStartup = itemId != MediaQueueItem.INVALID_ITEM_ID && !joined;
+      startupStartMillis = SystemClock.elapsedRealtime();
+    }
+    upcomingItemId =
+        (upcomingItem != null) ? upcomingItem.getItemId() : MediaQueueItem.INVALID_ITEM_ID;
+    if (!timingStartup) {
+      return;
+    }
+    if (playerState == MediaStatus.PLAYER_STATE_PLAYING) {
+      timingStartup = false;
+      onStartup(SystemClock.elapsedRealtime() - startupStartMillis);
+    } else if (playerState == MediaStatus.PLAYER_STATE_IDLE
+        || playerState == MediaStatus.PLAYER_STATE_PAUSED) {
+      // The item failed, or the user paused it before it played: its startup says nothing.
+      timingStartup = false;
+    }
+  }
+
+  /** Returns the preload time, in seconds, for an item that plays {@code mediaInfo}. */
+  public int getPreloadTimeSeconds(@Nullable MediaInfo mediaInfo) {
+    Estimate estimate = estimates.get(getContentType(mediaInfo));
+    if (estimate == null || !estimate.hasColdStartup()) {
+      estimate = overallEstimate;
+    }
+    return estimate.getPreloadTimeSeconds();
+  }
+
+  /** Returns a human readable summary of the startups timed for each content type. */
+  public String dump() {
+    StringBuilder builder = new StringBuilder();
+    overallEstimate.dump(builder, ALL_CONTENT_TYPES);
+    for (Map.Entry<String, Estimate> entry : estimates.entrySet()) {
+      entry.getValue().dump(builder, entry.getKey());
+    }
+    return builder.toString();
+  }
+
+  private void onStartup(long startupMillis) {
+    Log.d(
+        TAG,
+        String.format(
+            Locale.ROOT,
+            "item %d of type %s started in %dms, preloaded=%b",
+            currentItemId,
+            currentContentType,
+            startupMillis,
+            currentItemPreloaded));
+    Estimate estimate = estimates.get(currentContentType);
+    if (estimate == null) {
+      estimate = new Estimate();
+      estimates.put(currentContentType, estimate);
+    }
+    estimate.record(startupMillis, currentItemPreloaded);
+    overallEstimate.record(startupMillis, currentItemPreloaded);
+  }
+
+  private static String getContentType(@Nullable MediaInfo mediaInfo) {
+    String contentType = (mediaInfo != null) ? mediaInfo.getContentType() : null;
+    return (contentType != null) ? contentType : "";
+  }
+
+  /** The startups timed for the items of a content type. */
+  private static final class Estimate {
+    private long coldStartupMillis;
+    private int coldStartupCount;
+    private int preloadedStartupCount;
+    private int stallCount;
+    private long stallExtraMillis;
+
+    boolean hasColdStartup() {
+      return coldStartupCount > 0;
+    }
+
+    void record(long startupMillis, boolean preloaded) {
+      if (!preloaded) {
+        coldStartupMillis =
+            (coldStartupCount == 0)
+                ? startupMillis
+                : (long) (SAMPLE_WEIGHT * startupMillis + (1 - SAMPLE_WEIGHT) * coldStartupMillis);
+        coldStartupCount++;
+        return;
+      }
+      preloadedStartupCount++;
+      if (startupMillis > STALL_THRESHOLD_MS) {
+        stallCount++;
+        stallExtraMillis = Math.min(stallExtraMillis + startupMillis, MAX_STALL_EXTRA_MS);
+      } else {
+        stallExtraMillis = (long) (stallExtraMillis * STALL_EXTRA_DECAY);
+      }
+    }
+
+    int getPreloadTimeSeconds() {
+      if (coldStartupCount == 0 && stallExtraMillis == 0) {
+        return DEFAULT_PRELOAD_TIME_S;
+      }
+      long baseMillis =
+          (coldStartupCount > 0)
+              ? (long) (coldStartupMillis * STARTUP_HEADROOM)
+              : DEFAULT_PRELOAD_TIME_S * 1000L;
+      int seconds = (int) Math.ceil((baseMillis + stallExtraMillis) / 1000.0);
+      return Math.max(MIN_PRELOAD_TIME_S, Math.min(seconds, MAX_PRELOAD_TIME_S));
+    }
+
+    void dump(StringBuilder builder, String contentType) {
+      builder.append(
+          String.format(
+              Locale.ROOT,
+              "%s: cold startup=%dms (%d items), preloaded=%d, stalls=%d (+%dms), preload=%ds\n",
+              contentType.isEmpty() ? "unknown" : contentType,
+              coldStartupMillis,
+              coldStartupCount,
+              preloadedStartupCount,
+              stallCount,
+              stallExtraMillis,
+              getPreloadTimeSeconds()));
+    }
+  }
+}
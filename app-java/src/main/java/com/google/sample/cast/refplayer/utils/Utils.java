@@ -33,6 +33,7 @@ import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.res.Configuration;
 import android.graphics.Point;
+import androidx.annotation.Nullable;
 import androidx.appcompat.widget.PopupMenu;
 import android.text.TextUtils;
 import android.util.Log;
@@ -42,6 +43,8 @@ import android.view.View;
 import android.view.WindowManager;
 import android.widget.Toast;
 
+import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
@@ -51,8 +54,8 @@ import java.util.Locale;
 public class Utils {
 
     private static final String TAG = "Utils";
-
-    private static final int PRELOAD_TIME_S = 20;
+    // The dumpsys argument that starts the frame timings over once printed.
+    private static final String DUMP_RESET_ARG = "--reset";
 
     /**
      * Making sure public utility methods remain static
@@ -155,6 +158,40 @@ public class Utils {
         return time;
     }
 
+    /**
+     * Prints the frame timings, the footprint of the caches, the state of the image loading, the
+     * requests saved on queue moves and the startups of the queue items, for
+     * {@code adb shell dumpsys activity}. With {@code --reset} in {@code args}, the frame timings
+     * start over once printed, so that the next dump only covers the frames since this one.
+     */
+    public static void dumpDiagnostics(Context context, String prefix, PrintWriter writer,
+            @Nullable String[] args) {
+        dumpSection(writer, prefix, "Frame timing", FrameTimingMonitor.getInstance().dump());
+        if (args != null && Arrays.asList(args).contains(DUMP_RESET_ARG)) {
+            FrameTimingMonitor.getInstance().reset();
+        }
+        dumpSection(writer, prefix, "Caches", MemoryGovernor.getInstance(context).dump());
+        dumpSection(writer, prefix, "Image failures", ImageFailureCache.getInstance().dump());
+        dumpSection(writer, prefix, "Image quality",
+                ImageQualityPolicy.getInstance(context).dump());
+        dumpSection(writer, prefix, "Queue", QueueDataProvider.getInstance(context).dump());
+        dumpSection(writer, prefix, "Preload", PreloadPolicy.getInstance().dump());
+    }
+
+    private static void dumpSection(PrintWriter writer, String prefix, String title,
+            String dump) {
+        writer.print(prefix);
+        writer.print(title);
+        writer.println(":");
+        for (String line : dump.split("\n")) {
+            if (!line.isEmpty()) {
+                writer.print(prefix);
+                writer.print("  ");
+                writer.println(line);
+            }
+        }
+    }
+
     /**
      * Show a popup to select whether the selected item should play immediately, be added to the
      * end of queue or be added to the queue right after the current item.
@@ -181,8 +218,7 @@ public class Utils {
             @Override
             public boolean onMenuItemClick(MenuItem menuItem) {
                 QueueDataProvider provider = QueueDataProvider.getInstance(context);
-                MediaQueueItem queueItem = new MediaQueueItem.Builder(mediaInfo).setAutoplay(
-                        true).setPreloadTime(PRELOAD_TIME_S).build();
+                MediaQueueItem queueItem = buildQueueItem(mediaInfo);
                 MediaQueueItem[] newItemArray = new MediaQueueItem[]{queueItem};
                 String toastMessage = null;
                 if (provider.getCount() == 0) {
@@ -191,26 +227,16 @@ public class Utils {
                 } else {
                     int currentId = provider.getCurrentItemId();
                     if (menuItem.getItemId() == R.id.action_play_now) {
-                        remoteMediaClient.queueInsertAndPlayItem(queueItem, currentId, null);
+                        provider.insertAndPlayItem(queueItem, currentId);
                     } else if (menuItem.getItemId() == R.id.action_play_next) {
-                        int currentPosition = provider.getPositionByItemId(currentId);
-                        if (currentPosition == provider.getCount() - 1) {
-                            //we are adding to the end of queue
-                            remoteMediaClient.queueAppendItem(queueItem, null);
-                        } else {
-                            MediaQueueItem nextItem = provider.getItem(currentPosition + 1);
-                            if (nextItem != null) {
-                                int nextItemId = nextItem.getItemId();
-                                remoteMediaClient.queueInsertItems(newItemArray, nextItemId, null);
-                            } else {
-                                //remote queue is not ready with item; try again.
-                                return false;
-                            }
+                        if (!provider.insertItemsAfter(newItemArray, currentId)) {
+                            //the current item is not in the queue yet; try again.
+                            return false;
                         }
                         toastMessage = context.getString(
                                     R.string.queue_item_added_to_play_next);
                     } else if (menuItem.getItemId() == R.id.action_add_to_queue) {
-                        remoteMediaClient.queueAppendItem(queueItem, null);
+                        provider.insertItems(newItemArray, MediaQueueItem.INVALID_ITEM_ID);
                         toastMessage = context.getString(R.string.queue_item_added_to_queue);
                     } else {
                         return false;
@@ -230,6 +256,16 @@ public class Utils {
         popup.show();
     }
 
+    /**
+     * Returns a queue item that plays {@code mediaInfo}, and that the receiver preloads ahead of
+     * the end of the item before it, as early as {@link PreloadPolicy} finds that it needs.
+     */
+    public static MediaQueueItem buildQueueItem(MediaInfo mediaInfo) {
+        return new MediaQueueItem.Builder(mediaInfo).setAutoplay(true)
+                .setPreloadTime(PreloadPolicy.getInstance().getPreloadTimeSeconds(mediaInfo))
+                .build();
+    }
+
     public static MediaQueueItem[] rebuildQueue(List<MediaQueueItem> items) {
         if (items == null || items.isEmpty()) {
             return null;
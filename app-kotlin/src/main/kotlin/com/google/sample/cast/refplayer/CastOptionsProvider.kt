@@ -28,6 +28,7 @@ import com.google.android.gms.cast.framework.media.ImagePicker
 import com.google.android.gms.cast.framework.media.ImageHints
 import com.google.android.gms.common.images.WebImage
 import com.google.sample.cast.refplayer.expandedcontrols.ExpandedControlsActivity
+import com.google.sample.cast.refplayer.utils.ImageQualityPolicy
 
 /**
  * Implements [OptionsProvider] to provide [CastOptions].
@@ -45,7 +46,7 @@ class CastOptionsProvider : OptionsProvider {
             .setTargetActivityClassName(ExpandedControlsActivity::class.java.name)
             .build()
         val mediaOptions = CastMediaOptions.Builder()
-            .setImagePicker(ImagePickerImpl())
+            .setImagePicker(ImagePickerImpl(context.applicationContext))
             .setNotificationOptions(notificationOptions)
             .setExpandedControllerActivityClassName(ExpandedControlsActivity::class.java.name)
             .build()
@@ -65,22 +66,73 @@ class CastOptionsProvider : OptionsProvider {
         return null
     }
 
-    private class ImagePickerImpl : ImagePicker() {
+    /**
+     * An [ImagePicker] that picks the smallest image that still covers the size requested by the
+     * [ImageHints], so that the Cast UI does not download more pixels than it shows. On a slow or
+     * metered link, the requested size is scaled down by the [ImageQualityPolicy].
+     */
+    private class ImagePickerImpl(private val appContext: Context) : ImagePicker() {
         override fun onPickImage(mediaMetadata: MediaMetadata?, hints: ImageHints): WebImage? {
-            val type = hints.type
-            if (!mediaMetadata!!.hasImages()) {
+            if (mediaMetadata == null || !mediaMetadata.hasImages()) {
                 return null
             }
             val images = mediaMetadata.images
-            return if (images.size == 1) {
-                images[0]
-            } else {
-                if (type == IMAGE_TYPE_MEDIA_ROUTE_CONTROLLER_DIALOG_BACKGROUND) {
-                    images[0]
-                } else {
-                    images[1]
+            if (images.size == 1) {
+                return images[0]
+            }
+            val width = hints.widthInPixels
+            val height = hints.heightInPixels
+            if (width <= 0 && height <= 0) {
+                return pickImageByType(images, hints.type)
+            }
+            val policy = ImageQualityPolicy.getInstance(appContext)
+            val scale = policy.getSizeScale()
+            val image = pickImageBySize(
+                images, (width * scale).toInt(), (height * scale).toInt(), hints.type
+            )
+            if (scale < 1) {
+                val fullSizeImage = pickImageBySize(images, width, height, hints.type)
+                if (fullSizeImage !== image) {
+                    policy.onImageDownsized(fullSizeImage, image)
+                }
+            }
+            return image
+        }
+
+        private fun pickImageBySize(
+            images: List<WebImage>, width: Int, height: Int, type: Int
+        ): WebImage {
+            var smallestFit: WebImage? = null
+            var largest: WebImage? = null
+            for (image in images) {
+                if (image.width <= 0 || image.height <= 0) {
+                    // The size of this image is unknown, so it can't be compared.
+                    continue
+                }
+                if (largest == null || getArea(image) > getArea(largest)) {
+                    largest = image
+                }
+                if (image.width >= width && image.height >= height
+                    && (smallestFit == null || getArea(image) < getArea(smallestFit))) {
+                    smallestFit = image
                 }
             }
+            // If no image is large enough, the largest one is the closest match.
+            return smallestFit ?: largest ?: pickImageByType(images, type)
+        }
+
+        /** Picks an image for the hints that don't carry a size.  */
+        private fun pickImageByType(images: List<WebImage>, type: Int): WebImage {
+            return if (type == IMAGE_TYPE_EXPANDED_CONTROLLER_BACKGROUND
+                || type == IMAGE_TYPE_LOCK_SCREEN_BACKGROUND) {
+                images[1]
+            } else {
+                images[0]
+            }
+        }
+
+        private fun getArea(image: WebImage): Long {
+            return image.width.toLong() * image.height
         }
     }
-}
\ No newline at end of file
+}
@@ -35,8 +35,12 @@ import com.google.android.gms.cast.framework.CastState
 import com.google.android.gms.cast.framework.CastStateListener
 import com.google.android.gms.cast.framework.IntroductoryOverlay
 import com.google.android.gms.cast.framework.SessionManagerListener
+import com.google.sample.cast.refplayer.browser.VideoBrowserFragment
 import com.google.sample.cast.refplayer.queue.ui.QueueListViewActivity
 import com.google.sample.cast.refplayer.settings.CastPreference
+import com.google.sample.cast.refplayer.utils.Utils
+import java.io.FileDescriptor
+import java.io.PrintWriter
 import java.util.concurrent.Executor
 import java.util.concurrent.Executors
 
@@ -164,8 +168,9 @@ class VideoBrowserActivity : AppCompatActivity() {
     }
 
     override fun onPrepareOptionsMenu(menu: Menu): Boolean {
-        menu.findItem(R.id.action_show_queue).isVisible =
-            mCastSession != null && mCastSession!!.isConnected
+        val isConnected = mCastSession != null && mCastSession!!.isConnected
+        menu.findItem(R.id.action_show_queue).isVisible = isConnected
+        menu.findItem(R.id.action_add_all_to_queue).isVisible = isConnected
         return super.onPrepareOptionsMenu(menu)
     }
 
@@ -177,6 +182,10 @@ class VideoBrowserActivity : AppCompatActivity() {
         } else if (item.itemId == R.id.action_show_queue) {
             intent = Intent(this@VideoBrowserActivity, QueueListViewActivity::class.java)
             startActivity(intent)
+        } else if (item.itemId == R.id.action_add_all_to_queue) {
+            val fragment =
+                supportFragmentManager.findFragmentById(R.id.browse) as VideoBrowserFragment?
+            fragment?.addAllToQueue()
         }
         return true
     }
@@ -202,6 +211,15 @@ class VideoBrowserActivity : AppCompatActivity() {
         super.onPause()
     }
 
+    /**
+     * Appends the frame timings and the state of the caches to
+     * `adb shell dumpsys activity`.
+     */
+    override fun dump(prefix: String, fd: FileDescriptor?, writer: PrintWriter, args: Array<out String>?) {
+        super.dump(prefix, fd, writer, args)
+        Utils.dumpDiagnostics(this, prefix, writer, args)
+    }
+
     private fun showIntroductoryOverlay() {
         if (mIntroductoryOverlay != null) {
             mIntroductoryOverlay!!.remove()
@@ -25,9 +25,12 @@ import com.google.android.gms.cast.framework.CastSession
 import com.google.android.gms.cast.framework.CastContext
 import com.google.android.gms.cast.framework.SessionManagerListener
 import android.os.Bundle
-import androidx.recyclerview.widget.LinearLayoutManager
+import androidx.recyclerview.widget.GridLayoutManager
 import android.widget.ImageButton
+import android.widget.Toast
+import androidx.appcompat.app.AppCompatActivity
 import androidx.core.app.ActivityOptionsCompat
+import android.content.Context
 import android.content.Intent
 import androidx.core.app.ActivityCompat
 import androidx.core.util.Pair
@@ -35,6 +38,9 @@ import androidx.fragment.app.Fragment
 import androidx.loader.app.LoaderManager
 import androidx.loader.content.Loader
 import com.google.sample.cast.refplayer.mediaplayer.LocalPlayerActivity
+import com.google.sample.cast.refplayer.queue.QueueBulkEnqueuer
+import com.google.sample.cast.refplayer.utils.FrameTimingMonitor
+import com.google.sample.cast.refplayer.utils.MemoryGovernor
 import com.google.sample.cast.refplayer.utils.Utils
 import java.util.concurrent.Executor
 import java.util.concurrent.Executors
@@ -48,6 +54,8 @@ class VideoBrowserFragment : Fragment(), VideoListAdapter.ItemClickListener,
     private var mAdapter: VideoListAdapter? = null
     private var mEmptyView: View? = null
     private var mLoadingView: View? = null
+    private var mVideos: List<MediaInfo>? = null
+    private var mBulkEnqueuer: QueueBulkEnqueuer? = null
     private val mSessionManagerListener: SessionManagerListener<CastSession> = MySessionManagerListener()
     private val  vidBrowserExecutor: Executor = Executors.newCachedThreadPool();
 
@@ -61,11 +69,13 @@ class VideoBrowserFragment : Fragment(), VideoListAdapter.ItemClickListener,
         mRecyclerView = requireView().findViewById<View>(R.id.list) as RecyclerView
         mEmptyView = requireView().findViewById(R.id.empty_view)
         mLoadingView = requireView().findViewById(R.id.progress_indicator)
-        val layoutManager = LinearLayoutManager(activity)
-        layoutManager.orientation = LinearLayoutManager.VERTICAL
-        mRecyclerView!!.layoutManager = layoutManager
+        mRecyclerView!!.layoutManager = MyGridLayoutManager(requireContext())
+        mRecyclerView!!.setHasFixedSize(true)
         mAdapter = VideoListAdapter(this, context)
+        // The catalog that the adapter shows is parsed once and kept for the whole process.
+        MemoryGovernor.getInstance(requireContext()).register(VideoProvider.catalogTrimmable)
         mRecyclerView!!.adapter = mAdapter
+        FrameTimingMonitor.instance.track(mRecyclerView!!, "browse")
         LoaderManager.getInstance(this).initLoader(0, null, this)
     }
 
@@ -82,27 +92,96 @@ class VideoBrowserFragment : Fragment(), VideoListAdapter.ItemClickListener,
             val intent = Intent(activity, LocalPlayerActivity::class.java)
             intent.putExtra("media", item)
             intent.putExtra("shouldStart", false)
+            // Played locally, the videos that follow in the list play after this one.
+            val videos = mVideos
+            if (videos != null && position + 1 < videos.size) {
+                val end = Math.min(position + 1 + LOCAL_QUEUE_LENGTH, videos.size)
+                intent.putParcelableArrayListExtra(
+                    "queue", ArrayList(videos.subList(position + 1, end))
+                )
+            }
             ActivityCompat.startActivity(requireActivity(), intent, options.toBundle())
         }
     }
 
+    /**
+     * Adds every video of the catalog to the queue of the receiver, showing the progress in the
+     * action bar. Does nothing while a previous call is still adding videos.
+     */
+    fun addAllToQueue() {
+        val videos = mVideos
+        if (videos.isNullOrEmpty() || mBulkEnqueuer?.isDone == false) {
+            return
+        }
+        val castSession = CastContext.getSharedInstance(requireContext(), vidBrowserExecutor)
+            .result.sessionManager.currentCastSession
+        val remoteMediaClient =
+            (if (castSession != null && castSession.isConnected) castSession.remoteMediaClient
+            else null) ?: return
+        val bulkEnqueuer = QueueBulkEnqueuer(requireContext(), remoteMediaClient, videos,
+            object : QueueBulkEnqueuer.Listener {
+                override fun onProgress(enqueuedCount: Int, totalCount: Int) {
+                    if (enqueuedCount < totalCount) {
+                        setProgressSubtitle(
+                            getString(R.string.queue_bulk_progress, enqueuedCount, totalCount)
+                        )
+                        return
+                    }
+                    setProgressSubtitle(null)
+                    Toast.makeText(
+                        context, getString(R.string.queue_bulk_added, totalCount),
+                        Toast.LENGTH_SHORT
+                    ).show()
+                }
+
+                override fun onFailed(enqueuedCount: Int, totalCount: Int) {
+                    setProgressSubtitle(null)
+                    Toast.makeText(
+                        context,
+                        getString(R.string.queue_bulk_failed, enqueuedCount, totalCount),
+                        Toast.LENGTH_SHORT
+                    ).show()
+                }
+            })
+        mBulkEnqueuer = bulkEnqueuer
+        setProgressSubtitle(getString(R.string.queue_bulk_progress, 0, videos.size))
+        bulkEnqueuer.start()
+    }
+
+    private fun setProgressSubtitle(subtitle: CharSequence?) {
+        (activity as AppCompatActivity?)?.supportActionBar?.subtitle = subtitle
+    }
+
+    override fun onDestroyView() {
+        // The chunks already sent are still added, the others are dropped with the screen.
+        mBulkEnqueuer?.cancel()
+        mBulkEnqueuer = null
+        super.onDestroyView()
+    }
+
     override fun onCreateLoader(id: Int, args: Bundle?): Loader<List<MediaInfo>?> {
         return VideoItemLoader(activity, CATALOG_URL)
     }
 
     override fun onLoadFinished(loader: Loader<List<MediaInfo>?>, data: List<MediaInfo>?) {
+        mVideos = data
         mAdapter!!.setData(data)
         mLoadingView!!.visibility = View.GONE
         mEmptyView!!.visibility = if (null == data || data.isEmpty()) View.VISIBLE else View.GONE
     }
 
     override fun onLoaderReset(loader: Loader<List<MediaInfo>?>) {
+        mVideos = null
         mAdapter!!.setData(null)
     }
 
     override fun onStart() {
-        CastContext.getSharedInstance(requireContext(),vidBrowserExecutor).result.sessionManager
-            .addSessionManagerListener(mSessionManagerListener, CastSession::class.java)
+        val sessionManager =
+            CastContext.getSharedInstance(requireContext(),vidBrowserExecutor).result.sessionManager
+        sessionManager.addSessionManagerListener(mSessionManagerListener, CastSession::class.java)
+        // The listener only reports the changes from now on, so read the current state once.
+        val castSession = sessionManager.currentCastSession
+        mAdapter!!.setCastConnected(castSession != null && castSession.isConnected)
         super.onStart()
     }
 
@@ -112,17 +191,49 @@ class VideoBrowserFragment : Fragment(), VideoListAdapter.ItemClickListener,
         super.onStop()
     }
 
+    /**
+     * Lays out as many columns as fit in the width that the list is measured with, inside its
+     * padding, so that the margins around the list are never counted as room for a column.
+     */
+    private inner class MyGridLayoutManager(context: Context) : GridLayoutManager(context, 1) {
+        private val mColumnMinWidth =
+            context.resources.getDimensionPixelSize(R.dimen.browse_column_min_width)
+        private var mListWidth = 0
+
+        override fun onLayoutChildren(
+            recycler: RecyclerView.Recycler, state: RecyclerView.State) {
+            val listWidth = width - paddingLeft - paddingRight
+            if (listWidth > 0 && listWidth != mListWidth) {
+                val rowsBound = mListWidth > 0
+                mListWidth = listWidth
+                val spanCount = Math.max(1, listWidth / mColumnMinWidth)
+                setSpanCount(spanCount)
+                // A grid recycles a whole row of tiles at once, more than the default five views.
+                mRecyclerView!!.recycledViewPool.setMaxRecycledViews(0, spanCount * RECYCLED_ROWS)
+                // A single column keeps the thumbnails of the row layout, as on a phone.
+                mAdapter!!.setColumnWidth(if (spanCount > 1) listWidth / spanCount else 0)
+                if (rowsBound) {
+                    // The adapter can't be notified in the middle of a layout.
+                    mRecyclerView!!.post {
+                        mAdapter!!.notifyItemRangeChanged(0, mAdapter!!.itemCount)
+                    }
+                }
+            }
+            super.onLayoutChildren(recycler, state)
+        }
+    }
+
     private inner class MySessionManagerListener : SessionManagerListener<CastSession> {
         override fun onSessionEnded(session: CastSession, error: Int) {
-            mAdapter!!.notifyDataSetChanged()
+            mAdapter!!.setCastConnected(false)
         }
 
         override fun onSessionResumed(session: CastSession, wasSuspended: Boolean) {
-            mAdapter!!.notifyDataSetChanged()
+            mAdapter!!.setCastConnected(true)
         }
 
         override fun onSessionStarted(session: CastSession, sessionId: String) {
-            mAdapter!!.notifyDataSetChanged()
+            mAdapter!!.setCastConnected(true)
         }
 
         override fun onSessionStarting(session: CastSession) {}
@@ -137,5 +248,9 @@ class VideoBrowserFragment : Fragment(), VideoListAdapter.ItemClickListener,
         private const val TAG = "VideoBrowserFragment"
         private const val CATALOG_URL =
             "https://commondatastorage.googleapis.com/gtv-videos-bucket/CastVideos/f.json"
+        // The rows of tiles kept for reuse: the one scrolling out, the one scrolling in and a spare.
+        private const val RECYCLED_ROWS = 3
+        // The videos played locally after the one clicked, which travel in the intent of the player.
+        private const val LOCAL_QUEUE_LENGTH = 10
     }
 }
\ No newline at end of file
@@ -16,20 +16,25 @@
 package com.google.sample.cast.refplayer.browser
 
 import android.content.Context
+import android.text.TextUtils
+import androidx.annotation.ColorInt
+import androidx.recyclerview.widget.AsyncListDiffer
+import androidx.recyclerview.widget.DiffUtil
 import androidx.recyclerview.widget.RecyclerView
 import android.view.ViewGroup
 import android.view.View
 import android.view.LayoutInflater
 import com.google.sample.cast.refplayer.R
-import com.google.android.gms.cast.framework.CastContext
 import com.android.volley.toolbox.NetworkImageView
 import android.widget.TextView
+import com.android.volley.VolleyError
 import com.android.volley.toolbox.ImageLoader
 import android.widget.ImageView
 import com.google.android.gms.cast.*
 import com.google.sample.cast.refplayer.utils.CustomVolleyRequest
-import java.util.concurrent.Executor
-import java.util.concurrent.Executors
+import com.google.sample.cast.refplayer.utils.FrameTimingMonitor
+import com.google.sample.cast.refplayer.utils.ImageFailureCache
+import com.google.sample.cast.refplayer.utils.PlaceholderColors
 
 /**
  * An [ArrayAdapter] to populate the list of videos.
@@ -37,56 +42,111 @@ import java.util.concurrent.Executors
 class VideoListAdapter(private val mClickListener: ItemClickListener, context: Context?) :
     RecyclerView.Adapter<VideoListAdapter.ViewHolder>() {
     private val mAppContext: Context
-    private var videos: List<MediaInfo>? = null
-    private val  castExecutor: Executor = Executors.newSingleThreadExecutor();
+    // Diffs the submitted lists on a background thread and dispatches precise updates.
+    private val mDiffer = AsyncListDiffer(this, MediaInfoItemCallback())
+    private var mCastConnected = false
+    private var mThumbnailWidth = ViewGroup.LayoutParams.WRAP_CONTENT
+    private var mThumbnailHeight = ViewGroup.LayoutParams.WRAP_CONTENT
 
     init {
         mAppContext = context!!.applicationContext
+        setHasStableIds(true)
     }
 
     override fun onCreateViewHolder(viewGroup: ViewGroup, viewType: Int): ViewHolder {
         val context = viewGroup.context
         val parent = LayoutInflater.from(context).inflate(R.layout.browse_row, viewGroup, false)
-        return ViewHolder.newInstance(parent)
+        val viewHolder = ViewHolder.newInstance(parent)
+        // A single listener per row, which looks the video up when clicked rather than when bound.
+        val clickListener = View.OnClickListener { view ->
+            val position = viewHolder.bindingAdapterPosition
+            if (position != RecyclerView.NO_POSITION) {
+                mClickListener.itemClicked(
+                    view,
+                    mDiffer.currentList[position],
+                    viewHolder.layoutPosition
+                )
+            }
+        }
+        viewHolder.mMenu.setOnClickListener(clickListener)
+        viewHolder.mImgView.setOnClickListener(clickListener)
+        viewHolder.mTextContainer.setOnClickListener(clickListener)
+        return viewHolder
     }
 
+    /**
+     * Binds a row without allocating as long as it shows the same thumbnail as before, which is the
+     * common case of a row that is rebound in place.
+     */
     override fun onBindViewHolder(viewHolder: ViewHolder, position: Int) {
-        val item = videos!![position]
+        val frameTimingMonitor = FrameTimingMonitor.instance
+        frameTimingMonitor.beginPhase(FrameTimingMonitor.PHASE_BIND)
+        bind(viewHolder, position)
+        frameTimingMonitor.endPhase(FrameTimingMonitor.PHASE_BIND)
+    }
+
+    private fun bind(viewHolder: ViewHolder, position: Int) {
+        val item = mDiffer.currentList[position]
         val mm = item.metadata
         viewHolder.setTitle(mm!!.getString(MediaMetadata.KEY_TITLE))
         viewHolder.setDescription(mm.getString(MediaMetadata.KEY_SUBTITLE))
-        viewHolder.setImage(mm.images[0].url.toString(), mAppContext)
-        viewHolder.mMenu.setOnClickListener { view ->
-            mClickListener.itemClicked(
-                view,
-                item,
-                position
-            )
+        viewHolder.setImage(
+            mm.images[0].url.toString(),
+            PlaceholderColors.getInstance(mAppContext).getColor(item),
+            mThumbnailWidth,
+            mThumbnailHeight,
+            mAppContext
+        )
+        viewHolder.setMenuVisible(mCastConnected)
+    }
+
+    override fun onBindViewHolder(viewHolder: ViewHolder, position: Int, payloads: List<Any>) {
+        if (payloads.isEmpty() || !isCastConnectionOnly(payloads)) {
+            onBindViewHolder(viewHolder, position)
+            return
         }
-        viewHolder.mImgView.setOnClickListener { view ->
-            mClickListener.itemClicked(
-                view,
-                item,
-                position
-            )
+        viewHolder.setMenuVisible(mCastConnected)
+    }
+
+    private fun isCastConnectionOnly(payloads: List<Any>): Boolean {
+        for (i in payloads.indices) {
+            if (payloads[i] !== PAYLOAD_CAST_CONNECTION) {
+                return false
+            }
         }
-        viewHolder.mTextContainer.setOnClickListener { view ->
-            mClickListener.itemClicked(
-                view,
-                item,
-                position
-            )
+        return true
+    }
+
+    /**
+     * Sizes the thumbnails for a column of `columnWidth` pixels, so that they are decoded at the
+     * size of their tile rather than at the size of the image. A width of 0 keeps the size of the
+     * row layout. Only the rows bound afterwards are sized, so the adapter has to be notified if
+     * some rows are bound already.
+     */
+    fun setColumnWidth(columnWidth: Int) {
+        if (columnWidth <= 0) {
+            mThumbnailWidth = ViewGroup.LayoutParams.WRAP_CONTENT
+            mThumbnailHeight = ViewGroup.LayoutParams.WRAP_CONTENT
+            return
         }
-        val castSession = CastContext.getSharedInstance(mAppContext,castExecutor)
-            .result
-            .sessionManager
-            .currentCastSession
-        viewHolder.mMenu.visibility =
-            if (castSession != null && castSession.isConnected) View.VISIBLE else View.GONE
+        mThumbnailWidth = (columnWidth * THUMBNAIL_WIDTH_FRACTION).toInt()
+        mThumbnailHeight = (mThumbnailWidth * ASPECT_RATIO).toInt()
+    }
+
+    /**
+     * Shows or hides the overflow menu of the rows, which is only useful while a cast session is
+     * connected. The visible rows only have their menu rebound, their text and images are kept.
+     */
+    fun setCastConnected(castConnected: Boolean) {
+        if (mCastConnected == castConnected) {
+            return
+        }
+        mCastConnected = castConnected
+        notifyItemRangeChanged(0, itemCount, PAYLOAD_CAST_CONNECTION)
     }
 
     override fun getItemCount(): Int {
-        return if (videos == null) 0 else videos!!.size
+        return mDiffer.currentList.size
     }
 
     /**
@@ -102,20 +162,97 @@ class VideoListAdapter(private val mClickListener: ItemClickListener, context: C
         val mMenu: View
     ) : RecyclerView.ViewHolder(mParent) {
         private var mImageLoader: ImageLoader? = null
+        private val mPlaceholder = PlaceholderColors.newPlaceholderDrawable(mParent.context)
+        // The thumbnail whose outcome is recorded in the ImageFailureCache, and its request.
+        private var mTrackedUrl: String? = null
+        private var mTrackedContainer: ImageLoader.ImageContainer? = null
+        // Only ever hears about mTrackedUrl, since the previous request is cancelled on a change.
+        private val mFailureListener = object : ImageLoader.ImageListener {
+            override fun onResponse(response: ImageLoader.ImageContainer, isImmediate: Boolean) {
+                mTrackedUrl?.let { ImageFailureCache.instance.onResponse(it, response, isImmediate) }
+            }
+
+            override fun onErrorResponse(error: VolleyError) {
+                mTrackedUrl?.let { ImageFailureCache.instance.onFailure(it) }
+                // Check the backoff of the thumbnail again on the next bind.
+                mTrackedUrl = null
+                mTrackedContainer = null
+            }
+        }
+
         fun setTitle(title: String?) {
-            mTitleView.text = title
+            // Setting the same text again would still lay the view out anew.
+            if (!TextUtils.equals(mTitleView.text, title)) {
+                mTitleView.text = title
+            }
         }
 
         fun setDescription(description: String?) {
-            mDescriptionView.text = description
+            if (!TextUtils.equals(mDescriptionView.text, description)) {
+                mDescriptionView.text = description
+            }
         }
 
-        fun setImage(imgUrl: String?, context: Context) {
+        fun setImage(
+            imgUrl: String?,
+            @ColorInt placeholderColor: Int,
+            width: Int,
+            height: Int,
+            context: Context
+        ) {
+            val frameTimingMonitor = FrameTimingMonitor.instance
+            frameTimingMonitor.beginPhase(FrameTimingMonitor.PHASE_IMAGE)
+            loadImage(imgUrl, placeholderColor, width, height, context)
+            frameTimingMonitor.endPhase(FrameTimingMonitor.PHASE_IMAGE)
+        }
+
+        private fun loadImage(
+            imgUrl: String?,
+            @ColorInt placeholderColor: Int,
+            width: Int,
+            height: Int,
+            context: Context
+        ) {
             mImageLoader = CustomVolleyRequest.Companion.getInstance(context!!)?.imageLoader
-            mImageLoader!![imgUrl, ImageLoader.getImageListener(mImgView, 0, 0)]
+            // Paint the placeholder right away, the thumbnail replaces it once loaded.
+            mPlaceholder.setColor(placeholderColor)
+            mImgView.setDefaultImageDrawable(mPlaceholder)
+            val params = mImgView.layoutParams
+            if (params.width != width || params.height != height) {
+                params.width = width
+                params.height = height
+                mImgView.layoutParams = params
+                mTrackedUrl = null
+            }
+            if (imgUrl != null && imgUrl == mTrackedUrl) {
+                // Same thumbnail as before, the view already holds its bitmap or its request.
+                return
+            }
+            mTrackedContainer?.cancelRequest()
+            mTrackedContainer = null
+            mTrackedUrl = null
+            if (imgUrl == null || !ImageFailureCache.instance.shouldAttempt(imgUrl)) {
+                // The image failed recently, so leave the placeholder without retrying it.
+                mImgView.setImageUrl(null, mImageLoader)
+                return
+            }
+            mTrackedUrl = imgUrl
+            // Requested at the size NetworkImageView lays the view out at, so that Volley shares a
+            // single request and decode between both.
+            mTrackedContainer = mImageLoader!!.get(
+                imgUrl,
+                mFailureListener,
+                Math.max(width, 0),
+                Math.max(height, 0),
+                mImgView.scaleType
+            )
             mImgView.setImageUrl(imgUrl, mImageLoader)
         }
 
+        fun setMenuVisible(visible: Boolean) {
+            mMenu.visibility = if (visible) View.VISIBLE else View.GONE
+        }
+
         fun setOnClickListener(listener: View.OnClickListener?) {
             mParent.setOnClickListener(listener)
         }
@@ -135,9 +272,12 @@ class VideoListAdapter(private val mClickListener: ItemClickListener, context: C
         }
     }
 
+    /**
+     * Replaces the list of videos. The new list is diffed against the current one off the main
+     * thread, so that the rows of the videos that are still there keep their views and images.
+     */
     fun setData(data: List<MediaInfo>?) {
-        videos = data
-        notifyDataSetChanged()
+        mDiffer.submitList(data)
     }
 
     /**
@@ -148,10 +288,42 @@ class VideoListAdapter(private val mClickListener: ItemClickListener, context: C
     }
 
     override fun getItemId(position: Int): Long {
-        return super.getItemId(position)
+        return getStableId(mDiffer.currentList[position])
+    }
+
+    /** Compares videos by content ID, and then by the fields that a row shows.  */
+    private class MediaInfoItemCallback : DiffUtil.ItemCallback<MediaInfo>() {
+        override fun areItemsTheSame(oldItem: MediaInfo, newItem: MediaInfo): Boolean {
+            return oldItem.contentId == newItem.contentId
+        }
+
+        override fun areContentsTheSame(oldItem: MediaInfo, newItem: MediaInfo): Boolean {
+            val oldMetadata = oldItem.metadata!!
+            val newMetadata = newItem.metadata!!
+            return (oldMetadata.getString(MediaMetadata.KEY_TITLE)
+                    == newMetadata.getString(MediaMetadata.KEY_TITLE)
+                    && oldMetadata.getString(MediaMetadata.KEY_SUBTITLE)
+                    == newMetadata.getString(MediaMetadata.KEY_SUBTITLE)
+                    && oldMetadata.images[0].url == newMetadata.images[0].url)
+        }
     }
 
     companion object {
         private const val ASPECT_RATIO = 9f / 16f
+        // The share of the width of a column that the thumbnail of a tile takes.
+        private const val THUMBNAIL_WIDTH_FRACTION = 0.4f
+        // The payload of a rebind that only toggles the overflow menu of the rows.
+        private val PAYLOAD_CAST_CONNECTION = Any()
+
+        /** Returns a 64-bit FNV-1a hash of the content ID of `media`.  */
+        @JvmStatic
+        fun getStableId(media: MediaInfo): Long {
+            var hash = -0x340d631b7bdddcdbL
+            for (c in media.contentId) {
+                hash = hash xor c.code.toLong()
+                hash *= 0x100000001b3L
+            }
+            return hash
+        }
     }
 }
\ No newline at end of file
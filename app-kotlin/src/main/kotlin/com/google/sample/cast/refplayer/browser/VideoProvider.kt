@@ -30,8 +30,10 @@ import org.json.JSONException
 import java.util.HashMap
 import java.util.ArrayList
 import com.google.android.gms.common.images.WebImage
+import android.graphics.Color
 import android.net.Uri
 import com.google.android.gms.cast.*
+import com.google.sample.cast.refplayer.utils.MemoryGovernor
 
 /**
  * Provider of the list of videos.
@@ -95,17 +97,46 @@ class VideoProvider {
         private const val TAG_TRACK_LANGUAGE = "language"
         private const val TAG_THUMB = "image-480x270" // "thumb";
         private const val TAG_IMG_780_1200 = "image-780x1200"
+        private val TAG_IMAGE_SIZE = Regex("image-(\\d+)x(\\d+)")
         private const val TAG_TITLE = "title"
+        private const val TAG_PREVIEW_COLOR = "previewColor"
         const val KEY_DESCRIPTION = "description"
+        /** The metadata key of the color painted while the thumbnail loads, if the catalog has one. */
+        const val KEY_PREVIEW_COLOR = "previewColor"
         private const val TARGET_FORMAT = TAG_HLS
-        private var mediaList: MutableList<MediaInfo>? = null
+        @Volatile
+        private var mediaList: List<MediaInfo>? = null
+
+        /**
+         * The [MemoryGovernor.Trimmable] that lets the memory governor drop the parsed catalog.
+         */
+        val catalogTrimmable: MemoryGovernor.Trimmable = object : MemoryGovernor.Trimmable {
+            override val name: String
+                get() = "Catalog"
+            override val entryCount: Int
+                get() = mediaList?.size ?: 0
+            override val sizeInBytes: Long
+                get() = -1
+
+            override fun trimToFraction(fraction: Float) {
+                // The catalog is all or nothing and reloading it means downloading it again, so
+                // it is only dropped when the caches are emptied.
+                if (fraction == 0f) {
+                    mediaList = null
+                }
+            }
+        }
+
         @Throws(JSONException::class)
         fun buildMedia(url: String?): List<MediaInfo>? {
-            if (null != mediaList) {
-                return mediaList
+            val cachedMediaList = mediaList
+            if (null != cachedMediaList) {
+                return cachedMediaList
             }
             val urlPrefixMap: MutableMap<String, String> = HashMap()
-            mediaList = ArrayList()
+            // Fill a local list and publish it once complete, since the memory governor may drop
+            // the catalog at any time.
+            val mediaList: MutableList<MediaInfo> = ArrayList()
             val jsonObj = VideoProvider().parseUrl(url)
             val categories = jsonObj!!.getJSONArray(TAG_CATEGORIES)
             if (null != categories) {
@@ -144,12 +175,11 @@ class VideoProvider {
                             if (videoUrl == null) {
                                 continue
                             }
-                            val imageUrl = urlPrefixMap[TAG_IMAGES] + video.getString(TAG_THUMB)
-                            val bigImageUrl = urlPrefixMap[TAG_IMAGES] + video
-                                .getString(TAG_IMG_780_1200)
+                            val images = buildImages(video, urlPrefixMap[TAG_IMAGES])
                             val title = video.getString(TAG_TITLE)
                             val studio = video.getString(TAG_STUDIO)
                             val duration = video.getInt(TAG_DURATION)
+                            val previewColor = parsePreviewColor(video)
                             var tracks: MutableList<MediaTrack?>? = null
                             if (video.has(TAG_TRACKS)) {
                                 val tracksArray = video.getJSONArray(TAG_TRACKS)
@@ -171,28 +201,74 @@ class VideoProvider {
                                     }
                                 }
                             }
-                            mediaList!!.add(
+                            mediaList.add(
                                 buildMediaInfo(
                                     title, studio, subTitle, duration, videoUrl,
-                                    mimeType, imageUrl, bigImageUrl, tracks
+                                    mimeType, images, previewColor, tracks
                                 )
                             )
                         }
                     }
                 }
             }
+            Companion.mediaList = mediaList
             return mediaList
         }
 
+        /**
+         * Builds the images of a video with their sizes. The list thumbnail always comes first and
+         * the poster second, followed by any other size that the catalog provides, from the
+         * smallest to the largest.
+         */
+        @Throws(JSONException::class)
+        private fun buildImages(video: JSONObject, urlPrefix: String?): List<WebImage> {
+            val images: MutableList<WebImage> = ArrayList()
+            images.add(buildImage(urlPrefix, video.getString(TAG_THUMB), TAG_THUMB))
+            images.add(buildImage(urlPrefix, video.getString(TAG_IMG_780_1200), TAG_IMG_780_1200))
+            val extraImages: MutableList<WebImage> = ArrayList()
+            for (key in video.keys()) {
+                if (key != TAG_THUMB && key != TAG_IMG_780_1200 && TAG_IMAGE_SIZE.matches(key)) {
+                    extraImages.add(buildImage(urlPrefix, video.getString(key), key))
+                }
+            }
+            extraImages.sortBy { it.width.toLong() * it.height }
+            images.addAll(extraImages)
+            return images
+        }
+
+        private fun buildImage(urlPrefix: String?, path: String, sizeTag: String): WebImage {
+            val url = Uri.parse(urlPrefix + path)
+            val match = TAG_IMAGE_SIZE.matchEntire(sizeTag) ?: return WebImage(url)
+            return WebImage(url, match.groupValues[1].toInt(), match.groupValues[2].toInt())
+        }
+
+        /**
+         * Returns the optional preview color of a video, given as "#RRGGBB" in the catalog, or
+         * `null` if the video has none.
+         */
+        private fun parsePreviewColor(video: JSONObject): Int? {
+            val previewColor = video.optString(TAG_PREVIEW_COLOR, null) ?: return null
+            return try {
+                Color.parseColor(previewColor)
+            } catch (e: IllegalArgumentException) {
+                Log.w(TAG, "Ignoring the invalid preview color $previewColor")
+                null
+            }
+        }
+
         private fun buildMediaInfo(
             title: String, studio: String, subTitle: String,
-            duration: Int, url: String, mimeType: String?, imgUrl: String, bigImageUrl: String,
-            tracks: List<MediaTrack?>?): MediaInfo {
+            duration: Int, url: String, mimeType: String?, images: List<WebImage>,
+            previewColor: Int?, tracks: List<MediaTrack?>?): MediaInfo {
             val movieMetadata = MediaMetadata(MediaMetadata.MEDIA_TYPE_MOVIE)
             movieMetadata.putString(MediaMetadata.KEY_SUBTITLE, studio)
             movieMetadata.putString(MediaMetadata.KEY_TITLE, title)
-            movieMetadata.addImage(WebImage(Uri.parse(imgUrl)))
-            movieMetadata.addImage(WebImage(Uri.parse(bigImageUrl)))
+            for (image in images) {
+                movieMetadata.addImage(image)
+            }
+            if (previewColor != null) {
+                movieMetadata.putInt(KEY_PREVIEW_COLOR, previewColor)
+            }
             var jsonObj: JSONObject? = null
             try {
                 jsonObj = JSONObject()
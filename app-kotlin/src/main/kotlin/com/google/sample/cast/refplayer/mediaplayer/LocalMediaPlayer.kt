@@ -25,7 +25,12 @@ import com.google.sample.cast.refplayer.mediaplayer.PlaybackAdapter
 import com.google.sample.cast.refplayer.mediaplayer.RemotePlaybackHelper
 import java.util.Locale
 
-/** An interface for the local media player.  */
+/**
+ * An interface for the local media player.
+ *
+ * The player plays the media it is given, then each media of its queue in turn. The queue is given
+ * along with the first media, and is replaced by the next call to [play].
+ */
 abstract class LocalMediaPlayer(context: Context?, private val messagePrefix: String) {
   /** Callback to provide state update from [LocalMediaPlayer].  */
   interface Callback {
@@ -43,6 +48,8 @@ abstract class LocalMediaPlayer(context: Context?, private val messagePrefix: St
   var mediaInfo: MediaInfo? = null
     protected set
   protected var startPosition: Long = 0
+  // The media to play after mediaInfo, in order.
+  private val queue = ArrayList<MediaInfo>()
 
   @PlaybackStateCompat.State
   protected var playbackState: Int
@@ -64,6 +71,9 @@ abstract class LocalMediaPlayer(context: Context?, private val messagePrefix: St
   protected abstract fun onSeekTo(position: Int): Boolean
   protected abstract fun onStop(): Boolean
   protected abstract fun onDestroy(): Boolean
+
+  /** Plays [mediaInfo] from the start, once it became the current media of the queue.  */
+  protected abstract fun onPlayNext(): Boolean
   abstract val duration: Long
   protected abstract val currentPosition: Long
 
@@ -74,6 +84,8 @@ abstract class LocalMediaPlayer(context: Context?, private val messagePrefix: St
     }
     remotePlaybackHelper!!.setMedia(mediaInfo)
     startPosition = bundle.getLong(KEY_START_POSITION)
+    queue.clear()
+    bundle.getParcelableArrayList<MediaInfo>(KEY_QUEUE)?.let { queue.addAll(it) }
     if (onPlay(mediaId, bundle)) {
       logDebug("play media from position " + startPosition + " when isActive = " + isActive)
     }
@@ -110,6 +122,26 @@ abstract class LocalMediaPlayer(context: Context?, private val messagePrefix: St
     }
   }
 
+  /** Called when the current media ended, to go on with the queue or to stop.  */
+  protected fun onCompletion() {
+    if (queue.isEmpty()) {
+      stop()
+      return
+    }
+    mediaInfo = queue.removeAt(0)
+    remotePlaybackHelper!!.setMedia(mediaInfo)
+    startPosition = 0
+    if (onPlayNext()) {
+      logDebug("play the next media of the queue, %d left", queue.size)
+    } else {
+      stop()
+    }
+  }
+
+  /** The media to play after the current one, or `null` if there is none.  */
+  protected val nextMediaInfo: MediaInfo?
+    get() = queue.firstOrNull()
+
   fun destroy() {
     if (onDestroy()) {
       if (remotePlaybackHelper != null) {
@@ -208,5 +240,6 @@ abstract class LocalMediaPlayer(context: Context?, private val messagePrefix: St
     protected val TAG: String = "LocalMediaPlayer"
     val KEY_MEDIA_INFO: String = "com.google.sample.cast.refplayer.mediaplayer.MEDIA_INFO"
     val KEY_START_POSITION: String = "com.google.sample.cast.refplayer.mediaplayer.START_POSITION"
+    val KEY_QUEUE: String = "com.google.sample.cast.refplayer.mediaplayer.QUEUE"
   }
 }
@@ -40,11 +40,15 @@ import com.google.android.gms.cast.MediaInfo
 import com.google.android.gms.cast.MediaMetadata
 import com.google.android.gms.cast.framework.CastButtonFactory
 import com.google.android.gms.cast.framework.media.MediaUtils
+import com.google.android.gms.common.images.WebImage
 import com.google.sample.cast.refplayer.R
 import com.google.sample.cast.refplayer.browser.VideoProvider
 import com.google.sample.cast.refplayer.queue.ui.QueueListViewActivity
 import com.google.sample.cast.refplayer.settings.CastPreference
 import com.google.sample.cast.refplayer.utils.AsyncBitmap
+import com.google.sample.cast.refplayer.utils.CustomVolleyRequest
+import com.google.sample.cast.refplayer.utils.ImageQualityPolicy
+import com.google.sample.cast.refplayer.utils.ImageScheduler
 import com.google.sample.cast.refplayer.utils.Utils
 
 /**
@@ -52,11 +56,27 @@ import com.google.sample.cast.refplayer.utils.Utils
  */
 class LocalPlayerActivity : AppCompatActivity() {
     private var coverArtUrl: String? = null
+    private var coverArtAsyncBitmap: AsyncBitmap? = null
+    private var coverArtThumbnail: WebImage? = null
+    // The larger cover art that was not loaded because of the image quality policy.
+    private var skippedCoverArtUpgrade: WebImage? = null
+    private val tierChangedListener = object : ImageQualityPolicy.OnTierChangedListener {
+        override fun onTierChanged(tier: ImageQualityPolicy.Tier) {
+            val upgrade = skippedCoverArtUpgrade
+            if (tier != ImageQualityPolicy.Tier.LOW && upgrade != null) {
+                Log.d(TAG, "upgrade the cover art now that the link allows it")
+                loadCoverArt(upgrade.url, coverArt!!.drawable != null)
+                skippedCoverArtUpgrade = null
+            }
+        }
+    }
     private var titleView: TextView? = null
     private var descriptionView: TextView? = null
     private var container: View? = null
     private var coverArt: ImageView? = null
     private var selectedMedia: MediaInfo? = null
+    // The media to play after selectedMedia, in order.
+    private var queue = ArrayList<MediaInfo>()
     private var authorView: TextView? = null
     private var playCircle: ImageButton? = null
     private var startPosition: Long = 0
@@ -89,6 +109,8 @@ class LocalPlayerActivity : AppCompatActivity() {
             val mediaInfo = intent.getParcelableExtra<MediaInfo>("media") ?: return
             // Obtain the media info and other information from extra bundle.
             selectedMedia = mediaInfo
+            queue = intent.getParcelableArrayListExtra<MediaInfo>("queue") ?: ArrayList()
+            playbackAdapter!!.setQueue(queue)
             loadViews()
             setupActionBar()
             startPosition = bundle.getLong("startPosition", 0)
@@ -107,6 +129,7 @@ class LocalPlayerActivity : AppCompatActivity() {
 
     override fun onPause() {
         Log.d(TAG, "onPause() was called")
+        ImageQualityPolicy.getInstance(this).removeOnTierChangedListener(tierChangedListener)
         super.onPause()
     }
 
@@ -123,6 +146,7 @@ class LocalPlayerActivity : AppCompatActivity() {
 
     override fun onDestroy() {
         Log.d(TAG, "onDestroy() is called")
+        recordSkippedCoverArtUpgrade()
         playbackAdapter!!.destroy()
         super.onDestroy()
     }
@@ -135,6 +159,7 @@ class LocalPlayerActivity : AppCompatActivity() {
     override fun onResume() {
         super.onResume()
         Log.d(TAG, "onResume() was called")
+        ImageQualityPolicy.getInstance(this).addOnTierChangedListener(tierChangedListener)
         playbackAdapter!!.updatePlaybackState()
         if (playbackAdapter!!.isPlaybackLocal && shouldStart) {
             Log.d(
@@ -265,18 +290,28 @@ class LocalPlayerActivity : AppCompatActivity() {
         coverArt = findViewById<View>(R.id.coverArtView) as ImageView
         val url = MediaUtils.getImageUrl(selectedMedia, 0)
         if (url != null && !TextUtils.equals(coverArtUrl, url)) {
-            // Set the coverArt to null before fetching in case the fetching failed and we never update
-            // the image.
-            coverArt!!.setImageBitmap(null)
-            val coverArtAsyncBitmap = AsyncBitmap()
-            coverArtAsyncBitmap.setCallback(
-                object : AsyncBitmap.Callback {
-                    override fun onBitmapLoaded(bitmap: Bitmap?) {
-                        coverArt!!.setImageBitmap(bitmap)
-                    }
-                })
-            coverArtAsyncBitmap.loadBitmap(Uri.parse(url))
+            recordSkippedCoverArtUpgrade()
+            // Discard the cover art of the previous media if it is still loading.
+            coverArtAsyncBitmap?.clear()
+            coverArtAsyncBitmap = null
+            // The browse list has just shown this image, so paint it from the shared memory cache
+            // to let the shared element transition start with the cover art in place. It is null
+            // if the image is not cached, in which case the cover art stays empty until it loads.
+            val cachedCoverArt = CustomVolleyRequest.getInstance(this)!!.getCachedBitmap(url)
+            coverArt!!.setImageBitmap(cachedCoverArt)
             coverArtUrl = url
+            coverArtThumbnail = selectedMedia!!.metadata!!.images[0]
+            val upgrade = getCoverArtUpgrade()
+            if (upgrade != null && ImageQualityPolicy.getInstance(this).allowsOptionalDownloads()) {
+                loadCoverArt(upgrade.url, cachedCoverArt != null)
+            } else {
+                // On a slow or metered link, keep the thumbnail and upgrade it in place if the
+                // link gets better while the screen is shown.
+                skippedCoverArtUpgrade = upgrade
+                if (cachedCoverArt == null) {
+                    loadCoverArt(Uri.parse(url), false)
+                }
+            }
         }
         ViewCompat.setTransitionName(coverArt!!, getString(R.string.transition_image))
         playCircle = findViewById<View>(R.id.play_circle) as ImageButton
@@ -294,6 +329,85 @@ class LocalPlayerActivity : AppCompatActivity() {
         }
     }
 
+    /**
+     * Loads the cover art from `url`, decoded at the size of the cover art frame: as wide as the
+     * screen, with the aspect ratio of the thumbnail. If a placeholder is already shown, the load is
+     * not urgent and the placeholder is kept if it fails.
+     */
+    private fun loadCoverArt(url: Uri, hasPlaceholder: Boolean) {
+        coverArtAsyncBitmap?.clear()
+        val frameWidth = Utils.getDisplaySize(this).x
+        val thumbnail = coverArtThumbnail
+        val frameHeight = if (thumbnail != null && thumbnail.width > 0) {
+            frameWidth * thumbnail.height / thumbnail.width
+        } else {
+            0
+        }
+        val asyncBitmap = AsyncBitmap(frameWidth, frameHeight)
+        if (hasPlaceholder) {
+            asyncBitmap.setPriority(ImageScheduler.Priority.PREFETCH)
+        }
+        asyncBitmap.setCallback(
+            object : AsyncBitmap.Callback {
+                override fun onBitmapLoaded(bitmap: Bitmap?) {
+                    if (bitmap != null || !hasPlaceholder) {
+                        coverArt!!.setImageBitmap(bitmap)
+                    }
+                }
+            })
+        asyncBitmap.loadBitmap(url)
+        coverArtAsyncBitmap = asyncBitmap
+    }
+
+    /** Records the bytes saved by a cover art upgrade that was skipped for good.  */
+    private fun recordSkippedCoverArtUpgrade() {
+        skippedCoverArtUpgrade?.let {
+            ImageQualityPolicy.getInstance(this).onImageDownsized(it, coverArtThumbnail)
+        }
+        skippedCoverArtUpgrade = null
+    }
+
+    /**
+     * Returns a larger image with the aspect ratio of the list thumbnail, the smallest one that
+     * covers the width of the screen if there is one, or `null` if the catalog has no such image.
+     */
+    private fun getCoverArtUpgrade(): WebImage? {
+        val images = selectedMedia?.metadata?.images ?: return null
+        if (images.size < 2) {
+            return null
+        }
+        val thumbnail = images[0]
+        val targetWidth = Utils.getDisplaySize(this).x
+        if (thumbnail.width <= 0 || thumbnail.height <= 0 || thumbnail.width >= targetWidth) {
+            return null
+        }
+        var upgrade: WebImage? = null
+        for (i in 1 until images.size) {
+            val image = images[i]
+            if (image.width <= thumbnail.width || !hasSameAspectRatio(image, thumbnail)) {
+                continue
+            }
+            val isBetter = when {
+                upgrade == null -> true
+                upgrade.width < targetWidth -> image.width > upgrade.width
+                else -> image.width >= targetWidth && image.width < upgrade.width
+            }
+            if (isBetter) {
+                upgrade = image
+            }
+        }
+        return upgrade
+    }
+
+    private fun hasSameAspectRatio(first: WebImage, second: WebImage): Boolean {
+        if (first.height <= 0 || second.height <= 0) {
+            return false
+        }
+        val firstRatio = first.width.toFloat() / first.height
+        val secondRatio = second.width.toFloat() / second.height
+        return Math.abs(firstRatio - secondRatio) <= ASPECT_RATIO_TOLERANCE * secondRatio
+    }
+
     /**
      * A class to transfer the playback state of [PlaybackAdapter] to [ ] and update the UI of [LocalPlayerActivity].
      */
@@ -317,9 +431,20 @@ class LocalPlayerActivity : AppCompatActivity() {
             }
             val playingMediaTitle = playingMetadata.getString(MediaMetadata.KEY_TITLE)
             val selectedMediaTitle = selectedMetadata.getString(MediaMetadata.KEY_TITLE)
+            val queueIndex = queue.indexOfFirst {
+                TextUtils.equals(it.metadata?.getString(MediaMetadata.KEY_TITLE), playingMediaTitle)
+            }
             if (TextUtils.equals(selectedMediaTitle, playingMediaTitle)) {
                 Log.d(TAG, "update the seekbar for the playing media")
                 playbackAdapter!!.setupSeekbar()
+            } else if (queueIndex >= 0) {
+                Log.d(TAG, "show the next media of the queue")
+                queue.subList(0, queueIndex + 1).clear()
+                playbackAdapter!!.setQueue(queue)
+                selectedMedia = playingMedia
+                loadViews()
+                updateMetadata(true)
+                playbackAdapter!!.setupSeekbar()
             } else {
                 Log.d(TAG, "stop the playing media playback")
                 playbackAdapter!!.stop()
@@ -343,5 +468,6 @@ class LocalPlayerActivity : AppCompatActivity() {
 
     companion object {
         private const val TAG = "LocalPlayerActivity"
+        private const val ASPECT_RATIO_TOLERANCE = 0.05f
     }
 }
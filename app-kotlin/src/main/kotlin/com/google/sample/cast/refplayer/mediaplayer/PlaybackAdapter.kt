@@ -72,6 +72,8 @@ abstract class PlaybackAdapter protected constructor(
   protected val mediaControllerCallback: MediaControllerCompat.Callback
   var mediaInfo: MediaInfo? = null
     protected set
+  // The media to play after mediaInfo, in order.
+  protected var queue = ArrayList<MediaInfo>()
 
   @PlaybackStateCompat.State
   protected var playbackState: Int
@@ -121,6 +123,11 @@ abstract class PlaybackAdapter protected constructor(
     }
   }
 
+  /** Sets the media to play in order after the one given to [play].  */
+  fun setQueue(queue: List<MediaInfo>) {
+    this.queue = ArrayList(queue)
+  }
+
   /** Stops the player. The player can be restart if needed.  */
   fun stop() {
     if (onStop()) {
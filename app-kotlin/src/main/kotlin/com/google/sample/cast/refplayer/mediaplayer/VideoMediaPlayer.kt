@@ -19,15 +19,29 @@ import android.app.Activity
 import android.media.MediaPlayer
 import android.net.Uri
 import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
 import android.support.v4.media.session.PlaybackStateCompat
 import android.text.TextUtils
 import android.util.Log
+import android.view.SurfaceHolder
 import android.view.View
 import android.widget.VideoView
+import com.google.android.gms.cast.MediaInfo
 import com.google.sample.cast.refplayer.R
 import com.google.sample.cast.refplayer.utils.Utils
+import java.io.IOException
 
-/** A player to host the video local playback.  */
+/**
+ * A player to host the video local playback.
+ *
+ * The video view plays the media it is given. When the current media gets within
+ * [PRELOAD_AHEAD_MS] of its end, the next media of the queue is prepared on a [MediaPlayer] of its
+ * own, which buffers it in the background. Once the current media ends, that player takes over the
+ * surface of the video view and starts right away, so that the queue plays on without waiting for
+ * the next media to load. If the next media is not prepared by then, the video view loads it
+ * instead.
+ */
 class VideoMediaPlayer(private val activity: Activity) :
   LocalMediaPlayer(activity, "video") {
   /** Callback to provide state update from [VideoMediaPlayer].  */
@@ -42,88 +56,253 @@ class VideoMediaPlayer(private val activity: Activity) :
     fun onPlaybackLocationChanged()
   }
 
+  private val handler = Handler(Looper.getMainLooper())
+  private val preloadCheck: Runnable = object : Runnable {
+    override fun run() {
+      preloadNextIfDue()
+      handler.postDelayed(this, PRELOAD_CHECK_INTERVAL_MS)
+    }
+  }
   private var videoView: VideoView? = null
+  private val completionListener = MediaPlayer.OnCompletionListener {
+    logDebug("onCompletion is reached")
+    onCompletion()
+  }
+  private val errorListener = MediaPlayer.OnErrorListener { mediaPlayer, what, extra ->
+    Log.e(TAG, "OnErrorListener.onError(): VideoView encountered an error, what: " + what
+        + ", extra: " + extra)
+    val message: String = if (extra == MediaPlayer.MEDIA_ERROR_TIMED_OUT) {
+      activity.getString(R.string.video_error_media_load_timeout)
+    } else if (what == MediaPlayer.MEDIA_ERROR_SERVER_DIED) {
+      activity.getString(R.string.video_error_server_unaccessible)
+    } else {
+      activity.getString(R.string.video_error_unknown_error)
+    }
+    Utils.showErrorDialog(activity, message)
+    stop()
+    true
+  }
+  // Prepares the next media of the queue, while the current one plays.
+  private var nextPlayer: MediaPlayer? = null
+  private var nextPlayerPrepared = false
+  // Plays a media of the queue on the surface of the video view, in place of the video view.
+  private var queuePlayer: MediaPlayer? = null
+  // The size of the last video prepared by the video view, which it keeps measuring itself with.
+  private var videoViewWidth = 0
+  private var videoViewHeight = 0
 
   init {
     initializeVideoView()
   }
 
   override fun onPlay(mediaId: String?, bundle: Bundle?): Boolean {
-    val mediaInfo = mediaInfo
-    if (TextUtils.isEmpty(mediaInfo!!.contentId) && !TextUtils.isEmpty(
-        mediaInfo.entity
-      )
-    ) {
-      videoView!!.setVideoPath(mediaInfo.entity)
-    } else {
-      videoView!!.setVideoURI(Uri.parse(mediaInfo.contentId))
-    }
+    releaseQueuePlayers()
+    setVideoSource(mediaInfo!!)
     return true
   }
 
   override fun onPlay(): Boolean {
-    videoView!!.requestFocus()
-    videoView!!.start()
+    val queuePlayer = queuePlayer
+    if (queuePlayer != null) {
+      queuePlayer.start()
+    } else {
+      videoView!!.requestFocus()
+      videoView!!.start()
+    }
+    handler.removeCallbacks(preloadCheck)
+    handler.post(preloadCheck)
     return true
   }
 
   override fun onPause(): Boolean {
-    videoView!!.pause()
+    handler.removeCallbacks(preloadCheck)
+    val queuePlayer = queuePlayer
+    if (queuePlayer != null) {
+      queuePlayer.pause()
+    } else {
+      videoView!!.pause()
+    }
     return true
   }
 
   override fun onSeekTo(position: Int): Boolean {
-    videoView!!.seekTo(position)
+    val queuePlayer = queuePlayer
+    if (queuePlayer != null) {
+      queuePlayer.seekTo(position)
+    } else {
+      videoView!!.seekTo(position)
+    }
     return true
   }
 
   override fun onStop(): Boolean {
+    releaseQueuePlayers()
+    videoView!!.stopPlayback()
+    return true
+  }
+
+  override fun onPlayNext(): Boolean {
+    val player = nextPlayer
+    if (player == null || !nextPlayerPrepared) {
+      logDebug("the next media is not prepared yet, so the video view loads it")
+      releaseQueuePlayers()
+      setVideoSource(mediaInfo!!)
+      return true
+    }
+    if (!hasVideoViewAspectRatio(player)) {
+      logDebug("the next media has another aspect ratio, so the video view loads it")
+      releaseQueuePlayers()
+      setVideoSource(mediaInfo!!)
+      return true
+    }
+    nextPlayer = null
+    queuePlayer?.release()
+    // Frees the surface, which a single player can draw on at a time.
     videoView!!.stopPlayback()
+    queuePlayer = player
+    player.setDisplay(videoView!!.holder)
+    player.setOnCompletionListener(completionListener)
+    player.setOnErrorListener(errorListener)
+    callback!!.onMediaLoaded()
+    play()
     return true
   }
 
   public override fun onDestroy(): Boolean {
+    releaseQueuePlayers()
     return true
   }
 
   override val duration: Long
-    get() = if (isActive) videoView!!.duration.toLong() else 0L
+    get() {
+      if (!isActive) {
+        return 0L
+      }
+      return (queuePlayer?.duration ?: videoView!!.duration).toLong()
+    }
   override val currentPosition: Long
-    protected get() = if (isActive) videoView!!.currentPosition.toLong() else 0L
+    protected get() {
+      if (!isActive) {
+        return 0L
+      }
+      return (queuePlayer?.currentPosition ?: videoView!!.currentPosition).toLong()
+    }
+
+  private fun setVideoSource(mediaInfo: MediaInfo) {
+    if (TextUtils.isEmpty(mediaInfo.contentId) && !TextUtils.isEmpty(mediaInfo.entity)) {
+      videoView!!.setVideoPath(mediaInfo.entity)
+    } else {
+      videoView!!.setVideoURI(Uri.parse(mediaInfo.contentId))
+    }
+  }
+
+  /**
+   * Returns whether the video of `player` has, within 1%, the aspect ratio of the last video
+   * prepared by the video view, so that it is not stretched on the surface of the video view.
+   */
+  private fun hasVideoViewAspectRatio(player: MediaPlayer): Boolean {
+    val width = player.videoWidth.toLong()
+    val height = player.videoHeight.toLong()
+    if (width <= 0 || height <= 0 || videoViewWidth <= 0 || videoViewHeight <= 0) {
+      return false
+    }
+    val difference = Math.abs(width * videoViewHeight - videoViewWidth * height)
+    return difference * 100 <= width * videoViewHeight
+  }
+
+  /** Starts preparing the next media of the queue if the current one is about to end.  */
+  private fun preloadNextIfDue() {
+    val nextMediaInfo = nextMediaInfo ?: return
+    val duration = duration
+    if (nextPlayer != null || duration <= 0 || duration - currentPosition > PRELOAD_AHEAD_MS) {
+      return
+    }
+    val hasEntity =
+      TextUtils.isEmpty(nextMediaInfo.contentId) && !TextUtils.isEmpty(nextMediaInfo.entity)
+    val contentUrl = (if (hasEntity) nextMediaInfo.entity else nextMediaInfo.contentId) ?: return
+    logDebug("prepare the next media of the queue")
+    val player = MediaPlayer()
+    nextPlayer = player
+    nextPlayerPrepared = false
+    player.setOnPreparedListener { mediaPlayer ->
+      if (mediaPlayer === nextPlayer) {
+        logDebug("the next media is prepared")
+        nextPlayerPrepared = true
+      }
+    }
+    player.setOnErrorListener { mediaPlayer, what, extra ->
+      // The video view loads the next media instead, and reports the error if it fails too.
+      Log.w(TAG, "Failed to prepare the next media, what: $what, extra: $extra")
+      if (mediaPlayer === nextPlayer) {
+        releaseNextPlayer()
+      }
+      true
+    }
+    try {
+      player.setDataSource(activity, Uri.parse(contentUrl))
+      player.prepareAsync()
+    } catch (e: IOException) {
+      Log.w(TAG, "Failed to prepare the next media", e)
+      releaseNextPlayer()
+    } catch (e: IllegalStateException) {
+      Log.w(TAG, "Failed to prepare the next media", e)
+      releaseNextPlayer()
+    }
+  }
+
+  private fun releaseNextPlayer() {
+    nextPlayer?.release()
+    nextPlayer = null
+    nextPlayerPrepared = false
+  }
+
+  private fun releaseQueuePlayers() {
+    handler.removeCallbacks(preloadCheck)
+    releaseNextPlayer()
+    queuePlayer?.release()
+    queuePlayer = null
+  }
 
   private fun initializeVideoView() {
     videoView = activity.findViewById<View>(R.id.videoView1) as VideoView
-    videoView!!.setOnPreparedListener {
+    videoView!!.setOnPreparedListener { mediaPlayer ->
       logDebug("onPrepared")
+      videoViewWidth = mediaPlayer.videoWidth
+      videoViewHeight = mediaPlayer.videoHeight
       callback!!.onMediaLoaded()
       videoView!!.seekTo(startPosition.toInt())
       play()
     }
-    videoView!!.setOnCompletionListener {
-      logDebug("onCompletion is reached")
-      stop()
-    }
+    videoView!!.setOnCompletionListener(completionListener)
     videoView!!.setOnTouchListener { v, event ->
       notifyPlaybackStateChanged()
       false
     }
-    videoView!!.setOnErrorListener { mediaPlayer, what, extra ->
-      Log.e(TAG, "OnErrorListener.onError(): VideoView encountered an error, what: " + what
-          + ", extra: " + extra)
-      val message: String = if (extra == MediaPlayer.MEDIA_ERROR_TIMED_OUT) {
-        activity.getString(R.string.video_error_media_load_timeout)
-      } else if (what == MediaPlayer.MEDIA_ERROR_SERVER_DIED) {
-        activity.getString(R.string.video_error_server_unaccessible)
-      } else {
-        activity.getString(R.string.video_error_unknown_error)
+    videoView!!.setOnErrorListener(errorListener)
+    // The video view releases its own player along with its surface, and so does the queue.
+    videoView!!.holder.addCallback(object : SurfaceHolder.Callback {
+      override fun surfaceCreated(holder: SurfaceHolder) {}
+
+      override fun surfaceChanged(holder: SurfaceHolder, format: Int, width: Int, height: Int) {}
+
+      override fun surfaceDestroyed(holder: SurfaceHolder) {
+        val player = queuePlayer
+        val media = mediaInfo
+        releaseQueuePlayers()
+        if (player != null && media != null) {
+          // The video view opens its media again once the surface is back, so it is given the
+          // media of the queue player, to resume from where that player was.
+          startPosition = player.currentPosition.toLong()
+          setVideoSource(media)
+        }
       }
-      Utils.showErrorDialog(activity, message)
-      stop()
-      true
-    }
+    })
   }
 
   companion object {
     private const val TAG = "VideoMediaPlayer"
+    // Like the preload time of the queue items on a receiver.
+    private const val PRELOAD_AHEAD_MS = 20_000L
+    private const val PRELOAD_CHECK_INTERVAL_MS = 1_000L
   }
 }
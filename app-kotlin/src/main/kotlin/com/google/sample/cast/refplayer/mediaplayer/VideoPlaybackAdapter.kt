@@ -66,6 +66,7 @@ class VideoPlaybackAdapter(activity: Activity?, playbackAdapterCallback: Callbac
     val bundle = Bundle()
     bundle.putParcelable(LocalMediaPlayer.KEY_MEDIA_INFO, mediaInfo)
     bundle.putLong(LocalMediaPlayer.KEY_START_POSITION, position)
+    bundle.putParcelableArrayList(LocalMediaPlayer.KEY_QUEUE, queue)
     mediaController!!.transportControls.playFromMediaId(contentUrl, bundle)
     return true
   }
@@ -121,7 +121,16 @@ class VideoPlaybackAdapterWithoutAudioFocus(
     }
     videoView!!.setOnCompletionListener {
       logDebug("onCompletion is reached")
-      stop()
+      if (queue.isEmpty()) {
+        stop()
+      } else {
+        // Without a media session, the next media of the queue is loaded once the current one
+        // ends, and the activity is told about it directly.
+        val nextMediaInfo = queue.removeAt(0)
+        logDebug("play the next media of the queue, %d left", queue.size)
+        onPlay(nextMediaInfo, 0)
+        playbackAdapterCallback.onMediaInfoUpdated(nextMediaInfo)
+      }
     }
     videoView!!.setOnTouchListener { v, event ->
       updateControllers()
@@ -31,12 +31,15 @@ import android.support.v4.media.session.MediaSessionCompat
 import android.support.v4.media.session.PlaybackStateCompat
 import android.text.TextUtils
 import android.util.Log
+import androidx.collection.LruCache
 import androidx.media.utils.MediaConstants
 import com.google.android.gms.cast.MediaInfo
 import com.google.android.gms.cast.MediaMetadata
 import com.google.sample.cast.refplayer.R
 import com.google.sample.cast.refplayer.mediaplayer.LocalMediaPlayer
 import com.google.sample.cast.refplayer.utils.AsyncBitmap
+import com.google.sample.cast.refplayer.utils.ImageScheduler
+import com.google.sample.cast.refplayer.utils.MemoryGovernor
 
 /** A proxy of Media Session.  */
 class MediaSessionProxy(private val context: Context, localMediaPlayer: LocalMediaPlayer) {
@@ -63,6 +66,24 @@ class MediaSessionProxy(private val context: Context, localMediaPlayer: LocalMed
       return field
     }
   private var stopMediaNotificationAfterPaused: Boolean? = null
+  // The artworks that are already scaled for the system, keyed by the image URL of the media.
+  private val artworkCache = LruCache<Uri, Bitmap>(MAX_CACHED_ARTWORKS)
+  // The image URL of the media whose artwork the metadata shows, or is waiting for.
+  private var artworkUrl: Uri? = null
+  private val artworkMaxSize: Int =
+    context.resources.getDimensionPixelSize(R.dimen.media_session_artwork_max_size)
+  private val artworkTrimmable = object : MemoryGovernor.Trimmable {
+    override val name: String
+      get() = "Media session artworks"
+    override val entryCount: Int
+      get() = artworkCache.size()
+    override val sizeInBytes: Long
+      get() = MemoryGovernor.getSizeInBytes(artworkCache.snapshot().values)
+
+    override fun trimToFraction(fraction: Float) {
+      MemoryGovernor.trimLruCache(artworkCache, fraction)
+    }
+  }
 
   init {
     localNotificationProxy = LocalNotificationProxy(
@@ -72,6 +93,7 @@ class MediaSessionProxy(private val context: Context, localMediaPlayer: LocalMed
     audioFocusHelper = AudioFocusHelper()
     this.localMediaPlayer = localMediaPlayer
     localMediaPlayer.addCallback(LocalMediaPlayerCallback())
+    MemoryGovernor.getInstance(context).register(artworkTrimmable)
 
     // Create a MediaSessionCompat for the local media playback.
     val mediaSessionCompat = MediaSessionCompat(context, "CastVideoSample")
@@ -106,6 +128,8 @@ class MediaSessionProxy(private val context: Context, localMediaPlayer: LocalMed
       mediaSession!!.release()
       mediaSession = null
     }
+    MemoryGovernor.getInstance(context).unregister(artworkTrimmable)
+    artworkCache.evictAll()
   }
 
   private fun notifyPlaybackLocation() {
@@ -286,20 +310,25 @@ class MediaSessionProxy(private val context: Context, localMediaPlayer: LocalMed
       metadataBuilder.putLong(MediaMetadataCompat.METADATA_KEY_DURATION, duration)
       val webImage = if (metadata.hasImages()) metadata.images[0] else null
       val imageUrl = webImage?.url
-      if (((imageUrl != null
-          ) && (thumbnailImage != null
-          ) && (imageUrl == thumbnailImage!!.imageUrl) && (thumbnailImage!!.bitmap != null))
-      ) {
-        Log.d(TAG, "reuse the existing bitmap")
-        metadataBuilder.putBitmap(
-          MediaMetadataCompat.METADATA_KEY_ART,
-          thumbnailImage!!.bitmap
-        )
-      } else if (imageUrl != null) {
+      if (imageUrl == null || imageUrl != artworkUrl) {
+        // The builder would otherwise show the artwork of the previous media, and keep it in
+        // memory after the cache lets it go.
+        metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, null)
+        artworkUrl = imageUrl
+      }
+      val artwork = if (imageUrl != null) artworkCache.get(imageUrl) else null
+      if (artwork != null) {
+        Log.d(TAG, "reuse the scaled artwork")
+        metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, artwork)
+      } else if (imageUrl != null && thumbnailImage?.isLoading(imageUrl) != true) {
         thumbnailImage = ThumbnailImage(imageUrl)
       }
       if (mediaSession != null) {
         mediaSession!!.setMetadata(metadataBuilder.build())
+        // The media changes on its own when the player moves on to the next media of its queue.
+        val bundle = Bundle()
+        bundle.putParcelable(EVENT_KEY_MEDIA_INFO, mediaInfo)
+        mediaSession!!.sendSessionEvent(EVENT_ON_UPDATE_MEDIA_INFO, bundle)
       }
     }
 
@@ -375,18 +404,50 @@ class MediaSessionProxy(private val context: Context, localMediaPlayer: LocalMed
     }
   }
 
+  /**
+   * Scales `bitmap` down so that it fits in the largest artwork size that the system shows. The
+   * metadata is parceled to the system on every update, so a smaller bitmap makes every update
+   * cheaper.
+   */
+  private fun scaleArtwork(bitmap: Bitmap?): Bitmap? {
+    if (bitmap == null) {
+      return null
+    }
+    val longestSide = Math.max(bitmap.width, bitmap.height)
+    if (longestSide <= artworkMaxSize) {
+      return bitmap
+    }
+    val scale = artworkMaxSize.toFloat() / longestSide
+    return Bitmap.createScaledBitmap(
+      bitmap,
+      Math.round(bitmap.width * scale),
+      Math.round(bitmap.height * scale),
+      /* filter= */ true
+    )
+  }
+
+  /** Loads the artwork of a media item and hands it, scaled, to the media session.  */
   private inner class ThumbnailImage(val imageUrl: Uri) {
-    private val asyncBitmap: AsyncBitmap
-    var bitmap: Bitmap? = null
+    // Subsample while decoding so that the full size image is never held in memory.
+    private val asyncBitmap: AsyncBitmap = AsyncBitmap(artworkMaxSize, artworkMaxSize)
+    private var loading = true
 
     init {
-      asyncBitmap = AsyncBitmap()
+      asyncBitmap.setPriority(ImageScheduler.Priority.NOTIFICATION)
       asyncBitmap.setCallback(
         object : AsyncBitmap.Callback {
           override fun onBitmapLoaded(bitmap: Bitmap?) {
             Log.d(TAG, "bitmap is loaded")
-            this@ThumbnailImage.bitmap = bitmap
-            metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, bitmap)
+            loading = false
+            val artwork = scaleArtwork(bitmap)
+            if (artwork != null) {
+              artworkCache.put(imageUrl, artwork)
+            }
+            if (imageUrl != artworkUrl) {
+              // The media changed while its artwork was loading.
+              return
+            }
+            metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, artwork)
             if (mediaSession != null) {
               mediaSession!!.setMetadata(metadataBuilder.build())
             }
@@ -394,6 +455,11 @@ class MediaSessionProxy(private val context: Context, localMediaPlayer: LocalMed
         })
       asyncBitmap.loadBitmap(imageUrl)
     }
+
+    /** Returns whether the artwork of `url` is still loading.  */
+    fun isLoading(url: Uri): Boolean {
+      return loading && imageUrl == url
+    }
   }
 
   companion object {
@@ -414,5 +480,6 @@ class MediaSessionProxy(private val context: Context, localMediaPlayer: LocalMed
       "com.google.sample.cast.refplayer.notification.MediaSessionProxy.actionUpdatePlaybackState"
     private val ACTION_STOP =
       "com.google.sample.cast.refplayer.notification.MediaSessionProxy.actionStop"
+    private const val MAX_CACHED_ARTWORKS = 4
   }
 }
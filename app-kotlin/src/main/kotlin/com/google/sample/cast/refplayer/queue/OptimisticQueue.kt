@@ -0,0 +1,714 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.cast.refplayer.queue
+
+import android.util.Log
+import android.util.SparseArray
+import androidx.recyclerview.widget.ListUpdateCallback
+import com.google.android.gms.cast.MediaQueueItem
+import com.google.android.gms.cast.framework.media.MediaQueue
+import com.google.android.gms.cast.framework.media.RemoteMediaClient
+import com.google.android.gms.common.api.PendingResult
+import com.google.android.gms.common.api.ResultCallback
+import org.json.JSONObject
+import java.util.Arrays
+import java.util.Locale
+
+/**
+ * The queue as shown to the user: the items of the [MediaQueue], with the edits sent to the
+ * receiver already applied on top of them, so that the queue screen does not wait for the
+ * receiver to answer.
+ *
+ * Each edit is kept, in order, with the [PendingResult] of its request. An edit that fails is
+ * dropped, which rolls the shown queue back. An edit that succeeds is dropped once the
+ * [MediaQueue] reflects it, which it does after the receiver sends its new status. Items inserted
+ * by an edit have no item ID until then, so they are shown under temporary negative IDs. Every
+ * change of the shown queue is reported to the [Callback]. While no edit is pending, the shown
+ * queue is the [MediaQueue] itself and its changes are reported as they come. All the methods must
+ * be called on the main thread.
+ */
+class OptimisticQueue : MediaQueue.Callback() {
+
+    /**
+     * A listener called when the shown queue changes.
+     */
+    interface Callback : ListUpdateCallback {
+        /** Called when the shown queue changed too much to be described as a single update.  */
+        fun onReloaded()
+    }
+
+    /**
+     * An edit of the queue that the [MediaQueue] does not reflect yet.
+     */
+    private class Edit(
+        val type: Int,
+        // The removed or moved items, or the temporary IDs of the inserted items.
+        val itemIds: IntArray,
+        // The item that the moved or inserted items go before, or INVALID_ITEM_ID for the end.
+        var beforeItemId: Int
+    ) {
+        // The position the moved item was shown at when its drag started.
+        var startPosition = 0
+        var sent = false
+        var succeeded = false
+        var sentVersion = 0
+        var sentReloadCount = 0
+    }
+
+    private val mBase = QueuePositionIndex()
+    private val mEdits = ArrayList<Edit>()
+    // The items inserted by the edits, under their temporary IDs.
+    private val mInsertedItems = SparseArray<MediaQueueItem>()
+    private var mQueue: MediaQueue? = null
+    private var mCallback: Callback? = null
+    // The item ID at each position of the shown queue, only built while edits are pending.
+    private var mItemIds: IntArray? = null
+    private var mCount = 0
+    // How far the pending edits can shift an item that they do not move from its position in the
+    // MediaQueue.
+    private var mMaxShift = 0
+    private var mNextTemporaryId = -1
+    // Counts the changes of the MediaQueue, to tell whether one happened since an edit was sent.
+    private var mVersion = 0
+    private var mReloadCount = 0
+    private var mRolledBackCount = 0
+    // The single-slot moves made by the drags, and the requests sent to the receiver for them.
+    private var mDragMoveCount = 0
+    private var mMoveRequestCount = 0
+
+    /**
+     * Shows the items of `queue`, and drops the edits made to the previous queue.
+     */
+    fun attach(queue: MediaQueue?) {
+        if (queue === mQueue) {
+            return
+        }
+        mQueue?.unregisterCallback(this)
+        mQueue = queue
+        mQueue?.registerCallback(this)
+        mBase.attach(queue)
+        mEdits.clear()
+        mInsertedItems.clear()
+        mItemIds = null
+        mCallback?.onReloaded()
+    }
+
+    fun setCallback(callback: Callback?) {
+        mCallback = callback
+    }
+
+    val count: Int
+        get() = if (mItemIds != null) mCount else mBase.count
+
+    /**
+     * Returns the item shown at `position`, or `null` if its data is not fetched from the receiver
+     * yet, in which case it is fetched.
+     */
+    fun getItem(position: Int): MediaQueueItem? {
+        val itemId = getShownItemId(position)
+        if (itemId < 0) {
+            return mInsertedItems[itemId]
+        }
+        val basePosition = toBasePosition(position)
+        return if (basePosition < 0) null else mQueue?.getItemAtIndex(basePosition, true)
+    }
+
+    /**
+     * Fetches the data of the items shown from `startPosition` to `endPosition`, both included,
+     * that are not cached yet. The items are asked for in a single pass, which [MediaQueue] batches
+     * into as few requests to the receiver as it can.
+     */
+    fun prefetch(startPosition: Int, endPosition: Int) {
+        val queue = mQueue ?: return
+        for (position in Math.max(startPosition, 0)..Math.min(endPosition, count - 1)) {
+            val basePosition = toBasePosition(position)
+            if (basePosition >= 0) {
+                queue.getItemAtIndex(basePosition, true)
+            }
+        }
+    }
+
+    /**
+     * Returns the ID of the item shown at `position`, or [MediaQueueItem.INVALID_ITEM_ID] if it is
+     * not inserted on the receiver yet.
+     */
+    fun getItemId(position: Int): Int {
+        val itemId = getShownItemId(position)
+        return if (itemId < 0) MediaQueueItem.INVALID_ITEM_ID else itemId
+    }
+
+    /**
+     * Returns the position at which the item `itemId` is shown, or `-1`.
+     */
+    fun getPosition(itemId: Int): Int {
+        val basePosition = mBase.getPosition(itemId, -1)
+        val itemIds = mItemIds
+        if (itemIds == null || basePosition < 0) {
+            return basePosition
+        }
+        if (isMoved(itemId)) {
+            return indexOf(itemIds, 0, mCount, itemId)
+        }
+        // Only looks around the position in the MediaQueue, as far as the edits can shift it.
+        return indexOf(
+            itemIds,
+            Math.max(basePosition - mMaxShift, 0),
+            Math.min(basePosition + mMaxShift + 1, mCount),
+            itemId
+        )
+    }
+
+    /**
+     * Returns the position of the item `itemId` in the [MediaQueue], without the edits, or `-1`.
+     */
+    fun getBasePosition(itemId: Int): Int {
+        return mBase.getPosition(itemId, -1)
+    }
+
+    /**
+     * Returns the ID of the first item shown at or after `position` that is on the receiver, which
+     * items inserted at `position` have to go before. Returns [MediaQueueItem.INVALID_ITEM_ID] if
+     * there is none, to insert at the end.
+     */
+    fun getInsertBeforeItemId(position: Int): Int {
+        for (i in position until count) {
+            val itemId = getShownItemId(i)
+            if (itemId > 0) {
+                return itemId
+            }
+        }
+        return MediaQueueItem.INVALID_ITEM_ID
+    }
+
+    /**
+     * Removes the item shown at `position`. Returns `false` if the item cannot be removed yet,
+     * because it is not inserted on the receiver yet.
+     */
+    fun remove(client: RemoteMediaClient, position: Int): Boolean {
+        val itemId = getShownItemId(position)
+        if (itemId < 0) {
+            return false
+        }
+        val edit = Edit(EDIT_REMOVE, intArrayOf(itemId), MediaQueueItem.INVALID_ITEM_ID)
+        mEdits.add(edit)
+        refresh()
+        send(edit, client.queueRemoveItem(itemId, JSONObject()))
+        return true
+    }
+
+    /**
+     * Inserts `items` before the item `beforeItemId`, or at the end of the queue if it is
+     * [MediaQueueItem.INVALID_ITEM_ID]. If `play` is `true`, the single item of `items` also
+     * starts playing. `callback`, if any, is told the result of the request once it is
+     * reconciled.
+     */
+    fun insert(
+        client: RemoteMediaClient,
+        items: Array<MediaQueueItem>,
+        beforeItemId: Int,
+        play: Boolean,
+        callback: ResultCallback<RemoteMediaClient.MediaChannelResult>? = null
+    ) {
+        val temporaryIds = IntArray(items.size)
+        for (i in items.indices) {
+            temporaryIds[i] = mNextTemporaryId--
+            mInsertedItems.put(temporaryIds[i], items[i])
+        }
+        val edit = Edit(EDIT_INSERT, temporaryIds, beforeItemId)
+        mEdits.add(edit)
+        refresh()
+        send(
+            edit,
+            if (play) {
+                client.queueInsertAndPlayItem(items[0], beforeItemId, JSONObject())
+            } else {
+                client.queueInsertItems(items, beforeItemId, JSONObject())
+            },
+            callback
+        )
+    }
+
+    /**
+     * Moves the item shown at `fromPosition` to `toPosition`, without telling the receiver. Called
+     * for every slot that a dragged item moves over, until [commitMove] sends the whole drag.
+     */
+    fun moveLocally(fromPosition: Int, toPosition: Int) {
+        var edit = dragEdit
+        val itemId = getShownItemId(fromPosition)
+        if (edit == null || edit.itemIds[0] != itemId) {
+            edit = Edit(EDIT_MOVE, intArrayOf(itemId), MediaQueueItem.INVALID_ITEM_ID)
+            edit.startPosition = fromPosition
+            mEdits.add(edit)
+        }
+        // The item that ends up right after the moved one, read before the move shifts the others.
+        val beforePosition = if (toPosition < fromPosition) toPosition else toPosition + 1
+        edit.beforeItemId = if (beforePosition < count) {
+            getShownItemId(beforePosition)
+        } else {
+            MediaQueueItem.INVALID_ITEM_ID
+        }
+        mDragMoveCount++
+        refresh()
+    }
+
+    /**
+     * Sends the move made by the [moveLocally] calls of a drag to the receiver, as a single
+     * request.
+     */
+    fun commitMove(client: RemoteMediaClient) {
+        val edit = dragEdit ?: return
+        val itemId = edit.itemIds[0]
+        val itemIds = mItemIds!!
+        if (indexOf(itemIds, 0, mCount, itemId) == edit.startPosition) {
+            // Dropped where it started.
+            mEdits.remove(edit)
+            refresh()
+            return
+        }
+        if (edit.beforeItemId < 0) {
+            // Items not inserted on the receiver yet cannot be referred to, so the moved item goes
+            // before the next item that is.
+            val beforePosition = indexOf(itemIds, 0, mCount, edit.beforeItemId)
+            edit.beforeItemId = if (beforePosition >= 0) {
+                getInsertBeforeItemId(beforePosition)
+            } else {
+                MediaQueueItem.INVALID_ITEM_ID
+            }
+            refresh()
+        }
+        mMoveRequestCount++
+        send(edit, client.queueReorderItems(intArrayOf(itemId), edit.beforeItemId, JSONObject()))
+    }
+
+    /**
+     * Returns a human readable summary of the edits waiting for the receiver, the edits rolled
+     * back, and the requests saved by sending each drag as a single move.
+     */
+    fun dump(): String {
+        return String.format(
+            Locale.ROOT,
+            "pending edits=%d, rolled back=%d\ndrag moves=%d, requests=%d, saved=%d\n",
+            mEdits.size,
+            mRolledBackCount,
+            mDragMoveCount,
+            mMoveRequestCount,
+            mDragMoveCount - mMoveRequestCount
+        )
+    }
+
+    override fun itemsReloaded() {
+        mBase.itemsReloaded()
+        mReloadCount++
+        if (mEdits.isEmpty()) {
+            mVersion++
+            mCallback?.onReloaded()
+            return
+        }
+        onBaseChanged(true)
+    }
+
+    override fun itemsInsertedInRange(insertIndex: Int, insertCount: Int) {
+        mBase.itemsInsertedInRange(insertIndex, insertCount)
+        if (mEdits.isEmpty()) {
+            mVersion++
+            mCallback?.onInserted(insertIndex, insertCount)
+            return
+        }
+        reconcileInserts(insertIndex, insertCount)
+        onBaseChanged(false)
+    }
+
+    override fun itemsRemovedAtIndexes(indexes: IntArray) {
+        mBase.itemsRemovedAtIndexes(indexes)
+        if (mEdits.isEmpty()) {
+            mVersion++
+            dispatchRemovals(indexes)
+            return
+        }
+        onBaseChanged(false)
+    }
+
+    override fun itemsReorderedAtIndexes(indexes: List<Int>, insertBeforeIndex: Int) {
+        if (mEdits.isEmpty()) {
+            val oldItemIds = copyBaseItemIds()
+            mBase.itemsReorderedAtIndexes(indexes, insertBeforeIndex)
+            mVersion++
+            dispatchChanges(oldItemIds, oldItemIds.size, copyBaseItemIds(), mBase.count)
+            return
+        }
+        mBase.itemsReorderedAtIndexes(indexes, insertBeforeIndex)
+        onBaseChanged(false)
+    }
+
+    override fun itemsUpdatedAtIndexes(indexes: IntArray) {
+        val callback = mCallback ?: return
+        for (index in indexes) {
+            val position = if (mItemIds == null) index else getPosition(mBase.getItemId(index))
+            if (position >= 0) {
+                callback.onChanged(position, 1, null)
+            }
+        }
+    }
+
+    /**
+     * The move of the drag in progress, which is not sent yet.
+     */
+    private val dragEdit: Edit?
+        get() = mEdits.lastOrNull { it.type == EDIT_MOVE && !it.sent }
+
+    private fun send(
+        edit: Edit,
+        result: PendingResult<RemoteMediaClient.MediaChannelResult>,
+        callback: ResultCallback<RemoteMediaClient.MediaChannelResult>? = null
+    ) {
+        edit.sent = true
+        edit.sentVersion = mVersion
+        edit.sentReloadCount = mReloadCount
+        result.setResultCallback {
+            onEditResult(edit, it)
+            callback?.onResult(it)
+        }
+    }
+
+    private fun onEditResult(edit: Edit, result: RemoteMediaClient.MediaChannelResult) {
+        if (!mEdits.contains(edit)) {
+            // Dropped along with the queue it was made to.
+            return
+        }
+        if (!result.status.isSuccess) {
+            Log.w(TAG, "Rolling back a queue edit that failed: " + result.status)
+            mRolledBackCount++
+            dropEdit(edit)
+            refresh()
+        } else if (edit.type == EDIT_INSERT) {
+            if (edit.sentReloadCount != mReloadCount) {
+                // The MediaQueue was reloaded since, so its new items cannot be told apart.
+                dropEdit(edit)
+                refresh()
+            } else {
+                // Kept until the MediaQueue inserts the items, see reconcileInserts.
+                edit.succeeded = true
+            }
+        } else if (mVersion != edit.sentVersion || isReflected(edit)) {
+            // The MediaQueue changed since the edit was sent, most likely to apply it.
+            dropEdit(edit)
+            refresh()
+        } else {
+            edit.succeeded = true
+        }
+    }
+
+    private fun onBaseChanged(reloaded: Boolean) {
+        mVersion++
+        for (i in mEdits.size - 1 downTo 0) {
+            val edit = mEdits[i]
+            val reconciled = if (edit.type == EDIT_INSERT) {
+                reloaded && edit.succeeded
+            } else {
+                edit.succeeded || (edit.sent && isReflected(edit))
+            }
+            if (reconciled) {
+                dropEdit(edit)
+            }
+        }
+        refresh()
+    }
+
+    /**
+     * Drops the insert edits whose items are among the `insertCount` items that the [MediaQueue]
+     * inserted at `insertIndex`. The receiver applies the requests in the order they are sent, so
+     * the range is matched with the oldest sent edits that insert before the item that follows
+     * it, each taking the next items of the range. The content IDs of those items have to be the
+     * ones of the edit where their data is fetched already, which it seldom is for items just
+     * inserted.
+     */
+    private fun reconcileInserts(insertIndex: Int, insertCount: Int) {
+        val end = insertIndex + insertCount
+        val beforeItemId = if (end < mBase.count) {
+            mBase.getItemId(end)
+        } else {
+            MediaQueueItem.INVALID_ITEM_ID
+        }
+        var start = insertIndex
+        var i = 0
+        while (i < mEdits.size && start < end) {
+            val edit = mEdits[i]
+            if (edit.type == EDIT_INSERT && edit.sent && edit.beforeItemId == beforeItemId &&
+                edit.itemIds.size <= end - start && hasContentIds(edit, start)
+            ) {
+                start += edit.itemIds.size
+                dropEdit(edit)
+            } else {
+                i++
+            }
+        }
+    }
+
+    /**
+     * Returns whether the items of the [MediaQueue] from `basePosition` on can be the items
+     * inserted by `edit`: none of those whose data is fetched has another content ID.
+     */
+    private fun hasContentIds(edit: Edit, basePosition: Int): Boolean {
+        val queue = mQueue ?: return false
+        for (i in edit.itemIds.indices) {
+            val media = queue.getItemAtIndex(basePosition + i, false)?.media ?: continue
+            val insertedMedia = mInsertedItems[edit.itemIds[i]]?.media ?: continue
+            if (media.contentId != insertedMedia.contentId) {
+                return false
+            }
+        }
+        return true
+    }
+
+    private fun isReflected(edit: Edit): Boolean {
+        return when (edit.type) {
+            EDIT_REMOVE -> edit.itemIds.all { mBase.getPosition(it, -1) < 0 }
+            EDIT_MOVE -> {
+                val position = mBase.getPosition(edit.itemIds[0], -1)
+                when {
+                    position < 0 -> false
+                    edit.beforeItemId == MediaQueueItem.INVALID_ITEM_ID ->
+                        position == mBase.count - 1
+                    else -> mBase.getPosition(edit.beforeItemId, -1) == position + 1
+                }
+            }
+            // Inserts are matched as the MediaQueue inserts their items, see reconcileInserts.
+            else -> false
+        }
+    }
+
+    private fun dropEdit(edit: Edit) {
+        mEdits.remove(edit)
+        if (edit.type == EDIT_INSERT) {
+            for (itemId in edit.itemIds) {
+                mInsertedItems.remove(itemId)
+            }
+        }
+    }
+
+    /**
+     * Returns whether `itemId` is moved by a pending edit.
+     */
+    private fun isMoved(itemId: Int): Boolean {
+        return mEdits.any { it.type == EDIT_MOVE && it.itemIds[0] == itemId }
+    }
+
+    private fun getShownItemId(position: Int): Int {
+        return mItemIds?.get(position) ?: mBase.getItemId(position)
+    }
+
+    /**
+     * Returns the position in the [MediaQueue] of the item shown at `position`, or `-1` if it is
+     * not inserted on the receiver yet.
+     */
+    private fun toBasePosition(position: Int): Int {
+        val itemIds = mItemIds ?: return position
+        return mBase.getPosition(itemIds[position], -1)
+    }
+
+    private fun copyBaseItemIds(): IntArray {
+        return IntArray(mBase.count) { mBase.getItemId(it) }
+    }
+
+    /**
+     * Applies the edits to the items of the [MediaQueue], and reports how the shown queue changed.
+     * Once no edit is pending, the shown queue goes back to being the MediaQueue.
+     */
+    private fun refresh() {
+        val shownItemIds = mItemIds
+        if (shownItemIds == null && mEdits.isEmpty()) {
+            return
+        }
+        val oldItemIds = shownItemIds ?: copyBaseItemIds()
+        val oldCount = if (shownItemIds != null) mCount else oldItemIds.size
+        var count = mBase.count
+        var itemIds = copyBaseItemIds()
+        var maxShift = 0
+        for (edit in mEdits) {
+            maxShift += edit.itemIds.size
+            when (edit.type) {
+                EDIT_REMOVE -> for (itemId in edit.itemIds) {
+                    val index = indexOf(itemIds, 0, count, itemId)
+                    if (index >= 0) {
+                        System.arraycopy(itemIds, index + 1, itemIds, index, count - index - 1)
+                        count--
+                    }
+                }
+                EDIT_MOVE -> {
+                    val index = indexOf(itemIds, 0, count, edit.itemIds[0])
+                    if (index >= 0) {
+                        System.arraycopy(itemIds, index + 1, itemIds, index, count - index - 1)
+                        itemIds = insertBefore(itemIds, count - 1, edit.itemIds, edit.beforeItemId)
+                    }
+                    // Otherwise removed on the receiver in the meantime.
+                }
+                else -> {
+                    itemIds = insertBefore(itemIds, count, edit.itemIds, edit.beforeItemId)
+                    count += edit.itemIds.size
+                }
+            }
+        }
+        mItemIds = if (mEdits.isEmpty()) null else itemIds
+        mCount = count
+        mMaxShift = maxShift
+        dispatchChanges(oldItemIds, oldCount, itemIds, count)
+    }
+
+    /**
+     * Reports the removal of the items at `indexes` of the shown queue, one range of contiguous
+     * items at a time from the last, so that the positions of the others still hold.
+     */
+    private fun dispatchRemovals(indexes: IntArray) {
+        val callback = mCallback ?: return
+        if (indexes.isEmpty()) {
+            return
+        }
+        val removed = indexes.sortedArray()
+        var end = removed.size
+        for (i in removed.size - 1 downTo 0) {
+            if (i == 0 || removed[i - 1] != removed[i] - 1) {
+                callback.onRemoved(removed[i], end - i)
+                end = i
+            }
+        }
+    }
+
+    /**
+     * Reports the difference between two versions of the shown queue, as a single insertion,
+     * removal or move when it is one. Reorders of several items become a sequence of moves.
+     */
+    private fun dispatchChanges(oldItemIds: IntArray, oldCount: Int, itemIds: IntArray, count: Int) {
+        val callback = mCallback ?: return
+        var prefix = 0
+        while (prefix < oldCount && prefix < count && oldItemIds[prefix] == itemIds[prefix]) {
+            prefix++
+        }
+        var suffix = 0
+        while (suffix < oldCount - prefix && suffix < count - prefix &&
+            oldItemIds[oldCount - 1 - suffix] == itemIds[count - 1 - suffix]
+        ) {
+            suffix++
+        }
+        val oldChanged = oldCount - prefix - suffix
+        val changed = count - prefix - suffix
+        when {
+            oldChanged == 0 && changed == 0 -> return
+            oldChanged == 0 -> callback.onInserted(prefix, changed)
+            changed == 0 -> callback.onRemoved(prefix, oldChanged)
+            oldChanged != changed -> callback.onReloaded()
+            isMovedDown(oldItemIds, itemIds, prefix, changed) ->
+                callback.onMoved(prefix, prefix + changed - 1)
+            isMovedDown(itemIds, oldItemIds, prefix, changed) ->
+                callback.onMoved(prefix + changed - 1, prefix)
+            changed <= MAX_MOVES_WINDOW -> dispatchMoves(callback, oldItemIds, itemIds, prefix, changed)
+            else -> callback.onChanged(prefix, changed, null)
+        }
+    }
+
+    /**
+     * Reports the window of `length` items at `start` as moves that turn `oldItemIds` into
+     * `itemIds`, one slot at a time from the top. The items that are not found in the old window
+     * are reported as changed.
+     */
+    private fun dispatchMoves(
+        callback: Callback,
+        oldItemIds: IntArray,
+        itemIds: IntArray,
+        start: Int,
+        length: Int
+    ) {
+        val end = start + length
+        val window = oldItemIds.copyOfRange(start, end)
+        for (i in start until end) {
+            val itemId = itemIds[i]
+            if (window[i - start] == itemId) {
+                continue
+            }
+            var from = -1
+            for (j in i + 1 until end) {
+                if (window[j - start] == itemId) {
+                    from = j
+                    break
+                }
+            }
+            if (from < 0) {
+                window[i - start] = itemId
+                callback.onChanged(i, 1, null)
+            } else {
+                System.arraycopy(window, i - start, window, i - start + 1, from - i)
+                window[i - start] = itemId
+                callback.onMoved(from, i)
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "OptimisticQueue"
+        private const val EDIT_REMOVE = 0
+        private const val EDIT_MOVE = 1
+        private const val EDIT_INSERT = 2
+        // Reorders of longer windows are reported as a changed range rather than move by move.
+        private const val MAX_MOVES_WINDOW = 100
+
+        /**
+         * Returns whether `to` is `from` with its item at `start` moved `length - 1` slots down.
+         */
+        private fun isMovedDown(from: IntArray, to: IntArray, start: Int, length: Int): Boolean {
+            if (from[start] != to[start + length - 1]) {
+                return false
+            }
+            for (i in start + 1 until start + length) {
+                if (from[i] != to[i - 1]) {
+                    return false
+                }
+            }
+            return true
+        }
+
+        private fun insertBefore(
+            itemIds: IntArray,
+            count: Int,
+            inserted: IntArray,
+            beforeItemId: Int
+        ): IntArray {
+            var index = if (beforeItemId == MediaQueueItem.INVALID_ITEM_ID) {
+                -1
+            } else {
+                indexOf(itemIds, 0, count, beforeItemId)
+            }
+            if (index < 0) {
+                index = count
+            }
+            val result = if (count + inserted.size > itemIds.size) {
+                Arrays.copyOf(itemIds, count + inserted.size)
+            } else {
+                itemIds
+            }
+            System.arraycopy(result, index, result, index + inserted.size, count - index)
+            System.arraycopy(inserted, 0, result, index, inserted.size)
+            return result
+        }
+
+        private fun indexOf(itemIds: IntArray, start: Int, end: Int, itemId: Int): Int {
+            for (i in start until end) {
+                if (itemIds[i] == itemId) {
+                    return i
+                }
+            }
+            return -1
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.cast.refplayer.queue
+
+import android.content.Context
+import android.util.Log
+import com.google.android.gms.cast.MediaInfo
+import com.google.android.gms.cast.MediaQueueItem
+import com.google.android.gms.cast.MediaStatus
+import com.google.android.gms.cast.framework.media.RemoteMediaClient
+import com.google.android.gms.common.api.ResultCallback
+import com.google.sample.cast.refplayer.utils.Utils
+import org.json.JSONObject
+
+/**
+ * Adds a whole list of videos to the queue of the receiver, in as few requests as the size of a
+ * Cast message allows.
+ *
+ * The items are sent in chunks whose JSON fits in [CHUNK_BUDGET_BYTES]. Each chunk is built right
+ * before it is sent, so that a long list is not serialized all at once. An empty queue is loaded
+ * with the first chunk, and the other chunks are appended once it exists, each once the receiver
+ * took the previous one, so that a chunk it refuses never leaves a gap before a later one. The
+ * listener hears about every chunk that the receiver took, and about the first one it refused,
+ * after which nothing more is sent. All the methods must be called on the main thread.
+ */
+class QueueBulkEnqueuer(
+    context: Context,
+    private val mRemoteMediaClient: RemoteMediaClient,
+    videos: List<MediaInfo>,
+    private val mListener: Listener
+) {
+    /**
+     * A listener called as the chunks are taken by the receiver.
+     */
+    interface Listener {
+        /**
+         * Called when the receiver took a chunk, which brings the videos added to `enqueuedCount`
+         * out of `totalCount`.
+         */
+        fun onProgress(enqueuedCount: Int, totalCount: Int)
+
+        /**
+         * Called when a chunk could not be added, after which the others are not sent.
+         */
+        fun onFailed(enqueuedCount: Int, totalCount: Int)
+    }
+
+    private val mProvider: QueueDataProvider = QueueDataProvider.getInstance(context)!!
+    private val mVideos: List<MediaInfo> = ArrayList(videos)
+    private var mNextIndex = 0
+    // The item of the video at mNextIndex, built by the chunk that it did not fit in, and its size.
+    private var mNextItem: MediaQueueItem? = null
+    private var mNextItemBytes = 0
+    private var mInFlightCount = 0
+    private var mEnqueuedCount = 0
+    private var mStopped = false
+
+    /**
+     * Whether every chunk was sent and answered, or the enqueuing stopped.
+     */
+    val isDone: Boolean
+        get() = mStopped || (mNextIndex == mVideos.size && mInFlightCount == 0)
+
+    /**
+     * Starts sending the chunks.
+     */
+    fun start() {
+        if (mVideos.isEmpty()) {
+            mListener.onProgress(0, 0)
+            return
+        }
+        if (mProvider.count == 0) {
+            // The first chunk creates the queue, and the others are appended to it once it exists.
+            val chunk = nextChunk()
+            mInFlightCount++
+            mRemoteMediaClient.queueLoad(
+                chunk, 0, MediaStatus.REPEAT_MODE_REPEAT_OFF, JSONObject()
+            ).setResultCallback(newChunkCallback(chunk.size))
+        } else {
+            sendChunks()
+        }
+    }
+
+    /**
+     * Stops sending the chunks. The one already sent is still added, without being reported.
+     */
+    fun cancel() {
+        mStopped = true
+    }
+
+    private fun sendChunks() {
+        if (mStopped || mInFlightCount > 0 || mNextIndex == mVideos.size) {
+            return
+        }
+        val chunk = nextChunk()
+        mInFlightCount++
+        if (!mProvider.insertItems(
+                chunk, MediaQueueItem.INVALID_ITEM_ID, newChunkCallback(chunk.size)
+            )
+        ) {
+            mInFlightCount--
+            fail()
+        }
+    }
+
+    /**
+     * Returns the items from [mNextIndex] on whose JSON fits in the budget, or the next item alone
+     * if it does not fit by itself.
+     */
+    private fun nextChunk(): Array<MediaQueueItem> {
+        val chunk = ArrayList<MediaQueueItem>()
+        var bytes = 0
+        while (mNextIndex < mVideos.size) {
+            val item = mNextItem ?: Utils.buildQueueItem(mVideos[mNextIndex]).also {
+                // One more byte for the comma between the items of the array.
+                mNextItemBytes = it.toJson().toString().toByteArray(Charsets.UTF_8).size + 1
+                mNextItem = it
+            }
+            if (chunk.isNotEmpty() && bytes + mNextItemBytes > CHUNK_BUDGET_BYTES) {
+                // Kept for the next chunk, rather than built and serialized again.
+                break
+            }
+            chunk.add(item)
+            bytes += mNextItemBytes
+            mNextItem = null
+            mNextIndex++
+        }
+        return chunk.toTypedArray()
+    }
+
+    private fun newChunkCallback(
+        itemCount: Int
+    ): ResultCallback<RemoteMediaClient.MediaChannelResult> {
+        return ResultCallback { result -> onChunkResult(itemCount, result) }
+    }
+
+    private fun onChunkResult(itemCount: Int, result: RemoteMediaClient.MediaChannelResult) {
+        mInFlightCount--
+        val success = result.status.isSuccess
+        if (success) {
+            mEnqueuedCount += itemCount
+        }
+        if (mStopped) {
+            return
+        }
+        if (!success) {
+            Log.w(TAG, "Failed to add " + itemCount + " items: " + result.status)
+            fail()
+            return
+        }
+        mListener.onProgress(mEnqueuedCount, mVideos.size)
+        sendChunks()
+    }
+
+    private fun fail() {
+        mStopped = true
+        mListener.onFailed(mEnqueuedCount, mVideos.size)
+    }
+
+    companion object {
+        private const val TAG = "QueueBulkEnqueuer"
+        // A Cast message holds at most 64 KB, part of which goes to the envelope of the request.
+        private const val CHUNK_BUDGET_BYTES = 60 * 1024
+    }
+}
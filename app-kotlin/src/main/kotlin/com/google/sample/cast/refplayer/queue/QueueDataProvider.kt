@@ -17,14 +17,22 @@ package com.google.sample.cast.refplayer.queue
 
 import android.util.Log
 import android.content.Context
+import android.view.Choreographer
 import android.view.View
+import androidx.annotation.VisibleForTesting
 import com.google.android.gms.cast.framework.CastSession
 import com.google.android.gms.cast.framework.CastContext
 import com.google.android.gms.cast.framework.SessionManagerListener
 import com.google.android.gms.cast.framework.media.RemoteMediaClient
 import com.google.android.gms.cast.framework.media.MediaQueue
+import com.google.android.gms.common.api.ResultCallback
 import com.google.android.gms.cast.MediaQueueItem
+import com.google.android.gms.cast.MediaStatus
+import com.google.sample.cast.refplayer.utils.MemoryGovernor
+import com.google.sample.cast.refplayer.utils.PreloadPolicy
+import com.google.sample.cast.refplayer.utils.Utils
 import org.json.JSONObject
+import java.util.Locale
 import java.util.concurrent.Executor
 import java.util.concurrent.Executors
 import kotlin.jvm.Synchronized
@@ -50,21 +58,39 @@ class QueueDataProvider private constructor(context: Context?) {
     private var mCurrentItem: MediaQueueItem?
     var upcomingItem: MediaQueueItem? = null
         private set
+    private var mPlayerState = MediaStatus.PLAYER_STATE_UNKNOWN
     private var mListener: OnQueueDataChangedListener? = null
+    // What the listener was last told, which the next changes are found against.
+    private var mNotifiedCurrentItemId = MediaQueueItem.INVALID_ITEM_ID
+    private var mNotifiedUpcomingItemId = MediaQueueItem.INVALID_ITEM_ID
+    private var mNotifiedPlayerState = MediaStatus.PLAYER_STATE_UNKNOWN
+    private var mChangesScheduled = false
+    private var mStatusUpdateCount = 0L
+    private var mChangeEventCount = 0L
+    private val mDispatchChangesCallback = Choreographer.FrameCallback {
+        mChangesScheduled = false
+        dispatchChanges()
+    }
     var isQueueDetached: Boolean = true
         private set
+    private val mQueueCacheTrimmable: MemoryGovernor.Trimmable = MyQueueCacheTrimmable()
+    private val mOptimisticQueue = OptimisticQueue()
+    private var mCacheCapacity = DEFAULT_QUEUE_CACHE_CAPACITY
+    private var mPrefetchCount = 0L
+    private val mSnapshotStore: QueueSnapshotStore
 
     init {
         mAppContext = context!!.getApplicationContext()
         mCurrentItem = null
+        mSnapshotStore = QueueSnapshotStore(mAppContext)
         CastContext.getSharedInstance(
             mAppContext,
             castExecutor
         ).result?.sessionManager?.addSessionManagerListener(
             mSessionManagerListener, CastSession::class.java
         )
-        mediaQueue?.setCacheCapacity(30)
         registerQueueCallbackAndUpdateQueue()
+        MemoryGovernor.getInstance(mAppContext).register(mQueueCacheTrimmable)
     }
 
     fun onUpcomingStopClicked(view: View?, upcomingItem: MediaQueueItem) {
@@ -72,12 +98,7 @@ class QueueDataProvider private constructor(context: Context?) {
         // need to truncate the queue on the remote device so that we can complete the playback of
         // the current item but not go any further. Alternatively, one could just stop the playback
         // here, if that was acceptable.
-        val position: Int = getPositionByItemId(upcomingItem.itemId)
-        val itemIds: IntArray = IntArray(count - position)
-        for ( i in itemIds.indices) {
-            itemIds[i]  = mediaQueue!!.getItemAtIndex(i + position)!!.itemId
-        }
-        remoteMediaClient.queueRemoveItems(itemIds, JSONObject() )
+        removeItemsFrom(getPositionByItemId(upcomingItem.itemId))
     }
 
     fun onUpcomingPlayClicked(view: View?, upcomingItem: MediaQueueItem) {
@@ -92,30 +113,80 @@ class QueueDataProvider private constructor(context: Context?) {
             return queue
         }
 
+    /**
+     * Returns the position of the item `itemId` in the [MediaQueue], which does not reflect the
+     * edits still waiting for the receiver.
+     */
     fun getPositionByItemId(itemId: Int): Int {
-        if (mediaQueue == null || mediaQueue?.itemIds == null) {
-            return INVALID
-        }
-        val ids: IntArray = mediaQueue!!.itemIds
-        for (i in ids.indices) {
-            if (ids.get(i) == itemId) {
-                return i
-            }
-        }
-        return INVALID
+        val queue: MediaQueue = mediaQueue ?: return INVALID
+        // The session may have changed the queue without the provider being told.
+        mOptimisticQueue.attach(queue)
+        return mOptimisticQueue.getBasePosition(itemId)
+    }
+
+    /**
+     * Removes the items of the [MediaQueue] from `position` to its end, with a single request. The
+     * items are told by their IDs, so the ones not fetched yet are not fetched.
+     */
+    fun removeItemsFrom(position: Int) {
+        val remoteMediaClient: RemoteMediaClient = remoteMediaClient ?: return
+        removeItemsFrom(remoteMediaClient, position)
     }
 
-    fun removeFromQueue(position: Int) {
+    /**
+     * Removes the item shown at `position`, which disappears right away. Returns `false` if the
+     * item could not be removed.
+     */
+    fun removeFromQueue(position: Int): Boolean {
         synchronized(mLock) {
-            val queue: MediaQueue = mediaQueue ?: return
-            val item: MediaQueueItem? = queue.getItemAtIndex(position)
-            val remoteMediaClient: RemoteMediaClient? = remoteMediaClient
-            if (item != null && remoteMediaClient != null) {
-                remoteMediaClient.queueRemoveItem(item.itemId, JSONObject())
-            }
+            val remoteMediaClient: RemoteMediaClient = remoteMediaClient ?: return false
+            return mOptimisticQueue.remove(remoteMediaClient, position)
         }
     }
 
+    /**
+     * Inserts `items` before the item `beforeItemId`, or at the end of the queue if it is
+     * [MediaQueueItem.INVALID_ITEM_ID]. The items are shown right away.
+     */
+    fun insertItems(items: Array<MediaQueueItem>, beforeItemId: Int) {
+        insertItems(items, beforeItemId, null)
+    }
+
+    /**
+     * Inserts `items` like [insertItems], and tells `callback` the result of the request. Returns
+     * `false` if no receiver is connected, in which case nothing is sent.
+     */
+    fun insertItems(
+        items: Array<MediaQueueItem>,
+        beforeItemId: Int,
+        callback: ResultCallback<RemoteMediaClient.MediaChannelResult>?
+    ): Boolean {
+        val remoteMediaClient: RemoteMediaClient = remoteMediaClient ?: return false
+        mOptimisticQueue.insert(remoteMediaClient, items, beforeItemId, false, callback)
+        return true
+    }
+
+    /**
+     * Inserts `items` right after the item `itemId`. Returns `false` if the item `itemId` is not in
+     * the queue.
+     */
+    fun insertItemsAfter(items: Array<MediaQueueItem>, itemId: Int): Boolean {
+        val position = mOptimisticQueue.getPosition(itemId)
+        if (position < 0) {
+            return false
+        }
+        insertItems(items, mOptimisticQueue.getInsertBeforeItemId(position + 1))
+        return true
+    }
+
+    /**
+     * Inserts `item` before the item `beforeItemId` and plays it.
+     */
+    fun insertAndPlayItem(item: MediaQueueItem, beforeItemId: Int) {
+        val remoteMediaClient: RemoteMediaClient = remoteMediaClient ?: return
+        mOptimisticQueue.insert(remoteMediaClient, arrayOf(item), beforeItemId, true)
+    }
+
     fun removeAll() {
         synchronized(mLock) {
             val remoteMediaClient: RemoteMediaClient = remoteMediaClient ?: return
@@ -127,32 +198,139 @@ class QueueDataProvider private constructor(context: Context?) {
         }
     }
 
+    /**
+     * Moves the item shown at `fromPosition` to `toPosition` while it is dragged. The receiver is
+     * only sent the whole move by [commitMove], once the item is dropped.
+     */
     fun moveItem(fromPosition: Int, toPosition: Int) {
-        if (fromPosition == toPosition) {
-            return
+        if (fromPosition != toPosition) {
+            mOptimisticQueue.moveLocally(fromPosition, toPosition)
         }
+    }
+
+    /**
+     * Sends the move of the item that was just dropped to the receiver, in a single request
+     * however many slots it was dragged over.
+     */
+    fun commitMove() {
         val remoteMediaClient: RemoteMediaClient = remoteMediaClient ?: return
-        val queue: MediaQueue = mediaQueue ?: return
-        val itemId: Int = queue.itemIdAtIndex(fromPosition)
-        remoteMediaClient.queueMoveItemToNewIndex(itemId, toPosition, JSONObject()  )
+        mOptimisticQueue.commitMove(remoteMediaClient)
     }
 
-    val count: Int
-        get() {
-            val queue: MediaQueue = mediaQueue ?: return 0
-            return queue.itemCount
+    /**
+     * Returns a human readable summary of the edits waiting for the receiver, of the requests that
+     * dragging the queue items sent, and of the status updates that reached the listener.
+     */
+    fun dump(): String {
+        return mOptimisticQueue.dump() + String.format(
+            Locale.ROOT,
+            "status updates=%d, change events=%d\ncache capacity=%d, prefetches=%d\n",
+            mStatusUpdateCount,
+            mChangeEventCount,
+            mCacheCapacity,
+            mPrefetchCount
+        ) + mSnapshotStore.dump()
+    }
+
+    /**
+     * Returns whether a queue played before can be loaded again with [restoreQueue].
+     */
+    fun hasSnapshot(): Boolean {
+        return mSnapshotStore.items.isNotEmpty()
+    }
+
+    /**
+     * Loads the queue played before on the receiver of the current session, in a single request,
+     * and resumes it where it stopped. The items of that queue whose data was never fetched are
+     * left out. Returns `false` if there is no session or nothing to restore.
+     */
+    fun restoreQueue(): Boolean {
+        val remoteMediaClient: RemoteMediaClient = remoteMediaClient ?: return false
+        val items = mSnapshotStore.items
+        if (items.isEmpty()) {
+            return false
+        }
+        val currentIndex = items.indexOfFirst { it.itemId == mSnapshotStore.currentItemId }
+        val startIndex = Math.max(currentIndex, 0)
+        val playPosition = if (currentIndex >= 0) mSnapshotStore.streamPosition else 0L
+        remoteMediaClient.queueLoad(
+            Utils.rebuildQueue(items), startIndex, MediaStatus.REPEAT_MODE_REPEAT_OFF,
+            playPosition, JSONObject()
+        )
+        return true
+    }
+
+    /**
+     * Sets the number of items whose data the [MediaQueue] keeps, which should cover the rows
+     * shown and the ones prefetched around them.
+     */
+    fun setCacheCapacity(cacheCapacity: Int) {
+        val capacity = Math.max(cacheCapacity, DEFAULT_QUEUE_CACHE_CAPACITY)
+        if (mCacheCapacity == capacity) {
+            return
         }
+        mCacheCapacity = capacity
+        mediaQueue?.setCacheCapacity(mCacheCapacity)
+    }
+
+    /**
+     * Fetches the data of the items shown from `startPosition` to `endPosition`, both included,
+     * ahead of their binding.
+     */
+    fun prefetch(startPosition: Int, endPosition: Int) {
+        mPrefetchCount++
+        mOptimisticQueue.prefetch(startPosition, endPosition)
+    }
+
+    /**
+     * The number of items shown, including the edits still waiting for the receiver.
+     */
+    val count: Int
+        get() = mOptimisticQueue.count
 
+    /**
+     * Returns the item shown at `position`, or `null` if it is not fetched from the receiver yet.
+     */
     fun getItem(position: Int): MediaQueueItem? {
-        val queue: MediaQueue = mediaQueue ?: return null
-        return queue.getItemAtIndex(position, true)
+        // Until the receiver sends the item, as when the screen is shown again, the copy saved on
+        // disk is shown, as long as it was saved in the same media session.
+        return mOptimisticQueue.getItem(position)
+            ?: mSnapshotStore.getItem(mOptimisticQueue.getItemId(position))
+    }
+
+    /**
+     * Returns the position at which the item `itemId` is shown, or `-1`.
+     */
+    fun getShownPosition(itemId: Int): Int {
+        return mOptimisticQueue.getPosition(itemId)
+    }
+
+    /**
+     * Sets the callback told about every change of the items shown.
+     */
+    fun setQueueCallback(callback: OptimisticQueue.Callback?) {
+        mOptimisticQueue.setCallback(callback)
+        mOptimisticQueue.attach(mediaQueue)
     }
 
     fun destroyQueue() {
+        // The snapshot keeps the queue that the session played.
+        stopSnapshot()
         removeAll()
+        mOptimisticQueue.attach(null)
         isQueueDetached = true
         mCurrentItem = null
         upcomingItem = null
+        mPlayerState = MediaStatus.PLAYER_STATE_UNKNOWN
+        PreloadPolicy.instance.onStatusUpdated(null, null, mPlayerState)
+        // The listener is told that the whole queue changed instead.
+        mNotifiedCurrentItemId = MediaQueueItem.INVALID_ITEM_ID
+        mNotifiedUpcomingItemId = MediaQueueItem.INVALID_ITEM_ID
+        mNotifiedPlayerState = MediaStatus.PLAYER_STATE_UNKNOWN
+        if (mChangesScheduled) {
+            Choreographer.getInstance().removeFrameCallback(mDispatchChangesCallback)
+            mChangesScheduled = false
+        }
     }
 
     fun isCurrentItem(item: MediaQueueItem?): Boolean {
@@ -188,19 +366,41 @@ class QueueDataProvider private constructor(context: Context?) {
 
     /**
      * Listener notifies the data of the queue has changed.
+     *
+     * The changes of the current item, of the upcoming item and of the player state are coalesced,
+     * so that each of them is reported at most once per frame however many status updates the
+     * receiver sends. The items are given by ID, and are [MediaQueueItem.INVALID_ITEM_ID] when
+     * there is none.
      */
     open interface OnQueueDataChangedListener {
+        /**
+         * Called when the whole queue may have changed, for example when the session ended.
+         */
         fun onQueueDataChanged()
+
+        fun onCurrentItemChanged(previousItemId: Int, itemId: Int)
+
+        fun onUpcomingItemChanged(previousItemId: Int, itemId: Int)
+
+        fun onPlayerStateChanged(currentItemId: Int)
     }
 
     private fun registerQueueCallbackAndUpdateQueue() {
         val remoteMediaClient: RemoteMediaClient? = remoteMediaClient
         if (remoteMediaClient != null) {
             remoteMediaClient.registerCallback(mRemoteMediaClientCallback)
+            remoteMediaClient.mediaQueue.setCacheCapacity(mCacheCapacity)
+            mOptimisticQueue.attach(remoteMediaClient.mediaQueue)
+            mSnapshotStore.attach(remoteMediaClient.mediaQueue)
             updateMediaQueue()
         }
     }
 
+    private fun stopSnapshot() {
+        mSnapshotStore.flush()
+        mSnapshotStore.attach(null)
+    }
+
     private fun updateMediaQueue() {
         Log.d(TAG, "updateMediaQueue ")
         val remoteMediaClient: RemoteMediaClient? = remoteMediaClient
@@ -208,9 +408,61 @@ class QueueDataProvider private constructor(context: Context?) {
         if (remoteMediaClient != null) {
             mCurrentItem = remoteMediaClient.currentItem
             upcomingItem = remoteMediaClient.preloadedItem
+            mPlayerState = remoteMediaClient.playerState
             isQueueDetached = false
-            Log.d(TAG, "updateMediaQueue() with mCurrentItem=" + mCurrentItem)
-            Log.d(TAG, "updateMediaQueue() with mUpcomingItem=" + upcomingItem)
+            remoteMediaClient.mediaStatus?.let {
+                mSnapshotStore.setMediaSessionId(it.mediaSessionId)
+            }
+            mSnapshotStore.setCurrentItem(
+                getItemId(mCurrentItem), remoteMediaClient.approximateStreamPosition
+            )
+            PreloadPolicy.instance.onStatusUpdated(mCurrentItem, upcomingItem, mPlayerState)
+        }
+        scheduleChanges()
+    }
+
+    /**
+     * Tells the listener on the next frame about the changes since it was last told, unless
+     * nothing changed or the changes are already waiting for that frame.
+     */
+    private fun scheduleChanges() {
+        mStatusUpdateCount++
+        if (mChangesScheduled || (getItemId(mCurrentItem) == mNotifiedCurrentItemId &&
+                getItemId(upcomingItem) == mNotifiedUpcomingItemId &&
+                mPlayerState == mNotifiedPlayerState)
+        ) {
+            return
+        }
+        mChangesScheduled = true
+        Choreographer.getInstance().postFrameCallback(mDispatchChangesCallback)
+    }
+
+    private fun dispatchChanges() {
+        val currentItemId = getItemId(mCurrentItem)
+        val upcomingItemId = getItemId(upcomingItem)
+        val previousCurrentItemId = mNotifiedCurrentItemId
+        val previousUpcomingItemId = mNotifiedUpcomingItemId
+        val playerStateChanged = mPlayerState != mNotifiedPlayerState
+        mNotifiedCurrentItemId = currentItemId
+        mNotifiedUpcomingItemId = upcomingItemId
+        mNotifiedPlayerState = mPlayerState
+        val listener = mListener ?: return
+        Log.d(
+            TAG, "dispatchChanges() with current item=" + currentItemId +
+                    ", upcoming item=" + upcomingItemId + ", player state=" + mPlayerState
+        )
+        if (currentItemId != previousCurrentItemId) {
+            mChangeEventCount++
+            listener.onCurrentItemChanged(previousCurrentItemId, currentItemId)
+        } else if (playerStateChanged) {
+            // A new current item is rebound as a whole, so its player state is only reported
+            // when the item stays the same.
+            mChangeEventCount++
+            listener.onPlayerStateChanged(currentItemId)
+        }
+        if (upcomingItemId != previousUpcomingItemId) {
+            mChangeEventCount++
+            listener.onUpcomingItemChanged(previousUpcomingItemId, upcomingItemId)
         }
     }
 
@@ -247,34 +499,56 @@ class QueueDataProvider private constructor(context: Context?) {
 
         override fun onSessionStarting(session: CastSession) {}
         override fun onSessionStartFailed(session: CastSession, error: Int) {}
-        override fun onSessionEnding(session: CastSession) {}
+        override fun onSessionEnding(session: CastSession) {
+            // The receiver empties its queue as the session ends, which the snapshot ignores.
+            stopSnapshot()
+        }
+
         override fun onSessionResuming(session: CastSession, sessionId: String) {}
         override fun onSessionResumeFailed(session: CastSession, error: Int) {}
-        override fun onSessionSuspended(session: CastSession, reason: Int) {}
+        override fun onSessionSuspended(session: CastSession, reason: Int) {
+            stopSnapshot()
+        }
+    }
+
+    /**
+     * Trims the item cache of the [MediaQueue]. Shrinking the capacity evicts the least recently
+     * used items, and restoring it lets the cache grow back as items are requested again.
+     */
+    private inner class MyQueueCacheTrimmable : MemoryGovernor.Trimmable {
+        override val name: String
+            get() = "Media queue items"
+        // The most items the cache can hold, rather than the cached ones, which means going
+        // through the whole queue.
+        override val entryCount: Int
+            get() {
+                val queue: MediaQueue = mediaQueue ?: return 0
+                return Math.min(mCacheCapacity, queue.itemCount)
+            }
+        override val sizeInBytes: Long
+            get() = -1
+
+        override fun trimToFraction(fraction: Float) {
+            val queue: MediaQueue = mediaQueue ?: return
+            // MediaQueue needs a capacity of at least one.
+            queue.setCacheCapacity(Math.max(1, (entryCount * fraction).toInt()))
+            queue.setCacheCapacity(mCacheCapacity)
+        }
     }
 
     private inner class MyRemoteMediaClientCallback constructor() : RemoteMediaClient.Callback() {
         override fun onPreloadStatusUpdated() {
             updateMediaQueue()
-            if (mListener != null) {
-                mListener!!.onQueueDataChanged()
-            }
             Log.d(TAG, "onPreloadStatusUpdated Queue was updated")
         }
 
         override fun onQueueStatusUpdated() {
             updateMediaQueue()
-            if (mListener != null) {
-                mListener!!.onQueueDataChanged()
-            }
             Log.d(TAG, "onQueueStatusUpdated Queue was updated")
         }
 
         override fun onStatusUpdated() {
             updateMediaQueue()
-            if (mListener != null) {
-                mListener!!.onQueueDataChanged()
-            }
             Log.d(TAG, "onStatusUpdated Queue was updated")
         }
     }
@@ -282,7 +556,41 @@ class QueueDataProvider private constructor(context: Context?) {
     companion object {
         private val TAG: String = "QueueDataProvider"
         val INVALID: Int = -1
+        // The capacity of the item cache until the queue is shown, and the least it is sized to.
+        private const val DEFAULT_QUEUE_CACHE_CAPACITY = 30
         private var mInstance: QueueDataProvider? = null
+
+        private fun getItemId(item: MediaQueueItem?): Int {
+            return item?.itemId ?: MediaQueueItem.INVALID_ITEM_ID
+        }
+
+        /**
+         * Removes the items of the queue of `remoteMediaClient` from `position` to its end, as
+         * [removeItemsFrom] does for the current session.
+         */
+        @VisibleForTesting
+        @JvmStatic
+        fun removeItemsFrom(remoteMediaClient: RemoteMediaClient, position: Int) {
+            if (position < 0) {
+                return
+            }
+            val itemIds = getItemIdsFrom(remoteMediaClient.mediaQueue.itemIds, position)
+            if (itemIds.isNotEmpty()) {
+                remoteMediaClient.queueRemoveItems(itemIds, JSONObject())
+            }
+        }
+
+        /**
+         * Returns the IDs of `itemIds` from `position` to the end, which are none if `position` is
+         * past the end.
+         */
+        private fun getItemIdsFrom(itemIds: IntArray?, position: Int): IntArray {
+            if (itemIds == null || position >= itemIds.size) {
+                return IntArray(0)
+            }
+            return itemIds.copyOfRange(position, itemIds.size)
+        }
+
         @Synchronized
         fun getInstance(context: Context?): QueueDataProvider? {
             if (mInstance == null) {
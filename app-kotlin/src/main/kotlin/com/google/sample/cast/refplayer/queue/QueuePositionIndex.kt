@@ -0,0 +1,117 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.cast.refplayer.queue
+
+import android.util.SparseIntArray
+import com.google.android.gms.cast.framework.media.MediaQueue
+import java.util.Arrays
+
+/**
+ * Maps the item IDs of a [MediaQueue] to their positions, so that a position is found without
+ * copying and scanning [MediaQueue.getItemIds].
+ *
+ * The index follows the changes of the queue through its [MediaQueue.Callback] events, which its
+ * owner forwards to it: inserted and removed items only shift the positions that follow them.
+ * Reorders and reloads, which can move every item, read the item IDs again. All the methods must
+ * be called on the main thread, where the events are delivered.
+ */
+internal class QueuePositionIndex : MediaQueue.Callback() {
+
+    private var mQueue: MediaQueue? = null
+    // The item ID at each position of the queue.
+    private var mItemIds = IntArray(0)
+    private var mCount = 0
+    private val mPositions = SparseIntArray()
+
+    /**
+     * Indexes the items of `queue`, whose events are then forwarded to this index.
+     */
+    fun attach(queue: MediaQueue?) {
+        mQueue = queue
+        rebuild()
+    }
+
+    val count: Int
+        get() = mCount
+
+    fun getItemId(position: Int): Int {
+        return mItemIds[position]
+    }
+
+    /**
+     * Returns the position of the item `itemId`, or `defaultValue` if it is not in the queue.
+     */
+    fun getPosition(itemId: Int, defaultValue: Int): Int {
+        return mPositions.get(itemId, defaultValue)
+    }
+
+    override fun itemsReloaded() {
+        rebuild()
+    }
+
+    override fun itemsInsertedInRange(insertIndex: Int, insertCount: Int) {
+        val queue = mQueue ?: return
+        if (mCount + insertCount > mItemIds.size) {
+            mItemIds = Arrays.copyOf(mItemIds, Math.max(mCount + insertCount, mItemIds.size * 2))
+        }
+        System.arraycopy(
+            mItemIds, insertIndex, mItemIds, insertIndex + insertCount, mCount - insertIndex
+        )
+        mCount += insertCount
+        for (i in insertIndex until insertIndex + insertCount) {
+            mItemIds[i] = queue.itemIdAtIndex(i)
+        }
+        reindexFrom(insertIndex)
+    }
+
+    override fun itemsRemovedAtIndexes(indexes: IntArray) {
+        if (indexes.isEmpty()) {
+            return
+        }
+        // The other callbacks of the queue read the same array, so it is sorted as a copy.
+        val removed = indexes.clone()
+        Arrays.sort(removed)
+        var kept = removed[0]
+        var next = 0
+        for (i in removed[0] until mCount) {
+            if (next < removed.size && removed[next] == i) {
+                mPositions.delete(mItemIds[i])
+                next++
+            } else {
+                mItemIds[kept++] = mItemIds[i]
+            }
+        }
+        mCount = kept
+        reindexFrom(removed[0])
+    }
+
+    override fun itemsReorderedAtIndexes(indexes: List<Int>, insertBeforeIndex: Int) {
+        rebuild()
+    }
+
+    private fun rebuild() {
+        mPositions.clear()
+        mItemIds = mQueue?.itemIds ?: IntArray(0)
+        mCount = mItemIds.size
+        reindexFrom(0)
+    }
+
+    private fun reindexFrom(start: Int) {
+        for (i in start until mCount) {
+            mPositions.put(mItemIds[i], i)
+        }
+    }
+}
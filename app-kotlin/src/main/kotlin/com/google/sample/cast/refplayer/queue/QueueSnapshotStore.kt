@@ -0,0 +1,397 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.cast.refplayer.queue
+
+import android.content.Context
+import android.os.Handler
+import android.os.Looper
+import android.util.AtomicFile
+import android.util.Log
+import android.util.SparseArray
+import com.google.android.gms.cast.MediaQueueItem
+import com.google.android.gms.cast.framework.media.MediaQueue
+import org.json.JSONArray
+import org.json.JSONException
+import org.json.JSONObject
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.Locale
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+
+/**
+ * Keeps a copy of the queue of the receiver on disk: the IDs of its items, the data of the items
+ * that were fetched, and the current item with its position.
+ *
+ * Item IDs are only unique within the media session of the receiver, and a new session or a queue
+ * loaded anew reuses them for other media. So the snapshot records its media session, and starts
+ * over once the queue it follows has items of another one. Until then, an empty queue leaves the
+ * snapshot alone, so that the queue played last can still be restored.
+ *
+ * The snapshot follows the [MediaQueue] through its callbacks, and each change schedules a write
+ * [WRITE_DELAY_MS] later, so that the bursts of changes made while a queue loads or while its
+ * items are fetched end up in a single write. The position of the current item changes on every
+ * status update, so it does not schedule a write of its own but is saved with the next one, or by
+ * [flush] if it is the only change. The file is read and written on a background thread. All the
+ * other methods must be called on the main thread.
+ */
+internal class QueueSnapshotStore(context: Context) : MediaQueue.Callback() {
+
+    private val mFile = AtomicFile(File(context.filesDir, FILE_NAME))
+    private val mHandler = Handler(Looper.getMainLooper())
+    private val mWriteRunnable = Runnable { write() }
+    private var mQueue: MediaQueue? = null
+    private var mItemIds = IntArray(0)
+    // The data of the items of mItemIds that were fetched.
+    private val mItems = SparseArray<MediaQueueItem>()
+    var currentItemId = MediaQueueItem.INVALID_ITEM_ID
+        private set
+    var streamPosition = 0L
+        private set
+    private var mMediaSessionId = UNKNOWN_MEDIA_SESSION_ID
+    // The media session of the queue followed, which the snapshot takes once the queue has items.
+    private var mQueueMediaSessionId = UNKNOWN_MEDIA_SESSION_ID
+    // Set once the snapshot holds something newer than the file, which the read then leaves alone.
+    private var mChanged = false
+    private var mWriteScheduled = false
+    // Set once the position changed since the last write, which no write may be scheduled for.
+    private var mPositionChanged = false
+    private var mWriteCount = 0L
+
+    init {
+        read()
+    }
+
+    /**
+     * Follows the items of `queue` once [setMediaSessionId] tells its media session, or stops
+     * following any queue if it is `null`. The snapshot keeps the last items it saw until a queue
+     * of another media session has items.
+     */
+    fun attach(queue: MediaQueue?) {
+        if (queue === mQueue) {
+            return
+        }
+        mQueue?.unregisterCallback(this)
+        mQueue = queue
+        mQueueMediaSessionId = UNKNOWN_MEDIA_SESSION_ID
+        queue?.registerCallback(this)
+    }
+
+    /**
+     * Records the media session that the queue followed belongs to.
+     */
+    fun setMediaSessionId(mediaSessionId: Long) {
+        val queue = mQueue ?: return
+        if (mediaSessionId == mQueueMediaSessionId) {
+            return
+        }
+        mQueueMediaSessionId = mediaSessionId
+        if (!updateMediaSession() && isFollowingQueue && queue.itemCount > 0) {
+            // A resumed session, whose queue is already known.
+            updateItems()
+        }
+    }
+
+    /**
+     * Records the item that plays, and how far it played.
+     */
+    fun setCurrentItem(itemId: Int, streamPositionMs: Long) {
+        if (!isFollowingQueue || itemId == MediaQueueItem.INVALID_ITEM_ID) {
+            return
+        }
+        if (streamPositionMs != streamPosition) {
+            streamPosition = streamPositionMs
+            mPositionChanged = true
+            mChanged = true
+        }
+        if (itemId != currentItemId) {
+            currentItemId = itemId
+            scheduleWrite()
+        }
+    }
+
+    /**
+     * Returns the data of the item `itemId` of the queue followed as last seen, or `null` if it
+     * never was or if the snapshot holds the items of another media session.
+     */
+    fun getItem(itemId: Int): MediaQueueItem? {
+        return if (isFollowingQueue) mItems.get(itemId) else null
+    }
+
+    /**
+     * Returns the items whose data is known, in the order of the queue.
+     */
+    val items: List<MediaQueueItem>
+        get() = mItemIds.mapNotNull { mItems.get(it) }
+
+    /**
+     * Writes the snapshot now if it has changes that are not written yet.
+     */
+    fun flush() {
+        if (mWriteScheduled || mPositionChanged) {
+            mHandler.removeCallbacks(mWriteRunnable)
+            write()
+        }
+    }
+
+    /**
+     * Returns a human readable summary of the snapshot.
+     */
+    fun dump(): String {
+        return String.format(
+            Locale.ROOT, "snapshot items=%d, with data=%d, writes=%d\n",
+            mItemIds.size, mItems.size(), mWriteCount
+        )
+    }
+
+    override fun itemsReloaded() {
+        if (!updateMediaSession()) {
+            updateItemIds()
+        }
+    }
+
+    override fun itemsInsertedInRange(insertIndex: Int, insertCount: Int) {
+        if (updateMediaSession() || !isFollowingQueue) {
+            return
+        }
+        val queue = mQueue ?: return
+        if (mItemIds.size + insertCount != queue.itemCount) {
+            // Still the IDs read from the file, not the ones of this queue.
+            updateItemIds()
+            return
+        }
+        // The items were just inserted, so their data is not fetched yet.
+        val itemIds = IntArray(mItemIds.size + insertCount)
+        System.arraycopy(mItemIds, 0, itemIds, 0, insertIndex)
+        for (i in insertIndex until insertIndex + insertCount) {
+            itemIds[i] = queue.itemIdAtIndex(i)
+        }
+        System.arraycopy(
+            mItemIds, insertIndex, itemIds, insertIndex + insertCount, mItemIds.size - insertIndex
+        )
+        mItemIds = itemIds
+        scheduleWrite()
+    }
+
+    override fun itemsRemovedAtIndexes(indexes: IntArray) {
+        if (!isFollowingQueue) {
+            return
+        }
+        val queue = mQueue ?: return
+        if (mItemIds.size - indexes.size != queue.itemCount) {
+            updateItemIds()
+            return
+        }
+        // The other callbacks of the queue read the same array, so it is sorted as a copy.
+        val removed = indexes.sortedArray()
+        val itemIds = IntArray(mItemIds.size - removed.size)
+        var kept = 0
+        var next = 0
+        for (i in mItemIds.indices) {
+            if (next < removed.size && removed[next] == i) {
+                mItems.remove(mItemIds[i])
+                next++
+            } else {
+                itemIds[kept++] = mItemIds[i]
+            }
+        }
+        mItemIds = itemIds
+        scheduleWrite()
+    }
+
+    override fun itemsReorderedAtIndexes(indexes: List<Int>, insertBeforeIndex: Int) {
+        updateItemIds()
+    }
+
+    override fun itemsUpdatedAtIndexes(indexes: IntArray) {
+        if (!isFollowingQueue) {
+            return
+        }
+        val queue = mQueue ?: return
+        for (index in indexes) {
+            val item = queue.getItemAtIndex(index, false) ?: continue
+            mItems.put(item.itemId, item)
+        }
+        scheduleWrite()
+    }
+
+    /**
+     * Whether the snapshot follows the queue, which it only does once it has taken the media
+     * session of the queue.
+     */
+    private val isFollowingQueue: Boolean
+        get() = mQueue != null && mQueueMediaSessionId == mMediaSessionId
+
+    /**
+     * Takes the media session of the queue followed if the snapshot is of another one and the
+     * queue has items, and then starts over from the items of the queue.
+     *
+     * @return whether the snapshot started over
+     */
+    private fun updateMediaSession(): Boolean {
+        val queue = mQueue ?: return false
+        if (mQueueMediaSessionId == UNKNOWN_MEDIA_SESSION_ID
+            || mQueueMediaSessionId == mMediaSessionId || queue.itemCount == 0
+        ) {
+            return false
+        }
+        mMediaSessionId = mQueueMediaSessionId
+        mItems.clear()
+        currentItemId = MediaQueueItem.INVALID_ITEM_ID
+        streamPosition = 0L
+        updateItems()
+        return true
+    }
+
+    /**
+     * Reads the item IDs of the queue again, and drops the data of the items that left it. The
+     * data of the other items is kept, and the new items get theirs as they are fetched.
+     */
+    private fun updateItemIds() {
+        if (!isFollowingQueue) {
+            return
+        }
+        val queue = mQueue ?: return
+        mItemIds = queue.itemIds
+        val sortedItemIds = mItemIds.sortedArray()
+        for (i in mItems.size() - 1 downTo 0) {
+            if (sortedItemIds.binarySearch(mItems.keyAt(i)) < 0) {
+                mItems.removeAt(i)
+            }
+        }
+        scheduleWrite()
+    }
+
+    /**
+     * Reads the item IDs of the queue again, with the data of all of its items that are cached,
+     * which only a queue that was already loaded before it is attached has.
+     */
+    private fun updateItems() {
+        if (!isFollowingQueue) {
+            return
+        }
+        val queue = mQueue ?: return
+        updateItemIds()
+        for (i in mItemIds.indices) {
+            val item = queue.getItemAtIndex(i, false) ?: continue
+            mItems.put(mItemIds[i], item)
+        }
+    }
+
+    private fun scheduleWrite() {
+        mChanged = true
+        if (mWriteScheduled) {
+            return
+        }
+        mWriteScheduled = true
+        mHandler.postDelayed(mWriteRunnable, WRITE_DELAY_MS)
+    }
+
+    private fun write() {
+        mWriteScheduled = false
+        mPositionChanged = false
+        mWriteCount++
+        // The items are copied here and serialized on the background thread.
+        val itemIds = mItemIds.clone()
+        val items = items
+        val currentItemId = currentItemId
+        val streamPositionMs = streamPosition
+        val mediaSessionId = mMediaSessionId
+        IO_EXECUTOR.execute {
+            var stream: FileOutputStream? = null
+            try {
+                val snapshot = JSONObject()
+                val itemIdsJson = JSONArray()
+                for (itemId in itemIds) {
+                    itemIdsJson.put(itemId)
+                }
+                val itemsJson = JSONArray()
+                for (item in items) {
+                    itemsJson.put(item.toJson())
+                }
+                snapshot.put(KEY_ITEM_IDS, itemIdsJson)
+                snapshot.put(KEY_ITEMS, itemsJson)
+                snapshot.put(KEY_CURRENT_ITEM_ID, currentItemId)
+                snapshot.put(KEY_STREAM_POSITION, streamPositionMs)
+                snapshot.put(KEY_MEDIA_SESSION_ID, mediaSessionId)
+                stream = mFile.startWrite()
+                stream.write(snapshot.toString().toByteArray(Charsets.UTF_8))
+                mFile.finishWrite(stream)
+            } catch (e: IOException) {
+                Log.w(TAG, "Failed to write the queue snapshot", e)
+                stream?.let { mFile.failWrite(it) }
+            } catch (e: JSONException) {
+                Log.w(TAG, "Failed to write the queue snapshot", e)
+                stream?.let { mFile.failWrite(it) }
+            }
+        }
+    }
+
+    private fun read() {
+        IO_EXECUTOR.execute {
+            if (!mFile.baseFile.exists()) {
+                return@execute
+            }
+            val snapshot = try {
+                JSONObject(String(mFile.readFully(), Charsets.UTF_8))
+            } catch (e: IOException) {
+                Log.w(TAG, "Failed to read the queue snapshot", e)
+                return@execute
+            } catch (e: JSONException) {
+                Log.w(TAG, "Failed to read the queue snapshot", e)
+                return@execute
+            }
+            mHandler.post { onRead(snapshot) }
+        }
+    }
+
+    private fun onRead(snapshot: JSONObject) {
+        if (mChanged) {
+            // The queue changed while the file was read, so it is more recent than the file.
+            return
+        }
+        try {
+            val itemIdsJson = snapshot.getJSONArray(KEY_ITEM_IDS)
+            mItemIds = IntArray(itemIdsJson.length()) { itemIdsJson.getInt(it) }
+            val itemsJson = snapshot.getJSONArray(KEY_ITEMS)
+            for (i in 0 until itemsJson.length()) {
+                val item = MediaQueueItem.Builder(itemsJson.getJSONObject(i)).build()
+                mItems.put(item.itemId, item)
+            }
+            currentItemId = snapshot.getInt(KEY_CURRENT_ITEM_ID)
+            streamPosition = snapshot.getLong(KEY_STREAM_POSITION)
+            mMediaSessionId = snapshot.getLong(KEY_MEDIA_SESSION_ID)
+        } catch (e: JSONException) {
+            Log.w(TAG, "Failed to parse the queue snapshot", e)
+            mItemIds = IntArray(0)
+            mItems.clear()
+        }
+    }
+
+    companion object {
+        private const val TAG = "QueueSnapshotStore"
+        private const val FILE_NAME = "queue_snapshot.json"
+        private const val KEY_ITEM_IDS = "itemIds"
+        private const val KEY_ITEMS = "items"
+        private const val KEY_CURRENT_ITEM_ID = "currentItemId"
+        private const val KEY_STREAM_POSITION = "streamPosition"
+        private const val KEY_MEDIA_SESSION_ID = "mediaSessionId"
+        private const val UNKNOWN_MEDIA_SESSION_ID = -1L
+        private const val WRITE_DELAY_MS = 2_000L
+        private val IO_EXECUTOR: Executor = Executors.newSingleThreadExecutor()
+    }
+}
@@ -84,6 +84,7 @@ class QueueItemTouchHelperCallback constructor(private val mAdapter: ItemTouchHe
         if (viewHolder is QueueListAdapter.ItemTouchHelperViewHolder) {
             viewHolder.onItemClear()
         }
+        mAdapter.onItemMoveFinished()
     }
 
     /**
@@ -100,6 +101,12 @@ class QueueItemTouchHelperCallback constructor(private val mAdapter: ItemTouchHe
          */
         fun onItemMove(fromPosition: Int, toPosition: Int): Boolean
 
+        /**
+         * Called when the item being dragged has been dropped, after all the [onItemMove] calls of
+         * its drag. Also called when a swipe ends, without any move.
+         */
+        fun onItemMoveFinished()
+
         /**
          * Called when an item has been dismissed by a swipe.
          *
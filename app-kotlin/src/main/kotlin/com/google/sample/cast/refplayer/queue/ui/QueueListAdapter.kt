@@ -31,8 +31,6 @@ import android.widget.ImageButton
 import android.widget.ProgressBar
 import android.view.View.OnTouchListener
 import android.view.MotionEvent
-import com.google.android.gms.cast.framework.media.MediaQueue
-import com.google.android.gms.cast.framework.media.MediaQueueRecyclerViewAdapter
 import com.android.volley.toolbox.ImageLoader.ImageListener
 import com.android.volley.VolleyError
 import com.android.volley.toolbox.ImageLoader.ImageContainer
@@ -40,8 +38,12 @@ import androidx.core.view.MotionEventCompat
 import androidx.annotation.IntDef
 import androidx.recyclerview.widget.ItemTouchHelper
 import com.google.android.gms.cast.*
+import com.google.sample.cast.refplayer.queue.OptimisticQueue
 import com.google.sample.cast.refplayer.queue.QueueDataProvider
 import com.google.sample.cast.refplayer.utils.CustomVolleyRequest
+import com.google.sample.cast.refplayer.utils.FrameTimingMonitor
+import com.google.sample.cast.refplayer.utils.ImageFailureCache
+import com.google.sample.cast.refplayer.utils.PlaceholderColors
 import java.lang.annotation.Retention
 import java.lang.annotation.RetentionPolicy
 
@@ -49,10 +51,9 @@ import java.lang.annotation.RetentionPolicy
  * An adapter to show the list of queue items.
  */
 class QueueListAdapter(
-    mediaQueue: MediaQueue,
     context: Context,
     dragStartListener: OnStartDragListener
-) : MediaQueueRecyclerViewAdapter<QueueListAdapter.QueueItemViewHolder>(mediaQueue),
+) : RecyclerView.Adapter<QueueListAdapter.QueueItemViewHolder>(),
     QueueItemTouchHelperCallback.ItemTouchHelperAdapter {
     private val mAppContext: Context
     private val mProvider: QueueDataProvider?
@@ -60,8 +61,7 @@ class QueueListAdapter(
     private val mItemViewOnClickListener: View.OnClickListener
     private var mEventListener: EventListener? = null
     private var mImageLoader: ImageLoader? = null
-    private val myMediaQueueCallback: ListAdapterMediaQueueCallback =
-        ListAdapterMediaQueueCallback()
+    private val myQueueCallback: ListAdapterQueueCallback = ListAdapterQueueCallback()
 
     init {
         mAppContext = context.applicationContext
@@ -74,10 +74,21 @@ class QueueListAdapter(
             }
             onItemViewClick(view)
         }
-        getMediaQueue().registerCallback(myMediaQueueCallback)
         setHasStableIds(false)
     }
 
+    override fun onAttachedToRecyclerView(recyclerView: RecyclerView) {
+        mProvider!!.setQueueCallback(myQueueCallback)
+    }
+
+    override fun onDetachedFromRecyclerView(recyclerView: RecyclerView) {
+        mProvider!!.setQueueCallback(null)
+    }
+
+    override fun getItemCount(): Int {
+        return mProvider!!.count
+    }
+
     private fun onItemViewClick(view: View) {
         mEventListener?.onItemViewClicked(view)
     }
@@ -85,13 +96,30 @@ class QueueListAdapter(
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): QueueItemViewHolder {
         val inflater = LayoutInflater.from(parent.context)
         val view = inflater.inflate(R.layout.queue_row, parent, false)
-        return QueueItemViewHolder(view)
+        val holder = QueueItemViewHolder(view)
+        // The listeners are set once per row, the item they act on is read from the tags.
+        holder.mContainer.setOnClickListener(mItemViewOnClickListener)
+        holder.mPlayPause.setOnClickListener(mItemViewOnClickListener)
+        holder.mPlayUpcoming.setOnClickListener(mItemViewOnClickListener)
+        holder.mStopUpcoming.setOnClickListener(mItemViewOnClickListener)
+        holder.mDragHandle.setOnTouchListener(OnTouchListener { view, event ->
+            if (MotionEventCompat.getActionMasked(event) == MotionEvent.ACTION_DOWN) {
+                mDragStartListener.onStartDrag(holder)
+            } else if (MotionEventCompat.getActionMasked(event) == MotionEvent.ACTION_BUTTON_RELEASE) {
+                view.clearFocus()
+                view.clearAnimation()
+                return@OnTouchListener true
+            }
+            false
+        })
+        return holder
     }
 
     override fun onBindViewHolder(holder: QueueItemViewHolder, position: Int) {
         Log.d(TAG, "[upcoming] onBindViewHolder() for position: $position")
-        holder.setIsRecyclable(false)
-        val item = getItem(position)
+        val frameTimingMonitor = FrameTimingMonitor.instance
+        frameTimingMonitor.beginPhase(FrameTimingMonitor.PHASE_BIND)
+        val item = mProvider!!.getItem(position)
         if (item == null) {
             holder.updateControlsStatus(QueueItemViewHolder.NONE)
         } else if (mProvider!!.isCurrentItem(item)) {
@@ -106,12 +134,6 @@ class QueueListAdapter(
         holder.mPlayPause.setTag(R.string.queue_tag_item, item)
         holder.mPlayUpcoming.setTag(R.string.queue_tag_item, item)
         holder.mStopUpcoming.setTag(R.string.queue_tag_item, item)
-
-        // Set listeners
-        holder.mContainer.setOnClickListener(mItemViewOnClickListener)
-        holder.mPlayPause.setOnClickListener(mItemViewOnClickListener)
-        holder.mPlayUpcoming.setOnClickListener(mItemViewOnClickListener)
-        holder.mStopUpcoming.setOnClickListener(mItemViewOnClickListener)
         val info = item?.media
         var imageUrl: String? = null
         if (info != null && info.metadata != null) {
@@ -126,41 +148,21 @@ class QueueListAdapter(
             holder.mTitleView.text = null
             holder.mDescriptionView.text = null
         }
-        if (imageUrl != null) {
-            mImageLoader = CustomVolleyRequest.Companion.getInstance(mAppContext)?.imageLoader
-            val imageListener: ImageListener = object : ImageListener {
-                override fun onErrorResponse(error: VolleyError) {
-                    holder.mProgressLoading.visibility = View.GONE
-                    holder.mImageView.setErrorImageResId(R.drawable.ic_action_alerts_and_states_warning)
-                }
-
-                override fun onResponse(response: ImageContainer, isImmediate: Boolean) {
-                    if (response.bitmap != null) {
-                        holder.mProgressLoading.visibility = View.GONE
-                        holder.mImageView.setImageBitmap(response.bitmap)
-                    }
-                }
-            }
-            holder.mImageView.setImageUrl(
-                mImageLoader!![imageUrl, imageListener].requestUrl,
-                mImageLoader
-            )
-        }
-        holder.mDragHandle.setOnTouchListener(OnTouchListener { view, event ->
-            if (MotionEventCompat.getActionMasked(event) == MotionEvent.ACTION_DOWN) {
-                mDragStartListener.onStartDrag(holder)
-            } else if (MotionEventCompat.getActionMasked(event) == MotionEvent.ACTION_BUTTON_RELEASE) {
-                view.clearFocus()
-                view.clearAnimation()
-                holder.setIsRecyclable(false)
-                return@OnTouchListener true
-            }
-            false
-        })
+        frameTimingMonitor.beginPhase(FrameTimingMonitor.PHASE_IMAGE)
+        // Paint the placeholder right away, the thumbnail replaces it once loaded.
+        holder.mPlaceholder.setColor(PlaceholderColors.getInstance(mAppContext).getColor(info))
+        holder.mImageView.setDefaultImageDrawable(holder.mPlaceholder)
+        mImageLoader = CustomVolleyRequest.Companion.getInstance(mAppContext)?.imageLoader
+        holder.setImage(imageUrl, mImageLoader)
+        frameTimingMonitor.endPhase(FrameTimingMonitor.PHASE_IMAGE)
+        frameTimingMonitor.endPhase(FrameTimingMonitor.PHASE_BIND)
     }
 
     override fun onItemDismiss(position: Int) {
-        mProvider!!.removeFromQueue(position)
+        if (!mProvider!!.removeFromQueue(position)) {
+            // Brings the swiped row back.
+            notifyItemChanged(position)
+        }
     }
 
     override fun onItemMove(fromPosition: Int, toPosition: Int): Boolean {
@@ -168,16 +170,23 @@ class QueueListAdapter(
             return false
         }
         mProvider!!.moveItem(fromPosition, toPosition)
-        notifyItemMoved(fromPosition, toPosition)
         return true
     }
 
-    override fun dispose() {
-        super.dispose()
-        //unregister callback
-        val queue = mediaQueue
-        if (queue != null) {
-            queue.unregisterCallback(myMediaQueueCallback)
+    override fun onItemMoveFinished() {
+        mProvider!!.commitMove()
+    }
+
+    /**
+     * Rebinds the row of the item `itemId`, if it is shown.
+     */
+    fun notifyItemIdChanged(itemId: Int) {
+        if (itemId == MediaQueueItem.INVALID_ITEM_ID) {
+            return
+        }
+        val position = mProvider!!.getShownPosition(itemId)
+        if (position >= 0) {
+            notifyItemChanged(position)
         }
     }
 
@@ -202,34 +211,26 @@ class QueueListAdapter(
     }
 
     /**
-     * Handles ListAdapter notification upon MediaQueue data changes.
+     * Handles ListAdapter notification upon changes of the queue shown.
      */
-    internal inner class ListAdapterMediaQueueCallback : MediaQueue.Callback() {
-        override fun itemsInsertedInRange(start: Int, end: Int) {
-            notifyItemRangeInserted(start, end)
-        }
-
-        override fun itemsReloaded() {
-            notifyDataSetChanged()
+    internal inner class ListAdapterQueueCallback : OptimisticQueue.Callback {
+        override fun onInserted(position: Int, count: Int) {
+            notifyItemRangeInserted(position, count)
         }
 
-        override fun itemsRemovedAtIndexes(ints: IntArray) {
-            for (i in ints) {
-                notifyItemRemoved(i)
-            }
+        override fun onRemoved(position: Int, count: Int) {
+            notifyItemRangeRemoved(position, count)
         }
 
-        override fun itemsReorderedAtIndexes(list: List<Int>, i: Int) {
-            notifyDataSetChanged()
+        override fun onMoved(fromPosition: Int, toPosition: Int) {
+            notifyItemMoved(fromPosition, toPosition)
         }
 
-        override fun itemsUpdatedAtIndexes(ints: IntArray) {
-            for (i in ints) {
-                notifyItemChanged(i)
-            }
+        override fun onChanged(position: Int, count: Int, payload: Any?) {
+            notifyItemRangeChanged(position, count, payload)
         }
 
-        override fun mediaQueueChanged() {
+        override fun onReloaded() {
             notifyDataSetChanged()
         }
     }
@@ -248,6 +249,29 @@ class QueueListAdapter(
         var mTitleView: TextView
         var mDescriptionView: TextView
         var mProgressLoading: ProgressBar
+        val mPlaceholder = PlaceholderColors.newPlaceholderDrawable(itemView.context)
+        // The thumbnail the row shows or loads, and its request.
+        private var mTrackedUrl: String? = null
+        private var mTrackedContainer: ImageContainer? = null
+        // Only ever hears about mTrackedUrl, since the previous request is cancelled on a change.
+        private val mImageListener: ImageListener = object : ImageListener {
+            override fun onResponse(response: ImageContainer, isImmediate: Boolean) {
+                mTrackedUrl?.let { ImageFailureCache.instance.onResponse(it, response, isImmediate) }
+                if (response.bitmap != null) {
+                    mProgressLoading.visibility = View.GONE
+                    mImageView.setImageBitmap(response.bitmap)
+                }
+            }
+
+            override fun onErrorResponse(error: VolleyError) {
+                mTrackedUrl?.let { ImageFailureCache.instance.onFailure(it) }
+                mProgressLoading.visibility = View.GONE
+                mImageView.setErrorImageResId(R.drawable.ic_action_alerts_and_states_warning)
+                // Check the backoff of the thumbnail again on the next bind.
+                mTrackedUrl = null
+                mTrackedContainer = null
+            }
+        }
         override fun onItemSelected() {
         }
 
@@ -274,6 +298,35 @@ class QueueListAdapter(
             mProgressLoading = itemView.findViewById<View>(R.id.item_progress) as ProgressBar
         }
 
+        /**
+         * Shows the thumbnail at `imageUrl`, keeping the current one when the row is rebound to the
+         * same thumbnail, and cancelling the request of the previous one otherwise.
+         */
+        fun setImage(imageUrl: String?, imageLoader: ImageLoader?) {
+            if (imageUrl != null && imageUrl == mTrackedUrl) {
+                return
+            }
+            mTrackedContainer?.cancelRequest()
+            mTrackedContainer = null
+            mTrackedUrl = null
+            if (imageUrl == null || imageLoader == null) {
+                mImageView.setImageUrl(null, imageLoader)
+                mProgressLoading.visibility = View.GONE
+                return
+            }
+            if (!ImageFailureCache.instance.shouldAttempt(imageUrl)) {
+                // The image failed recently, so show the error state without retrying it.
+                mImageView.setImageUrl(null, imageLoader)
+                mProgressLoading.visibility = View.GONE
+                mImageView.setImageResource(R.drawable.ic_action_alerts_and_states_warning)
+                return
+            }
+            mTrackedUrl = imageUrl
+            mProgressLoading.visibility = View.VISIBLE
+            mTrackedContainer = imageLoader[imageUrl, mImageListener]
+            mImageView.setImageUrl(imageUrl, imageLoader)
+        }
+
         fun updateControlsStatus(@ControlStatus status: Int) {
             var bgResId = R.drawable.bg_item_normal_state
             mTitleView.setTextAppearance(mContext, R.style.CastSubhead)
@@ -32,6 +32,9 @@ import android.view.KeyEvent
 import androidx.appcompat.widget.Toolbar
 import com.google.sample.cast.refplayer.queue.QueueDataProvider
 import com.google.sample.cast.refplayer.settings.CastPreference
+import com.google.sample.cast.refplayer.utils.Utils
+import java.io.FileDescriptor
+import java.io.PrintWriter
 import java.util.concurrent.Executor
 import java.util.concurrent.Executors
 
@@ -145,6 +148,14 @@ class QueueListViewActivity : AppCompatActivity() {
         return true
     }
 
+    override fun onPrepareOptionsMenu(menu: Menu): Boolean {
+        // The last queue can be played again on a receiver whose queue is empty.
+        val provider = QueueDataProvider.Companion.getInstance(applicationContext)!!
+        menu.findItem(R.id.action_restore_queue).isVisible =
+            !provider.isQueueDetached && provider.count == 0 && provider.hasSnapshot()
+        return super.onPrepareOptionsMenu(menu)
+    }
+
     override fun onOptionsItemSelected(item: MenuItem): Boolean {
         when (item.itemId) {
             R.id.action_settings -> startActivity(
@@ -156,6 +167,9 @@ class QueueListViewActivity : AppCompatActivity() {
             R.id.action_clear_queue -> QueueDataProvider.Companion.getInstance(
                 applicationContext
             )!!.removeAll()
+            R.id.action_restore_queue -> QueueDataProvider.Companion.getInstance(
+                applicationContext
+            )!!.restoreQueue()
             android.R.id.home -> finish()
         }
         return true
@@ -184,6 +198,15 @@ class QueueListViewActivity : AppCompatActivity() {
         super.onResume()
     }
 
+    /**
+     * Appends the frame timings and the state of the caches to
+     * `adb shell dumpsys activity`.
+     */
+    override fun dump(prefix: String, fd: FileDescriptor?, writer: PrintWriter, args: Array<out String>?) {
+        super.dump(prefix, fd, writer, args)
+        Utils.dumpDiagnostics(this, prefix, writer, args)
+    }
+
     private val remoteMediaClient: RemoteMediaClient?
         private get() {
             val castSession = mCastContext!!.sessionManager.currentCastSession
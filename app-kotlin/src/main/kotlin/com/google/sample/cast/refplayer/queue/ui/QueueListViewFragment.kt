@@ -32,6 +32,7 @@ import androidx.recyclerview.widget.ItemTouchHelper
 import androidx.fragment.app.Fragment
 import com.google.sample.cast.refplayer.expandedcontrols.ExpandedControlsActivity
 import com.google.sample.cast.refplayer.queue.QueueDataProvider
+import com.google.sample.cast.refplayer.utils.FrameTimingMonitor
 import java.util.concurrent.Executor
 import java.util.concurrent.Executors
 
@@ -57,10 +58,13 @@ class QueueListViewFragment() : Fragment(), QueueListAdapter.OnStartDragListener
         super.onViewCreated(view, savedInstanceState)
         val recyclerView = requireView().findViewById<View>(R.id.recycler_view) as RecyclerView
         mProvider = QueueDataProvider.Companion.getInstance(context)
-        val adapter = QueueListAdapter(mProvider!!.mediaQueue!! , (activity)!!, this)
+        val adapter = QueueListAdapter((activity)!!, this)
         recyclerView.setHasFixedSize(true)
         recyclerView.adapter = adapter
-        recyclerView.layoutManager = LinearLayoutManager(activity)
+        val layoutManager = LinearLayoutManager(activity)
+        recyclerView.layoutManager = layoutManager
+        FrameTimingMonitor.instance.track(recyclerView, "queue")
+        QueuePrefetcher(mProvider!!, layoutManager).attach(recyclerView)
         val callback: ItemTouchHelper.Callback = QueueItemTouchHelperCallback(adapter)
         mItemTouchHelper = ItemTouchHelper(callback)
         mItemTouchHelper!!.attachToRecyclerView(recyclerView)
@@ -97,6 +101,20 @@ class QueueListViewFragment() : Fragment(), QueueListAdapter.OnStartDragListener
             override fun onQueueDataChanged() {
                 adapter.notifyDataSetChanged()
             }
+
+            override fun onCurrentItemChanged(previousItemId: Int, itemId: Int) {
+                adapter.notifyItemIdChanged(previousItemId)
+                adapter.notifyItemIdChanged(itemId)
+            }
+
+            override fun onUpcomingItemChanged(previousItemId: Int, itemId: Int) {
+                adapter.notifyItemIdChanged(previousItemId)
+                adapter.notifyItemIdChanged(itemId)
+            }
+
+            override fun onPlayerStateChanged(currentItemId: Int) {
+                adapter.notifyItemIdChanged(currentItemId)
+            }
         })
 
     }
@@ -108,7 +126,11 @@ class QueueListViewFragment() : Fragment(), QueueListAdapter.OnStartDragListener
 
     private fun onContainerClicked(view: View) {
         val remoteMediaClient = remoteMediaClient ?: return
-        val item = view.getTag(R.string.queue_tag_item) as MediaQueueItem
+        val item = view.getTag(R.string.queue_tag_item) as MediaQueueItem?
+        if (item == null || item.itemId == MediaQueueItem.INVALID_ITEM_ID) {
+            // Not fetched or not inserted on the receiver yet.
+            return
+        }
         val currentItemId = mProvider!!.currentItemId
         if (currentItemId == item.itemId) {
             // We selected the one that is currently playing so we take the user to the
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.cast.refplayer.queue
+package com.google.sample.cast.refplayer.queue.ui
+
+import androidx.recyclerview.widget.LinearLayoutManager
+import androidx.recyclerview.widget.RecyclerView
+import com.google.sample.cast.refplayer.queue.QueueDataProvider
+
+/**
+ * Fetches the data of the queue items ahead of the scroll of the queue list, so that the rows are
+ * bound with their items rather than with placeholders that each fetch their own item.
+ *
+ * The prefetched window spans [SCREENS_AHEAD] screens of rows in the direction of the scroll and
+ * one screen behind it, and is fetched anew once the visible rows come within a screen of its end.
+ * The item cache of the queue is sized to hold the window as the screen fits it.
+ */
+internal class QueuePrefetcher(
+    private val mProvider: QueueDataProvider,
+    private val mLayoutManager: LinearLayoutManager
+) : RecyclerView.OnScrollListener() {
+
+    private var mScrollingDown = true
+    private var mWindowStart = RecyclerView.NO_POSITION
+    private var mWindowEnd = RecyclerView.NO_POSITION
+
+    /**
+     * Prefetches around the rows of `recyclerView` as it scrolls and as its items change.
+     */
+    fun attach(recyclerView: RecyclerView) {
+        recyclerView.addOnScrollListener(this)
+        recyclerView.adapter!!.registerAdapterDataObserver(
+            object : RecyclerView.AdapterDataObserver() {
+                override fun onChanged() {
+                    invalidate()
+                }
+
+                override fun onItemRangeInserted(positionStart: Int, itemCount: Int) {
+                    invalidate()
+                }
+
+                override fun onItemRangeRemoved(positionStart: Int, itemCount: Int) {
+                    invalidate()
+                }
+
+                override fun onItemRangeMoved(fromPosition: Int, toPosition: Int, itemCount: Int) {
+                    invalidate()
+                }
+            })
+    }
+
+    /**
+     * Forgets the window, whose positions no longer match the items after a structural change.
+     * The next layout of the list fetches a new one.
+     */
+    private fun invalidate() {
+        mWindowStart = RecyclerView.NO_POSITION
+        mWindowEnd = RecyclerView.NO_POSITION
+    }
+
+    override fun onScrolled(recyclerView: RecyclerView, dx: Int, dy: Int) {
+        val first = mLayoutManager.findFirstVisibleItemPosition()
+        val last = mLayoutManager.findLastVisibleItemPosition()
+        if (first == RecyclerView.NO_POSITION) {
+            return
+        }
+        if (dy != 0) {
+            mScrollingDown = dy > 0
+        }
+        val visible = last - first + 1
+        val lastPosition = mLayoutManager.itemCount - 1
+        val isCovered = mWindowStart != RecyclerView.NO_POSITION &&
+                first >= mWindowStart && last <= mWindowEnd &&
+                if (mScrollingDown) {
+                    Math.min(last + visible, lastPosition) <= mWindowEnd
+                } else {
+                    Math.max(first - visible, 0) >= mWindowStart
+                }
+        if (isCovered) {
+            return
+        }
+        mProvider.setCacheCapacity(visible * CACHED_SCREENS)
+        if (mScrollingDown) {
+            mWindowStart = Math.max(first - visible * SCREENS_BEHIND, 0)
+            mWindowEnd = Math.min(last + visible * SCREENS_AHEAD, lastPosition)
+        } else {
+            mWindowStart = Math.max(first - visible * SCREENS_AHEAD, 0)
+            mWindowEnd = Math.min(last + visible * SCREENS_BEHIND, lastPosition)
+        }
+        mProvider.prefetch(mWindowStart, mWindowEnd)
+    }
+
+    companion object {
+        private const val SCREENS_AHEAD = 2
+        private const val SCREENS_BEHIND = 1
+        // The cache also keeps the previous window while the next one is fetched.
+        private const val CACHED_SCREENS = 2 * (SCREENS_AHEAD + SCREENS_BEHIND + 1)
+    }
+}
@@ -37,6 +37,7 @@ class AsyncBitmap @JvmOverloads constructor(
   private var url: Uri? = null
   private var bitmap: Bitmap? = null
   private var callback: Callback? = null
+  private var priority = ImageScheduler.Priority.VISIBLE
 
   /** The callback interface for notifying the loaded [android.graphics.Bitmap].  */
   interface Callback {
@@ -63,6 +64,14 @@ class AsyncBitmap @JvmOverloads constructor(
     this.callback = callback
   }
 
+  /**
+   * Sets the [ImageScheduler.Priority] lane that the following loads are scheduled in. The
+   * default is [ImageScheduler.Priority.VISIBLE].
+   */
+  fun setPriority(priority: ImageScheduler.Priority) {
+    this.priority = priority
+  }
+
   /**
    * Loads image pointed by `url` asynchronously. The image will be delivered as an [ ] via [Callback]. If this method is called again with the same
    * `url` and the bitmap is still loading, and the result will be delivered to the callback
@@ -89,7 +98,8 @@ class AsyncBitmap @JvmOverloads constructor(
     this.url = url
     val task: FetchBitmapTask = FetchBitmapTask(
       preferredWidth,
-      preferredHeight
+      preferredHeight,
+      priority
     )
     task.executeTask(url)
   }
@@ -126,10 +136,14 @@ class AsyncBitmap @JvmOverloads constructor(
    *
    * @param preferredWidth The preferred image width after subsampling and scaling.
    * @param preferredHeight The preferred image height after subsampling and scaling.
-   */(private val preferredWidth: Int, private val preferredHeight: Int) :
-    AsyncTask<Uri?, Void?, Bitmap?>() {
+   * @param priority The [ImageScheduler] lane to run the task in.
+   */(
+    private val preferredWidth: Int,
+    private val preferredHeight: Int,
+    private val priority: ImageScheduler.Priority,
+  ) : AsyncTask<Uri?, Void?, Bitmap?>() {
     fun executeTask(uri: Uri?): AsyncTask<Uri?, Void?, Bitmap?> {
-      return executeOnExecutor(THREAD_POOL_EXECUTOR, uri)
+      return executeOnExecutor(ImageScheduler.instance.getExecutor(priority), uri)
     }
 
     override fun onPostExecute(bitmap: Bitmap?) {
@@ -148,6 +162,11 @@ class AsyncBitmap @JvmOverloads constructor(
         Log.w(TAG, "Malformed URL.", e)
         return null
       }
+      val failureCache = ImageFailureCache.instance
+      if (!failureCache.shouldAttempt(url.toString())) {
+        // The URL or its host failed recently, so deliver the failure without a request.
+        return null
+      }
       val options = BitmapFactory.Options()
       options.inJustDecodeBounds = false
       options.inSampleSize = 1
@@ -179,6 +198,11 @@ class AsyncBitmap @JvmOverloads constructor(
       } finally {
         urlConnection?.disconnect()
       }
+      if (bitmap != null) {
+        failureCache.onSuccess(url.toString())
+      } else {
+        failureCache.onFailure(url.toString())
+      }
       return bitmap
     }
 
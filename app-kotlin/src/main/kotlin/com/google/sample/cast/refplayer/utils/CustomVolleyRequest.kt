@@ -24,6 +24,8 @@ import android.graphics.Bitmap
 import androidx.collection.LruCache
 import com.android.volley.Cache
 import com.android.volley.Network
+import com.android.volley.NetworkResponse
+import com.android.volley.Request
 import com.android.volley.toolbox.DiskBasedCache
 import com.android.volley.toolbox.BasicNetwork
 import com.android.volley.toolbox.HurlStack
@@ -32,27 +34,69 @@ class CustomVolleyRequest private constructor(context: Context) {
     private var requestQueue: RequestQueue?
     val imageLoader: ImageLoader
     private var context: Context
+    private val memoryCache: LruCache<String, Bitmap> = LruCache(20)
 
     init {
         this.context = context
         requestQueue = getRequestQueue()
         imageLoader = ImageLoader(requestQueue,
             object : ImageCache {
-                private val cache: LruCache<String, Bitmap> = LruCache(20)
                 override fun getBitmap(url: String): Bitmap? {
-                    return cache.get(url)
+                    return memoryCache.get(url)
                 }
 
                 override fun putBitmap(url: String, bitmap: Bitmap) {
-                    cache.put(url, bitmap)
+                    memoryCache.put(url, bitmap)
+                    PlaceholderColors.getInstance(context)
+                        .onImageLoaded(getUrlFromCacheKey(url), bitmap)
                 }
             })
+        MemoryGovernor.getInstance(context).register(object : MemoryGovernor.Trimmable {
+            override val name: String
+                get() = "Volley images"
+            override val entryCount: Int
+                get() = memoryCache.size()
+            override val sizeInBytes: Long
+                get() = MemoryGovernor.getSizeInBytes(memoryCache.snapshot().values)
+
+            override fun trimToFraction(fraction: Float) {
+                MemoryGovernor.trimLruCache(memoryCache, fraction)
+            }
+        })
+    }
+
+    /**
+     * Returns the largest bitmap of `url` in the memory cache, whatever size it was requested at,
+     * or `null` if the image is not in the memory cache.
+     */
+    fun getCachedBitmap(url: String): Bitmap? {
+        var cachedBitmap: Bitmap? = null
+        for ((cacheKey, bitmap) in memoryCache.snapshot()) {
+            if (url == getUrlFromCacheKey(cacheKey)
+                && (cachedBitmap == null || bitmap.width > cachedBitmap.width)
+            ) {
+                cachedBitmap = bitmap
+            }
+        }
+        return cachedBitmap
     }
 
     private fun getRequestQueue(): RequestQueue {
         if (requestQueue == null) {
             val cache: Cache = DiskBasedCache(context.getCacheDir(), 10 * 1024 * 1024)
-            val network: Network = BasicNetwork(HurlStack())
+            val qualityPolicy = ImageQualityPolicy.getInstance(context)
+            val network: Network = object : BasicNetwork(HurlStack()) {
+                override fun performRequest(request: Request<*>): NetworkResponse {
+                    val response = super.performRequest(request)
+                    // Feed the image quality policy with the measured throughput.
+                    if (!response.notModified && response.data != null) {
+                        qualityPolicy.onBytesTransferred(
+                            response.data.size.toLong(), response.networkTimeMs
+                        )
+                    }
+                    return response
+                }
+            }
             requestQueue = RequestQueue(cache, network)
             requestQueue!!.start()
         }
@@ -62,6 +106,7 @@ class CustomVolleyRequest private constructor(context: Context) {
     companion object {
         private var customVolleyRequest: CustomVolleyRequest? = null
 
+        @JvmStatic
         @Synchronized
         fun getInstance(context: Context): CustomVolleyRequest? {
             if (customVolleyRequest == null) {
@@ -69,5 +114,21 @@ class CustomVolleyRequest private constructor(context: Context) {
             }
             return customVolleyRequest
         }
+
+        /**
+         * Returns the URL of an [ImageLoader] cache key, which has the format
+         * "#W[width]#H[height]#S[scale type][url]".
+         */
+        private fun getUrlFromCacheKey(cacheKey: String): String {
+            var index = cacheKey.indexOf("#S")
+            if (index < 0) {
+                return cacheKey
+            }
+            index += 2
+            while (index < cacheKey.length && Character.isDigit(cacheKey[index])) {
+                index++
+            }
+            return cacheKey.substring(index)
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.cast.refplayer.utils
+
+import android.view.Choreographer
+import android.view.Display
+import androidx.recyclerview.widget.RecyclerView
+import java.util.Arrays
+import java.util.Locale
+
+/**
+ * Times the frames drawn while the lists scroll, and attributes the slow ones to the screen and to
+ * the adapter phases that ran during them.
+ *
+ * Frames are timed by [Choreographer] callbacks. They run on the main thread like the adapters,
+ * so the time spent in each phase of a frame adds up without any synchronization. Callbacks are
+ * only posted while a tracked list scrolls, so that an idle screen is not woken up on every vsync.
+ * The durations of the frames of each screen go to a histogram of 1 ms buckets, which the
+ * percentiles are read from. All the methods must be called on the main thread.
+ */
+class FrameTimingMonitor private constructor() {
+
+  private val screens = LinkedHashMap<String, ScreenStats>()
+  private val phaseStartNanos = LongArray(PHASE_NAMES.size)
+  // The time spent in each phase since the last frame.
+  private val framePhaseNanos = LongArray(PHASE_NAMES.size)
+  private var activeScreen: ScreenStats? = null
+  private var frameIntervalNanos = DEFAULT_FRAME_INTERVAL_NANOS
+  private var lastFrameTimeNanos = 0L
+  private val frameCallback = object : Choreographer.FrameCallback {
+    override fun doFrame(frameTimeNanos: Long) {
+      val stats = activeScreen ?: return
+      if (lastFrameTimeNanos != 0L) {
+        stats.record(frameTimeNanos - lastFrameTimeNanos, frameIntervalNanos, framePhaseNanos)
+      }
+      lastFrameTimeNanos = frameTimeNanos
+      Arrays.fill(framePhaseNanos, 0)
+      Choreographer.getInstance().postFrameCallback(this)
+    }
+  }
+
+  /** Times the frames of `recyclerView` while it scrolls, under the name `screen`.  */
+  fun track(recyclerView: RecyclerView, screen: String) {
+    recyclerView.addOnScrollListener(object : RecyclerView.OnScrollListener() {
+      override fun onScrollStateChanged(recyclerView: RecyclerView, newState: Int) {
+        if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+          stop()
+        } else {
+          start(screen, recyclerView.display)
+        }
+      }
+    })
+  }
+
+  /** Marks the start of `phase`, one of the `PHASE_` constants.  */
+  fun beginPhase(phase: Int) {
+    phaseStartNanos[phase] = System.nanoTime()
+  }
+
+  /** Marks the end of `phase`, which adds its duration to the current frame.  */
+  fun endPhase(phase: Int) {
+    framePhaseNanos[phase] += System.nanoTime() - phaseStartNanos[phase]
+  }
+
+  /** Forgets the frames timed so far, for `dumpsys activity ... --reset`.  */
+  fun reset() {
+    stop()
+    screens.clear()
+  }
+
+  /**
+   * Returns a human readable summary of the frames of each screen: their percentiles, the share of
+   * slow frames, and the share of the slow frames spent in each phase.
+   */
+  fun dump(): String {
+    val builder = StringBuilder()
+    for (stats in screens.values) {
+      stats.dump(builder)
+    }
+    return builder.toString()
+  }
+
+  private fun start(screen: String, display: Display?) {
+    val stats = screens.getOrPut(screen) { ScreenStats(screen) }
+    if (activeScreen === stats) {
+      // The list went from dragging to settling, which is still the same scroll.
+      return
+    }
+    stop()
+    activeScreen = stats
+    frameIntervalNanos = if (display != null && display.refreshRate > 0) {
+      (1_000_000_000L / display.refreshRate).toLong()
+    } else {
+      DEFAULT_FRAME_INTERVAL_NANOS
+    }
+    lastFrameTimeNanos = 0
+    Arrays.fill(framePhaseNanos, 0)
+    Choreographer.getInstance().postFrameCallback(frameCallback)
+  }
+
+  private fun stop() {
+    if (activeScreen == null) {
+      return
+    }
+    activeScreen = null
+    Choreographer.getInstance().removeFrameCallback(frameCallback)
+  }
+
+  /** The frames timed on a single screen.  */
+  private class ScreenStats(private val name: String) {
+    private val histogram = IntArray(HISTOGRAM_MAX_MS + 1)
+    private val slowFramePhaseNanos = LongArray(PHASE_NAMES.size)
+    private var frameCount = 0L
+    private var slowFrameCount = 0L
+    private var slowFrameNanos = 0L
+    private var droppedFrameCount = 0L
+
+    fun record(durationNanos: Long, intervalNanos: Long, phaseNanos: LongArray) {
+      frameCount++
+      histogram[Math.min(durationNanos / NANOS_PER_MS, HISTOGRAM_MAX_MS.toLong()).toInt()]++
+      droppedFrameCount +=
+        Math.max(0, Math.round(durationNanos.toDouble() / intervalNanos) - 1)
+      if (durationNanos <= intervalNanos * SLOW_FRAME_INTERVALS) {
+        return
+      }
+      slowFrameCount++
+      slowFrameNanos += durationNanos
+      for (i in phaseNanos.indices) {
+        slowFramePhaseNanos[i] += phaseNanos[i]
+      }
+    }
+
+    fun getPercentileMillis(percentile: Int): Int {
+      val rank = (frameCount * percentile + 99) / 100
+      var count = 0L
+      for (millis in histogram.indices) {
+        count += histogram[millis]
+        if (count >= rank) {
+          return millis
+        }
+      }
+      return HISTOGRAM_MAX_MS
+    }
+
+    fun dump(builder: StringBuilder) {
+      builder.append(
+        String.format(
+          Locale.ROOT,
+          "%s: frames=%d, slow=%d (%.1f%%), dropped=%d",
+          name,
+          frameCount,
+          slowFrameCount,
+          getShare(slowFrameCount, frameCount),
+          droppedFrameCount
+        )
+      )
+      for (percentile in PERCENTILES) {
+        builder.append(
+          String.format(Locale.ROOT, ", p%d=%dms", percentile, getPercentileMillis(percentile))
+        )
+      }
+      builder.append('\n')
+      for (i in PHASE_NAMES.indices) {
+        builder.append(
+          String.format(
+            Locale.ROOT,
+            "  %s: %dms of the slow frames (%.1f%%)\n",
+            PHASE_NAMES[i],
+            slowFramePhaseNanos[i] / NANOS_PER_MS,
+            getShare(slowFramePhaseNanos[i], slowFrameNanos)
+          )
+        )
+      }
+    }
+
+    private fun getShare(part: Long, total: Long): Float {
+      return if (total > 0) 100f * part / total else 0f
+    }
+  }
+
+  companion object {
+    /** The binding of a row, including the setting of its image.  */
+    const val PHASE_BIND = 0
+    /** The setting of the image of a row.  */
+    const val PHASE_IMAGE = 1
+    private val PHASE_NAMES = arrayOf("bind", "image")
+    private val PERCENTILES = intArrayOf(50, 90, 95, 99)
+    // Frames longer than that all go to the last bucket of the histogram.
+    private const val HISTOGRAM_MAX_MS = 250
+    // A frame is slow when it takes longer than that many vsync intervals.
+    private const val SLOW_FRAME_INTERVALS = 1.5f
+    private const val DEFAULT_FRAME_INTERVAL_NANOS = 16_666_667L
+    private const val NANOS_PER_MS = 1_000_000L
+
+    @JvmStatic
+    val instance: FrameTimingMonitor by lazy { FrameTimingMonitor() }
+  }
+}
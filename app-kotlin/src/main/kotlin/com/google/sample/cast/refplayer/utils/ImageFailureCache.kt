@@ -0,0 +1,208 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.cast.refplayer.utils
+
+import android.net.Uri
+import android.os.SystemClock
+import android.util.Log
+import com.android.volley.VolleyError
+import com.android.volley.toolbox.ImageLoader
+import java.util.Locale
+
+/**
+ * Remembers the image URLs that failed to load so that they are not retried on every bind.
+ *
+ * A failed URL is skipped for a delay that doubles with each consecutive failure. Failures are
+ * also counted per host: once a host fails [CIRCUIT_FAILURE_THRESHOLD] times in a row, its circuit
+ * opens and every URL of the host is skipped for a delay that also doubles each time the circuit
+ * opens again. When the delay expires, a single request is let through to probe the host, and its
+ * outcome closes or reopens the circuit.
+ */
+class ImageFailureCache private constructor() {
+
+  // Guarded by this.
+  private val failedUrls = object : LinkedHashMap<String, Backoff>(16, 0.75f, true) {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Backoff>): Boolean {
+      return size > MAX_FAILED_URLS
+    }
+  }
+  // Guarded by this.
+  private val hostCircuits = HashMap<String, HostCircuit>()
+
+  /** The number of requests that were skipped because of a backoff.  */
+  var skippedCount = 0L
+    @Synchronized get
+    private set
+
+  /**
+   * Returns whether `url` should be requested now. Returns `false` while the URL or its host is
+   * backing off, in which case the caller should show its error state right away.
+   */
+  @Synchronized
+  fun shouldAttempt(url: String): Boolean {
+    val now = SystemClock.elapsedRealtime()
+    val backoff = failedUrls[url]
+    if (backoff != null && now < backoff.retryAtMillis) {
+      skippedCount++
+      return false
+    }
+    val circuit = hostCircuits[getHost(url)]
+    if (circuit != null && circuit.isOpen) {
+      val isProbing = now < circuit.probeStartMillis + PROBE_TIMEOUT_MS
+      if (now < circuit.retryAtMillis || isProbing) {
+        skippedCount++
+        return false
+      }
+      // Let a single request through to find out whether the host has recovered.
+      circuit.probeStartMillis = now
+    }
+    return true
+  }
+
+  /** Records that `url` loaded, which also closes the circuit of its host.  */
+  @Synchronized
+  fun onSuccess(url: String) {
+    failedUrls.remove(url)
+    val circuit = hostCircuits.remove(getHost(url))
+    if (circuit != null && circuit.isOpen) {
+      Log.d(TAG, "Circuit closed for " + getHost(url))
+    }
+  }
+
+  /** Releases the probe of the host of `url`, which was served without a request.  */
+  @Synchronized
+  private fun onCacheHit(url: String) {
+    hostCircuits[getHost(url)]?.probeStartMillis = NO_PROBE
+  }
+
+  /**
+   * Records a response to the Volley request of `url`. Responses served from the memory cache say
+   * nothing about the host, so they only release a pending probe.
+   */
+  fun onResponse(url: String, response: ImageLoader.ImageContainer, isImmediate: Boolean) {
+    if (response.bitmap == null) {
+      return
+    }
+    if (isImmediate) {
+      onCacheHit(url)
+    } else {
+      onSuccess(url)
+    }
+  }
+
+  /** Records that `url` failed to load.  */
+  @Synchronized
+  fun onFailure(url: String) {
+    val now = SystemClock.elapsedRealtime()
+    val backoff = failedUrls.getOrPut(url) { Backoff() }
+    backoff.delayMillis = if (backoff.delayMillis == 0L) {
+      URL_INITIAL_BACKOFF_MS
+    } else {
+      Math.min(backoff.delayMillis * 2, URL_MAX_BACKOFF_MS)
+    }
+    backoff.retryAtMillis = now + backoff.delayMillis
+
+    val host = getHost(url)
+    val circuit = hostCircuits.getOrPut(host) { HostCircuit() }
+    circuit.consecutiveFailures++
+    if (circuit.isOpen || circuit.consecutiveFailures >= CIRCUIT_FAILURE_THRESHOLD) {
+      circuit.openDelayMillis = if (circuit.openDelayMillis == 0L) {
+        CIRCUIT_INITIAL_OPEN_MS
+      } else {
+        Math.min(circuit.openDelayMillis * 2, CIRCUIT_MAX_OPEN_MS)
+      }
+      circuit.retryAtMillis = now + circuit.openDelayMillis
+      circuit.isOpen = true
+      circuit.probeStartMillis = NO_PROBE
+      Log.d(TAG, "Circuit open for $host during ${circuit.openDelayMillis}ms")
+    }
+  }
+
+  /** Returns a human readable summary of the failing URLs and hosts.  */
+  @Synchronized
+  fun dump(): String {
+    val builder = StringBuilder()
+    builder.append(
+      String.format(Locale.ROOT, "failedUrls=%d, skipped=%d\n", failedUrls.size, skippedCount)
+    )
+    for ((host, circuit) in hostCircuits) {
+      builder.append(
+        String.format(
+          Locale.ROOT,
+          "%s: failures=%d, open=%b, openDelay=%dms\n",
+          host,
+          circuit.consecutiveFailures,
+          circuit.isOpen,
+          circuit.openDelayMillis
+        )
+      )
+    }
+    return builder.toString()
+  }
+
+  /**
+   * Wraps `listener` so that the outcome of the Volley request of `url` is recorded.
+   */
+  fun wrap(url: String, listener: ImageLoader.ImageListener): ImageLoader.ImageListener {
+    return object : ImageLoader.ImageListener {
+      override fun onResponse(response: ImageLoader.ImageContainer, isImmediate: Boolean) {
+        this@ImageFailureCache.onResponse(url, response, isImmediate)
+        listener.onResponse(response, isImmediate)
+      }
+
+      override fun onErrorResponse(error: VolleyError) {
+        onFailure(url)
+        listener.onErrorResponse(error)
+      }
+    }
+  }
+
+  /** The retry schedule of a single URL.  */
+  private class Backoff {
+    var delayMillis = 0L
+    var retryAtMillis = 0L
+  }
+
+  /** The circuit breaker of a single host.  */
+  private class HostCircuit {
+    var consecutiveFailures = 0
+    var isOpen = false
+    var openDelayMillis = 0L
+    var retryAtMillis = 0L
+    var probeStartMillis = NO_PROBE
+  }
+
+  companion object {
+    private const val TAG = "ImageFailureCache"
+    private const val MAX_FAILED_URLS = 200
+    private const val URL_INITIAL_BACKOFF_MS = 2_000L
+    private const val URL_MAX_BACKOFF_MS = 5 * 60_000L
+    private const val CIRCUIT_FAILURE_THRESHOLD = 5
+    private const val CIRCUIT_INITIAL_OPEN_MS = 10_000L
+    private const val CIRCUIT_MAX_OPEN_MS = 5 * 60_000L
+    // A probe that has not reported back by then, for example because its request was cancelled,
+    // is abandoned and another one is let through.
+    private const val PROBE_TIMEOUT_MS = 30_000L
+    private const val NO_PROBE = Long.MIN_VALUE / 2
+
+    @JvmStatic
+    val instance: ImageFailureCache by lazy { ImageFailureCache() }
+
+    private fun getHost(url: String): String {
+      return Uri.parse(url).host ?: ""
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.cast.refplayer.utils
+
+import android.content.Context
+import android.net.ConnectivityManager
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import android.util.Log
+import androidx.collection.LruCache
+import com.google.android.gms.common.images.WebImage
+import java.util.Locale
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Picks the quality of the images to load from the measured image throughput and whether the
+ * network is metered.
+ *
+ * On a [Tier.LOW] link, images are picked for half of the requested size and optional upgrades
+ * and prefetches are skipped. Listeners are told when the tier changes, so that a screen can
+ * upgrade its images in place once the bandwidth allows it. The bytes that the policy avoided
+ * downloading are estimated from the pixels of the images that were not loaded.
+ */
+class ImageQualityPolicy private constructor(context: Context) {
+
+  /** The quality tiers, from the cheapest to the richest.  */
+  enum class Tier {
+    /** A slow or metered link: smaller images and no optional downloads.  */
+    LOW,
+    /** The default when nothing is known about the link.  */
+    STANDARD,
+    /** A fast unmetered link.  */
+    HIGH
+  }
+
+  /** Notified on the main thread when the [Tier] changes.  */
+  interface OnTierChangedListener {
+    fun onTierChanged(tier: Tier)
+  }
+
+  private val connectivityManager: ConnectivityManager? =
+    context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager?
+  private val mainHandler = Handler(Looper.getMainLooper())
+  private val listeners: MutableList<OnTierChangedListener> = CopyOnWriteArrayList()
+  // Guarded by this.
+  private var throughputKbps = 0L
+  // Guarded by this.
+  private var isMetered = false
+  // Guarded by this.
+  private var meteredStateTimeMillis = Long.MIN_VALUE / 2
+  // Guarded by this.
+  private var tier = Tier.STANDARD
+
+  /** The number of image bytes downloaded so far.  */
+  var bytesTransferred = 0L
+    @Synchronized get
+    private set
+
+  /** An estimate of the image bytes that the policy avoided downloading.  */
+  var bytesSaved = 0L
+    @Synchronized get
+    private set
+
+  // The downsizes already counted in bytesSaved, keyed by the URLs of their two images. Guarded by
+  // this.
+  private val recordedDownsizes = LruCache<String, Boolean>(MAX_RECORDED_DOWNSIZES)
+
+  fun addOnTierChangedListener(listener: OnTierChangedListener) {
+    listeners.add(listener)
+  }
+
+  fun removeOnTierChangedListener(listener: OnTierChangedListener) {
+    listeners.remove(listener)
+  }
+
+  /** Returns the current quality tier.  */
+  @Synchronized
+  fun getTier(): Tier {
+    updateTier()
+    return tier
+  }
+
+  /** Returns whether optional downloads, such as upgrades and prefetches, should run.  */
+  fun allowsOptionalDownloads(): Boolean {
+    return getTier() != Tier.LOW
+  }
+
+  /** Returns the factor that the requested size of an image is scaled by before picking it.  */
+  fun getSizeScale(): Float {
+    return if (getTier() == Tier.LOW) LOW_TIER_SIZE_SCALE else 1f
+  }
+
+  /** Records an image download of `bytes` that took `durationMillis`.  */
+  fun onBytesTransferred(bytes: Long, durationMillis: Long) {
+    synchronized(this) {
+      bytesTransferred += bytes
+      if (bytes < MIN_SAMPLE_BYTES || durationMillis <= 0) {
+        return
+      }
+      val sampleKbps = bytes * 8 / durationMillis
+      throughputKbps = if (throughputKbps == 0L) {
+        sampleKbps
+      } else {
+        (SAMPLE_WEIGHT * sampleKbps + (1 - SAMPLE_WEIGHT) * throughputKbps).toLong()
+      }
+    }
+    getTier()
+  }
+
+  /**
+   * Records that `used` was loaded instead of the larger `skipped`. The same images are picked
+   * again and again, for every view that shows them, so each pair is only counted once.
+   */
+  fun onImageDownsized(skipped: WebImage, used: WebImage?) {
+    val savedPixels = getPixelCount(skipped) - (used?.let { getPixelCount(it) } ?: 0)
+    if (savedPixels <= 0) {
+      return
+    }
+    val key = "${skipped.url} ${used?.url}"
+    synchronized(this) {
+      if (recordedDownsizes.put(key, true) == null) {
+        bytesSaved += (savedPixels * ESTIMATED_BYTES_PER_PIXEL).toLong()
+      }
+    }
+  }
+
+  /** Returns a human readable summary of the state of the policy.  */
+  @Synchronized
+  fun dump(): String {
+    updateTier()
+    return String.format(
+      Locale.ROOT,
+      "tier=%s, throughput=%dkbps, metered=%b, transferred=%d, saved=%d\n",
+      tier,
+      throughputKbps,
+      isMetered,
+      bytesTransferred,
+      bytesSaved
+    )
+  }
+
+  // Guarded by this.
+  private fun updateTier() {
+    val now = SystemClock.elapsedRealtime()
+    if (now - meteredStateTimeMillis > METERED_STATE_MAX_AGE_MS) {
+      // Querying the connectivity service is a binder call, so the state is reused for a while.
+      isMetered = connectivityManager?.isActiveNetworkMetered ?: false
+      meteredStateTimeMillis = now
+    }
+    val newTier = when {
+      isMetered || (throughputKbps in 1 until LOW_THRESHOLD_KBPS) -> Tier.LOW
+      throughputKbps > HIGH_THRESHOLD_KBPS -> Tier.HIGH
+      else -> Tier.STANDARD
+    }
+    if (newTier == tier) {
+      return
+    }
+    Log.d(TAG, "Image quality tier changed from $tier to $newTier")
+    tier = newTier
+    mainHandler.post {
+      for (listener in listeners) {
+        listener.onTierChanged(newTier)
+      }
+    }
+  }
+
+  companion object {
+    private const val TAG = "ImageQualityPolicy"
+    private const val LOW_THRESHOLD_KBPS = 1_500L
+    private const val HIGH_THRESHOLD_KBPS = 8_000L
+    // Smaller responses are dominated by latency and say little about the bandwidth.
+    private const val MIN_SAMPLE_BYTES = 8 * 1024L
+    // The weight of a new sample in the moving average of the throughput.
+    private const val SAMPLE_WEIGHT = 0.3f
+    private const val METERED_STATE_MAX_AGE_MS = 5_000L
+    private const val LOW_TIER_SIZE_SCALE = 0.5f
+    // A rough size of a compressed image per pixel, to estimate the bytes of an image not loaded.
+    private const val ESTIMATED_BYTES_PER_PIXEL = 0.25f
+    private const val MAX_RECORDED_DOWNSIZES = 256
+    private var instance: ImageQualityPolicy? = null
+
+    @JvmStatic
+    @Synchronized
+    fun getInstance(context: Context): ImageQualityPolicy {
+      return instance ?: ImageQualityPolicy(context.applicationContext).also { instance = it }
+    }
+
+    private fun getPixelCount(image: WebImage): Long {
+      return Math.max(0, image.width).toLong() * Math.max(0, image.height)
+    }
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.cast.refplayer.utils
+
+import android.os.SystemClock
+import android.util.Log
+import java.util.ArrayDeque
+import java.util.Locale
+import java.util.concurrent.Executor
+import java.util.concurrent.Future
+import java.util.concurrent.PriorityBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A dedicated scheduler for image loading work.
+ *
+ * Work is queued in priority lanes, see [Priority], and runs on a small pool of threads owned by
+ * this class instead of the process-wide [android.os.AsyncTask.THREAD_POOL_EXECUTOR]. Visible and
+ * notification work is served in FIFO order. Prefetch work is served in LIFO order and its lane is
+ * bounded, so that the oldest requests, which usually belong to rows that have already been
+ * scrolled away, are dropped first.
+ */
+class ImageScheduler private constructor() {
+
+  /** The priority lanes of the scheduler, from the most to the least urgent.  */
+  enum class Priority {
+    /** An image that is visible on the screen, such as the cover art of the player.  */
+    VISIBLE,
+    /** An image for the media notification and the lock screen.  */
+    NOTIFICATION,
+    /** An image that is loaded ahead of time and may never be shown.  */
+    PREFETCH
+  }
+
+  private val threadPoolExecutor = ThreadPoolExecutor(
+    THREAD_COUNT,
+    THREAD_COUNT,
+    KEEP_ALIVE_SECONDS,
+    TimeUnit.SECONDS,
+    PriorityBlockingQueue(),
+    ImageThreadFactory()
+  )
+  private val laneExecutors: Array<Executor> =
+    Array(Priority.values().size) { index ->
+      Executor { runnable -> schedule(runnable, Priority.values()[index]) }
+    }
+  private val laneStats: Array<LaneStats> = Array(Priority.values().size) { LaneStats() }
+  private val sequence = AtomicLong()
+  // The queued prefetch tasks, from the oldest to the newest. Guarded by itself.
+  private val queuedPrefetchTasks = ArrayDeque<ScheduledTask>()
+
+  init {
+    threadPoolExecutor.allowCoreThreadTimeOut(true)
+  }
+
+  /** Returns an [Executor] that schedules its work in the given lane.  */
+  fun getExecutor(priority: Priority): Executor {
+    return laneExecutors[priority.ordinal]
+  }
+
+  /** Schedules `runnable` in the lane of the given `priority`.  */
+  fun schedule(runnable: Runnable, priority: Priority) {
+    val task = ScheduledTask(
+      runnable, priority, sequence.incrementAndGet(), SystemClock.elapsedRealtime()
+    )
+    if (priority == Priority.PREFETCH) {
+      var droppedTask: ScheduledTask? = null
+      synchronized(queuedPrefetchTasks) {
+        queuedPrefetchTasks.addLast(task)
+        if (queuedPrefetchTasks.size > MAX_QUEUED_PREFETCH_TASKS) {
+          droppedTask = queuedPrefetchTasks.pollFirst()
+        }
+      }
+      if (droppedTask != null && threadPoolExecutor.remove(droppedTask)) {
+        laneStats[Priority.PREFETCH.ordinal].onDropped()
+        droppedTask!!.cancel()
+      }
+    }
+    threadPoolExecutor.execute(task)
+  }
+
+  /** Returns the average time, in milliseconds, that the tasks of a lane waited in the queue.  */
+  fun getAverageWaitMillis(priority: Priority): Long {
+    return laneStats[priority.ordinal].averageWaitMillis
+  }
+
+  /** Returns the longest time, in milliseconds, that a task of a lane waited in the queue.  */
+  fun getMaxWaitMillis(priority: Priority): Long {
+    return laneStats[priority.ordinal].maxWaitMillis
+  }
+
+  /** Returns the number of tasks of a lane that were dropped before they started.  */
+  fun getDroppedCount(priority: Priority): Long {
+    return laneStats[priority.ordinal].droppedCount
+  }
+
+  /** Returns a human readable summary of the queue wait time of every lane.  */
+  fun dump(): String {
+    val builder = StringBuilder()
+    for (priority in Priority.values()) {
+      val stats = laneStats[priority.ordinal]
+      builder.append(
+        String.format(
+          Locale.ROOT,
+          "%s: started=%d, avgWait=%dms, maxWait=%dms, dropped=%d\n",
+          priority,
+          stats.startedCount,
+          stats.averageWaitMillis,
+          stats.maxWaitMillis,
+          stats.droppedCount
+        )
+      )
+    }
+    return builder.toString()
+  }
+
+  private fun onTaskStarted(task: ScheduledTask) {
+    if (task.priority == Priority.PREFETCH) {
+      synchronized(queuedPrefetchTasks) { queuedPrefetchTasks.remove(task) }
+    }
+    val waitMillis = SystemClock.elapsedRealtime() - task.enqueueTimeMillis
+    laneStats[task.priority.ordinal].onStarted(waitMillis)
+    if (waitMillis >= SLOW_WAIT_THRESHOLD_MS) {
+      Log.d(TAG, "A ${task.priority} task waited ${waitMillis}ms in the queue")
+    }
+  }
+
+  /** A queued unit of work that is ordered by its lane and then by its arrival.  */
+  private inner class ScheduledTask(
+    private val runnable: Runnable,
+    val priority: Priority,
+    private val sequence: Long,
+    val enqueueTimeMillis: Long,
+  ) : Runnable, Comparable<ScheduledTask> {
+    override fun run() {
+      onTaskStarted(this)
+      runnable.run()
+    }
+
+    /**
+     * Completes the work of a task that is dropped before it starts. An [android.os.AsyncTask]
+     * hands its [Future] to the executor, and cancelling it delivers a `null` result, so that the
+     * caller is not left waiting.
+     */
+    fun cancel() {
+      (runnable as? Future<*>)?.cancel(false)
+    }
+
+    override fun compareTo(other: ScheduledTask): Int {
+      if (priority != other.priority) {
+        return priority.compareTo(other.priority)
+      }
+      // Prefetch work is served newest first, everything else in the order it arrived.
+      return if (priority == Priority.PREFETCH) {
+        other.sequence.compareTo(sequence)
+      } else {
+        sequence.compareTo(other.sequence)
+      }
+    }
+  }
+
+  /** The queue wait time metrics of a single lane.  */
+  private class LaneStats {
+    var startedCount = 0L
+      @Synchronized get
+      private set
+    private var totalWaitMillis = 0L
+    var maxWaitMillis = 0L
+      @Synchronized get
+      private set
+    var droppedCount = 0L
+      @Synchronized get
+      private set
+
+    val averageWaitMillis: Long
+      @Synchronized get() = if (startedCount == 0L) 0 else totalWaitMillis / startedCount
+
+    @Synchronized
+    fun onStarted(waitMillis: Long) {
+      startedCount++
+      totalWaitMillis += waitMillis
+      maxWaitMillis = Math.max(maxWaitMillis, waitMillis)
+    }
+
+    @Synchronized
+    fun onDropped() {
+      droppedCount++
+    }
+  }
+
+  private class ImageThreadFactory : ThreadFactory {
+    private val threadCount = AtomicInteger()
+
+    override fun newThread(runnable: Runnable): Thread {
+      return Thread(runnable, "ImageScheduler #" + threadCount.incrementAndGet())
+    }
+  }
+
+  companion object {
+    private const val TAG = "ImageScheduler"
+    private const val THREAD_COUNT = 2
+    private const val KEEP_ALIVE_SECONDS = 30L
+    private const val MAX_QUEUED_PREFETCH_TASKS = 16
+    private const val SLOW_WAIT_THRESHOLD_MS = 250L
+
+    @JvmStatic
+    val instance: ImageScheduler by lazy { ImageScheduler() }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.cast.refplayer.utils
+
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.content.res.Configuration
+import android.graphics.Bitmap
+import android.util.Log
+import androidx.collection.LruCache
+import java.util.Locale
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Trims the in-memory caches of the app when the system runs low on memory.
+ *
+ * Caches register a [Trimmable] and are asked to keep a fraction of their entries that shrinks as
+ * the trim level rises, see [getRetainedFraction]. Keeping the footprint small while the app is in
+ * the background, typically during a cast session, makes it less likely that the process is
+ * killed.
+ */
+class MemoryGovernor private constructor() : ComponentCallbacks2 {
+
+  /** A cache that can release part of its memory.  */
+  interface Trimmable {
+    /** The name of the cache, for logging.  */
+    val name: String
+
+    /** The number of entries in the cache.  */
+    val entryCount: Int
+
+    /** The approximate size of the entries in bytes, or -1 if it is not known.  */
+    val sizeInBytes: Long
+
+    /**
+     * Trims the cache to the given fraction of its current entries, from 0, which empties it, to
+     * 1, which keeps everything.
+     */
+    fun trimToFraction(fraction: Float)
+  }
+
+  private val trimmables: MutableList<Trimmable> = CopyOnWriteArrayList()
+
+  /** Registers `trimmable`, if it is not registered already.  */
+  fun register(trimmable: Trimmable) {
+    if (!trimmables.contains(trimmable)) {
+      trimmables.add(trimmable)
+    }
+  }
+
+  fun unregister(trimmable: Trimmable) {
+    trimmables.remove(trimmable)
+  }
+
+  override fun onTrimMemory(level: Int) {
+    trimToFraction(getRetainedFraction(level))
+  }
+
+  override fun onLowMemory() {
+    trimToFraction(0f)
+  }
+
+  override fun onConfigurationChanged(newConfig: Configuration) {}
+
+  /** Trims every registered cache to the given fraction of its entries.  */
+  fun trimToFraction(fraction: Float) {
+    val debug = Log.isLoggable(TAG, Log.DEBUG)
+    val sizeBefore = if (debug) totalSizeInBytes else 0
+    for (trimmable in trimmables) {
+      trimmable.trimToFraction(fraction)
+    }
+    if (debug) {
+      Log.d(
+        TAG,
+        String.format(
+          Locale.ROOT, "Trimmed caches to %.2f, %d -> %d bytes", fraction, sizeBefore,
+          totalSizeInBytes
+        )
+      )
+    }
+  }
+
+  /** The total size of the registered caches in bytes, leaving out unknown sizes.  */
+  val totalSizeInBytes: Long
+    get() = trimmables.sumOf { Math.max(0L, it.sizeInBytes) }
+
+  /** Returns a human readable summary of the footprint of every registered cache.  */
+  fun dump(): String {
+    val builder = StringBuilder()
+    for (trimmable in trimmables) {
+      builder.append(
+        String.format(
+          Locale.ROOT,
+          "%s: entries=%d, bytes=%d\n",
+          trimmable.name,
+          trimmable.entryCount,
+          trimmable.sizeInBytes
+        )
+      )
+    }
+    return builder.toString()
+  }
+
+  companion object {
+    private const val TAG = "MemoryGovernor"
+    private var instance: MemoryGovernor? = null
+
+    @JvmStatic
+    @Synchronized
+    fun getInstance(context: Context): MemoryGovernor {
+      return instance ?: MemoryGovernor().also {
+        instance = it
+        context.applicationContext.registerComponentCallbacks(it)
+      }
+    }
+
+    /**
+     * Returns the fraction of their entries that caches keep at a trim level. Caches are emptied
+     * once the process is in the background LRU list and at risk of being killed.
+     */
+    @JvmStatic
+    fun getRetainedFraction(level: Int): Float {
+      return when {
+        level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE -> 0f
+        level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND -> 0.25f
+        level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN -> 0.5f
+        level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL -> 0.25f
+        level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW -> 0.5f
+        level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE -> 0.75f
+        else -> 1f
+      }
+    }
+
+    /** Evicts the least recently used entries of `cache` down to a fraction of its size.  */
+    @JvmStatic
+    fun trimLruCache(cache: LruCache<*, *>, fraction: Float) {
+      cache.trimToSize((cache.size() * fraction).toInt())
+    }
+
+    /** Returns the number of bytes that `bitmaps` use.  */
+    @JvmStatic
+    fun getSizeInBytes(bitmaps: Collection<Bitmap>): Long {
+      return bitmaps.sumOf { it.allocationByteCount.toLong() }
+    }
+  }
+}
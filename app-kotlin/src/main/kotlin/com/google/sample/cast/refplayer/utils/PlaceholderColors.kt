@@ -0,0 +1,171 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.cast.refplayer.utils
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.graphics.Bitmap
+import android.graphics.Color
+import android.graphics.drawable.GradientDrawable
+import androidx.annotation.ColorInt
+import androidx.core.content.ContextCompat
+import com.google.android.gms.cast.MediaInfo
+import com.google.android.gms.cast.framework.media.MediaUtils
+import com.google.sample.cast.refplayer.R
+import com.google.sample.cast.refplayer.browser.VideoProvider
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+
+/**
+ * Provides the color that a thumbnail is painted with while it loads.
+ *
+ * The color comes from the [VideoProvider.KEY_PREVIEW_COLOR] of the catalog when the catalog has
+ * one. Otherwise it is the average color of the thumbnail, learned the first time the thumbnail is
+ * decoded and persisted so that the next launches can paint it with no network.
+ *
+ * The persisted colors are read and written on a background thread, since the first rows are
+ * bound before they are read. The least recently used colors are forgotten past a limit.
+ */
+class PlaceholderColors private constructor(context: Context) {
+  private val preferences: SharedPreferences =
+    context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+  // The learned colors, from the least to the most recently used.
+  private var learnedColors = newColorMap()
+  @ColorInt
+  private val defaultColor: Int = ContextCompat.getColor(context, R.color.thumbnail_placeholder)
+
+  init {
+    // Until the persisted colors are read, the thumbnails get the default color.
+    IO_EXECUTOR.execute { load() }
+  }
+
+  /** Returns the placeholder color of the thumbnail of `media`.  */
+  @ColorInt
+  @Synchronized
+  fun getColor(media: MediaInfo?): Int {
+    val metadata = media?.metadata ?: return defaultColor
+    if (metadata.containsKey(VideoProvider.KEY_PREVIEW_COLOR)) {
+      return metadata.getInt(VideoProvider.KEY_PREVIEW_COLOR)
+    }
+    return learnedColors[MediaUtils.getImageUrl(media, 0)] ?: defaultColor
+  }
+
+  /** Learns the placeholder color of the image of `url`, unless it is already known.  */
+  @Synchronized
+  fun onImageLoaded(url: String, bitmap: Bitmap) {
+    if (learnedColors.containsKey(url)) {
+      return
+    }
+    val color = getAverageColor(bitmap)
+    learnedColors[url] = color
+    val evictedUrls = evict()
+    IO_EXECUTOR.execute {
+      val editor = preferences.edit().putInt(url, color)
+      for (evictedUrl in evictedUrls) {
+        editor.remove(evictedUrl)
+      }
+      editor.apply()
+    }
+  }
+
+  /** Reads the persisted colors, on [IO_EXECUTOR].  */
+  private fun load() {
+    val storedColors = preferences.all
+    val evictedUrls: List<String>
+    synchronized(this) {
+      val colors = newColorMap()
+      for ((key, value) in storedColors) {
+        if (value is Int) {
+          colors[key] = value
+        }
+      }
+      // The colors learned while reading are the most recently used ones.
+      colors.putAll(learnedColors)
+      learnedColors = colors
+      evictedUrls = evict()
+    }
+    if (evictedUrls.isNotEmpty()) {
+      val editor = preferences.edit()
+      for (evictedUrl in evictedUrls) {
+        editor.remove(evictedUrl)
+      }
+      editor.apply()
+    }
+  }
+
+  /** Forgets the least recently used colors past the limit, and returns their URLs.  */
+  private fun evict(): List<String> {
+    val evictedUrls = ArrayList<String>()
+    val iterator = learnedColors.keys.iterator()
+    while (learnedColors.size > MAX_LEARNED_COLORS) {
+      evictedUrls.add(iterator.next())
+      iterator.remove()
+    }
+    return evictedUrls
+  }
+
+  companion object {
+    private const val PREFERENCES_NAME = "placeholder_colors"
+    private const val MAX_LEARNED_COLORS = 500
+    // The number of pixels sampled along each side of a thumbnail.
+    private const val SAMPLE_GRID_SIZE = 4
+    private val IO_EXECUTOR: Executor = Executors.newSingleThreadExecutor()
+    private var instance: PlaceholderColors? = null
+
+    private fun newColorMap(): LinkedHashMap<String, Int> {
+      return LinkedHashMap(16, 0.75f, /* accessOrder= */ true)
+    }
+
+    @JvmStatic
+    @Synchronized
+    fun getInstance(context: Context): PlaceholderColors {
+      return instance ?: PlaceholderColors(context.applicationContext).also { instance = it }
+    }
+
+    /**
+     * Returns a drawable to paint placeholder colors with. It has the size of a list thumbnail, so
+     * that it lays its row out like the thumbnail in views that wrap their content.
+     */
+    @JvmStatic
+    fun newPlaceholderDrawable(context: Context): GradientDrawable {
+      val width = context.resources.getDimensionPixelSize(R.dimen.list_item_image_max_width)
+      return GradientDrawable().apply { setSize(width, width * 9 / 16) }
+    }
+
+    /** Returns the average color of a grid of pixels, which is much cheaper than scaling.  */
+    @ColorInt
+    private fun getAverageColor(bitmap: Bitmap): Int {
+      val width = bitmap.width
+      val height = bitmap.height
+      var red = 0L
+      var green = 0L
+      var blue = 0L
+      for (i in 0 until SAMPLE_GRID_SIZE) {
+        for (j in 0 until SAMPLE_GRID_SIZE) {
+          val pixel = bitmap.getPixel(
+            (2 * i + 1) * width / (2 * SAMPLE_GRID_SIZE),
+            (2 * j + 1) * height / (2 * SAMPLE_GRID_SIZE)
+          )
+          red += Color.red(pixel)
+          green += Color.green(pixel)
+          blue += Color.blue(pixel)
+        }
+      }
+      val count = SAMPLE_GRID_SIZE * SAMPLE_GRID_SIZE
+      return Color.rgb((red / count).toInt(), (green / count).toInt(), (blue / count).toInt())
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2024 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.cast.refplayer.utils
+
+import android.os.SystemClock
+import android.util.Log
+import com.google.android.gms.cast.MediaInfo
+import com.google.android.gms.cast.MediaQueueItem
+import com.google.android.gms.cast.MediaStatus
+import java.util.Locale
+
+/**
+ * Picks the preload time of the queue items from how long the receiver took to start the items
+ * that played before.
+ *
+ * The startup of an item is timed from the status update where it becomes the current item to the
+ * one where it plays. An item that was not preloaded starts cold, so its startup tells how long
+ * the receiver needs to load an item of the same content type, and the preload time is that
+ * estimate with some headroom. An item that was preloaded should start right away: if it stalls,
+ * the preload time was too short and grows by the stall, and each smooth start shrinks that extra
+ * time again, so that the receiver does not load the next item earlier than it needs to. Until an
+ * item of a content type has started cold, the estimate of all the content types is used, and
+ * [DEFAULT_PRELOAD_TIME_S] before any. All the methods must be called on the main thread.
+ */
+class PreloadPolicy private constructor() {
+
+  private val estimates = HashMap<String, Estimate>()
+  private val overallEstimate = Estimate()
+  private var currentItemId = MediaQueueItem.INVALID_ITEM_ID
+  private var upcomingItemId = MediaQueueItem.INVALID_ITEM_ID
+  private var currentContentType = ""
+  private var currentItemPreloaded = false
+  // Set from the change of the current item until it plays or fails.
+  private var timingStartup = false
+  private var startupStartMillis = 0L
+
+  /**
+   * Times the startup of the items from the status of the receiver, given on every status update.
+   */
+  fun onStatusUpdated(
+    currentItem: MediaQueueItem?,
+    upcomingItem: MediaQueueItem?,
+    playerState: Int
+  ) {
+    val itemId = currentItem?.itemId ?: MediaQueueItem.INVALID_ITEM_ID
+    if (itemId != currentItemId) {
+      // An item that already plays when it is first seen was started before the session was
+      // joined, so its startup is unknown.
+      val joined = currentItemId == MediaQueueItem.INVALID_ITEM_ID &&
+        playerState == MediaStatus.PLAYER_STATE_PLAYING
+      currentItemId = itemId
+      currentItemPreloaded = itemId != MediaQueueItem.INVALID_ITEM_ID && itemId == upcomingItemId
+      currentContentType = getContentType(currentItem?.media)
+      timingStartup = itemId != MediaQueueItem.INVALID_ITEM_ID && !joined
+      startupStartMillis = SystemClock.elapsedRealtime()
+    }
+    upcomingItemId = upcomingItem?.itemId ?: MediaQueueItem.INVALID_ITEM_ID
+    if (!timingStartup) {
+      return
+    }
+    if (playerState == MediaStatus.PLAYER_STATE_PLAYING) {
+      timingStartup = false
+      onStartup(SystemClock.elapsedRealtime() - startupStartMillis)
+    } else if (playerState == MediaStatus.PLAYER_STATE_IDLE ||
+      playerState == MediaStatus.PLAYER_STATE_PAUSED
+    ) {
+      // The item failed, or the user paused it before it played: its startup says nothing.
+      timingStartup = false
+    }
+  }
+
+  /** Returns the preload time, in seconds, for an item that plays `mediaInfo`.  */
+  fun getPreloadTimeSeconds(mediaInfo: MediaInfo?): Int {
+    val estimate = estimates[getContentType(mediaInfo)]
+    return if (estimate != null && estimate.hasColdStartup()) {
+      estimate.getPreloadTimeSeconds()
+    } else {
+      overallEstimate.getPreloadTimeSeconds()
+    }
+  }
+
+  /** Returns a human readable summary of the startups timed for each content type.  */
+  fun dump(): String {
+    val builder = StringBuilder()
+    overallEstimate.dump(builder, ALL_CONTENT_TYPES)
+    for ((contentType, estimate) in estimates) {
+      estimate.dump(builder, contentType)
+    }
+    return builder.toString()
+  }
+
+  private fun onStartup(startupMillis: Long) {
+    Log.d(
+      TAG,
+      String.format(
+        Locale.ROOT,
+        "item %d of type %s started in %dms, preloaded=%b",
+        currentItemId,
+        currentContentType,
+        startupMillis,
+        currentItemPreloaded
+      )
+    )
+    estimates.getOrPut(currentContentType) { Estimate() }
+      .record(startupMillis, currentItemPreloaded)
+    overallEstimate.record(startupMillis, currentItemPreloaded)
+  }
+
+  /** The startups timed for the items of a content type.  */
+  private class Estimate {
+    private var coldStartupMillis = 0L
+    private var coldStartupCount = 0
+    private var preloadedStartupCount = 0
+    private var stallCount = 0
+    private var stallExtraMillis = 0L
+
+    fun hasColdStartup(): Boolean {
+      return coldStartupCount > 0
+    }
+
+    fun record(startupMillis: Long, preloaded: Boolean) {
+      if (!preloaded) {
+        coldStartupMillis = if (coldStartupCount == 0) {
+          startupMillis
+        } else {
+          (SAMPLE_WEIGHT * startupMillis + (1 - SAMPLE_WEIGHT) * coldStartupMillis).toLong()
+        }
+        coldStartupCount++
+        return
+      }
+      preloadedStartupCount++
+      if (startupMillis > STALL_THRESHOLD_MS) {
+        stallCount++
+        stallExtraMillis = Math.min(stallExtraMillis + startupMillis, MAX_STALL_EXTRA_MS)
+      } else {
+        stallExtraMillis = (stallExtraMillis * STALL_EXTRA_DECAY).toLong()
+      }
+    }
+
+    fun getPreloadTimeSeconds(): Int {
+      if (coldStartupCount == 0 && stallExtraMillis == 0L) {
+        return DEFAULT_PRELOAD_TIME_S
+      }
+      val baseMillis = if (coldStartupCount > 0) {
+        (coldStartupMillis * STARTUP_HEADROOM).toLong()
+      } else {
+        DEFAULT_PRELOAD_TIME_S * 1000L
+      }
+      val seconds = Math.ceil((baseMillis + stallExtraMillis) / 1000.0).toInt()
+      return Math.max(MIN_PRELOAD_TIME_S, Math.min(seconds, MAX_PRELOAD_TIME_S))
+    }
+
+    fun dump(builder: StringBuilder, contentType: String) {
+      builder.append(
+        String.format(
+          Locale.ROOT,
+          "%s: cold startup=%dms (%d items), preloaded=%d, stalls=%d (+%dms), preload=%ds\n",
+          if (contentType.isEmpty()) "unknown" else contentType,
+          coldStartupMillis,
+          coldStartupCount,
+          preloadedStartupCount,
+          stallCount,
+          stallExtraMillis,
+          getPreloadTimeSeconds()
+        )
+      )
+    }
+  }
+
+  companion object {
+    private const val TAG = "PreloadPolicy"
+    private const val DEFAULT_PRELOAD_TIME_S = 20
+    private const val MIN_PRELOAD_TIME_S = 5
+    private const val MAX_PRELOAD_TIME_S = 60
+    // The preload time is the estimated startup times this, to absorb its variations.
+    private const val STARTUP_HEADROOM = 3f
+    // The weight of a new sample in the moving average of the startup time.
+    private const val SAMPLE_WEIGHT = 0.3f
+    // A preloaded item that takes longer than that to play has stalled.
+    private const val STALL_THRESHOLD_MS = 500L
+    // The share of the extra time for stalls that each smooth start keeps.
+    private const val STALL_EXTRA_DECAY = 0.5f
+    private const val MAX_STALL_EXTRA_MS = 30_000L
+    private const val ALL_CONTENT_TYPES = "all"
+
+    @JvmStatic
+    val instance: PreloadPolicy by lazy { PreloadPolicy() }
+
+    private fun getContentType(mediaInfo: MediaInfo?): String {
+      return mediaInfo?.contentType ?: ""
+    }
+  }
+}
@@ -35,6 +35,7 @@ import android.content.DialogInterface
 import android.content.pm.PackageInfo
 import android.content.res.Configuration
 import android.widget.Toast
+import java.io.PrintWriter
 import java.util.Locale
 import android.graphics.Point
 import android.text.TextUtils
@@ -50,7 +51,8 @@ import java.util.concurrent.Executors
  */
 object Utils {
     private const val TAG: String = "Utils"
-    private const val PRELOAD_TIME_S: Int = 20
+    // The dumpsys argument that starts the frame timings over once printed.
+    private const val DUMP_RESET_ARG = "--reset"
     private val  utilCastExecutor: Executor = Executors.newSingleThreadExecutor();
 
     /**
@@ -148,10 +150,7 @@ object Utils {
         val clickListener: PopupMenu.OnMenuItemClickListener =
             object : PopupMenu.OnMenuItemClickListener {
                 override fun onMenuItemClick(menuItem: MenuItem): Boolean {
-                    val queueItem: MediaQueueItem =
-                        MediaQueueItem.Builder((mediaInfo)!!).setAutoplay(
-                            true
-                        ).setPreloadTime(PRELOAD_TIME_S.toDouble()).build()
+                    val queueItem: MediaQueueItem = buildQueueItem(mediaInfo!!)
                     val newItemArray: Array<MediaQueueItem> = arrayOf(queueItem)
                     var toastMessage: String? = null
                     if (provider?.count == 0) {
@@ -162,32 +161,17 @@ object Utils {
                     } else {
                         val currentId: Int = provider!!.currentItemId
                         if (menuItem.itemId == R.id.action_play_now) {
-                            remoteMediaClient.queueInsertAndPlayItem(queueItem, currentId, JSONObject() )
+                            provider.insertAndPlayItem(queueItem, currentId)
                         } else if (menuItem.itemId == R.id.action_play_next) {
-                            val currentPosition: Int = provider!!.getPositionByItemId(currentId)
-                            if (currentPosition == provider!!.count - 1) {
-                                //we are adding to the end of queue
-                                remoteMediaClient.queueAppendItem(queueItem, JSONObject() )
-                            } else {
-                                val nextItem: MediaQueueItem? =
-                                    provider.getItem(currentPosition + 1)
-                                if (nextItem != null) {
-                                    val nextItemId: Int = nextItem.itemId
-                                    remoteMediaClient.queueInsertItems(
-                                        newItemArray,
-                                        nextItemId,
-                                        JSONObject()
-                                    )
-                                } else {
-                                    //remote queue is not ready with item; try again.
-                                    return false
-                                }
+                            if (!provider.insertItemsAfter(newItemArray, currentId)) {
+                                //the current item is not in the queue yet; try again.
+                                return false
                             }
                             toastMessage = context.getString(
                                 R.string.queue_item_added_to_play_next
                             )
                         } else if (menuItem.itemId == R.id.action_add_to_queue) {
-                            remoteMediaClient.queueAppendItem(queueItem, JSONObject() )
+                            provider.insertItems(newItemArray, MediaQueueItem.INVALID_ITEM_ID)
                             toastMessage = context.getString(R.string.queue_item_added_to_queue)
                         } else {
                             return false
@@ -206,4 +190,61 @@ object Utils {
         popup.setOnMenuItemClickListener(clickListener)
         popup.show()
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns a queue item that plays `mediaInfo`, and that the receiver preloads ahead of the end
+     * of the item before it, as early as [PreloadPolicy] finds that it needs.
+     */
+    fun buildQueueItem(mediaInfo: MediaInfo): MediaQueueItem {
+        return MediaQueueItem.Builder(mediaInfo).setAutoplay(true)
+            .setPreloadTime(PreloadPolicy.instance.getPreloadTimeSeconds(mediaInfo).toDouble())
+            .build()
+    }
+
+    /**
+     * Returns copies of `items` without their item IDs, so that they can be loaded on another
+     * receiver, which assigns new ones.
+     */
+    fun rebuildQueue(items: List<MediaQueueItem>): Array<MediaQueueItem> {
+        return Array(items.size) { rebuildQueueItem(items[it]) }
+    }
+
+    fun rebuildQueueItem(item: MediaQueueItem): MediaQueueItem {
+        return MediaQueueItem.Builder(item).clearItemId().build()
+    }
+
+    /**
+     * Prints the frame timings, the footprint of the caches, the state of the image loading, the
+     * requests saved on queue moves and the startups of the queue items, for
+     * `adb shell dumpsys activity`. With `--reset` in `args`, the frame timings start over once
+     * printed, so that the next dump only covers the frames since this one.
+     */
+    fun dumpDiagnostics(
+        context: Context, prefix: String, writer: PrintWriter, args: Array<out String>?
+    ) {
+        dumpSection(writer, prefix, "Frame timing", FrameTimingMonitor.instance.dump())
+        if (args != null && DUMP_RESET_ARG in args) {
+            FrameTimingMonitor.instance.reset()
+        }
+        dumpSection(writer, prefix, "Caches", MemoryGovernor.getInstance(context).dump())
+        dumpSection(writer, prefix, "Image failures", ImageFailureCache.instance.dump())
+        dumpSection(
+            writer, prefix, "Image quality", ImageQualityPolicy.getInstance(context).dump()
+        )
+        dumpSection(writer, prefix, "Queue", QueueDataProvider.getInstance(context)!!.dump())
+        dumpSection(writer, prefix, "Preload", PreloadPolicy.instance.dump())
+    }
+
+    private fun dumpSection(writer: PrintWriter, prefix: String, title: String, dump: String) {
+        writer.print(prefix)
+        writer.print(title)
+        writer.println(":")
+        for (line in dump.split("\n")) {
+            if (line.isNotEmpty()) {
+                writer.print(prefix)
+                writer.print("  ")
+                writer.println(line)
+            }
+        }
+    }
+}